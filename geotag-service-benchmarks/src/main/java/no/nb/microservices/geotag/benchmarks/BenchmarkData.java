@@ -0,0 +1,65 @@
+package no.nb.microservices.geotag.benchmarks;
+
+import no.nb.microservices.geotag.model.GeoPosition;
+import no.nb.microservices.geotag.model.GeoTag;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Test data shared by the benchmarks. Seeded, so every run works on the same tags.
+ */
+public final class BenchmarkData {
+
+    public static final String USER_ID = "b62eb09d-dbf2-495a-8872-7d16e6911296";
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * Tags spread over Norway, each with a history of the given number of positions.
+     */
+    public static List<GeoTag> geoTags(int count, int positions, boolean withIds) {
+        Random random = new Random(count * 31L + positions);
+        List<GeoTag> geoTags = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            GeoTag geoTag = new GeoTag(withIds ? String.format("%024x", i) : null, "URN:NBN:no-nb_foto_NF.W_" + i, position(random, i));
+            geoTag.setSticky(i % 10 == 0);
+            geoTag.setDirty(i % 7 == 0);
+            List<GeoPosition> userPositions = new ArrayList<>(positions);
+            for (int j = 0; j < positions; j++) {
+                userPositions.add(position(random, j));
+            }
+            geoTag.setUserPositions(userPositions);
+            geoTags.add(geoTag);
+        }
+        return geoTags;
+    }
+
+    /**
+     * ControllerLinkBuilder and ServletUriComponentsBuilder take the host from the current request.
+     */
+    public static void bindRequest(String uri) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", uri);
+        request.setServerName("geotag.example.com");
+        request.setServerPort(8080);
+        RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(request));
+    }
+
+    public static void unbindRequest() {
+        RequestContextHolder.resetRequestAttributes();
+    }
+
+    private static GeoPosition position(Random random, int i) {
+        GeoPosition position = new GeoPosition(USER_ID, "example" + i + "@example.com",
+                4.5 + random.nextDouble() * 26, 58 + random.nextDouble() * 13, new Date(1400000000000L + random.nextInt(Integer.MAX_VALUE)));
+        position.setUserDisplayName("Example User " + i);
+        position.setUserComment("Taken from the hill above the church");
+        return position;
+    }
+}
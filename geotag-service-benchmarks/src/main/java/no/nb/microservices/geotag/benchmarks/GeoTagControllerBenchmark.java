@@ -0,0 +1,188 @@
+package no.nb.microservices.geotag.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mongodb.Mongo;
+import com.mongodb.MongoClient;
+import de.flapdoodle.embed.mongo.MongodExecutable;
+import de.flapdoodle.embed.mongo.MongodProcess;
+import de.flapdoodle.embed.mongo.MongodStarter;
+import de.flapdoodle.embed.mongo.config.MongodConfigBuilder;
+import de.flapdoodle.embed.mongo.config.Net;
+import de.flapdoodle.embed.mongo.distribution.Version;
+import de.flapdoodle.embed.process.runtime.Network;
+import no.nb.microservices.geotag.config.ApplicationSettings;
+import no.nb.microservices.geotag.metrics.Timings;
+import no.nb.microservices.geotag.model.GeoTag;
+import no.nb.microservices.geotag.repository.GeoTagRepository;
+import no.nb.microservices.geotag.rest.assembler.GeoTagResourceAssembler;
+import no.nb.microservices.geotag.rest.async.QueryExecutor;
+import no.nb.microservices.geotag.rest.controller.GeoTagController;
+import no.nb.microservices.geotag.rest.json.MaskingModule;
+import no.nb.microservices.geotag.service.AccessContext;
+import no.nb.microservices.geotag.service.GeoTagService;
+import no.nb.microservices.geotag.service.InvalidationBus;
+import no.nb.microservices.geotag.service.LoopbackInvalidationBus;
+import no.nb.microservices.geotag.service.NBUserService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.ComponentScan;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.data.mongodb.config.AbstractMongoConfiguration;
+import org.springframework.data.mongodb.repository.config.EnableMongoRepositories;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+
+/**
+ * Whole requests through GeoTagController, the service and the repositories down to an embedded Mongo seeded with
+ * {@value #SEED} tags. Only the servlet container and security are left out. The caller is anonymous, so the results
+ * are masked like for most real traffic.
+ *
+ * Run with java -jar target/benchmarks.jar GeoTagControllerBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class GeoTagControllerBenchmark {
+
+    private static final int SEED = 10000;
+
+    private MongodExecutable mongodExecutable;
+    private MongodProcess mongod;
+    private AnnotationConfigApplicationContext context;
+    private MockMvc mockMvc;
+    private String geoTagId;
+    private String urn;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        int port = Network.getFreeServerPort();
+        mongodExecutable = MongodStarter.getDefaultInstance().prepare(new MongodConfigBuilder()
+                .version(Version.Main.PRODUCTION)
+                .net(new Net("127.0.0.1", port, Network.localhostIsIPv6()))
+                .build());
+        mongod = mongodExecutable.start();
+
+        context = new AnnotationConfigApplicationContext();
+        context.getEnvironment().getPropertySources().addFirst(
+                new MapPropertySource("benchmark", Collections.<String, Object>singletonMap("benchmark.mongo.port", port)));
+        context.register(MongoConfiguration.class, Config.class);
+        context.refresh();
+
+        GeoTagRepository geoTagRepository = context.getBean(GeoTagRepository.class);
+        List<GeoTag> saved = geoTagRepository.save(BenchmarkData.geoTags(SEED, 3, false));
+        geoTagId = saved.get(SEED / 2).getGeoId();
+        urn = saved.get(SEED / 2).getUrn();
+
+        ApplicationSettings applicationSettings = context.getBean(ApplicationSettings.class);
+        NBUserService nbUserService = context.getBean(NBUserService.class);
+        GeoTagController geoTagController = new GeoTagController(nbUserService,
+                new GeoTagResourceAssembler(applicationSettings, context.getBean(Timings.class)), applicationSettings, context.getBean(GeoTagService.class),
+                new QueryExecutor(applicationSettings));
+        ObjectMapper objectMapper = new ObjectMapper().registerModule(new MaskingModule(() -> AccessContext.current(nbUserService)));
+        mockMvc = MockMvcBuilders.standaloneSetup(geoTagController)
+                .setMessageConverters(new MappingJackson2HttpMessageConverter(objectMapper))
+                .build();
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        context.close();
+        mongod.stop();
+        mongodExecutable.stop();
+    }
+
+    @Benchmark
+    public byte[] listPage() throws Exception {
+        return perform("/v1/geotags?size=100");
+    }
+
+    @Benchmark
+    public byte[] listByUrn() throws Exception {
+        return perform("/v1/geotags?urn=" + urn);
+    }
+
+    @Benchmark
+    public byte[] findOne() throws Exception {
+        return perform("/v1/geotags/" + geoTagId);
+    }
+
+    @Benchmark
+    public byte[] within() throws Exception {
+        return perform("/v1/within?lon=9.0&lat=59.0&secondLon=11.0&secondLat=61.0&size=100");
+    }
+
+    @Benchmark
+    public byte[] nearby() throws Exception {
+        return perform("/v1/nearby?lon=10.75&lat=59.91&maxDistance=50&size=100");
+    }
+
+    /**
+     * The queries answer through a DeferredResult on the query threads, the body comes with the async dispatch.
+     */
+    private byte[] perform(String uri) throws Exception {
+        MvcResult result = mockMvc.perform(get(uri)).andReturn();
+        return mockMvc.perform(asyncDispatch(result)).andReturn().getResponse().getContentAsByteArray();
+    }
+
+    @Configuration
+    @EnableMongoRepositories(basePackageClasses = GeoTagRepository.class)
+    @ComponentScan(basePackageClasses = { GeoTagRepository.class, GeoTagService.class, Timings.class })
+    static class MongoConfiguration extends AbstractMongoConfiguration {
+
+        @Autowired
+        private Environment environment;
+
+        @Override
+        protected String getDatabaseName() {
+            return "tagdb";
+        }
+
+        @Override
+        public Mongo mongo() throws Exception {
+            return new MongoClient("127.0.0.1", environment.getProperty("benchmark.mongo.port", Integer.class));
+        }
+    }
+
+    @Configuration
+    static class Config {
+        @Bean
+        public ApplicationSettings applicationSettings() {
+            ApplicationSettings settings = new ApplicationSettings();
+            settings.setNbsokContentUrl("http://www.nb.no/nbsok/nb/{sesamid}");
+            settings.setFotoContentUrl("http://www.nb.no/foto/nb/{sesamid}");
+            return settings;
+        }
+
+        @Bean
+        public InvalidationBus invalidationBus() {
+            return new LoopbackInvalidationBus();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package no.nb.microservices.geotag.benchmarks;
+
+import no.nb.microservices.geotag.config.ApplicationSettings;
+import no.nb.microservices.geotag.metrics.Timings;
+import no.nb.microservices.geotag.model.GeoQuery;
+import no.nb.microservices.geotag.model.GeoTag;
+import no.nb.microservices.geotag.rest.assembler.GeoTagPage;
+import no.nb.microservices.geotag.rest.assembler.GeoTagResourceAssembler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.hateoas.PagedResources;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Assembling a page of geotags with the link templates against the per-link ControllerLinkBuilder baseline.
+ *
+ * Run with java -jar target/benchmarks.jar GeoTagResourceAssemblerBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class GeoTagResourceAssemblerBenchmark {
+
+    @Param({"10", "100", "500"})
+    private int pageSize;
+
+    private GeoTagResourceAssembler templateAssembler;
+    private ReflectiveGeoTagResourceAssembler reflectiveAssembler;
+    private List<GeoTag> geoTags;
+    private GeoQuery geoQuery;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        BenchmarkData.bindRequest("/v1/geotags");
+
+        templateAssembler = new GeoTagResourceAssembler(new ApplicationSettings(), new Timings());
+        reflectiveAssembler = new ReflectiveGeoTagResourceAssembler();
+
+        geoQuery = new GeoQuery();
+        geoQuery.setUser(BenchmarkData.USER_ID);
+        geoTags = BenchmarkData.geoTags(pageSize, 0, true);
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanup() {
+        BenchmarkData.unbindRequest();
+    }
+
+    @Benchmark
+    public PagedResources<GeoTag> templates() {
+        return templateAssembler.toResource(page());
+    }
+
+    @Benchmark
+    public PagedResources<GeoTag> reflective() {
+        return reflectiveAssembler.toResource(page());
+    }
+
+    /**
+     * The assemblers add the self links to the tags themselves, so they are cleared for every round. Costs the same
+     * for both.
+     */
+    private GeoTagPage page() {
+        for (GeoTag geoTag : geoTags) {
+            geoTag.removeLinks();
+        }
+        return new GeoTagPage(new PageImpl<>(geoTags, new PageRequest(2, pageSize), 20L * pageSize), geoQuery);
+    }
+}
@@ -0,0 +1,107 @@
+package no.nb.microservices.geotag.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import no.nb.microservices.geotag.model.GeoPosition;
+import no.nb.microservices.geotag.model.GeoTag;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.hateoas.Link;
+import org.springframework.hateoas.PagedResources;
+import org.springframework.hateoas.hal.Jackson2HalModule;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Jackson reading and writing of single tags, positions and whole HAL pages, the way the controllers send them.
+ *
+ * Run with java -jar target/benchmarks.jar JsonSerializationBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class JsonSerializationBenchmark {
+
+    private static final int PAGE_SIZE = 100;
+
+    /**
+     * Length of the position history of every tag.
+     */
+    @Param({"0", "10", "100"})
+    private int positions;
+
+    private ObjectWriter tagWriter;
+    private ObjectReader tagReader;
+    private ObjectWriter positionWriter;
+    private ObjectReader positionReader;
+    private ObjectWriter pageWriter;
+    private GeoTag geoTag;
+    private GeoPosition geoPosition;
+    private PagedResources<GeoTag> page;
+    private byte[] tagJson;
+    private byte[] positionJson;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        ObjectMapper halMapper = new ObjectMapper().registerModule(new Jackson2HalModule());
+        tagWriter = mapper.writerWithType(GeoTag.class);
+        tagReader = mapper.reader(GeoTag.class);
+        positionWriter = mapper.writerWithType(GeoPosition.class);
+        positionReader = mapper.reader(GeoPosition.class);
+        pageWriter = halMapper.writer();
+
+        List<GeoTag> geoTags = BenchmarkData.geoTags(PAGE_SIZE, positions, true);
+        for (GeoTag tag : geoTags) {
+            tag.add(new Link("http://geotag.example.com:8080/v1/geotags/" + tag.getGeoId()));
+        }
+        geoTag = geoTags.get(0);
+        geoPosition = geoTag.getCurrentPosition();
+        page = new PagedResources<>(geoTags, new PagedResources.PageMetadata(PAGE_SIZE, 0, 20 * PAGE_SIZE),
+                new Link("http://geotag.example.com:8080/v1/geotags?page=0&size=" + PAGE_SIZE));
+
+        tagJson = tagWriter.writeValueAsBytes(geoTag);
+        positionJson = positionWriter.writeValueAsBytes(geoPosition);
+    }
+
+    @Benchmark
+    public byte[] writeGeoTag() throws IOException {
+        return tagWriter.writeValueAsBytes(geoTag);
+    }
+
+    @Benchmark
+    public GeoTag readGeoTag() throws IOException {
+        return tagReader.readValue(tagJson);
+    }
+
+    @Benchmark
+    public byte[] writeGeoPosition() throws IOException {
+        return positionWriter.writeValueAsBytes(geoPosition);
+    }
+
+    @Benchmark
+    public GeoPosition readGeoPosition() throws IOException {
+        return positionReader.readValue(positionJson);
+    }
+
+    @Benchmark
+    public byte[] writeHalPage() throws IOException {
+        return pageWriter.writeValueAsBytes(page);
+    }
+}
@@ -0,0 +1,70 @@
+package no.nb.microservices.geotag.benchmarks;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import no.nb.microservices.geotag.model.GeoTag;
+import no.nb.microservices.geotag.rest.json.MaskingModule;
+import no.nb.microservices.geotag.service.AccessContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing the pages non-admins get with the MaskingModule, which leaves the masked fields out as it writes. plain
+ * is the same page without the module, admin is the module deciding not to mask.
+ *
+ * Run with java -jar target/benchmarks.jar MaskBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class MaskBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    private int pageSize;
+
+    private List<GeoTag> geoTags;
+    private ObjectWriter plainWriter;
+    private ObjectWriter maskedWriter;
+    private ObjectWriter adminWriter;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        geoTags = BenchmarkData.geoTags(pageSize, 5, true);
+        plainWriter = new ObjectMapper().writer();
+        ObjectMapper maskingMapper = new ObjectMapper().registerModule(new MaskingModule(() -> AccessContext.ANONYMOUS));
+        maskedWriter = maskingMapper.writer().withAttribute(MaskingModule.MASKED, true);
+        adminWriter = maskingMapper.writer().withAttribute(MaskingModule.MASKED, false);
+    }
+
+    @Benchmark
+    public byte[] plain() throws JsonProcessingException {
+        return plainWriter.writeValueAsBytes(geoTags);
+    }
+
+    @Benchmark
+    public byte[] masked() throws JsonProcessingException {
+        return maskedWriter.writeValueAsBytes(geoTags);
+    }
+
+    @Benchmark
+    public byte[] admin() throws JsonProcessingException {
+        return adminWriter.writeValueAsBytes(geoTags);
+    }
+}
@@ -0,0 +1,86 @@
+package no.nb.microservices.geotag.benchmarks;
+
+import com.mysema.query.types.Predicate;
+import no.nb.microservices.geotag.config.ApplicationSettings;
+import no.nb.microservices.geotag.model.GeoQuery;
+import no.nb.microservices.geotag.model.GeoTag;
+import no.nb.microservices.geotag.repository.GeoTagProjection;
+import no.nb.microservices.geotag.repository.GeoTagRepository;
+import no.nb.microservices.geotag.repository.Totals;
+import no.nb.microservices.geotag.service.GeoTagCache;
+import no.nb.microservices.geotag.service.GeoTagService;
+import no.nb.microservices.geotag.service.GeoTagSpatialIndex;
+import no.nb.microservices.geotag.service.IGeoTagService;
+import no.nb.microservices.geotag.service.NBUserService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.Pageable;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * The QueryDSL predicate GeoTagService builds for every list, scroll and export request, through
+ * {@link IGeoTagService#query} on a mocked repository that answers with an empty page. The call into the mock is
+ * the same for both suites, so the difference between them is the cost of the filters.
+ *
+ * Run with java -jar target/benchmarks.jar QueryPredicateBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class QueryPredicateBenchmark {
+
+    private IGeoTagService geoTagService;
+    private GeoQuery emptyQuery;
+    private GeoQuery fullQuery;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        GeoTagRepository geoTagRepository = mock(GeoTagRepository.class);
+        when(geoTagRepository.findAll(any(Predicate.class), any(Pageable.class), any(GeoTagProjection.class), any(Totals.class)))
+                .thenReturn(new PageImpl<GeoTag>(Collections.<GeoTag>emptyList()));
+        geoTagService = new GeoTagService(geoTagRepository, mock(NBUserService.class), mock(ApplicationEventPublisher.class),
+                mock(GeoTagSpatialIndex.class), new GeoTagCache(new ApplicationSettings()));
+
+        emptyQuery = new GeoQuery();
+
+        fullQuery = new GeoQuery();
+        fullQuery.setUrn("URN:NBN:no-nb_foto_NF.W_50121");
+        fullQuery.setEmail("example@example.com");
+        fullQuery.setUser(BenchmarkData.USER_ID);
+        fullQuery.setUpdatedSince(new Date(1400000000000L));
+        fullQuery.setDirty(true);
+        fullQuery.setSticky(false);
+    }
+
+    @Benchmark
+    public Page<GeoTag> noFilters() {
+        return geoTagService.query(emptyQuery, 0, 10, null);
+    }
+
+    @Benchmark
+    public Page<GeoTag> allFilters() {
+        return geoTagService.query(fullQuery, 0, 10, null);
+    }
+}
@@ -0,0 +1,60 @@
+package no.nb.microservices.geotag.benchmarks;
+
+import no.nb.microservices.geotag.model.GeoTag;
+import no.nb.microservices.geotag.repository.EstimatedPage;
+import no.nb.microservices.geotag.repository.Totals;
+import no.nb.microservices.geotag.rest.assembler.GeoTagPage;
+import no.nb.microservices.geotag.rest.controller.GeoTagController;
+import org.springframework.data.domain.Page;
+import org.springframework.hateoas.Link;
+import org.springframework.hateoas.PagedResources;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static org.springframework.hateoas.mvc.ControllerLinkBuilder.linkTo;
+import static org.springframework.hateoas.mvc.ControllerLinkBuilder.methodOn;
+
+/**
+ * The paging part of GeoTagResourceAssembler as it was before the link templates, every link built through its own
+ * ControllerLinkBuilder. Only kept as the baseline for {@link GeoTagResourceAssemblerBenchmark}.
+ */
+public class ReflectiveGeoTagResourceAssembler {
+
+    public PagedResources<GeoTag> toResource(GeoTagPage geoTagPage) {
+        Page<GeoTag> page = geoTagPage.getPage();
+        Collection<GeoTag> resources = new ArrayList<GeoTag>();
+        List<Link> links = new ArrayList<Link>();
+
+        for (GeoTag geoTag : page.getContent()) {
+            if (!geoTagPage.getGeoQuery().isMinify()) {
+                geoTag.add(linkTo(GeoTagController.class).slash(geoTag.getGeoId()).withSelfRel());
+            }
+            resources.add(geoTag);
+        }
+
+        links.add(linkTo(methodOn(GeoTagController.class).getTags(geoTagPage.getGeoQuery(), page.getNumber(), page.getSize(), geoTagPage.getExpand())).withSelfRel());
+        if (page.hasPrevious()) {
+            links.add(linkTo(methodOn(GeoTagController.class).getTags(geoTagPage.getGeoQuery(), page.previousPageable().getPageNumber(), page.getSize(), geoTagPage.getExpand())).withRel("prev"));
+        }
+        if (page.hasNext()) {
+            links.add(linkTo(methodOn(GeoTagController.class).getTags(geoTagPage.getGeoQuery(), page.nextPageable().getPageNumber(), page.getSize(), geoTagPage.getExpand())).withRel("next"));
+        }
+        if (!page.isFirst()) {
+            links.add(linkTo(methodOn(GeoTagController.class).getTags(geoTagPage.getGeoQuery(), 0, page.getSize(), geoTagPage.getExpand())).withRel("first"));
+        }
+        if (!page.isLast() && hasTotals(page)) {
+            links.add(linkTo(methodOn(GeoTagController.class).getTags(geoTagPage.getGeoQuery(), page.getTotalPages() - 1, page.getNumberOfElements(), geoTagPage.getExpand())).withRel("last"));
+        }
+
+        PagedResources.PageMetadata metadata = hasTotals(page)
+                ? new PagedResources.PageMetadata(page.getSize(), page.getNumber(), page.getTotalElements(), page.getTotalPages())
+                : null;
+        return new PagedResources<GeoTag>(resources, metadata, links);
+    }
+
+    private static boolean hasTotals(Page page) {
+        return !(page instanceof EstimatedPage) || ((EstimatedPage) page).getTotals() != Totals.NONE;
+    }
+}
@@ -0,0 +1,23 @@
+package no.nb.microservices.geotag.loadtest;
+
+/**
+ * The kinds of calls in the workload, named as in the --mix option.
+ */
+public enum Endpoint {
+    /** GET /v1/geotags?urn=..., a client looking up the tag of an item. */
+    URN,
+    /** GET /v1/geotags?page=..., browsing the list. */
+    LIST,
+    /** GET /v1/nearby around a point. */
+    NEARBY,
+    /** GET /v1/within a box. */
+    WITHIN,
+    /** POST /v1/geotags, tagging an item or moving an existing tag. */
+    POST,
+    /** POST /v1/geotags/{id}/positions, suggesting a position. */
+    POSITION;
+
+    public static Endpoint parse(String name) {
+        return valueOf(name.trim().toUpperCase());
+    }
+}
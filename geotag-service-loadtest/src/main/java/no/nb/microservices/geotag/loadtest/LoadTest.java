@@ -0,0 +1,232 @@
+package no.nb.microservices.geotag.loadtest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mongodb.Mongo;
+import com.mongodb.MongoClient;
+import de.flapdoodle.embed.mongo.MongodExecutable;
+import de.flapdoodle.embed.mongo.MongodProcess;
+import de.flapdoodle.embed.mongo.MongodStarter;
+import de.flapdoodle.embed.mongo.config.MongodConfigBuilder;
+import de.flapdoodle.embed.mongo.config.Net;
+import de.flapdoodle.embed.mongo.distribution.Version;
+import de.flapdoodle.embed.process.runtime.Network;
+import no.nb.microservices.geotag.config.ApplicationSettings;
+import no.nb.microservices.geotag.metrics.Timings;
+import no.nb.microservices.geotag.repository.GeoTagRepository;
+import no.nb.microservices.geotag.rest.assembler.GeoTagResourceAssembler;
+import no.nb.microservices.geotag.rest.async.QueryExecutor;
+import no.nb.microservices.geotag.rest.controller.GeoTagController;
+import no.nb.microservices.geotag.rest.controller.PositionController;
+import no.nb.microservices.geotag.rest.json.MaskingModule;
+import no.nb.microservices.geotag.service.AccessContext;
+import no.nb.microservices.geotag.service.GeoTagService;
+import no.nb.microservices.geotag.service.InvalidationBus;
+import no.nb.microservices.geotag.service.LoopbackInvalidationBus;
+import no.nb.microservices.geotag.service.NBUserService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.ComponentScan;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.core.env.Environment;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.data.mongodb.config.AbstractMongoConfiguration;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.repository.config.EnableMongoRepositories;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+
+/**
+ * Seeds an embedded Mongo with synthetic geotags and runs a closed loop of clients against the controllers, the
+ * service and the repositories as they are wired in the application. Only the servlet container and the security
+ * filters are left out. Prints throughput and latency percentiles per endpoint; see {@link LoadTestOptions} for the
+ * knobs.
+ *
+ * Every client waits for its answer before the next call, so under saturation the percentiles understate what an
+ * open stream of users would see.
+ *
+ * Run with: mvn -pl geotag-service-loadtest exec:java -Dexec.args="--tags=1000000 --duration=120"
+ */
+public class LoadTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LoadTest.class);
+
+    public static void main(String[] args) throws Exception {
+        LoadTestOptions options = LoadTestOptions.parse(args);
+
+        int port = Network.getFreeServerPort();
+        MongodExecutable mongodExecutable = MongodStarter.getDefaultInstance().prepare(new MongodConfigBuilder()
+                .version(Version.Main.PRODUCTION)
+                .net(new Net("127.0.0.1", port, Network.localhostIsIPv6()))
+                .build());
+        MongodProcess mongod = mongodExecutable.start();
+
+        AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+        try {
+            context.getEnvironment().getPropertySources().addFirst(
+                    new MapPropertySource("loadtest", properties(port, options)));
+            context.register(MongoConfiguration.class, Config.class);
+            context.refresh();
+
+            Popularity popularity = new Popularity(options.getTags(), options.getZipf());
+            new Seeder(context.getBean(MongoTemplate.class), popularity).seed(options);
+
+            ApplicationSettings applicationSettings = context.getBean(ApplicationSettings.class);
+            GeoTagService geoTagService = context.getBean(GeoTagService.class);
+            NBUserService nbUserService = context.getBean(NBUserService.class);
+            ObjectMapper objectMapper = new ObjectMapper().registerModule(new MaskingModule(() -> AccessContext.current(nbUserService)));
+            MockMvc mockMvc = MockMvcBuilders.standaloneSetup(
+                    new GeoTagController(nbUserService, new GeoTagResourceAssembler(applicationSettings, context.getBean(Timings.class)), applicationSettings, geoTagService,
+                            new QueryExecutor(applicationSettings)),
+                    new PositionController(geoTagService))
+                    .setMessageConverters(new MappingJackson2HttpMessageConverter(objectMapper))
+                    .build();
+
+            Report report = run(options, new Workload(options, popularity), mockMvc, context.getBean(LoadTestUsers.class));
+
+            report.print(System.out, options.getDuration());
+            if (options.getHistograms() != null) {
+                report.write(new File(options.getHistograms()));
+            }
+        } finally {
+            context.close();
+            mongod.stop();
+            mongodExecutable.stop();
+        }
+    }
+
+    private static Map<String, Object> properties(int port, LoadTestOptions options) {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("loadtest.mongo.port", port);
+        properties.put("loadtest.queryThreads", options.getQueryThreads());
+        return properties;
+    }
+
+    private static Report run(LoadTestOptions options, Workload workload, MockMvc mockMvc, LoadTestUsers users) throws InterruptedException {
+        long start = System.nanoTime();
+        long recordFrom = start + TimeUnit.SECONDS.toNanos(options.getWarmup());
+        long end = recordFrom + TimeUnit.SECONDS.toNanos(options.getDuration());
+        LOG.info("Running {} clients for {} s after {} s of warmup", options.getThreads(), options.getDuration(), options.getWarmup());
+
+        List<Client> clients = new ArrayList<>();
+        for (int i = 0; i < options.getThreads(); i++) {
+            Client client = new Client(workload, mockMvc, users, new Random(options.getSeed() + i), recordFrom, end);
+            client.setName("loadtest-client-" + i);
+            client.start();
+            clients.add(client);
+        }
+
+        Report report = new Report();
+        for (Client client : clients) {
+            client.join();
+            report.add(client.report);
+        }
+        return report;
+    }
+
+    private static class Client extends Thread {
+        private final Workload workload;
+        private final MockMvc mockMvc;
+        private final LoadTestUsers users;
+        private final Random random;
+        private final long recordFrom;
+        private final long end;
+        private final Report report = new Report();
+
+        Client(Workload workload, MockMvc mockMvc, LoadTestUsers users, Random random, long recordFrom, long end) {
+            this.workload = workload;
+            this.mockMvc = mockMvc;
+            this.users = users;
+            this.random = random;
+            this.recordFrom = recordFrom;
+            this.end = end;
+        }
+
+        @Override
+        public void run() {
+            for (long now = System.nanoTime(); now < end; now = System.nanoTime()) {
+                Endpoint endpoint = workload.next(random);
+                users.actAs(workload.nextUser(random));
+                boolean error;
+                long started = System.nanoTime();
+                try {
+                    MvcResult result = mockMvc.perform(workload.request(endpoint, random)).andReturn();
+                    if (result.getRequest().isAsyncStarted()) {
+                        // The geo queries answer on the query threads
+                        result = mockMvc.perform(asyncDispatch(result)).andReturn();
+                    }
+                    int status = result.getResponse().getStatus();
+                    error = status >= 400;
+                } catch (Exception e) {
+                    // Without the servlet container and the exception handler, errors come out as exceptions
+                    error = true;
+                    LOG.debug("Call to {} failed", endpoint, e);
+                }
+                long finished = System.nanoTime();
+                if (started >= recordFrom) {
+                    report.record(endpoint, TimeUnit.NANOSECONDS.toMicros(finished - started), error);
+                }
+            }
+        }
+    }
+
+    @Configuration
+    @EnableMongoRepositories(basePackageClasses = GeoTagRepository.class)
+    @ComponentScan(basePackageClasses = { GeoTagRepository.class, GeoTagService.class, Timings.class })
+    static class MongoConfiguration extends AbstractMongoConfiguration {
+
+        @Autowired
+        private Environment environment;
+
+        @Override
+        protected String getDatabaseName() {
+            return "tagdb";
+        }
+
+        @Override
+        public Mongo mongo() throws Exception {
+            return new MongoClient("127.0.0.1", environment.getProperty("loadtest.mongo.port", Integer.class));
+        }
+    }
+
+    @Configuration
+    static class Config {
+        @Autowired
+        private Environment environment;
+
+        @Bean
+        public ApplicationSettings applicationSettings() {
+            ApplicationSettings settings = new ApplicationSettings();
+            settings.setQueryThreads(environment.getProperty("loadtest.queryThreads", Integer.class));
+            settings.setNbsokContentUrl("http://www.nb.no/nbsok/nb/{sesamid}");
+            settings.setFotoContentUrl("http://www.nb.no/foto/nb/{sesamid}");
+            return settings;
+        }
+
+        @Bean
+        public InvalidationBus invalidationBus() {
+            return new LoopbackInvalidationBus();
+        }
+
+        @Bean
+        @Primary
+        public LoadTestUsers loadTestUsers() {
+            return new LoadTestUsers();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package no.nb.microservices.geotag.loadtest;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Command line options, all on the form --name=value.
+ *
+ * <pre>
+ * --tags=1000000          tags seeded before the run
+ * --maxHistory=500        upper bound on the positions in a tag's history
+ * --zipf=1.1              skew of urn popularity, 0 is uniform
+ * --threads=16            concurrent clients
+ * --warmup=30             seconds run before recording starts
+ * --duration=120          seconds recorded
+ * --mix=urn:30,list:10,nearby:20,within:20,post:10,position:10
+ * --users=10000           distinct users doing the writes
+ * --queryThreads=32       threads running the geo queries, 0 runs them on the client thread
+ * --seed=42               seed for the data and the workload
+ * --histograms=target/hdr write one .hgrm file per endpoint to this directory
+ * </pre>
+ */
+public class LoadTestOptions {
+
+    private int tags = 1000000;
+    private int maxHistory = 500;
+    private double zipf = 1.1;
+    private int threads = 16;
+    private int warmup = 30;
+    private int duration = 120;
+    private Map<Endpoint, Integer> mix = parseMix("urn:30,list:10,nearby:20,within:20,post:10,position:10");
+    private int users = 10000;
+    private int queryThreads = 32;
+    private long seed = 42;
+    private String histograms;
+
+    public static LoadTestOptions parse(String[] args) {
+        LoadTestOptions options = new LoadTestOptions();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            }
+            String name = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+            switch (name) {
+                case "tags": options.tags = Integer.parseInt(value); break;
+                case "maxHistory": options.maxHistory = Integer.parseInt(value); break;
+                case "zipf": options.zipf = Double.parseDouble(value); break;
+                case "threads": options.threads = Integer.parseInt(value); break;
+                case "warmup": options.warmup = Integer.parseInt(value); break;
+                case "duration": options.duration = Integer.parseInt(value); break;
+                case "mix": options.mix = parseMix(value); break;
+                case "users": options.users = Integer.parseInt(value); break;
+                case "queryThreads": options.queryThreads = Integer.parseInt(value); break;
+                case "seed": options.seed = Long.parseLong(value); break;
+                case "histograms": options.histograms = value; break;
+                default: throw new IllegalArgumentException("Unknown option --" + name);
+            }
+        }
+        if (options.tags <= 0 || options.threads <= 0 || options.duration <= 0 || options.users <= 0) {
+            throw new IllegalArgumentException("tags, threads, duration and users must be positive");
+        }
+        return options;
+    }
+
+    private static Map<Endpoint, Integer> parseMix(String value) {
+        Map<Endpoint, Integer> mix = new EnumMap<>(Endpoint.class);
+        for (String part : value.split(",")) {
+            String[] weight = part.split(":");
+            if (weight.length != 2) {
+                throw new IllegalArgumentException("Expected endpoint:weight in the mix, got " + part);
+            }
+            mix.put(Endpoint.parse(weight[0]), Integer.parseInt(weight[1].trim()));
+        }
+        return mix;
+    }
+
+    public int getTags() {
+        return tags;
+    }
+
+    public int getMaxHistory() {
+        return maxHistory;
+    }
+
+    public double getZipf() {
+        return zipf;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public int getWarmup() {
+        return warmup;
+    }
+
+    public int getDuration() {
+        return duration;
+    }
+
+    public Map<Endpoint, Integer> getMix() {
+        return mix;
+    }
+
+    public int getUsers() {
+        return users;
+    }
+
+    public int getQueryThreads() {
+        return queryThreads;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public String getHistograms() {
+        return histograms;
+    }
+}
@@ -0,0 +1,26 @@
+package no.nb.microservices.geotag.loadtest;
+
+import no.nb.microservices.geotag.service.NBUserService;
+import no.nb.nbsecurity.NBUserDetails;
+import org.springframework.security.core.GrantedAuthority;
+
+import java.util.Collections;
+import java.util.UUID;
+
+/**
+ * Stands in for the security context. Each client thread says which user its next call is made as.
+ */
+public class LoadTestUsers extends NBUserService {
+
+    private final ThreadLocal<NBUserDetails> current = new ThreadLocal<>();
+
+    public void actAs(int user) {
+        current.set(new NBUserDetails("loadtest", UUID.fromString(SyntheticData.userId(user)), "user" + user, "",
+                true, true, true, true, true, Collections.<GrantedAuthority>emptyList()));
+    }
+
+    @Override
+    public NBUserDetails getNBUser() {
+        return current.get();
+    }
+}
@@ -0,0 +1,57 @@
+package no.nb.microservices.geotag.loadtest;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Zipf distributed tag numbers. Rank 1 is the most popular tag; the ranks are spread over the tag numbers with a
+ * fixed permutation, so the popular tags are not all seeded next to each other.
+ */
+public class Popularity {
+
+    private final int size;
+    private final double[] cumulative;
+    private final long multiplier;
+
+    public Popularity(int size, double exponent) {
+        this.size = size;
+        this.cumulative = new double[size];
+        double sum = 0;
+        for (int rank = 1; rank <= size; rank++) {
+            sum += 1.0 / Math.pow(rank, exponent);
+            cumulative[rank - 1] = sum;
+        }
+        for (int i = 0; i < size; i++) {
+            cumulative[i] /= sum;
+        }
+
+        // Any multiplier coprime to size gives a permutation
+        long candidate = 2654435761L % size;
+        while (candidate == 0 || gcd(candidate, size) != 1) {
+            candidate++;
+        }
+        this.multiplier = candidate;
+    }
+
+    /**
+     * A tag number in [0, size), popular ones more often.
+     */
+    public int next(Random random) {
+        int rank = Arrays.binarySearch(cumulative, random.nextDouble());
+        if (rank < 0) {
+            rank = -rank - 1;
+        }
+        return tagOfRank(Math.min(rank, size - 1));
+    }
+
+    /**
+     * The tag number of a rank counted from 0.
+     */
+    public int tagOfRank(int rank) {
+        return (int) ((rank * multiplier) % size);
+    }
+
+    private static long gcd(long a, long b) {
+        return b == 0 ? a : gcd(b, a % b);
+    }
+}
@@ -0,0 +1,85 @@
+package no.nb.microservices.geotag.loadtest;
+
+import org.HdrHistogram.Histogram;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Latencies in microseconds and error counts per endpoint. Each client has its own report, they are added up at the
+ * end.
+ */
+public class Report {
+
+    private static final long HIGHEST_LATENCY_MICROS = 60L * 1000 * 1000;
+
+    private final Map<Endpoint, Histogram> latencies = new EnumMap<>(Endpoint.class);
+    private final Map<Endpoint, long[]> errors = new EnumMap<>(Endpoint.class);
+
+    public Report() {
+        for (Endpoint endpoint : Endpoint.values()) {
+            latencies.put(endpoint, new Histogram(HIGHEST_LATENCY_MICROS, 3));
+            errors.put(endpoint, new long[1]);
+        }
+    }
+
+    public void record(Endpoint endpoint, long micros, boolean error) {
+        latencies.get(endpoint).recordValue(Math.min(Math.max(micros, 1), HIGHEST_LATENCY_MICROS));
+        if (error) {
+            errors.get(endpoint)[0]++;
+        }
+    }
+
+    public void add(Report other) {
+        for (Endpoint endpoint : Endpoint.values()) {
+            latencies.get(endpoint).add(other.latencies.get(endpoint));
+            errors.get(endpoint)[0] += other.errors.get(endpoint)[0];
+        }
+    }
+
+    public void print(PrintStream out, double seconds) {
+        out.println(String.format("%-9s %10s %10s %8s %9s %9s %9s %9s %9s",
+                "endpoint", "calls", "per sec", "errors", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms"));
+        Histogram total = new Histogram(HIGHEST_LATENCY_MICROS, 3);
+        long totalErrors = 0;
+        for (Endpoint endpoint : Endpoint.values()) {
+            Histogram histogram = latencies.get(endpoint);
+            if (histogram.getTotalCount() > 0) {
+                print(out, endpoint.name().toLowerCase(), histogram, errors.get(endpoint)[0], seconds);
+                total.add(histogram);
+                totalErrors += errors.get(endpoint)[0];
+            }
+        }
+        print(out, "all", total, totalErrors, seconds);
+    }
+
+    /**
+     * One HdrHistogram percentile file per endpoint, for plotting or comparing runs.
+     */
+    public void write(File directory) throws FileNotFoundException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new FileNotFoundException("Could not create " + directory);
+        }
+        for (Endpoint endpoint : Endpoint.values()) {
+            Histogram histogram = latencies.get(endpoint);
+            if (histogram.getTotalCount() > 0) {
+                try (PrintStream out = new PrintStream(new File(directory, endpoint.name().toLowerCase() + ".hgrm"))) {
+                    histogram.outputPercentileDistribution(out, 1000.0);
+                }
+            }
+        }
+    }
+
+    private static void print(PrintStream out, String name, Histogram histogram, long errors, double seconds) {
+        out.println(String.format("%-9s %10d %10.1f %8d %9.2f %9.2f %9.2f %9.2f %9.2f", name,
+                histogram.getTotalCount(), histogram.getTotalCount() / seconds, errors,
+                histogram.getValueAtPercentile(50) / 1000.0,
+                histogram.getValueAtPercentile(90) / 1000.0,
+                histogram.getValueAtPercentile(99) / 1000.0,
+                histogram.getValueAtPercentile(99.9) / 1000.0,
+                histogram.getMaxValue() / 1000.0));
+    }
+}
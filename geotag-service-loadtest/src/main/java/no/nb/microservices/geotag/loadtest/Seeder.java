@@ -0,0 +1,50 @@
+package no.nb.microservices.geotag.loadtest;
+
+import no.nb.microservices.geotag.model.GeoTag;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Writes the synthetic tags straight through the MongoTemplate, in batches.
+ */
+public class Seeder {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Seeder.class);
+    private static final int BATCH_SIZE = 1000;
+
+    private final MongoTemplate mongoTemplate;
+    private final Popularity popularity;
+
+    public Seeder(MongoTemplate mongoTemplate, Popularity popularity) {
+        this.mongoTemplate = mongoTemplate;
+        this.popularity = popularity;
+    }
+
+    public void seed(LoadTestOptions options) {
+        Random random = new Random(options.getSeed());
+        List<GeoTag> batch = new ArrayList<>(BATCH_SIZE);
+        long positions = 0;
+        long started = System.nanoTime();
+
+        for (int rank = 0; rank < options.getTags(); rank++) {
+            GeoTag geoTag = SyntheticData.geoTag(popularity.tagOfRank(rank), rank, options.getMaxHistory(), options.getUsers(), random);
+            positions += geoTag.getUserPositions().size();
+            batch.add(geoTag);
+            if (batch.size() == BATCH_SIZE || rank == options.getTags() - 1) {
+                mongoTemplate.insert(batch, GeoTag.class);
+                batch.clear();
+            }
+            if ((rank + 1) % 100000 == 0) {
+                LOG.info("Seeded {} tags", rank + 1);
+            }
+        }
+
+        LOG.info("Seeded {} tags with {} positions in the histories in {} s", options.getTags(), positions,
+                (System.nanoTime() - started) / 1000000000L);
+    }
+}
@@ -0,0 +1,78 @@
+package no.nb.microservices.geotag.loadtest;
+
+import no.nb.microservices.geotag.model.GeoPosition;
+import no.nb.microservices.geotag.model.GeoTag;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Synthetic geotags and positions. Tag number n always has the same id and urn, so the workload can address seeded
+ * tags without keeping a list of them.
+ */
+public final class SyntheticData {
+
+    private static final long EPOCH = 1262304000000L;
+    private static final int HISTORY_SPAN_DAYS = 2000;
+
+    private SyntheticData() {
+    }
+
+    public static String id(int tag) {
+        return String.format("%024x", tag);
+    }
+
+    public static String urn(int tag) {
+        return "URN:NBN:no-nb_foto_LT_" + tag;
+    }
+
+    public static String userId(int user) {
+        return new UUID(0x6765_6f74_6167L, user).toString();
+    }
+
+    /**
+     * A tag with a heavy tailed history: most have a few positions, some have up to maxHistory. The popular tags get
+     * the longest histories, like items that are tagged over and over.
+     */
+    public static GeoTag geoTag(int tag, int rank, int maxHistory, int users, Random random) {
+        GeoTag geoTag = new GeoTag(id(tag), urn(tag), position(random, users));
+        geoTag.setSticky(random.nextInt(50) == 0);
+        geoTag.setDirty(random.nextInt(5) == 0);
+        geoTag.setVersion(0L);
+
+        // Pareto with alpha 1.2, stretched for the most popular ranks
+        double pareto = Math.pow(1 - random.nextDouble(), -1 / 1.2) - 1;
+        int history = (int) Math.min(maxHistory, pareto * (1 + 1000.0 / (rank + 10)));
+        List<GeoPosition> userPositions = new ArrayList<>(history);
+        for (int i = 0; i < history; i++) {
+            userPositions.add(position(random, users));
+        }
+        geoTag.setUserPositions(userPositions);
+        return geoTag;
+    }
+
+    /**
+     * A position somewhere in Norway from one of the users.
+     */
+    public static GeoPosition position(Random random, int users) {
+        int user = random.nextInt(users);
+        GeoPosition position = new GeoPosition(UUID.randomUUID().toString(), userId(user), "user" + user + "@example.com",
+                longitude(random), latitude(random), new Date(EPOCH + (long) (random.nextDouble() * HISTORY_SPAN_DAYS * 86400000L)));
+        position.setUserDisplayName("User " + user);
+        if (random.nextInt(4) == 0) {
+            position.setUserComment("Seen from across the fjord, the house to the left of the church");
+        }
+        return position;
+    }
+
+    public static double longitude(Random random) {
+        return 4.5 + random.nextDouble() * 26.5;
+    }
+
+    public static double latitude(Random random) {
+        return 58.0 + random.nextDouble() * 13.0;
+    }
+}
@@ -0,0 +1,107 @@
+package no.nb.microservices.geotag.loadtest;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import no.nb.microservices.geotag.model.GeoPosition;
+import no.nb.microservices.geotag.model.GeoTag;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.RequestBuilder;
+
+import java.util.Map;
+import java.util.Random;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+
+/**
+ * Picks the next call from the weighted mix and builds the request for it. Tags are picked by popularity, places
+ * uniformly over Norway.
+ */
+public class Workload {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final Endpoint[] endpoints;
+    private final int[] cumulativeWeights;
+    private final Popularity popularity;
+    private final int tags;
+    private final int users;
+
+    public Workload(LoadTestOptions options, Popularity popularity) {
+        Map<Endpoint, Integer> mix = options.getMix();
+        this.endpoints = mix.keySet().toArray(new Endpoint[mix.size()]);
+        this.cumulativeWeights = new int[endpoints.length];
+        int sum = 0;
+        for (int i = 0; i < endpoints.length; i++) {
+            sum += mix.get(endpoints[i]);
+            cumulativeWeights[i] = sum;
+        }
+        if (sum <= 0) {
+            throw new IllegalArgumentException("The mix needs at least one endpoint with a positive weight");
+        }
+        this.popularity = popularity;
+        this.tags = options.getTags();
+        this.users = options.getUsers();
+    }
+
+    public Endpoint next(Random random) {
+        int pick = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        for (int i = 0; i < cumulativeWeights.length; i++) {
+            if (pick < cumulativeWeights[i]) {
+                return endpoints[i];
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    public int nextUser(Random random) {
+        return random.nextInt(users);
+    }
+
+    public RequestBuilder request(Endpoint endpoint, Random random) {
+        switch (endpoint) {
+            case URN:
+                return get("/v1/geotags").param("urn", SyntheticData.urn(popularity.next(random)));
+            case LIST:
+                // Most browsing stays on the first pages
+                return get("/v1/geotags").param("page", Integer.toString(Math.min(random.nextInt(5) * random.nextInt(5), tags / 20)))
+                        .param("size", "20");
+            case NEARBY:
+                return get("/v1/nearby")
+                        .param("lon", Double.toString(SyntheticData.longitude(random)))
+                        .param("lat", Double.toString(SyntheticData.latitude(random)))
+                        .param("maxDistance", Integer.toString(1 + random.nextInt(25)))
+                        .param("size", "50");
+            case WITHIN:
+                double lon = SyntheticData.longitude(random);
+                double lat = SyntheticData.latitude(random);
+                double span = 0.05 + random.nextDouble() * 0.5;
+                return get("/v1/within")
+                        .param("lon", Double.toString(lon))
+                        .param("lat", Double.toString(lat))
+                        .param("secondLon", Double.toString(lon + span))
+                        .param("secondLat", Double.toString(lat + span / 2))
+                        .param("size", "50");
+            case POST:
+                // One in ten is an item that has no tag yet
+                String urn = random.nextInt(10) == 0 ? "URN:NBN:no-nb_foto_LT_new_" + random.nextLong() : SyntheticData.urn(popularity.next(random));
+                GeoTag geoTag = new GeoTag(null, urn, SyntheticData.position(random, users));
+                return post("/v1/geotags").contentType(MediaType.APPLICATION_JSON).content(json(geoTag));
+            case POSITION:
+                GeoPosition position = SyntheticData.position(random, users);
+                position.setPosId(null);
+                return post("/v1/geotags/{id}/positions", SyntheticData.id(popularity.next(random)))
+                        .contentType(MediaType.APPLICATION_JSON).content(json(position));
+            default:
+                throw new IllegalArgumentException("No request for " + endpoint);
+        }
+    }
+
+    private static byte[] json(Object body) {
+        try {
+            return MAPPER.writeValueAsBytes(body);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package no.nb.microservices.geotag.client;
+
+import no.nb.microservices.geotag.model.GeoQuery;
+import no.nb.microservices.geotag.model.GeoTag;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.hateoas.PagedResources;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+
+/**
+ * Client for the geotag queries that other services make, over Smile instead of HAL. The pages have no links, so
+ * page through them with the page number.
+ */
+public class GeoTagClient {
+
+    private static final ParameterizedTypeReference<PagedResources<GeoTag>> PAGE_TYPE = new ParameterizedTypeReference<PagedResources<GeoTag>>() {};
+
+    private final RestTemplate restTemplate;
+    private final String baseUrl;
+
+    /**
+     * @param baseUrl where the service is, like http://geotag-service
+     */
+    public GeoTagClient(String baseUrl) {
+        this(new RestTemplate(Collections.singletonList(new SmileHttpMessageConverter())), baseUrl);
+    }
+
+    /**
+     * For a RestTemplate that is load balanced or otherwise set up, it must have a {@link SmileHttpMessageConverter}.
+     */
+    public GeoTagClient(RestTemplate restTemplate, String baseUrl) {
+        this.restTemplate = restTemplate;
+        this.baseUrl = baseUrl;
+    }
+
+    public PagedResources<GeoTag> query(GeoQuery query, int page, int size) {
+        return getPage("/v1/geotags", query, page, size);
+    }
+
+    public PagedResources<GeoTag> nearby(GeoQuery query, int page, int size) {
+        return getPage("/v1/nearby", query, page, size);
+    }
+
+    public PagedResources<GeoTag> within(GeoQuery query, int page, int size) {
+        return getPage("/v1/within", query, page, size);
+    }
+
+    public GeoTag findOne(String id) {
+        String url = UriComponentsBuilder.fromHttpUrl(baseUrl).path("/v1/geotags/{id}").buildAndExpand(id).toUriString();
+        return restTemplate.exchange(url, HttpMethod.GET, smileRequest(), GeoTag.class).getBody();
+    }
+
+    private PagedResources<GeoTag> getPage(String path, GeoQuery query, int page, int size) {
+        UriComponentsBuilder builder = UriComponentsBuilder.fromHttpUrl(baseUrl).path(path)
+                .queryParam("page", page)
+                .queryParam("size", size);
+        addParams(builder, query);
+        return restTemplate.exchange(builder.build().encode().toUri(), HttpMethod.GET, smileRequest(), PAGE_TYPE).getBody();
+    }
+
+    private static HttpEntity<Void> smileRequest() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setAccept(Collections.singletonList(SmileHttpMessageConverter.APPLICATION_SMILE));
+        return new HttpEntity<Void>(headers);
+    }
+
+    private static void addParams(UriComponentsBuilder builder, GeoQuery query) {
+        if (query == null) {
+            return;
+        }
+        addParam(builder, "urn", query.getUrn());
+        addParam(builder, "user", query.getUser());
+        addParam(builder, "email", query.getEmail());
+        addParam(builder, "dirty", query.getDirty());
+        addParam(builder, "sticky", query.getSticky());
+        addParam(builder, "lon", query.getLon());
+        addParam(builder, "lat", query.getLat());
+        addParam(builder, "maxDistance", query.getMaxDistance());
+        addParam(builder, "secondLon", query.getSecondLon());
+        addParam(builder, "secondLat", query.getSecondLat());
+        addParam(builder, "totals", query.getTotals());
+        if (query.getFields() != null && query.getFields().length > 0) {
+            builder.queryParam("fields", (Object[]) query.getFields());
+        }
+        if (query.getUpdatedSince() != null) {
+            // Same pattern as the @DateTimeFormat on GeoQuery
+            builder.queryParam("updatedSince", new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(query.getUpdatedSince()));
+        }
+        if (query.isMinify()) {
+            builder.queryParam("minify", true);
+        }
+    }
+
+    private static void addParam(UriComponentsBuilder builder, String name, Object value) {
+        if (value != null) {
+            builder.queryParam(name, value);
+        }
+    }
+}
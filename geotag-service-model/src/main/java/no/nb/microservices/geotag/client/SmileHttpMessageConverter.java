@@ -0,0 +1,41 @@
+package no.nb.microservices.geotag.client;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.springframework.hateoas.ResourceSupport;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.json.AbstractJackson2HttpMessageConverter;
+
+/**
+ * Reads and writes Smile, the binary form of JSON, for calls between services. Field names that repeat are sent
+ * once and the hypermedia links are left out, so pages of tags are a lot smaller than as HAL.
+ */
+public class SmileHttpMessageConverter extends AbstractJackson2HttpMessageConverter {
+
+    public static final String APPLICATION_SMILE_VALUE = "application/x-jackson-smile";
+    public static final MediaType APPLICATION_SMILE = MediaType.parseMediaType(APPLICATION_SMILE_VALUE);
+
+    public SmileHttpMessageConverter() {
+        this(objectMapper());
+    }
+
+    public SmileHttpMessageConverter(ObjectMapper objectMapper) {
+        super(objectMapper, APPLICATION_SMILE);
+    }
+
+    /**
+     * A Smile ObjectMapper that leaves out the links, for the server and the client alike.
+     */
+    public static ObjectMapper objectMapper() {
+        ObjectMapper objectMapper = new ObjectMapper(new SmileFactory());
+        objectMapper.disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+        objectMapper.addMixInAnnotations(ResourceSupport.class, NoLinksMixin.class);
+        return objectMapper;
+    }
+
+    @JsonIgnoreProperties({"links"})
+    abstract static class NoLinksMixin {
+    }
+}
@@ -0,0 +1,65 @@
+package no.nb.microservices.geotag.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+/**
+ * Summary of the geotags that fall in one grid cell at a given zoom level.
+ */
+@JsonInclude(Include.NON_NULL)
+public class GeoCluster {
+
+    private double[] centroid;
+    private double[] bounds;
+    private long count;
+    private String sampleId;
+
+    public GeoCluster() {
+
+    }
+
+    public GeoCluster(double[] centroid, double[] bounds, long count, String sampleId) {
+        this.centroid = centroid;
+        this.bounds = bounds;
+        this.count = count;
+        this.sampleId = sampleId;
+    }
+
+    /**
+     * Mean position of the tags in the cell, longitude first
+     */
+    public double[] getCentroid() {
+        return centroid;
+    }
+
+    public void setCentroid(double[] centroid) {
+        this.centroid = centroid;
+    }
+
+    /**
+     * The cell as minLon, minLat, maxLon, maxLat
+     */
+    public double[] getBounds() {
+        return bounds;
+    }
+
+    public void setBounds(double[] bounds) {
+        this.bounds = bounds;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public void setCount(long count) {
+        this.count = count;
+    }
+
+    public String getSampleId() {
+        return sampleId;
+    }
+
+    public void setSampleId(String sampleId) {
+        this.sampleId = sampleId;
+    }
+}
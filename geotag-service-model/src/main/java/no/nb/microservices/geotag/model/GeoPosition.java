@@ -7,8 +7,6 @@ import com.fasterxml.jackson.annotation.JsonInclude.Include;
 import com.mysema.query.annotations.QueryEntity;
 import org.hibernate.validator.constraints.Length;
 import org.springframework.data.annotation.Id;
-import org.springframework.data.mongodb.core.index.CompoundIndex;
-import org.springframework.data.mongodb.core.index.CompoundIndexes;
 import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 
@@ -20,7 +18,6 @@ import java.util.Date;
  * Created by Andreas Bjørnådal (andreasb) on 14.10.14.
  */
 @Document
-@CompoundIndexes(value = {@CompoundIndex(name = "position", def = "{'position' : '2dsphere'}", collection = "GeoTag")})
 @JsonInclude(Include.NON_NULL)
 @JsonIgnoreProperties
 @QueryEntity
@@ -71,6 +68,19 @@ public class GeoPosition {
         this.position = new double[] {longitude, latitude};
     }
 
+    /**
+     * Copy that shares nothing mutable with other
+     */
+    public GeoPosition(GeoPosition other) {
+        this.posId = other.posId;
+        this.position = other.position != null ? other.position.clone() : null;
+        this.date = other.date != null ? new Date(other.date.getTime()) : null;
+        this.userId = other.userId;
+        this.userDisplayName = other.userDisplayName;
+        this.userEmail = other.userEmail;
+        this.userComment = other.userComment;
+    }
+
     public String getPosId() {
         return posId;
     }
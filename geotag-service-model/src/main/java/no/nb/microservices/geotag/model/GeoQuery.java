@@ -9,6 +9,8 @@ import java.util.Date;
  */
 public class GeoQuery {
     private boolean minify;
+    private String[] fields;
+    private String totals;
     private Boolean dirty;
     private Boolean sticky;
     private String urn;
@@ -103,6 +105,28 @@ public class GeoQuery {
         this.minify = minify;
     }
 
+    /**
+     * The fields to return, all when empty
+     */
+    public String[] getFields() {
+        return fields;
+    }
+
+    public void setFields(String[] fields) {
+        this.fields = fields;
+    }
+
+    /**
+     * exact, estimate or none, how the total number of tags is found for paged results
+     */
+    public String getTotals() {
+        return totals;
+    }
+
+    public void setTotals(String totals) {
+        this.totals = totals;
+    }
+
     public Boolean getDirty() {
         return dirty;
     }
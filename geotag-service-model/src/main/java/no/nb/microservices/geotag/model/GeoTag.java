@@ -9,6 +9,7 @@ import com.mysema.query.annotations.QueryEntity;
 import org.hibernate.validator.constraints.Length;
 import org.hibernate.validator.constraints.NotEmpty;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.Version;
 import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 import org.springframework.hateoas.ResourceSupport;
@@ -48,6 +49,9 @@ public class GeoTag extends ResourceSupport {
 
     private List<GeoPosition> userPositions;
 
+    @Version
+    private Long version;
+
     public GeoTag() {
 
     }
@@ -62,6 +66,24 @@ public class GeoTag extends ResourceSupport {
         }
     }
 
+    /**
+     * Copy without links that shares nothing mutable with other
+     */
+    public GeoTag(GeoTag other) {
+        this.id = other.id;
+        this.urn = other.urn;
+        this.sticky = other.sticky;
+        this.dirty = other.dirty;
+        this.version = other.version;
+        this.currentPosition = other.currentPosition != null ? new GeoPosition(other.currentPosition) : null;
+        if (other.userPositions != null) {
+            this.userPositions = new ArrayList<>();
+            for (GeoPosition position : other.userPositions) {
+                this.userPositions.add(new GeoPosition(position));
+            }
+        }
+    }
+
     @JsonProperty("id")
     public String getGeoId() {
         return id;
@@ -128,9 +150,14 @@ public class GeoTag extends ResourceSupport {
         this.dirty = dirty;
     }
 
-    public void mask() {
-        this.currentPosition.setUserEmail(null);
-        this.userPositions = null;
-        this.dirty = null;
+    /**
+     * Incremented on every write, sent to clients as the ETag
+     */
+    public Long getVersion() {
+        return version;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
     }
 }
\ No newline at end of file
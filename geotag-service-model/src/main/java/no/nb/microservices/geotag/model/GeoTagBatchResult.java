@@ -0,0 +1,82 @@
+package no.nb.microservices.geotag.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+/**
+ * Outcome of one item in a batch save, in the same order as the items were sent.
+ */
+@JsonInclude(Include.NON_NULL)
+public class GeoTagBatchResult {
+
+    public enum Status {
+        CREATED,
+        UPDATED,
+        REJECTED,
+        FAILED
+    }
+
+    private int index;
+    private String urn;
+    private String id;
+    private Status status;
+    private String message;
+
+    public GeoTagBatchResult() {
+
+    }
+
+    public GeoTagBatchResult(int index, String urn, String id, Status status, String message) {
+        this.index = index;
+        this.urn = urn;
+        this.id = id;
+        this.status = status;
+        this.message = message;
+    }
+
+    /**
+     * Position of the item in the request, starting at 0
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    public void setIndex(int index) {
+        this.index = index;
+    }
+
+    public String getUrn() {
+        return urn;
+    }
+
+    public void setUrn(String urn) {
+        this.urn = urn;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public void setStatus(Status status) {
+        this.status = status;
+    }
+
+    /**
+     * Why the item was rejected or failed
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    public void setMessage(String message) {
+        this.message = message;
+    }
+}
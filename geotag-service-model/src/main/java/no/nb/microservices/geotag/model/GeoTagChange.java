@@ -0,0 +1,84 @@
+package no.nb.microservices.geotag.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Date;
+
+/**
+ * One entry in the geotag change log. Consumers keep the highest sequence they have seen and ask for everything
+ * after it.
+ */
+@Document(collection = "GeoTagChange")
+@JsonInclude(Include.NON_NULL)
+public class GeoTagChange {
+
+    public enum Operation {
+        CREATE, UPDATE, DELETE, POSITION_ADDED, POSITION_DELETED
+    }
+
+    @Id
+    private Long sequence;
+
+    private String geoTagId;
+
+    private String urn;
+
+    private Operation operation;
+
+    private Date date;
+
+    public GeoTagChange() {
+
+    }
+
+    public GeoTagChange(Long sequence, String geoTagId, String urn, Operation operation, Date date) {
+        this.sequence = sequence;
+        this.geoTagId = geoTagId;
+        this.urn = urn;
+        this.operation = operation;
+        this.date = date;
+    }
+
+    public Long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(Long sequence) {
+        this.sequence = sequence;
+    }
+
+    public String getGeoTagId() {
+        return geoTagId;
+    }
+
+    public void setGeoTagId(String geoTagId) {
+        this.geoTagId = geoTagId;
+    }
+
+    public String getUrn() {
+        return urn;
+    }
+
+    public void setUrn(String urn) {
+        this.urn = urn;
+    }
+
+    public Operation getOperation() {
+        return operation;
+    }
+
+    public void setOperation(Operation operation) {
+        this.operation = operation;
+    }
+
+    public Date getDate() {
+        return date;
+    }
+
+    public void setDate(Date date) {
+        this.date = date;
+    }
+}
@@ -0,0 +1,38 @@
+package no.nb.microservices.geotag.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Geotags to fetch in one request, by id, by urn or both.
+ */
+public class GeoTagLookup {
+
+    private List<String> ids = new ArrayList<>();
+    private List<String> urns = new ArrayList<>();
+
+    public GeoTagLookup() {
+
+    }
+
+    public GeoTagLookup(List<String> ids, List<String> urns) {
+        this.ids = ids;
+        this.urns = urns;
+    }
+
+    public List<String> getIds() {
+        return ids;
+    }
+
+    public void setIds(List<String> ids) {
+        this.ids = ids;
+    }
+
+    public List<String> getUrns() {
+        return urns;
+    }
+
+    public void setUrns(List<String> urns) {
+        this.urns = urns;
+    }
+}
@@ -0,0 +1,32 @@
+package no.nb.microservices.geotag.model;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The geotags of a {@link GeoTagLookup}, keyed by the ids and urns that were asked for, in the same order. An id
+ * with a null value has no geotag. Urns are not unique, so each urn has every geotag with it, and an empty list
+ * when there is none.
+ */
+public class GeoTagLookupResult {
+
+    private Map<String, GeoTag> ids = new LinkedHashMap<>();
+    private Map<String, List<GeoTag>> urns = new LinkedHashMap<>();
+
+    public Map<String, GeoTag> getIds() {
+        return ids;
+    }
+
+    public void setIds(Map<String, GeoTag> ids) {
+        this.ids = ids;
+    }
+
+    public Map<String, List<GeoTag>> getUrns() {
+        return urns;
+    }
+
+    public void setUrns(Map<String, List<GeoTag>> urns) {
+        this.urns = urns;
+    }
+}
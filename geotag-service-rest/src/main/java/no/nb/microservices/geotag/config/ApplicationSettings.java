@@ -3,11 +3,37 @@ package no.nb.microservices.geotag.config;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Configuration;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 @Configuration
 @ConfigurationProperties(prefix = "microservice")
 public class ApplicationSettings {
     private String nbsokContentUrl;
     private String fotoContentUrl;
+    private boolean spatialIndexEnabled = false;
+    private double spatialIndexCellSize = 0.5;
+    private int tileCacheSize = 2000;
+    private boolean separatePositionHistory = false;
+    private int tagCacheMaxWeight = 200000;
+    private int tagCacheTtl = 300;
+    private String invalidationBus = "mongo";
+    private long invalidationCollectionSize = 1048576;
+    private int countCacheTtl = 60;
+    private long slowQueryMillis = 500;
+    private boolean explainSlowQueries = true;
+    private boolean ensureIndexes = true;
+    private int queryThreads = 32;
+    private int queryQueueSize = 1000;
+    private int lookupMaxSize = 500;
+    private int streamPageSize = 1000;
+    private int streamMaxPageSize = 10000;
+    private int streamedQueries = 32;
+    private boolean compressionEnabled = true;
+    private int compressionMinSize = 2048;
+    private List<String> compressionMimeTypes = new ArrayList<>(Arrays.asList("application/json", "application/hal+json",
+            "application/x-ndjson", "application/x-jackson-smile", "application/vnd.mapbox-vector-tile"));
 
     public String getNbsokContentUrl() {
         return nbsokContentUrl;
@@ -24,4 +50,172 @@ public class ApplicationSettings {
     public void setFotoContentUrl(String fotoContentUrl) {
         this.fotoContentUrl = fotoContentUrl;
     }
+
+    public boolean isSpatialIndexEnabled() {
+        return spatialIndexEnabled;
+    }
+
+    public void setSpatialIndexEnabled(boolean spatialIndexEnabled) {
+        this.spatialIndexEnabled = spatialIndexEnabled;
+    }
+
+    public double getSpatialIndexCellSize() {
+        return spatialIndexCellSize;
+    }
+
+    public void setSpatialIndexCellSize(double spatialIndexCellSize) {
+        this.spatialIndexCellSize = spatialIndexCellSize;
+    }
+
+    public int getTileCacheSize() {
+        return tileCacheSize;
+    }
+
+    public void setTileCacheSize(int tileCacheSize) {
+        this.tileCacheSize = tileCacheSize;
+    }
+
+    public boolean isSeparatePositionHistory() {
+        return separatePositionHistory;
+    }
+
+    public void setSeparatePositionHistory(boolean separatePositionHistory) {
+        this.separatePositionHistory = separatePositionHistory;
+    }
+
+    public int getTagCacheMaxWeight() {
+        return tagCacheMaxWeight;
+    }
+
+    public void setTagCacheMaxWeight(int tagCacheMaxWeight) {
+        this.tagCacheMaxWeight = tagCacheMaxWeight;
+    }
+
+    public int getTagCacheTtl() {
+        return tagCacheTtl;
+    }
+
+    public void setTagCacheTtl(int tagCacheTtl) {
+        this.tagCacheTtl = tagCacheTtl;
+    }
+
+    public String getInvalidationBus() {
+        return invalidationBus;
+    }
+
+    public void setInvalidationBus(String invalidationBus) {
+        this.invalidationBus = invalidationBus;
+    }
+
+    public long getInvalidationCollectionSize() {
+        return invalidationCollectionSize;
+    }
+
+    public void setInvalidationCollectionSize(long invalidationCollectionSize) {
+        this.invalidationCollectionSize = invalidationCollectionSize;
+    }
+
+    public int getCountCacheTtl() {
+        return countCacheTtl;
+    }
+
+    public void setCountCacheTtl(int countCacheTtl) {
+        this.countCacheTtl = countCacheTtl;
+    }
+
+    public long getSlowQueryMillis() {
+        return slowQueryMillis;
+    }
+
+    public void setSlowQueryMillis(long slowQueryMillis) {
+        this.slowQueryMillis = slowQueryMillis;
+    }
+
+    public int getQueryThreads() {
+        return queryThreads;
+    }
+
+    public void setQueryThreads(int queryThreads) {
+        this.queryThreads = queryThreads;
+    }
+
+    public int getQueryQueueSize() {
+        return queryQueueSize;
+    }
+
+    public void setQueryQueueSize(int queryQueueSize) {
+        this.queryQueueSize = queryQueueSize;
+    }
+
+    public int getLookupMaxSize() {
+        return lookupMaxSize;
+    }
+
+    public void setLookupMaxSize(int lookupMaxSize) {
+        this.lookupMaxSize = lookupMaxSize;
+    }
+
+    public int getStreamPageSize() {
+        return streamPageSize;
+    }
+
+    public void setStreamPageSize(int streamPageSize) {
+        this.streamPageSize = streamPageSize;
+    }
+
+    public boolean isCompressionEnabled() {
+        return compressionEnabled;
+    }
+
+    public void setCompressionEnabled(boolean compressionEnabled) {
+        this.compressionEnabled = compressionEnabled;
+    }
+
+    public int getCompressionMinSize() {
+        return compressionMinSize;
+    }
+
+    public void setCompressionMinSize(int compressionMinSize) {
+        this.compressionMinSize = compressionMinSize;
+    }
+
+    public List<String> getCompressionMimeTypes() {
+        return compressionMimeTypes;
+    }
+
+    public void setCompressionMimeTypes(List<String> compressionMimeTypes) {
+        this.compressionMimeTypes = compressionMimeTypes;
+    }
+
+    public boolean isExplainSlowQueries() {
+        return explainSlowQueries;
+    }
+
+    public void setExplainSlowQueries(boolean explainSlowQueries) {
+        this.explainSlowQueries = explainSlowQueries;
+    }
+
+    public boolean isEnsureIndexes() {
+        return ensureIndexes;
+    }
+
+    public void setEnsureIndexes(boolean ensureIndexes) {
+        this.ensureIndexes = ensureIndexes;
+    }
+
+    public int getStreamMaxPageSize() {
+        return streamMaxPageSize;
+    }
+
+    public void setStreamMaxPageSize(int streamMaxPageSize) {
+        this.streamMaxPageSize = streamMaxPageSize;
+    }
+
+    public int getStreamedQueries() {
+        return streamedQueries;
+    }
+
+    public void setStreamedQueries(int streamedQueries) {
+        this.streamedQueries = streamedQueries;
+    }
 }
@@ -0,0 +1,35 @@
+package no.nb.microservices.geotag.config;
+
+import no.nb.microservices.geotag.service.InvalidationBus;
+import no.nb.microservices.geotag.service.LoopbackInvalidationBus;
+import no.nb.microservices.geotag.service.MongoInvalidationBus;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+/**
+ * Picks the invalidation bus from microservice.invalidationBus. Use mongo when more than one instance is running,
+ * loopback is only enough for a single instance.
+ */
+@Configuration
+public class InvalidationBusConfig {
+
+    @Autowired
+    private ApplicationSettings applicationSettings;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Bean
+    public InvalidationBus invalidationBus() {
+        switch (applicationSettings.getInvalidationBus()) {
+            case "mongo":
+                return new MongoInvalidationBus(mongoTemplate, applicationSettings.getInvalidationCollectionSize());
+            case "loopback":
+                return new LoopbackInvalidationBus();
+            default:
+                throw new IllegalArgumentException("Unknown invalidation bus " + applicationSettings.getInvalidationBus());
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package no.nb.microservices.geotag.config;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import no.nb.microservices.geotag.client.SmileHttpMessageConverter;
+import no.nb.microservices.geotag.metrics.Timings;
+import no.nb.microservices.geotag.rest.json.MaskingModule;
+import no.nb.microservices.geotag.service.AccessContext;
+import no.nb.microservices.geotag.service.NBUserService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import javax.annotation.PostConstruct;
+
+/**
+ * Masks geotags when they are written. Spring Boot adds the module to its ObjectMapper, the HAL ObjectMapper of
+ * Spring HATEOAS and the Smile ObjectMapper get it here.
+ */
+@Configuration
+public class JsonConfig {
+
+    @Autowired(required = false)
+    @Qualifier("_halObjectMapper")
+    private ObjectMapper halObjectMapper;
+
+    @Autowired
+    private NBUserService nbUserService;
+
+    @Autowired
+    private Timings timings;
+
+    @Bean
+    public MaskingModule maskingModule() {
+        return new MaskingModule(() -> AccessContext.current(nbUserService), timings);
+    }
+
+    /**
+     * Smile without HAL for the other services, picked by Accept: application/x-jackson-smile.
+     */
+    @Bean
+    public SmileHttpMessageConverter smileHttpMessageConverter() {
+        return new SmileHttpMessageConverter(SmileHttpMessageConverter.objectMapper().registerModule(maskingModule()));
+    }
+
+    @PostConstruct
+    public void registerHalModule() {
+        if (halObjectMapper != null) {
+            halObjectMapper.registerModule(maskingModule());
+        }
+    }
+}
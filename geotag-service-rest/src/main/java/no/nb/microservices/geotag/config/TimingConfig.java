@@ -0,0 +1,21 @@
+package no.nb.microservices.geotag.config;
+
+import no.nb.microservices.geotag.metrics.Timings;
+import no.nb.microservices.geotag.service.GeoTagService;
+import no.nb.microservices.geotag.service.IGeoTagService;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+
+/**
+ * Gives the controllers a GeoTagService that times every call, as service.methodName in the /timings endpoint.
+ */
+@Configuration
+public class TimingConfig {
+
+    @Bean
+    @Primary
+    public IGeoTagService timedGeoTagService(GeoTagService geoTagService, Timings timings) {
+        return timings.timed(IGeoTagService.class, geoTagService, "service");
+    }
+}
@@ -0,0 +1,16 @@
+package no.nb.microservices.geotag.domain;
+
+/**
+ * A request parameter or body the client got wrong. Answered with 400, unlike other IllegalArgumentExceptions, which
+ * are bugs and answered with 500.
+ */
+public class InvalidRequestException extends IllegalArgumentException {
+
+    public InvalidRequestException(String message) {
+        super(message);
+    }
+
+    public InvalidRequestException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
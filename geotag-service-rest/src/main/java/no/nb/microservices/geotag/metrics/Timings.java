@@ -0,0 +1,85 @@
+package no.nb.microservices.geotag.metrics;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.springframework.stereotype.Component;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Named latency histograms, recorded in microseconds since startup. Names are dotted, the first part says where the
+ * time goes: service, mongo, assembler or json.
+ */
+@Component
+public class Timings {
+
+    private static final long HIGHEST_MICROS = TimeUnit.MINUTES.toMicros(10);
+
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    public long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the time since start, and returns it in nanoseconds.
+     */
+    public long stop(String name, long start) {
+        long nanos = System.nanoTime() - start;
+        histograms.computeIfAbsent(name, n -> new ConcurrentHistogram(HIGHEST_MICROS, 3))
+                .recordValue(Math.min(Math.max(TimeUnit.NANOSECONDS.toMicros(nanos), 0), HIGHEST_MICROS));
+        return nanos;
+    }
+
+    /**
+     * The target behind a proxy that times every method of the interface as prefix.methodName. Overloads share a
+     * histogram.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T timed(Class<T> type, T target, String prefix) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, (proxy, method, args) -> {
+            if (method.getDeclaringClass() == Object.class) {
+                return method.invoke(target, args);
+            }
+            long start = start();
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            } finally {
+                stop(prefix + "." + method.getName(), start);
+            }
+        });
+    }
+
+    /**
+     * Count, mean and percentiles in milliseconds per timer, sorted by name.
+     */
+    public Map<String, Map<String, Object>> snapshot() {
+        Map<String, Map<String, Object>> snapshot = new TreeMap<>();
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            Histogram histogram = entry.getValue().copy();
+            Map<String, Object> values = new LinkedHashMap<>();
+            values.put("count", histogram.getTotalCount());
+            values.put("mean", millis(histogram.getMean()));
+            values.put("p50", millis(histogram.getValueAtPercentile(50)));
+            values.put("p90", millis(histogram.getValueAtPercentile(90)));
+            values.put("p99", millis(histogram.getValueAtPercentile(99)));
+            values.put("p999", millis(histogram.getValueAtPercentile(99.9)));
+            values.put("max", millis(histogram.getMaxValue()));
+            snapshot.put(entry.getKey(), values);
+        }
+        return snapshot;
+    }
+
+    private static double millis(double micros) {
+        return Math.round(micros) / 1000.0;
+    }
+}
@@ -0,0 +1,27 @@
+package no.nb.microservices.geotag.metrics;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.AbstractEndpoint;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+
+/**
+ * The {@link Timings} as the actuator endpoint /timings.
+ */
+@Component
+public class TimingsEndpoint extends AbstractEndpoint<Map<String, Map<String, Object>>> {
+
+    private final Timings timings;
+
+    @Autowired
+    public TimingsEndpoint(Timings timings) {
+        super("timings");
+        this.timings = timings;
+    }
+
+    @Override
+    public Map<String, Map<String, Object>> invoke() {
+        return timings.snapshot();
+    }
+}
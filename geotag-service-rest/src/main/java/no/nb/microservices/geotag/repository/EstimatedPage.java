@@ -0,0 +1,24 @@
+package no.nb.microservices.geotag.repository;
+
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.Pageable;
+
+import java.util.List;
+
+/**
+ * A page whose total may not come from a count. hasNext is always right, it comes from fetching one tag more than the
+ * page size. With NONE the total only reaches one past the page when there is a next page.
+ */
+public class EstimatedPage<T> extends PageImpl<T> {
+
+    private final Totals totals;
+
+    public EstimatedPage(List<T> content, Pageable pageable, long total, Totals totals) {
+        super(content, pageable, total);
+        this.totals = totals;
+    }
+
+    public Totals getTotals() {
+        return totals;
+    }
+}
@@ -0,0 +1,11 @@
+package no.nb.microservices.geotag.repository;
+
+import no.nb.microservices.geotag.model.GeoTagChange;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.mongodb.repository.MongoRepository;
+
+import java.util.List;
+
+public interface GeoTagChangeRepository extends MongoRepository<GeoTagChange, Long> {
+    List<GeoTagChange> findBySequenceGreaterThan(Long sequence, Pageable pageable);
+}
@@ -0,0 +1,128 @@
+package no.nb.microservices.geotag.repository;
+
+import com.mongodb.DBObject;
+import no.nb.microservices.geotag.config.ApplicationSettings;
+import no.nb.microservices.geotag.model.GeoTag;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.GeoSpatialIndexType;
+import org.springframework.data.mongodb.core.index.GeospatialIndex;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.index.IndexDefinition;
+import org.springframework.data.mongodb.core.index.IndexField;
+import org.springframework.data.mongodb.core.index.IndexInfo;
+import org.springframework.data.mongodb.core.index.IndexOperations;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Every index the queries on GeoTag need, one for each filter and sort shape, so that none of them scans the
+ * collection. The API filters on one of urn, the user, the email, dirty or sticky, or on nothing but a date, and
+ * pages are ordered by currentPosition.date and _id, newest first. Each filter field leads an index that goes on
+ * with the order, and the geo queries have their 2dsphere index.
+ *
+ * With microservice.ensureIndexes the indexes are created at startup, otherwise they are expected to be there.
+ * Either way the ones that are missing afterwards are logged. They are built in the background, so a new index on
+ * a big collection does not lock the database for the instances already serving from it.
+ */
+@Component
+public class GeoTagIndexes {
+
+    static final String DATE_FIELD = "currentPosition.date";
+    static final String ID_FIELD = "_id";
+
+    /**
+     * The fields the API filters on by equality, each leads an index of its own.
+     */
+    static final List<String> FILTER_FIELDS = Collections.unmodifiableList(Arrays.asList(
+            "urn",
+            "currentPosition.userId",
+            "currentPosition.userEmail",
+            // The email filter is an $or, and each branch needs an index
+            "userPositions.userEmail",
+            "dirty",
+            "sticky"));
+
+    private static final Logger LOG = LoggerFactory.getLogger(GeoTagIndexes.class);
+
+    private final MongoTemplate mongoTemplate;
+    private final boolean ensureIndexes;
+
+    @Autowired
+    public GeoTagIndexes(MongoTemplate mongoTemplate, ApplicationSettings applicationSettings) {
+        this.mongoTemplate = mongoTemplate;
+        this.ensureIndexes = applicationSettings.isEnsureIndexes();
+    }
+
+    /**
+     * The declared indexes. Only date, as for updatedSince or no filter at all, and the geo index come last.
+     */
+    public static List<IndexDefinition> definitions() {
+        List<IndexDefinition> definitions = new ArrayList<>();
+        for (String field : FILTER_FIELDS) {
+            definitions.add(ordered(new Index().named(field + "_date").on(field, Sort.Direction.ASC)).background());
+        }
+        definitions.add(ordered(new Index().named("date")).background());
+        // Same name as the index that used to be declared on GeoPosition, so existing databases keep theirs
+        definitions.add(new GeospatialIndex("currentPosition.position").typed(GeoSpatialIndexType.GEO_2DSPHERE).named("currentPosition.position").background());
+        return definitions;
+    }
+
+    @PostConstruct
+    public void provision() {
+        IndexOperations indexOps = mongoTemplate.indexOps(GeoTag.class);
+        if (ensureIndexes) {
+            for (IndexDefinition definition : definitions()) {
+                try {
+                    indexOps.ensureIndex(definition);
+                } catch (DataAccessException e) {
+                    LOG.error("Could not create index " + definition.getIndexKeys(), e);
+                }
+            }
+        }
+
+        for (IndexDefinition missing : missing()) {
+            LOG.warn("GeoTag has no index on {}, the queries it serves will scan the collection", missing.getIndexKeys());
+        }
+    }
+
+    /**
+     * The declared indexes that GeoTag has no index with the same keys for, whatever its name.
+     */
+    public List<IndexDefinition> missing() {
+        List<List<String>> existing = new ArrayList<>();
+        for (IndexInfo indexInfo : mongoTemplate.indexOps(GeoTag.class).getIndexInfo()) {
+            List<String> keys = new ArrayList<>();
+            for (IndexField indexField : indexInfo.getIndexFields()) {
+                keys.add(indexField.getKey());
+            }
+            existing.add(keys);
+        }
+
+        List<IndexDefinition> missing = new ArrayList<>();
+        for (IndexDefinition definition : definitions()) {
+            if (!existing.contains(keys(definition))) {
+                missing.add(definition);
+            }
+        }
+        return missing;
+    }
+
+    private static Index ordered(Index index) {
+        return index.on(DATE_FIELD, Sort.Direction.DESC).on(ID_FIELD, Sort.Direction.DESC);
+    }
+
+    private static List<String> keys(IndexDefinition definition) {
+        DBObject keys = definition.getIndexKeys();
+        return new ArrayList<>(keys.keySet());
+    }
+}
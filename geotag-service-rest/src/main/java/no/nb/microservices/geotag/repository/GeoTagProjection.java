@@ -0,0 +1,132 @@
+package no.nb.microservices.geotag.repository;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import no.nb.microservices.geotag.domain.InvalidRequestException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The fields of a geotag a caller asked for, as a Mongo projection. Field names are the ones in the JSON
+ * representation, nested fields are separated by dots. userPositions is only included through expand.
+ */
+public final class GeoTagProjection {
+
+    /**
+     * Full documents with userPositions.
+     */
+    public static final GeoTagProjection ALL = new GeoTagProjection(null, true);
+
+    /**
+     * Full documents without userPositions.
+     */
+    public static final GeoTagProjection WITHOUT_HISTORY = new GeoTagProjection(new BasicDBObject("userPositions", 0), false);
+
+    /**
+     * Only urn and the current coordinates.
+     */
+    public static final GeoTagProjection MINIFIED = new GeoTagProjection(new BasicDBObject("urn", 1).append("currentPosition.position", 1), false);
+
+    private static final Map<String, String> FIELDS;
+
+    static {
+        Map<String, String> fields = new LinkedHashMap<>();
+        fields.put("id", "_id");
+        fields.put("urn", "urn");
+        fields.put("sticky", "sticky");
+        fields.put("dirty", "dirty");
+        fields.put("version", "version");
+        fields.put("currentPosition", "currentPosition");
+        fields.put("currentPosition.posId", "currentPosition._id");
+        fields.put("currentPosition.position", "currentPosition.position");
+        fields.put("currentPosition.date", "currentPosition.date");
+        fields.put("currentPosition.userId", "currentPosition.userId");
+        fields.put("currentPosition.userDisplayName", "currentPosition.userDisplayName");
+        fields.put("currentPosition.userEmail", "currentPosition.userEmail");
+        fields.put("currentPosition.userComment", "currentPosition.userComment");
+        FIELDS = Collections.unmodifiableMap(fields);
+    }
+
+    private final DBObject fields;
+    private final boolean withHistory;
+
+    private GeoTagProjection(DBObject fields, boolean withHistory) {
+        this.fields = fields;
+        this.withHistory = withHistory;
+    }
+
+    /**
+     * Picks the projection for a request. Requested fields win over minify, and a minified result never has history.
+     * An unknown field name is an InvalidRequestException.
+     */
+    public static GeoTagProjection of(String[] fields, boolean minify, boolean withHistory) {
+        if (fields != null && fields.length > 0) {
+            DBObject projection = new BasicDBObject();
+            for (String field : fields) {
+                String path = FIELDS.get(field.trim());
+                if (path == null) {
+                    throw new InvalidRequestException("Unknown field " + field + ", use one of " + FIELDS.keySet());
+                }
+                include(projection, path);
+            }
+            if (withHistory) {
+                projection.put("userPositions", 1);
+            }
+            return new GeoTagProjection(projection, withHistory);
+        }
+        if (minify) {
+            return MINIFIED;
+        }
+        return withHistory ? ALL : WITHOUT_HISTORY;
+    }
+
+    /**
+     * The projection with the given Mongo path added, if the projection lists the fields to include.
+     */
+    GeoTagProjection including(String path) {
+        if (fields == null || !isInclusion()) {
+            return this;
+        }
+        DBObject projection = new BasicDBObject(fields.toMap());
+        include(projection, path);
+        return new GeoTagProjection(projection, withHistory);
+    }
+
+    /**
+     * The Mongo projection, or null for whole documents.
+     */
+    DBObject getFields() {
+        return fields == null ? null : new BasicDBObject(fields.toMap());
+    }
+
+    public boolean isWithHistory() {
+        return withHistory;
+    }
+
+    /**
+     * Mongo rejects a projection with both a field and one of its subfields, so the parent wins.
+     */
+    private static void include(DBObject projection, String path) {
+        for (String key : new ArrayList<>(projection.keySet())) {
+            if (path.startsWith(key + ".")) {
+                return;
+            }
+            if (key.startsWith(path + ".")) {
+                projection.removeField(key);
+            }
+        }
+        projection.put(path, 1);
+    }
+
+    private boolean isInclusion() {
+        for (String key : fields.keySet()) {
+            if (!"_id".equals(key) && !Integer.valueOf(0).equals(fields.get(key))) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
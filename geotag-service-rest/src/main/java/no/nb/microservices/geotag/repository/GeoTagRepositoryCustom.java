@@ -0,0 +1,134 @@
+package no.nb.microservices.geotag.repository;
+
+import com.mysema.query.types.Predicate;
+import no.nb.microservices.geotag.model.GeoPosition;
+import no.nb.microservices.geotag.model.GeoTag;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.geo.Box;
+import org.springframework.data.geo.Distance;
+import org.springframework.data.geo.Point;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Queries that need more control over the Mongo query than the derived repository methods give.
+ */
+public interface GeoTagRepositoryCustom {
+
+    /**
+     * Like findAll, but only the fields in the projection are read from Mongo and the total is found as totals says.
+     */
+    Page<GeoTag> findAll(Predicate predicate, Pageable pageable, GeoTagProjection projection, Totals totals);
+
+    /**
+     * Tags within distance of the point, nearest first.
+     */
+    Page<GeoTag> findNear(Point point, Distance distance, Pageable pageable, Totals totals);
+
+    Page<GeoTag> findWithin(Box box, Pageable pageable, Totals totals);
+
+    /**
+     * Like findWithin, but the tags of the page are fed to the consumer straight from the Mongo cursor. The page
+     * that is returned has no content, only the totals.
+     */
+    Page<GeoTag> streamWithin(Box box, Pageable pageable, Totals totals, Consumer<GeoTag> consumer);
+
+    /**
+     * Keyset lookup ordered by (currentPosition.date, _id) descending. Returns up to limit tags that sort after
+     * the given key, without running a count. A null id starts from the beginning, a null date with an id goes on
+     * among the tags without a date, which sort last. currentPosition.date is always read, it is needed for the next
+     * key.
+     */
+    List<GeoTag> findAfter(Predicate predicate, Date date, String id, int limit, GeoTagProjection projection);
+
+    /**
+     * Feeds every matching tag to the consumer straight from the Mongo cursor, so memory use does not grow with the
+     * size of the result.
+     */
+    void stream(Predicate predicate, GeoTagProjection projection, Consumer<GeoTag> consumer);
+
+    /**
+     * Feeds the id, urn and current coordinates of every tag inside the box to the consumer, nothing else is loaded.
+     */
+    void streamPositions(Box box, Consumer<GeoTag> consumer);
+
+    /**
+     * Writes all tags with one unordered bulk operation, each replacing the document with the same id and version
+     * or inserting it, and bumps their versions. Returns the error message for each tag that failed, keyed by its
+     * position in the list. A tag that was changed since it was read fails.
+     */
+    Map<Integer, String> bulkSave(List<GeoTag> geoTags);
+
+    /**
+     * The tag without userPositions, so the cost does not grow with the history.
+     */
+    GeoTag findOneWithoutHistory(String id);
+
+    /**
+     * The tag with the urn and the lowest id, without userPositions. Urns are not unique, and writes by urn always
+     * go to this one.
+     */
+    GeoTag findOneByUrnWithoutHistory(String urn);
+
+    /**
+     * The tag with only the last entry of userPositions.
+     */
+    GeoTag findOneWithLastPosition(String id);
+
+    /**
+     * Replaces the whole document if its version is still expectedVersion, and bumps the version. A null
+     * expectedVersion matches documents written before versioning. Returns false when nothing matched. With a separate
+     * position history the userPositions of the tag become its history entries.
+     */
+    boolean replace(GeoTag geoTag, Long expectedVersion);
+
+    /*
+     * The writes below are single atomic Mongo updates that also bump the version. They return the updated tag
+     * without userPositions, or null when no tag matched the id and conditions.
+     */
+
+    /**
+     * Makes position the current position and marks the tag dirty, if the tag is not sticky and its version is still
+     * expectedVersion. A non null archived position is pushed onto userPositions in the same update.
+     */
+    GeoTag replaceCurrentPosition(String id, Long expectedVersion, GeoPosition position, GeoPosition archived);
+
+    /**
+     * Replaces the current position posId with last, the last entry of userPositions, and removes last from
+     * userPositions. Only matches while the current position is posId and last is still in userPositions.
+     */
+    GeoTag promotePosition(String id, String posId, GeoPosition last);
+
+    GeoTag pushPosition(String id, GeoPosition position);
+
+    /**
+     * Removes every entry in userPositions with the posId.
+     */
+    GeoTag pullPosition(String id, String posId);
+
+    /**
+     * Removes every entry in userPositions by the user.
+     */
+    GeoTag pullUserPositions(String id, String userId);
+
+    /**
+     * Appends the positions kept in the history collection to userPositions of the tags, oldest first. Does
+     * nothing unless the history is kept separate.
+     */
+    void loadHistory(List<GeoTag> geoTags);
+
+    /**
+     * Removes the positions of the tag from the history collection.
+     */
+    void deleteHistory(String id);
+
+    /**
+     * Moves userPositions of up to limit tags to the history collection. A tag written to meanwhile is left for
+     * the next run. Returns the number of tags moved.
+     */
+    int migrateHistory(int limit);
+}
@@ -0,0 +1,726 @@
+package no.nb.microservices.geotag.repository;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.DBRef;
+import com.mysema.query.mongodb.MongodbSerializer;
+import com.mysema.query.types.Path;
+import com.mysema.query.types.Predicate;
+import no.nb.microservices.geotag.config.ApplicationSettings;
+import no.nb.microservices.geotag.metrics.Timings;
+import no.nb.microservices.geotag.model.GeoPosition;
+import no.nb.microservices.geotag.model.GeoTag;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.geo.Box;
+import org.springframework.data.geo.Distance;
+import org.springframework.data.geo.Point;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import org.springframework.data.mongodb.core.geo.Sphere;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.BasicQuery;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * MongoTemplate backed implementation of {@link GeoTagRepositoryCustom}. Picked up by Spring Data through the Impl
+ * postfix.
+ *
+ * With microservice.separatePositionHistory the position history is written to the GeoTagPosition collection, one
+ * document per position, instead of to userPositions. userPositions still left in not yet migrated documents are
+ * read and updated as before.
+ *
+ * Finds and counts are timed as mongo.find, mongo.scroll and mongo.count. The ones slower than
+ * microservice.slowQueryMillis are logged with the query and the QueryDSL predicate it was made from. With
+ * microservice.explainSlowQueries the first slow query of each shape, the query with its values left out, is also
+ * explained in the background, and the plan Mongo picked is logged. A plan that scans the collection is missing one of
+ * {@link GeoTagIndexes}.
+ */
+public class GeoTagRepositoryImpl implements GeoTagRepositoryCustom {
+
+    private static final Logger LOG = LoggerFactory.getLogger(GeoTagRepositoryImpl.class);
+
+    private static final String DATE_FIELD = "currentPosition.date";
+    private static final String ID_FIELD = "_id";
+    private static final String POSITION_FIELD = "currentPosition.position";
+    private static final String CURRENT_POSITION_FIELD = "currentPosition";
+    private static final String CURRENT_POSITION_ID_FIELD = "currentPosition._id";
+    private static final String USER_POSITIONS_FIELD = "userPositions";
+    private static final String USER_POSITIONS_ID_FIELD = "userPositions._id";
+    private static final String VERSION_FIELD = "version";
+    private static final int DUPLICATE_KEY = 11000;
+    private static final int MAX_CACHED_COUNTS = 1000;
+    private static final int MAX_EXPLAINED_SHAPES = 1000;
+    private static final int MAX_QUEUED_EXPLAINS = 100;
+
+    private static final String HISTORY_COLLECTION = "GeoTagPosition";
+    private static final String HISTORY_TAG_FIELD = "geoTagId";
+    private static final String HISTORY_POSITION_FIELD = "position";
+    private static final String HISTORY_POSITION_ID_FIELD = "position._id";
+    private static final String HISTORY_USER_FIELD = "position.userId";
+
+    private final MongoTemplate mongoTemplate;
+    private final boolean separateHistory;
+    private final long countTtlMillis;
+    private final long slowQueryNanos;
+    private final boolean explainSlowQueries;
+    private final Timings timings;
+    private final Map<String, CachedCount> counts = new LinkedHashMap<String, CachedCount>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedCount> eldest) {
+            return size() > MAX_CACHED_COUNTS;
+        }
+    };
+    private final Set<String> explainedShapes = Collections.newSetFromMap(new LinkedHashMap<String, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_EXPLAINED_SHAPES;
+        }
+    });
+    // Explains run on their own thread, a slow query is no reason to keep its request waiting even longer
+    private final ThreadPoolExecutor explainer = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(MAX_QUEUED_EXPLAINS), runnable -> {
+                Thread thread = new Thread(runnable, "geotag-explain");
+                thread.setDaemon(true);
+                return thread;
+            }, new ThreadPoolExecutor.DiscardPolicy());
+
+    @Autowired
+    public GeoTagRepositoryImpl(MongoTemplate mongoTemplate, ApplicationSettings applicationSettings, Timings timings) {
+        this.mongoTemplate = mongoTemplate;
+        this.separateHistory = applicationSettings.isSeparatePositionHistory();
+        this.countTtlMillis = TimeUnit.SECONDS.toMillis(applicationSettings.getCountCacheTtl());
+        this.slowQueryNanos = TimeUnit.MILLISECONDS.toNanos(applicationSettings.getSlowQueryMillis());
+        this.explainSlowQueries = applicationSettings.isExplainSlowQueries();
+        this.timings = timings;
+        this.explainer.allowCoreThreadTimeOut(true);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        explainer.shutdown();
+    }
+
+    @PostConstruct
+    public void createHistoryIndex() {
+        if (separateHistory) {
+            mongoTemplate.indexOps(HISTORY_COLLECTION).ensureIndex(new Index()
+                    .on(HISTORY_TAG_FIELD, Sort.Direction.ASC)
+                    .on(ID_FIELD, Sort.Direction.ASC)
+                    .background());
+        }
+    }
+
+    @Override
+    public Page<GeoTag> findAll(Predicate predicate, Pageable pageable, GeoTagProjection projection, Totals totals) {
+        DBObject queryObject = toDBObject(predicate);
+        Page<GeoTag> page = findPage(new BasicQuery(queryObject, projection.getFields()), new BasicQuery(queryObject), pageable, totals, predicate);
+
+        if (projection.isWithHistory()) {
+            loadHistory(page.getContent());
+        }
+        return page;
+    }
+
+    @Override
+    public Page<GeoTag> findNear(Point point, Distance distance, Pageable pageable, Totals totals) {
+        Query query = Query.query(Criteria.where(POSITION_FIELD).nearSphere(point).maxDistance(distance.getNormalizedValue()));
+        // Mongo can not count a $nearSphere, the same circle without the ordering can
+        Query countQuery = Query.query(Criteria.where(POSITION_FIELD).within(new Sphere(point, distance)));
+        return findPage(query, countQuery, pageable, totals, null);
+    }
+
+    @Override
+    public Page<GeoTag> findWithin(Box box, Pageable pageable, Totals totals) {
+        return findPage(Query.query(Criteria.where(POSITION_FIELD).within(box)),
+                Query.query(Criteria.where(POSITION_FIELD).within(box)), pageable, totals, null);
+    }
+
+    @Override
+    public Page<GeoTag> streamWithin(Box box, Pageable pageable, Totals totals, Consumer<GeoTag> consumer) {
+        int size = pageable.getPageSize();
+        Query query = Query.query(Criteria.where(POSITION_FIELD).within(box)).with(pageable).limit(size + 1);
+
+        AtomicInteger read = new AtomicInteger();
+        MongoConverter converter = mongoTemplate.getConverter();
+        mongoTemplate.executeQuery(query, mongoTemplate.getCollectionName(GeoTag.class), dbObject -> {
+            // The one past the page only tells there is a next page
+            if (read.incrementAndGet() <= size) {
+                consumer.accept(converter.read(GeoTag.class, dbObject));
+            }
+        });
+
+        boolean hasNext = read.get() > size;
+        long total = total(Query.query(Criteria.where(POSITION_FIELD).within(box)), pageable, Math.min(read.get(), size), hasNext, totals, null);
+        return new EstimatedPage<GeoTag>(Collections.<GeoTag>emptyList(), pageable, total, totals);
+    }
+
+    @Override
+    public List<GeoTag> findAfter(Predicate predicate, Date date, String id, int limit, GeoTagProjection projection) {
+        DBObject queryObject = toDBObject(predicate);
+
+        if (date != null) {
+            // Tags without a date sort last, so they all follow a dated one
+            DBObject keyset = new BasicDBObject("$or", Arrays.asList(
+                    new BasicDBObject(DATE_FIELD, new BasicDBObject("$lt", date)),
+                    BasicDBObjectBuilder.start()
+                            .add(DATE_FIELD, date)
+                            .add(ID_FIELD, new BasicDBObject("$lt", toMongoId(id)))
+                            .get(),
+                    new BasicDBObject(DATE_FIELD, null)));
+            queryObject = new BasicDBObject("$and", Arrays.asList(queryObject, keyset));
+        }
+        else if (id != null) {
+            // Tags without a date sort last, so only they can follow one
+            DBObject keyset = BasicDBObjectBuilder.start()
+                    .add(DATE_FIELD, null)
+                    .add(ID_FIELD, new BasicDBObject("$lt", toMongoId(id)))
+                    .get();
+            queryObject = new BasicDBObject("$and", Arrays.asList(queryObject, keyset));
+        }
+
+        // The continuation token is made from the date of the last tag
+        BasicQuery query = new BasicQuery(queryObject, projection.including(DATE_FIELD).getFields());
+        query.setSortObject(BasicDBObjectBuilder.start().add(DATE_FIELD, -1).add(ID_FIELD, -1).get());
+        query.limit(limit);
+
+        long start = timings.start();
+        List<GeoTag> geoTags = mongoTemplate.find(query, GeoTag.class);
+        logIfSlow("scroll", timings.stop("mongo.scroll", start), query, predicate);
+        if (projection.isWithHistory()) {
+            loadHistory(geoTags);
+        }
+        return geoTags;
+    }
+
+    @Override
+    public void stream(Predicate predicate, GeoTagProjection projection, Consumer<GeoTag> consumer) {
+        BasicQuery query = new BasicQuery(toDBObject(predicate), projection.getFields());
+        boolean loadHistory = projection.isWithHistory() && separateHistory;
+
+        MongoConverter converter = mongoTemplate.getConverter();
+        mongoTemplate.executeQuery(query, mongoTemplate.getCollectionName(GeoTag.class), dbObject -> {
+            GeoTag geoTag = converter.read(GeoTag.class, dbObject);
+            if (loadHistory) {
+                loadHistory(Arrays.asList(geoTag));
+            }
+            consumer.accept(geoTag);
+        });
+    }
+
+    @Override
+    public void streamPositions(Box box, Consumer<GeoTag> consumer) {
+        Query query = Query.query(Criteria.where(POSITION_FIELD).within(box));
+        query.fields().include("urn").include(POSITION_FIELD);
+
+        MongoConverter converter = mongoTemplate.getConverter();
+        mongoTemplate.executeQuery(query, mongoTemplate.getCollectionName(GeoTag.class),
+                dbObject -> consumer.accept(converter.read(GeoTag.class, dbObject)));
+    }
+
+    @Override
+    public Map<Integer, String> bulkSave(List<GeoTag> geoTags) {
+        Map<Integer, String> errors = new HashMap<>();
+        if (geoTags.isEmpty()) {
+            return errors;
+        }
+
+        // With a separate history the positions in userPositions move to the history collection once written
+        List<List<GeoPosition>> archived = new ArrayList<>(geoTags.size());
+        BulkWriteOperation bulk = mongoTemplate.getCollection(mongoTemplate.getCollectionName(GeoTag.class)).initializeUnorderedBulkOperation();
+        for (GeoTag geoTag : geoTags) {
+            if (separateHistory) {
+                archived.add(geoTag.getUserPositions());
+                geoTag.setUserPositions(null);
+            }
+
+            // A changed document no longer matches, so the upsert tries to insert it again and fails on the id
+            Long expectedVersion = geoTag.getVersion();
+            DBObject dbObject = toVersionedDBObject(geoTag, expectedVersion);
+            bulk.find(BasicDBObjectBuilder.start().add(ID_FIELD, dbObject.get(ID_FIELD)).add(VERSION_FIELD, expectedVersion).get())
+                    .upsert().replaceOne(dbObject);
+        }
+
+        try {
+            bulk.execute();
+        } catch (BulkWriteException e) {
+            // Without per item errors we can not tell what was written
+            if (e.getWriteErrors().isEmpty()) {
+                throw e;
+            }
+            for (BulkWriteError error : e.getWriteErrors()) {
+                errors.put(error.getIndex(), error.getCode() == DUPLICATE_KEY
+                        ? "The geotag was changed by someone else"
+                        : error.getMessage());
+            }
+        }
+
+        if (separateHistory) {
+            for (int i = 0; i < geoTags.size(); i++) {
+                GeoTag geoTag = geoTags.get(i);
+                if (!errors.containsKey(i)) {
+                    history().remove(BasicDBObjectBuilder.start()
+                            .add(HISTORY_TAG_FIELD, geoTag.getGeoId())
+                            .add(HISTORY_USER_FIELD, geoTag.getCurrentPosition().getUserId())
+                            .get());
+                    for (GeoPosition position : archived.get(i)) {
+                        archive(geoTag.getGeoId(), position);
+                    }
+                }
+                geoTag.setUserPositions(archived.get(i));
+            }
+        }
+        return errors;
+    }
+
+    @Override
+    public boolean replace(GeoTag geoTag, Long expectedVersion) {
+        // With a separate history the positions in userPositions replace the ones in the history collection
+        List<GeoPosition> userPositions = geoTag.getUserPositions();
+        if (separateHistory) {
+            geoTag.setUserPositions(null);
+        }
+
+        DBObject dbObject = toVersionedDBObject(geoTag, expectedVersion);
+        DBObject query = BasicDBObjectBuilder.start().add(ID_FIELD, dbObject.get(ID_FIELD)).add(VERSION_FIELD, expectedVersion).get();
+        boolean replaced = mongoTemplate.getCollection(mongoTemplate.getCollectionName(GeoTag.class)).update(query, dbObject).getN() == 1;
+
+        if (separateHistory) {
+            if (replaced) {
+                deleteHistory(geoTag.getGeoId());
+                if (userPositions != null) {
+                    for (GeoPosition position : userPositions) {
+                        archive(geoTag.getGeoId(), position);
+                    }
+                }
+            }
+            geoTag.setUserPositions(userPositions);
+        }
+        return replaced;
+    }
+
+    @Override
+    public GeoTag findOneWithoutHistory(String id) {
+        Query query = Query.query(Criteria.where(ID_FIELD).is(id));
+        query.fields().exclude(USER_POSITIONS_FIELD);
+        return mongoTemplate.findOne(query, GeoTag.class);
+    }
+
+    @Override
+    public GeoTag findOneByUrnWithoutHistory(String urn) {
+        Query query = Query.query(Criteria.where("urn").is(urn)).with(new Sort(Sort.Direction.ASC, ID_FIELD));
+        query.fields().exclude(USER_POSITIONS_FIELD);
+        return mongoTemplate.findOne(query, GeoTag.class);
+    }
+
+    @Override
+    public GeoTag findOneWithLastPosition(String id) {
+        Query query = Query.query(Criteria.where(ID_FIELD).is(id));
+        query.fields().slice(USER_POSITIONS_FIELD, -1);
+        GeoTag geoTag = mongoTemplate.findOne(query, GeoTag.class);
+
+        // Positions in the history collection are always newer than the ones left in the document
+        if (geoTag != null && separateHistory) {
+            DBCursor cursor = history().find(new BasicDBObject(HISTORY_TAG_FIELD, id))
+                    .sort(new BasicDBObject(ID_FIELD, -1))
+                    .limit(1);
+            try {
+                if (cursor.hasNext()) {
+                    geoTag.setUserPositions(new ArrayList<>(Arrays.asList(readHistoryEntry(cursor.next()))));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return geoTag;
+    }
+
+    @Override
+    public GeoTag replaceCurrentPosition(String id, Long expectedVersion, GeoPosition position, GeoPosition archived) {
+        Query query = Query.query(Criteria.where(ID_FIELD).is(id)
+                .and("sticky").ne(true)
+                .and(VERSION_FIELD).is(expectedVersion));
+        Update update = new Update().set(CURRENT_POSITION_FIELD, position).set("dirty", true);
+        if (archived != null && !separateHistory) {
+            update.push(USER_POSITIONS_FIELD, archived);
+        }
+
+        GeoTag geoTag = modify(query, update);
+        if (geoTag != null && archived != null && separateHistory) {
+            archive(id, archived);
+        }
+        return geoTag;
+    }
+
+    @Override
+    public GeoTag promotePosition(String id, String posId, GeoPosition last) {
+        Criteria criteria = Criteria.where(ID_FIELD).is(id).and(CURRENT_POSITION_ID_FIELD).is(toMongoId(posId));
+        Update update = new Update().set(CURRENT_POSITION_FIELD, last);
+        if (last.getPosId() != null) {
+            // With a separate history last may come from either place
+            if (!separateHistory) {
+                criteria.and(USER_POSITIONS_ID_FIELD).is(toMongoId(last.getPosId()));
+            }
+            update.pull(USER_POSITIONS_FIELD, new BasicDBObject(ID_FIELD, toMongoId(last.getPosId())));
+        }
+        else {
+            // Old positions without id can only be taken from the end
+            update.pop(USER_POSITIONS_FIELD, Update.Position.LAST);
+        }
+
+        GeoTag geoTag = modify(Query.query(criteria), update);
+        if (geoTag != null && last.getPosId() != null && separateHistory) {
+            removeHistory(id, HISTORY_POSITION_ID_FIELD, toMongoId(last.getPosId()));
+        }
+        return geoTag;
+    }
+
+    @Override
+    public GeoTag pushPosition(String id, GeoPosition position) {
+        if (!separateHistory) {
+            return modify(Query.query(Criteria.where(ID_FIELD).is(id)), new Update().push(USER_POSITIONS_FIELD, position));
+        }
+
+        GeoTag geoTag = modify(Query.query(Criteria.where(ID_FIELD).is(id)), new Update());
+        if (geoTag != null) {
+            archive(id, position);
+        }
+        return geoTag;
+    }
+
+    @Override
+    public GeoTag pullPosition(String id, String posId) {
+        GeoTag geoTag = modify(Query.query(Criteria.where(ID_FIELD).is(id)),
+                new Update().pull(USER_POSITIONS_FIELD, new BasicDBObject(ID_FIELD, toMongoId(posId))));
+        if (geoTag != null && separateHistory) {
+            removeHistory(id, HISTORY_POSITION_ID_FIELD, toMongoId(posId));
+        }
+        return geoTag;
+    }
+
+    @Override
+    public GeoTag pullUserPositions(String id, String userId) {
+        GeoTag geoTag = modify(Query.query(Criteria.where(ID_FIELD).is(id)),
+                new Update().pull(USER_POSITIONS_FIELD, new BasicDBObject("userId", userId)));
+        if (geoTag != null && separateHistory) {
+            removeHistory(id, HISTORY_USER_FIELD, userId);
+        }
+        return geoTag;
+    }
+
+    @Override
+    public void loadHistory(List<GeoTag> geoTags) {
+        if (!separateHistory || geoTags.isEmpty()) {
+            return;
+        }
+
+        Map<String, GeoTag> byId = new HashMap<>();
+        for (GeoTag geoTag : geoTags) {
+            byId.put(geoTag.getGeoId(), geoTag);
+        }
+
+        DBCursor cursor = history().find(new BasicDBObject(HISTORY_TAG_FIELD, new BasicDBObject("$in", new ArrayList<>(byId.keySet()))))
+                .sort(new BasicDBObject(ID_FIELD, 1));
+        try {
+            while (cursor.hasNext()) {
+                DBObject entry = cursor.next();
+                byId.get(entry.get(HISTORY_TAG_FIELD)).addUserPosition(readHistoryEntry(entry));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public void deleteHistory(String id) {
+        history().remove(new BasicDBObject(HISTORY_TAG_FIELD, id));
+    }
+
+    @Override
+    public int migrateHistory(int limit) {
+        if (!separateHistory) {
+            throw new IllegalStateException("Position history is kept in the geotags");
+        }
+
+        Query query = Query.query(Criteria.where(USER_POSITIONS_FIELD + ".0").exists(true)).limit(limit);
+        query.fields().include(USER_POSITIONS_FIELD).include(VERSION_FIELD);
+
+        int migrated = 0;
+        for (GeoTag geoTag : mongoTemplate.find(query, GeoTag.class)) {
+            List<Object> entryIds = new ArrayList<>();
+            for (GeoPosition position : geoTag.getUserPositions()) {
+                if (position.getPosId() == null) {
+                    position.setPosId(UUID.randomUUID().toString());
+                }
+                entryIds.add(archive(geoTag.getGeoId(), position));
+            }
+
+            // Only drop the positions from the document if nobody wrote to it meanwhile, or they would be lost
+            GeoTag updated = modify(Query.query(Criteria.where(ID_FIELD).is(geoTag.getGeoId()).and(VERSION_FIELD).is(geoTag.getVersion())),
+                    new Update().unset(USER_POSITIONS_FIELD));
+            if (updated != null) {
+                migrated++;
+            }
+            else {
+                history().remove(new BasicDBObject(ID_FIELD, new BasicDBObject("$in", entryIds)));
+            }
+        }
+        return migrated;
+    }
+
+    /**
+     * findAndModify that bumps the version and hands back the new version of the tag without its history.
+     */
+    private GeoTag modify(Query query, Update update) {
+        update.inc(VERSION_FIELD, 1);
+        query.fields().exclude(USER_POSITIONS_FIELD);
+        return mongoTemplate.findAndModify(query, update, FindAndModifyOptions.options().returnNew(true), GeoTag.class);
+    }
+
+    /**
+     * Reads one tag more than the page size to tell whether there is a next page, so the count can be skipped or
+     * taken from the cache.
+     */
+    private Page<GeoTag> findPage(Query query, Query countQuery, Pageable pageable, Totals totals, Predicate predicate) {
+        int size = pageable.getPageSize();
+        long start = timings.start();
+        List<GeoTag> content = mongoTemplate.find(query.with(pageable).limit(size + 1), GeoTag.class);
+        logIfSlow("find", timings.stop("mongo.find", start), query, predicate);
+
+        boolean hasNext = content.size() > size;
+        if (hasNext) {
+            content = new ArrayList<>(content.subList(0, size));
+        }
+        return new EstimatedPage<GeoTag>(content, pageable, total(countQuery, pageable, content.size(), hasNext, totals, predicate), totals);
+    }
+
+    /**
+     * The total of a page with found tags, counting only when the page and totals do not tell.
+     */
+    private long total(Query countQuery, Pageable pageable, int found, boolean hasNext, Totals totals, Predicate predicate) {
+        long seen = pageable.getOffset() + found;
+        // Past the end the page tells nothing about the total
+        boolean seenAll = !hasNext && (found > 0 || pageable.getOffset() == 0);
+
+        if (seenAll) {
+            return seen;
+        }
+        else if (totals == Totals.EXACT) {
+            return count(countQuery, predicate);
+        }
+        else if (totals == Totals.ESTIMATE) {
+            return Math.max(cachedCount(countQuery, predicate), hasNext ? seen + 1 : seen);
+        }
+        return hasNext ? seen + 1 : seen;
+    }
+
+    private long cachedCount(Query countQuery, Predicate predicate) {
+        String key = countQuery.getQueryObject().toString();
+        long now = System.currentTimeMillis();
+        synchronized (counts) {
+            CachedCount cached = counts.get(key);
+            if (cached != null && now - cached.countedAt < countTtlMillis) {
+                return cached.count;
+            }
+        }
+
+        long count = count(countQuery, predicate);
+        synchronized (counts) {
+            counts.put(key, new CachedCount(count, now));
+        }
+        return count;
+    }
+
+    private long count(Query countQuery, Predicate predicate) {
+        long start = timings.start();
+        long count = mongoTemplate.count(countQuery, GeoTag.class);
+        logIfSlow("count", timings.stop("mongo.count", start), countQuery, predicate);
+        return count;
+    }
+
+    private void logIfSlow(String operation, long nanos, Query query, Predicate predicate) {
+        if (nanos >= slowQueryNanos) {
+            LOG.warn("Slow {} took {} ms: {}{}", operation, TimeUnit.NANOSECONDS.toMillis(nanos), query,
+                    predicate != null ? ", from predicate " + predicate : "");
+            if (explainSlowQueries) {
+                explainOnce(query);
+            }
+        }
+    }
+
+    /**
+     * Logs the plan of the query in the background, unless a query of the same shape has been explained before. The
+     * explain runs the query, so it is limited like the query, and to one document when the query has no limit, as
+     * a count.
+     */
+    private void explainOnce(Query query) {
+        DBObject sort = query.getSortObject() != null ? query.getSortObject() : new BasicDBObject();
+        String shape = shape(query.getQueryObject()) + " sort " + sort;
+        synchronized (explainedShapes) {
+            if (!explainedShapes.add(shape)) {
+                return;
+            }
+        }
+
+        DBObject queryObject = query.getQueryObject();
+        int limit = query.getLimit() > 0 ? query.getLimit() : 1;
+        explainer.execute(() -> explain(queryObject, sort, limit, shape));
+    }
+
+    private void explain(DBObject queryObject, DBObject sort, int limit, String shape) {
+        try {
+            DBObject explain = mongoTemplate.getCollection(mongoTemplate.getCollectionName(GeoTag.class))
+                    .find(queryObject)
+                    .sort(sort)
+                    .limit(limit)
+                    .explain();
+            // Mongo 3 explains the winning plan, older versions only name the cursor
+            Object queryPlanner = explain.get("queryPlanner");
+            Object plan = queryPlanner instanceof DBObject ? ((DBObject) queryPlanner).get("winningPlan") : explain.get("cursor");
+            String planText = String.valueOf(plan);
+            if (planText.contains("COLLSCAN") || planText.contains("BasicCursor")) {
+                LOG.warn("Query of shape {} scans the collection, plan: {}", shape, planText);
+            }
+            else {
+                LOG.info("Query of shape {} has plan: {}", shape, planText);
+            }
+        } catch (RuntimeException e) {
+            LOG.warn("Could not explain query of shape " + shape, e);
+        }
+    }
+
+    /**
+     * The query with every value replaced by 1, so queries that differ only in their values are the same shape.
+     */
+    static Object shape(Object value) {
+        if (value instanceof List) {
+            List<Object> shape = new ArrayList<>();
+            for (Object element : (List<?>) value) {
+                shape.add(shape(element));
+            }
+            return shape;
+        }
+        if (value instanceof DBObject) {
+            DBObject dbObject = (DBObject) value;
+            DBObject shape = new BasicDBObject();
+            for (String key : dbObject.keySet()) {
+                shape.put(key, shape(dbObject.get(key)));
+            }
+            return shape;
+        }
+        return 1;
+    }
+
+    private DBCollection history() {
+        return mongoTemplate.getCollection(HISTORY_COLLECTION);
+    }
+
+    /**
+     * Adds the position to the history collection. Entries are ordered by their ObjectId, which is taken from the
+     * position date so that migrated positions sort before the ones archived after them.
+     */
+    private Object archive(String geoTagId, GeoPosition position) {
+        DBObject dbPosition = new BasicDBObject();
+        mongoTemplate.getConverter().write(position, dbPosition);
+        ObjectId entryId = position.getDate() != null ? new ObjectId(position.getDate()) : new ObjectId();
+
+        history().insert(BasicDBObjectBuilder.start()
+                .add(ID_FIELD, entryId)
+                .add(HISTORY_TAG_FIELD, geoTagId)
+                .add(HISTORY_POSITION_FIELD, dbPosition)
+                .get());
+        return entryId;
+    }
+
+    private void removeHistory(String geoTagId, String field, Object value) {
+        history().remove(BasicDBObjectBuilder.start().add(HISTORY_TAG_FIELD, geoTagId).add(field, value).get());
+    }
+
+    private GeoPosition readHistoryEntry(DBObject entry) {
+        return mongoTemplate.getConverter().read(GeoPosition.class, (DBObject) entry.get(HISTORY_POSITION_FIELD));
+    }
+
+    /**
+     * The document for the tag with the version that follows expectedVersion. The tag keeps that version too.
+     */
+    private DBObject toVersionedDBObject(GeoTag geoTag, Long expectedVersion) {
+        geoTag.setVersion(expectedVersion != null ? expectedVersion + 1 : 0);
+        DBObject dbObject = new BasicDBObject();
+        mongoTemplate.getConverter().write(geoTag, dbObject);
+        return dbObject;
+    }
+
+    /**
+     * Spring Data stores string ids that are valid ObjectIds as ObjectIds, so raw queries have to do the same.
+     */
+    static Object toMongoId(String id) {
+        return (id != null && ObjectId.isValid(id)) ? new ObjectId(id) : id;
+    }
+
+    static DBObject toDBObject(Predicate predicate) {
+        if (predicate == null) {
+            return new BasicDBObject();
+        }
+        return (DBObject) new GeoTagMongodbSerializer().handle(predicate);
+    }
+
+    /**
+     * GeoTag has no references to other documents, so the reference hooks are never used.
+     */
+    private static class GeoTagMongodbSerializer extends MongodbSerializer {
+
+        protected boolean isReference(Path<?> arg) {
+            return false;
+        }
+
+        protected DBRef asReference(Object constant) {
+            return null;
+        }
+
+        protected DBRef asReferenceKey(Class<?> entity, Object id) {
+            return null;
+        }
+    }
+
+    private static class CachedCount {
+        private final long count;
+        private final long countedAt;
+
+        CachedCount(long count, long countedAt) {
+            this.count = count;
+            this.countedAt = countedAt;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package no.nb.microservices.geotag.repository;
+
+import no.nb.microservices.geotag.domain.InvalidRequestException;
+
+/**
+ * How the total of a page is found. EXACT runs a count, ESTIMATE reuses a recent count of the same query, and NONE
+ * only tells whether there is a next page. Whatever the mode, a page that ends before size has an exact total.
+ */
+public enum Totals {
+    EXACT, ESTIMATE, NONE;
+
+    /**
+     * Case insensitive, null gives EXACT.
+     */
+    public static Totals parse(String value) {
+        if (value == null || value.isEmpty()) {
+            return EXACT;
+        }
+        try {
+            return valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new InvalidRequestException("totals must be exact, estimate or none, not " + value);
+        }
+    }
+}
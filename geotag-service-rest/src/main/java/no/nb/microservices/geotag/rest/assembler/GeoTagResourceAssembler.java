@@ -1,18 +1,28 @@
 package no.nb.microservices.geotag.rest.assembler;
 
 import no.nb.microservices.geotag.config.ApplicationSettings;
+import no.nb.microservices.geotag.metrics.Timings;
+import no.nb.microservices.geotag.model.GeoQuery;
 import no.nb.microservices.geotag.model.GeoTag;
+import no.nb.microservices.geotag.model.GeoTagLookupResult;
+import no.nb.microservices.geotag.repository.EstimatedPage;
+import no.nb.microservices.geotag.repository.Totals;
 import no.nb.microservices.geotag.rest.controller.GeoTagController;
+import no.nb.microservices.geotag.service.GeoTagSlice;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.Page;
 import org.springframework.hateoas.Link;
 import org.springframework.hateoas.PagedResources;
 import org.springframework.hateoas.ResourceAssembler;
+import org.springframework.hateoas.Resources;
 import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 import static org.springframework.hateoas.mvc.ControllerLinkBuilder.linkTo;
 import static org.springframework.hateoas.mvc.ControllerLinkBuilder.methodOn;
@@ -24,14 +34,25 @@ import static org.springframework.hateoas.mvc.ControllerLinkBuilder.methodOn;
 public class GeoTagResourceAssembler implements ResourceAssembler<GeoTagPage, PagedResources<GeoTag>> {
 
     private final ApplicationSettings applicationSettings;
+    private final Timings timings;
 
     @Autowired
-    public GeoTagResourceAssembler(ApplicationSettings applicationSettings) {
+    public GeoTagResourceAssembler(ApplicationSettings applicationSettings, Timings timings) {
         this.applicationSettings = applicationSettings;
+        this.timings = timings;
     }
 
     @Override
     public PagedResources<GeoTag> toResource(GeoTagPage geoTagPage) {
+        long start = timings.start();
+        try {
+            return assemble(geoTagPage);
+        } finally {
+            timings.stop("assembler.toResource", start);
+        }
+    }
+
+    private PagedResources<GeoTag> assemble(GeoTagPage geoTagPage) {
         Page page = geoTagPage.getPage();
         Collection<GeoTag> resources = new ArrayList<GeoTag>();
         List<Link> links = new ArrayList<Link>();
@@ -41,65 +62,118 @@ public class GeoTagResourceAssembler implements ResourceAssembler<GeoTagPage, Pa
             return pagedResources;
         }
 
+        String selfBase = selfBase(geoTagPage.getGeoQuery());
         for(Object o : page.getContent()) {
             GeoTag geoTag = (GeoTag)o;
-            if (!geoTagPage.getGeoQuery().isMinify()) {
-                geoTag.add(linkTo(GeoTagController.class).slash(geoTag.getGeoId()).withSelfRel());
+            if (selfBase != null) {
+                geoTag.add(LinkTemplate.slash(selfBase, geoTag.getGeoId(), Link.REL_SELF));
             }
             
             resources.add(geoTag);
         }	
 
+        LinkTemplate template;
         if (geoTagPage.getGeoQuery().getSecondLat() != null && geoTagPage.getGeoQuery().getSecondLon() != null) {
-            links.add(linkTo(methodOn(GeoTagController.class).getTagsWithin(geoTagPage.getGeoQuery(), page.getNumber(), page.getSize())).withSelfRel());
-            if (page.hasPrevious()) {
-                links.add(linkTo(methodOn(GeoTagController.class).getTagsWithin(geoTagPage.getGeoQuery(), page.previousPageable().getPageNumber(), page.getSize())).withRel("prev"));
-            }
-            if (page.hasNext()) {
-                links.add(linkTo(methodOn(GeoTagController.class).getTagsWithin(geoTagPage.getGeoQuery(), page.nextPageable().getPageNumber(), page.getSize())).withRel("next"));
-            }
-            if (!page.isFirst()) {
-                links.add(linkTo(methodOn(GeoTagController.class).getTagsWithin(geoTagPage.getGeoQuery(), 0, page.getSize())).withRel("first"));
-            }
-            if (!page.isLast()) {
-                links.add(linkTo(methodOn(GeoTagController.class).getTagsWithin(geoTagPage.getGeoQuery(), page.getTotalPages() - 1, page.getNumberOfElements())).withRel("last"));
-            }
+            template = new LinkTemplate(linkTo(methodOn(GeoTagController.class).getTagsWithin(geoTagPage.getGeoQuery(), LinkTemplate.PAGE, LinkTemplate.SIZE)));
         }
         else if (geoTagPage.getGeoQuery().getLat() != null && geoTagPage.getGeoQuery().getLon() != null && geoTagPage.getGeoQuery().getMaxDistance() != null) {
-            links.add(linkTo(methodOn(GeoTagController.class).getNearbyTags(geoTagPage.getGeoQuery(), page.getNumber(), page.getSize())).withSelfRel());
-            if (page.hasPrevious()) {
-                links.add(linkTo(methodOn(GeoTagController.class).getNearbyTags(geoTagPage.getGeoQuery(), page.previousPageable().getPageNumber(), page.getSize())).withRel("prev"));
-            }
-            if (page.hasNext()) {
-                links.add(linkTo(methodOn(GeoTagController.class).getNearbyTags(geoTagPage.getGeoQuery(), page.nextPageable().getPageNumber(), page.getSize())).withRel("next"));
-            }
-            if (!page.isFirst()) {
-                links.add(linkTo(methodOn(GeoTagController.class).getNearbyTags(geoTagPage.getGeoQuery(), 0, page.getSize())).withRel("first"));
-            }
-            if (!page.isLast()) {
-                links.add(linkTo(methodOn(GeoTagController.class).getNearbyTags(geoTagPage.getGeoQuery(), page.getTotalPages()-1, page.getNumberOfElements())).withRel("last"));
-            }
+            template = new LinkTemplate(linkTo(methodOn(GeoTagController.class).getNearbyTags(geoTagPage.getGeoQuery(), LinkTemplate.PAGE, LinkTemplate.SIZE)));
         }
         else {
-            links.add(linkTo(methodOn(GeoTagController.class).getTags(geoTagPage.getGeoQuery(), page.getNumber(), page.getSize(), geoTagPage.getExpand())).withSelfRel());
+            template = new LinkTemplate(linkTo(methodOn(GeoTagController.class).getTags(geoTagPage.getGeoQuery(), LinkTemplate.PAGE, LinkTemplate.SIZE, geoTagPage.getExpand())));
+        }
 
-            if (page.hasPrevious()) {
-                links.add(linkTo(methodOn(GeoTagController.class).getTags(geoTagPage.getGeoQuery(), page.previousPageable().getPageNumber(), page.getSize(), geoTagPage.getExpand())).withRel("prev"));
-            }
-            if (page.hasNext()) {
-                links.add(linkTo(methodOn(GeoTagController.class).getTags(geoTagPage.getGeoQuery(), page.nextPageable().getPageNumber(), page.getSize(), geoTagPage.getExpand())).withRel("next"));
-            }
-            if (!page.isFirst()) {
-                links.add(linkTo(methodOn(GeoTagController.class).getTags(geoTagPage.getGeoQuery(), 0, page.getSize(), geoTagPage.getExpand())).withRel("first"));
-            }
-            if (!page.isLast()) {
-                links.add(linkTo(methodOn(GeoTagController.class).getTags(geoTagPage.getGeoQuery(), page.getTotalPages()-1, page.getNumberOfElements(), geoTagPage.getExpand())).withRel("last"));
-            }
+        links.add(template.link(page.getNumber(), page.getSize(), Link.REL_SELF));
+        if (page.hasPrevious()) {
+            links.add(template.link(page.previousPageable().getPageNumber(), page.getSize(), "prev"));
+        }
+        if (page.hasNext()) {
+            links.add(template.link(page.nextPageable().getPageNumber(), page.getSize(), "next"));
+        }
+        if (!page.isFirst()) {
+            links.add(template.link(0, page.getSize(), "first"));
+        }
+        if (!page.isLast() && hasTotals(page)) {
+            links.add(template.link(page.getTotalPages() - 1, page.getSize(), "last"));
         }
 
-        PagedResources.PageMetadata metadata = new PagedResources.PageMetadata(page.getSize(), page.getNumber(), page.getTotalElements(), page.getTotalPages());
+        // Without totals there is nothing true to say about the number of pages
+        PagedResources.PageMetadata metadata = hasTotals(page)
+                ? new PagedResources.PageMetadata(page.getSize(), page.getNumber(), page.getTotalElements(), page.getTotalPages())
+                : null;
         PagedResources<GeoTag> pagedResources = new PagedResources<GeoTag>(resources, metadata, links);
 
         return pagedResources;
     }
-}
\ No newline at end of file
+
+    /**
+     * A page that is written while the query runs, for pages too big to build first. The query gets a consumer
+     * for the tags and returns the page with the totals, see {@link StreamedPagedResources}.
+     */
+    public PagedResources<GeoTag> toStreamedResource(GeoQuery geoQuery, Function<Consumer<GeoTag>, Page<GeoTag>> query) {
+        String selfBase = selfBase(geoQuery);
+        return new StreamedPagedResources(consumer -> query.apply(geoTag -> {
+            if (selfBase != null) {
+                geoTag.add(LinkTemplate.slash(selfBase, geoTag.getGeoId(), Link.REL_SELF));
+            }
+            consumer.accept(geoTag);
+        }), page -> toResource(new GeoTagPage(page, geoQuery)));
+    }
+
+    /**
+     * The base is the same for every tag, and slash only appends the id. Null when minified.
+     */
+    private static String selfBase(GeoQuery geoQuery) {
+        return geoQuery.isMinify() ? null : linkTo(GeoTagController.class).toString();
+    }
+
+    private static boolean hasTotals(Page page) {
+        return !(page instanceof EstimatedPage) || ((EstimatedPage) page).getTotals() != Totals.NONE;
+    }
+
+    /**
+     * Keyset mode. There is no page metadata and the only link is next, which carries the continuation token.
+     */
+    public Resources<GeoTag> toResource(GeoTagSlice slice, GeoQuery geoQuery) {
+        long start = timings.start();
+        Collection<GeoTag> resources = new ArrayList<GeoTag>();
+        List<Link> links = new ArrayList<Link>();
+
+        String selfBase = selfBase(geoQuery);
+        for (GeoTag geoTag : slice.getContent()) {
+            if (selfBase != null) {
+                geoTag.add(LinkTemplate.slash(selfBase, geoTag.getGeoId(), Link.REL_SELF));
+            }
+
+            resources.add(geoTag);
+        }
+
+        if (slice.hasNext()) {
+            String next = ServletUriComponentsBuilder.fromCurrentRequest()
+                    .replaceQueryParam("cursor", slice.getNextCursor())
+                    .build()
+                    .toUriString();
+            links.add(new Link(next, Link.REL_NEXT));
+        }
+
+        timings.stop("assembler.toResource", start);
+        return new Resources<GeoTag>(resources, links);
+    }
+
+    /**
+     * Adds the self link to every tag a lookup found.
+     */
+    public GeoTagLookupResult toResource(GeoTagLookupResult lookupResult) {
+        String selfBase = linkTo(GeoTagController.class).toString();
+        List<GeoTag> geoTags = new ArrayList<GeoTag>(lookupResult.getIds().values());
+        for (List<GeoTag> urnTags : lookupResult.getUrns().values()) {
+            geoTags.addAll(urnTags);
+        }
+        for (GeoTag geoTag : geoTags) {
+            if (geoTag != null) {
+                geoTag.add(LinkTemplate.slash(selfBase, geoTag.getGeoId(), Link.REL_SELF));
+            }
+        }
+        return lookupResult;
+    }
+}
@@ -0,0 +1,39 @@
+package no.nb.microservices.geotag.rest.assembler;
+
+import org.springframework.hateoas.Link;
+import org.springframework.hateoas.mvc.ControllerLinkBuilder;
+
+/**
+ * A paging link built once per response through {@link ControllerLinkBuilder} with marker values for page and size,
+ * then filled in by string replacement. The links come out exactly as the builder would have made them, without a
+ * proxy invocation and a URI build for each of them.
+ */
+class LinkTemplate {
+
+    /**
+     * Passed for page and size when building the template. Far outside anything a client can ask for, so they can
+     * not show up anywhere else in the link.
+     */
+    static final int PAGE = -1357924680;
+    static final int SIZE = -1357924681;
+
+    private static final String PAGE_MARKER = Integer.toString(PAGE);
+    private static final String SIZE_MARKER = Integer.toString(SIZE);
+
+    private final String template;
+
+    LinkTemplate(ControllerLinkBuilder builder) {
+        this.template = builder.toString();
+    }
+
+    Link link(int page, int size, String rel) {
+        return new Link(template.replace(PAGE_MARKER, Integer.toString(page)).replace(SIZE_MARKER, Integer.toString(size)), rel);
+    }
+
+    /**
+     * Same as linkTo(controller).slash(id) on the base, which only adds a path segment.
+     */
+    static Link slash(String base, String id, String rel) {
+        return new Link(id == null || id.isEmpty() ? base : base + "/" + id, rel);
+    }
+}
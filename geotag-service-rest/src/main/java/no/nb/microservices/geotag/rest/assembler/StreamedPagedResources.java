@@ -0,0 +1,166 @@
+package no.nb.microservices.geotag.rest.assembler;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import no.nb.microservices.geotag.model.GeoTag;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.domain.Page;
+import org.springframework.hateoas.PagedResources;
+import org.springframework.hateoas.Resources;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * A page of tags that is written while the query runs. Each tag goes to the response as soon as it is read, so the
+ * first bytes go out at once and only one tag is held at a time. The links and the page metadata come after the
+ * tags, when the query knows the totals.
+ *
+ * The page is written by whatever ObjectMapper the response uses, in the same shape as a built page: HAL gets the
+ * tags in _embedded, the others in content. The query runs when the page is written, on the servlet thread. When it
+ * fails after the first tags are out, the body is left unterminated and the error goes on to the container, so the
+ * client sees a broken response rather than a short page.
+ */
+@JsonSerialize(using = StreamedPagedResources.Serializer.class)
+public class StreamedPagedResources extends PagedResources<GeoTag> {
+
+    private static final String CONTENT = "content";
+    private static final String EMBEDDED = "_embedded";
+
+    private static final Logger LOG = LoggerFactory.getLogger(StreamedPagedResources.class);
+
+    private final Function<Consumer<GeoTag>, Page<GeoTag>> query;
+    private final Function<Page<GeoTag>, PagedResources<GeoTag>> envelope;
+
+    /**
+     * @param query feeds the tags to the consumer and returns the page with the totals
+     * @param envelope the links and metadata of that page
+     */
+    StreamedPagedResources(Function<Consumer<GeoTag>, Page<GeoTag>> query, Function<Page<GeoTag>, PagedResources<GeoTag>> envelope) {
+        super(Collections.<GeoTag>emptyList(), null);
+        this.query = query;
+        this.envelope = envelope;
+    }
+
+    static class Serializer extends StdSerializer<StreamedPagedResources> {
+
+        Serializer() {
+            super(StreamedPagedResources.class);
+        }
+
+        @Override
+        public void serialize(StreamedPagedResources value, JsonGenerator gen, SerializerProvider provider) throws IOException {
+            gen.writeStartObject();
+
+            ContentWriter contentWriter = new ContentWriter(gen, provider, embeddedRel(provider));
+            Page<GeoTag> page;
+            try {
+                page = value.query.apply(contentWriter);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            } catch (RuntimeException e) {
+                // Part of the page may be out already, so the body must not be closed into a page that looks whole
+                LOG.error("Query failed while the page was written, aborting the response", e);
+                gen.disable(JsonGenerator.Feature.AUTO_CLOSE_JSON_CONTENT);
+                throw new IOException("Query failed while the page was written", e);
+            }
+            contentWriter.finish();
+
+            // Everything but the content, in the shape the mapper gives it
+            TokenBuffer buffer = new TokenBuffer(gen.getCodec(), false);
+            provider.defaultSerializeValue(value.envelope.apply(page), buffer);
+            JsonParser parser = buffer.asParser();
+            parser.nextToken();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                if (CONTENT.equals(parser.getCurrentName()) || EMBEDDED.equals(parser.getCurrentName())) {
+                    parser.nextToken();
+                    parser.skipChildren();
+                }
+                else {
+                    gen.copyCurrentStructure(parser);
+                }
+            }
+
+            gen.writeEndObject();
+        }
+
+        /**
+         * The rel a HAL mapper embeds tags under, or null when the mapper writes plain content.
+         */
+        private static String embeddedRel(SerializerProvider provider) throws IOException {
+            TokenBuffer buffer = new TokenBuffer(null, false);
+            provider.defaultSerializeValue(new Resources<GeoTag>(Collections.singletonList(new GeoTag())), buffer);
+            JsonParser parser = buffer.asParser();
+            parser.nextToken();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                if (parser.nextToken() == JsonToken.START_OBJECT && EMBEDDED.equals(name) && parser.nextToken() == JsonToken.FIELD_NAME) {
+                    return parser.getCurrentName();
+                }
+                parser.skipChildren();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Opens the content on the first tag, so an empty HAL page has no _embedded, as when it is built.
+     */
+    private static class ContentWriter implements Consumer<GeoTag> {
+
+        private final JsonGenerator gen;
+        private final SerializerProvider provider;
+        private final String rel;
+        private boolean started;
+
+        ContentWriter(JsonGenerator gen, SerializerProvider provider, String rel) {
+            this.gen = gen;
+            this.provider = provider;
+            this.rel = rel;
+        }
+
+        @Override
+        public void accept(GeoTag geoTag) {
+            try {
+                start();
+                provider.defaultSerializeValue(geoTag, gen);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        void finish() throws IOException {
+            if (!started && rel != null) {
+                return;
+            }
+            start();
+            gen.writeEndArray();
+            if (rel != null) {
+                gen.writeEndObject();
+            }
+        }
+
+        private void start() throws IOException {
+            if (started) {
+                return;
+            }
+            started = true;
+            if (rel != null) {
+                gen.writeObjectFieldStart(EMBEDDED);
+                gen.writeArrayFieldStart(rel);
+            }
+            else {
+                gen.writeArrayFieldStart(CONTENT);
+            }
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package no.nb.microservices.geotag.rest.async;
+
+import no.nb.microservices.geotag.config.ApplicationSettings;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Runs the geo queries on a pool of microservice.queryThreads threads, so the servlet thread goes back to the
+ * container while Mongo works. At most microservice.queryQueueSize queries wait for a thread, more than that is
+ * refused with a {@link TaskRejectedException}. Size the pool to what Mongo can take, not to the traffic.
+ *
+ * The query sees the security context and the request attributes of the request it came from. With queryThreads 0
+ * the query runs on the servlet thread.
+ *
+ * A streamed result runs its query while it is written, on the servlet thread of the async dispatch, so it takes none
+ * of the threads. At most microservice.streamedQueries are written at once, more than that is refused the same way.
+ * With streamedQueries 0 there is no limit.
+ */
+@Component
+public class QueryExecutor implements PublicMetrics {
+
+    private final int threads;
+    private final int queueSize;
+    private final int streamedQueries;
+    private final ThreadPoolExecutor executor;
+    private final Semaphore streams;
+
+    @Autowired
+    public QueryExecutor(ApplicationSettings applicationSettings) {
+        this.threads = applicationSettings.getQueryThreads();
+        this.queueSize = applicationSettings.getQueryQueueSize();
+        this.streamedQueries = applicationSettings.getStreamedQueries();
+        this.streams = streamedQueries > 0 ? new Semaphore(streamedQueries) : null;
+        if (threads > 0) {
+            AtomicInteger count = new AtomicInteger();
+            this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, queue(queueSize), runnable -> {
+                Thread thread = new Thread(runnable, "geotag-query-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.executor.allowCoreThreadTimeOut(true);
+        }
+        else {
+            this.executor = null;
+        }
+    }
+
+    /**
+     * The result of the query, or the exception it threw for the exception handlers.
+     */
+    public <T> DeferredResult<T> submit(Supplier<T> query) {
+        DeferredResult<T> result = new DeferredResult<T>();
+        if (executor == null) {
+            complete(result, query);
+            return result;
+        }
+
+        RequestAttributes requestAttributes = RequestContextHolder.getRequestAttributes();
+        SecurityContext securityContext = SecurityContextHolder.getContext();
+        try {
+            executor.execute(() -> {
+                RequestContextHolder.setRequestAttributes(requestAttributes);
+                SecurityContextHolder.setContext(securityContext);
+                try {
+                    complete(result, query);
+                } finally {
+                    SecurityContextHolder.clearContext();
+                    RequestContextHolder.resetRequestAttributes();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            throw new TaskRejectedException("All " + threads + " query threads are busy and " + queueSize + " queries are waiting", e);
+        }
+        return result;
+    }
+
+    /**
+     * A result that runs its query while it is written. It counts against microservice.streamedQueries until the
+     * response is complete.
+     */
+    public <T> DeferredResult<T> submitStreamed(T streamed) {
+        DeferredResult<T> result = new DeferredResult<T>();
+        if (streams != null) {
+            if (!streams.tryAcquire()) {
+                throw new TaskRejectedException("All " + streamedQueries + " streamed queries are being written");
+            }
+            result.onCompletion(streams::release);
+        }
+        result.setResult(streamed);
+        return result;
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        List<Metric<?>> metrics = new ArrayList<>();
+        if (executor != null) {
+            metrics.add(new Metric<Number>("query.executor.active", executor.getActiveCount()));
+            metrics.add(new Metric<Number>("query.executor.queued", executor.getQueue().size()));
+            metrics.add(new Metric<Number>("query.executor.completed", executor.getCompletedTaskCount()));
+        }
+        if (streams != null) {
+            metrics.add(new Metric<Number>("query.streams.active", streamedQueries - streams.availablePermits()));
+        }
+        return metrics;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    private static BlockingQueue<Runnable> queue(int size) {
+        return size > 0 ? new ArrayBlockingQueue<Runnable>(size) : new SynchronousQueue<Runnable>();
+    }
+
+    private static <T> void complete(DeferredResult<T> result, Supplier<T> query) {
+        try {
+            result.setResult(query.get());
+        } catch (RuntimeException e) {
+            result.setErrorResult(e);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package no.nb.microservices.geotag.rest.controller;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.MappingIterator;
+import no.nb.microservices.geotag.model.GeoTag;
+import no.nb.microservices.geotag.model.GeoTagBatchResult;
+import no.nb.microservices.geotag.rest.stream.NdjsonMapper;
+import no.nb.microservices.geotag.rest.stream.NdjsonWriter;
+import no.nb.microservices.geotag.service.IGeoTagService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Bulk ingest of geotags. Takes a JSON array or newline delimited JSON and answers with one result line per item.
+ */
+@RestController
+@RequestMapping("/v1")
+public class BatchController {
+
+    private final IGeoTagService geotagService;
+    private final NdjsonMapper ndjsonMapper;
+
+    @Autowired
+    public BatchController(IGeoTagService geotagService, NdjsonMapper ndjsonMapper) {
+        this.geotagService = geotagService;
+        this.ndjsonMapper = ndjsonMapper;
+    }
+
+    @PreAuthorize("hasRole('ROLE_USER')")
+    @RequestMapping(value = "/geotags/batch", method = RequestMethod.POST,
+            consumes = {MediaType.APPLICATION_JSON_VALUE, NdjsonWriter.APPLICATION_NDJSON_VALUE},
+            produces = {NdjsonWriter.APPLICATION_NDJSON_VALUE})
+    public void saveTags(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setContentType(NdjsonWriter.APPLICATION_NDJSON_VALUE);
+        try (MappingIterator<GeoTag> geoTags = ndjsonMapper.readValues(request.getInputStream(), GeoTag.class);
+             NdjsonWriter writer = ndjsonMapper.writer(response.getOutputStream(), false)) {
+            UntilMalformed items = new UntilMalformed(geoTags);
+            geotagService.saveAll(items, writer::write);
+
+            // The response is already under way, so a malformed item is answered in its result line
+            if (items.malformed != null) {
+                writer.write(new GeoTagBatchResult(items.read, null, null, GeoTagBatchResult.Status.FAILED,
+                        "Malformed item, the rest of the batch was not read: " + items.malformed.getOriginalMessage()));
+            }
+        }
+    }
+
+    /**
+     * The items up to the first one that cannot be read. The parser cannot find the start of the next item after
+     * that, so the batch ends there.
+     */
+    private static class UntilMalformed implements Iterator<GeoTag> {
+
+        private final Iterator<GeoTag> geoTags;
+        private GeoTag next;
+        private boolean hasNext;
+        private int read;
+        private JsonProcessingException malformed;
+
+        UntilMalformed(Iterator<GeoTag> geoTags) {
+            this.geoTags = geoTags;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (!hasNext && malformed == null) {
+                try {
+                    if (geoTags.hasNext()) {
+                        next = geoTags.next();
+                        hasNext = true;
+                    }
+                } catch (RuntimeException e) {
+                    // MappingIterator wraps what the parser and the mapper throw
+                    if (!(e.getCause() instanceof JsonProcessingException)) {
+                        throw e;
+                    }
+                    malformed = (JsonProcessingException) e.getCause();
+                }
+            }
+            return hasNext;
+        }
+
+        @Override
+        public GeoTag next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            hasNext = false;
+            read++;
+            return next;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package no.nb.microservices.geotag.rest.controller;
+
+import no.nb.microservices.geotag.rest.stream.NdjsonMapper;
+import no.nb.microservices.geotag.rest.stream.NdjsonWriter;
+import no.nb.microservices.geotag.service.ChangeLogService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Change feed for consumers that mirror the geotags.
+ */
+@RestController
+@RequestMapping("/v1")
+public class ChangeController {
+
+    private final ChangeLogService changeLogService;
+    private final NdjsonMapper ndjsonMapper;
+
+    @Autowired
+    public ChangeController(ChangeLogService changeLogService, NdjsonMapper ndjsonMapper) {
+        this.changeLogService = changeLogService;
+        this.ndjsonMapper = ndjsonMapper;
+    }
+
+    @RequestMapping(value = "/changes", method = RequestMethod.GET, produces = {NdjsonWriter.APPLICATION_NDJSON_VALUE})
+    public void getChanges(@RequestParam(value = "since", required = false, defaultValue = "0") long since,
+                           HttpServletResponse response) throws IOException
+    {
+        response.setContentType(NdjsonWriter.APPLICATION_NDJSON_VALUE);
+        try (NdjsonWriter writer = ndjsonMapper.writer(response.getOutputStream(), false)) {
+            changeLogService.changesSince(since, writer::write);
+        }
+    }
+}
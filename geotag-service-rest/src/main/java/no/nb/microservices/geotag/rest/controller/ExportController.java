@@ -0,0 +1,46 @@
+package no.nb.microservices.geotag.rest.controller;
+
+import no.nb.microservices.geotag.model.GeoQuery;
+import no.nb.microservices.geotag.rest.stream.NdjsonMapper;
+import no.nb.microservices.geotag.rest.stream.NdjsonWriter;
+import no.nb.microservices.geotag.service.AccessContext;
+import no.nb.microservices.geotag.service.IGeoTagService;
+import no.nb.microservices.geotag.service.NBUserService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Bulk export of geotags as newline delimited JSON.
+ */
+@RestController
+@RequestMapping("/v1")
+public class ExportController {
+
+    private final IGeoTagService geotagService;
+    private final NBUserService nbUserService;
+    private final NdjsonMapper ndjsonMapper;
+
+    @Autowired
+    public ExportController(IGeoTagService geotagService, NBUserService nbUserService, NdjsonMapper ndjsonMapper) {
+        this.geotagService = geotagService;
+        this.nbUserService = nbUserService;
+        this.ndjsonMapper = ndjsonMapper;
+    }
+
+    @RequestMapping(value = "/geotags/export", method = RequestMethod.GET, produces = {NdjsonWriter.APPLICATION_NDJSON_VALUE})
+    public void exportTags(GeoQuery query,
+                           @RequestParam(required = false) String[] expand,
+                           HttpServletResponse response) throws IOException
+    {
+        response.setContentType(NdjsonWriter.APPLICATION_NDJSON_VALUE);
+        try (NdjsonWriter writer = ndjsonMapper.writer(response.getOutputStream(), AccessContext.current(nbUserService).isMasked())) {
+            geotagService.export(query, expand, writer::write);
+        }
+    }
+}
@@ -1,26 +1,42 @@
 package no.nb.microservices.geotag.rest.controller;
 
+import no.nb.microservices.geotag.client.SmileHttpMessageConverter;
 import no.nb.microservices.geotag.config.ApplicationSettings;
+import no.nb.microservices.geotag.domain.InvalidRequestException;
+import no.nb.microservices.geotag.model.GeoCluster;
 import no.nb.microservices.geotag.model.GeoQuery;
 import no.nb.microservices.geotag.model.GeoTag;
+import no.nb.microservices.geotag.model.GeoTagLookup;
+import no.nb.microservices.geotag.model.GeoTagLookupResult;
 import no.nb.microservices.geotag.rest.assembler.GeoTagPage;
 import no.nb.microservices.geotag.rest.assembler.GeoTagResourceAssembler;
+import no.nb.microservices.geotag.rest.async.QueryExecutor;
+import no.nb.microservices.geotag.rest.json.MaskingModule;
+import no.nb.microservices.geotag.rest.stream.CompressionFilter;
+import no.nb.microservices.geotag.service.GeoTagSlice;
 import no.nb.microservices.geotag.service.IGeoTagService;
 import no.nb.microservices.geotag.service.NBUserService;
+import no.nb.microservices.geotag.service.VectorTileService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.data.domain.Page;
+import org.springframework.data.geo.Box;
+import org.springframework.data.geo.Point;
 import org.springframework.hateoas.PagedResources;
+import org.springframework.hateoas.Resources;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
 import org.springframework.web.util.UriTemplate;
 
 import javax.validation.Valid;
+import java.util.List;
 
 import static org.springframework.hateoas.mvc.ControllerLinkBuilder.linkTo;
 import static org.springframework.hateoas.mvc.ControllerLinkBuilder.methodOn;
@@ -38,63 +54,120 @@ public class GeoTagController {
     private final GeoTagResourceAssembler assembler;
     private final ApplicationSettings applicationSettings;
     private final IGeoTagService geotagService;
+    private final QueryExecutor queryExecutor;
 
     @Autowired
-    public GeoTagController(NBUserService nbUserService, GeoTagResourceAssembler assembler, ApplicationSettings applicationSettings, IGeoTagService geotagService) {
+    public GeoTagController(NBUserService nbUserService, GeoTagResourceAssembler assembler, ApplicationSettings applicationSettings, IGeoTagService geotagService, QueryExecutor queryExecutor) {
         this.nbUserService = nbUserService;
         this.assembler = assembler;
         this.applicationSettings = applicationSettings;
         this.geotagService = geotagService;
+        this.queryExecutor = queryExecutor;
     }
 
-    @RequestMapping(value = "/geotags", method = RequestMethod.GET, produces = {MediaType.APPLICATION_JSON_VALUE})
-    public ResponseEntity<PagedResources<GeoTag>> getTags(GeoQuery query,
+    @RequestMapping(value = "/geotags", method = RequestMethod.GET, produces = {MediaType.APPLICATION_JSON_VALUE, SmileHttpMessageConverter.APPLICATION_SMILE_VALUE})
+    public DeferredResult<ResponseEntity<PagedResources<GeoTag>>> getTags(GeoQuery query,
             @RequestParam(value = "page", required = false, defaultValue = "0") int page,
             @RequestParam(value = "size", required = false, defaultValue = "10") int size,
             @RequestParam(required = false) String[] expand)
     {
-        Page<GeoTag> pages = geotagService.query(query, page, size, expand);
-        PagedResources<GeoTag> pagedResources = assembler.toResource(new GeoTagPage(pages, query, expand));
+        checkPage(page, size);
+        return queryExecutor.submit(() -> {
+            Page<GeoTag> pages = geotagService.query(query, page, size, expand);
+            PagedResources<GeoTag> pagedResources = assembler.toResource(new GeoTagPage(pages, query, expand));
 
-        return new ResponseEntity<PagedResources<GeoTag>>(pagedResources, HttpStatus.OK);
+            return new ResponseEntity<PagedResources<GeoTag>>(pagedResources, HttpStatus.OK);
+        });
+    }
+
+    @RequestMapping(value = "/geotags", method = RequestMethod.GET, params = "cursor", produces = {MediaType.APPLICATION_JSON_VALUE})
+    public DeferredResult<ResponseEntity<Resources<GeoTag>>> scrollTags(GeoQuery query,
+            @RequestParam(value = "cursor") String cursor,
+            @RequestParam(value = "size", required = false, defaultValue = "10") int size,
+            @RequestParam(required = false) String[] expand)
+    {
+        checkPage(0, size);
+        return queryExecutor.submit(() -> {
+            GeoTagSlice slice = geotagService.scroll(query, cursor, size, expand);
+            Resources<GeoTag> resources = assembler.toResource(slice, query);
+
+            return new ResponseEntity<Resources<GeoTag>>(resources, HttpStatus.OK);
+        });
     }
 
     @PreAuthorize("hasRole('ROLE_USER')")
     @RequestMapping(value = "/geotags", method = RequestMethod.POST)
-    public ResponseEntity<GeoTag> saveTag(@Valid @RequestBody GeoTag geoTag) {
-        geotagService.save(geoTag);
-        HttpHeaders headers = new HttpHeaders();
-        headers.setLocation(new UriTemplate("/geotags/{geotagid}").expand(geoTag.getGeoId()));
+    public ResponseEntity<GeoTag> saveTag(@Valid @RequestBody GeoTag geoTag,
+                                          @RequestHeader(value = "If-Match", required = false) String ifMatch)
+    {
+        GeoTag savedGeoTag;
+        try {
+            savedGeoTag = geotagService.save(geoTag, parseETag(ifMatch));
+        } catch (OptimisticLockingFailureException e) {
+            if (ifMatch == null) {
+                throw e;
+            }
+            return new ResponseEntity<GeoTag>(HttpStatus.PRECONDITION_FAILED);
+        }
+        HttpHeaders headers = eTagHeaders(savedGeoTag);
+        headers.setLocation(new UriTemplate("/geotags/{geotagid}").expand(savedGeoTag.getGeoId()));
+        MaskingModule.unmaskResponse();
 
-        return new ResponseEntity<GeoTag>(geoTag, headers, HttpStatus.CREATED);
+        return new ResponseEntity<GeoTag>(savedGeoTag, headers, HttpStatus.CREATED);
     }
 
-    @RequestMapping(value = "/geotags/{geoTagID}", method = RequestMethod.GET, produces = {MediaType.APPLICATION_JSON_VALUE})
-    public ResponseEntity<GeoTag> getTag(@PathVariable String geoTagID,
-                                         @RequestParam(required = false) String[] expand)
+    @RequestMapping(value = "/geotags/{geoTagID}", method = RequestMethod.GET, produces = {MediaType.APPLICATION_JSON_VALUE, SmileHttpMessageConverter.APPLICATION_SMILE_VALUE})
+    public DeferredResult<ResponseEntity<GeoTag>> getTag(@PathVariable String geoTagID,
+                                                         @RequestParam(required = false) String[] expand,
+                                                         @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch)
     {
-        GeoTag geoTag = geotagService.findOne(geoTagID, expand);
-        geoTag.add(linkTo(methodOn(GeoTagController.class).getTag(geoTagID, expand)).withSelfRel());
+        return queryExecutor.submit(() -> {
+            GeoTag geoTag = geotagService.findOne(geoTagID, expand);
+            HttpHeaders headers = eTagHeaders(geoTag);
+            if (ifNoneMatch != null && matchesETag(ifNoneMatch, headers.getETag())) {
+                return new ResponseEntity<GeoTag>(headers, HttpStatus.NOT_MODIFIED);
+            }
+            geoTag.add(linkTo(methodOn(GeoTagController.class).getTag(geoTagID, expand, null)).withSelfRel());
 
-        return new ResponseEntity<GeoTag>(geoTag, HttpStatus.OK);
+            return new ResponseEntity<GeoTag>(geoTag, headers, HttpStatus.OK);
+        });
+    }
+
+    /**
+     * Many tags by id and urn in one request, for result pages that would otherwise fetch them one at a time.
+     */
+    @RequestMapping(value = "/geotags/lookup", method = RequestMethod.POST, produces = {MediaType.APPLICATION_JSON_VALUE})
+    public DeferredResult<ResponseEntity<GeoTagLookupResult>> lookupTags(@RequestBody GeoTagLookup lookup,
+                                                                         @RequestParam(required = false) String[] expand)
+    {
+        int size = (lookup.getIds() != null ? lookup.getIds().size() : 0) + (lookup.getUrns() != null ? lookup.getUrns().size() : 0);
+        if (size > applicationSettings.getLookupMaxSize()) {
+            throw new InvalidRequestException("A lookup can have at most " + applicationSettings.getLookupMaxSize() + " ids and urns");
+        }
+
+        return queryExecutor.submit(() -> {
+            GeoTagLookupResult lookupResult = assembler.toResource(geotagService.lookup(lookup, expand));
+
+            return new ResponseEntity<GeoTagLookupResult>(lookupResult, HttpStatus.OK);
+        });
     }
 
     @PreAuthorize("hasRole('ROLE_TagsAdmin')")
     @RequestMapping(value = "/geotags/{geoTagID}", method = RequestMethod.POST)
     public ResponseEntity<GeoTag> partialUpdateTag(@PathVariable String geoTagID,
-                                                   @RequestBody GeoTag geoTag)
+                                                   @RequestBody GeoTag geoTag,
+                                                   @RequestHeader(value = "If-Match", required = false) String ifMatch)
     {
-        GeoTag geotag = geotagService.update(geoTagID, geoTag);
-        return new ResponseEntity<GeoTag>(geoTag, HttpStatus.OK);
+        return update(geoTagID, geoTag, ifMatch);
     }
 
     @PreAuthorize("hasRole('ROLE_TagsAdmin')")
     @RequestMapping(value = "/geotags/{geoTagID}", method = RequestMethod.PUT)
     public ResponseEntity<GeoTag> updateTag(@PathVariable String geoTagID,
-                                            @Valid @RequestBody GeoTag geoTag)
+                                            @Valid @RequestBody GeoTag geoTag,
+                                            @RequestHeader(value = "If-Match", required = false) String ifMatch)
     {
-        GeoTag geotag = geotagService.update(geoTagID, geoTag);
-        return new ResponseEntity<GeoTag>(geoTag, HttpStatus.OK);
+        return update(geoTagID, geoTag, ifMatch);
     }
 
     @PreAuthorize("hasRole('ROLE_TagsAdmin')")
@@ -105,27 +178,134 @@ public class GeoTagController {
         return new ResponseEntity<Void>(HttpStatus.OK);
     }
 
-    @RequestMapping(value = "/nearby", method = RequestMethod.GET, produces = {MediaType.APPLICATION_JSON_VALUE})
-    public ResponseEntity<PagedResources<GeoTag>> getNearbyTags(GeoQuery query,
+    @RequestMapping(value = "/nearby", method = RequestMethod.GET, produces = {MediaType.APPLICATION_JSON_VALUE, SmileHttpMessageConverter.APPLICATION_SMILE_VALUE})
+    public DeferredResult<ResponseEntity<PagedResources<GeoTag>>> getNearbyTags(GeoQuery query,
             @RequestParam(value = "page", required = false, defaultValue = "0") int page,
             @RequestParam(value = "size", required = false, defaultValue = "10") int size)
     {
-        Page<GeoTag> pages = geotagService.nearby(query, page, size);
-        PagedResources<GeoTag> pagedResources = assembler.toResource(new GeoTagPage(pages, query));
+        checkPage(page, size);
+        return queryExecutor.submit(() -> {
+            Page<GeoTag> pages = geotagService.nearby(query, page, size);
+            PagedResources<GeoTag> pagedResources = assembler.toResource(new GeoTagPage(pages, query));
 
-        return new ResponseEntity<PagedResources<GeoTag>>(pagedResources, HttpStatus.OK);
+            return new ResponseEntity<PagedResources<GeoTag>>(pagedResources, HttpStatus.OK);
+        });
     }
 
-    @RequestMapping(value = "/within", method = RequestMethod.GET, produces = {MediaType.APPLICATION_JSON_VALUE})
-    public ResponseEntity<PagedResources<GeoTag>> getTagsWithin(GeoQuery query,
+    @RequestMapping(value = "/within", method = RequestMethod.GET, produces = {MediaType.APPLICATION_JSON_VALUE, SmileHttpMessageConverter.APPLICATION_SMILE_VALUE})
+    public DeferredResult<ResponseEntity<PagedResources<GeoTag>>> getTagsWithin(GeoQuery query,
             @RequestParam(value = "page", required = false, defaultValue = "0") int page,
             @RequestParam(value = "size", required = false, defaultValue = "10") int size)
     {
-        Page<GeoTag> pages = geotagService.within(query, page, size);
-        PagedResources<GeoTag> pagedResources = assembler.toResource(new GeoTagPage(pages, query));
+        checkPage(page, size);
+        if (size > applicationSettings.getStreamMaxPageSize()) {
+            throw new InvalidRequestException("size must be at most " + applicationSettings.getStreamMaxPageSize());
+        }
+        if (applicationSettings.getStreamPageSize() > 0 && size >= applicationSettings.getStreamPageSize()) {
+            // Too big to build first, the tags are written as they are read
+            PagedResources<GeoTag> pagedResources = assembler.toStreamedResource(query, consumer -> geotagService.within(query, page, size, consumer));
+            return queryExecutor.submitStreamed(new ResponseEntity<PagedResources<GeoTag>>(pagedResources, HttpStatus.OK));
+        }
+
+        return queryExecutor.submit(() -> {
+            Page<GeoTag> pages = geotagService.within(query, page, size);
+            PagedResources<GeoTag> pagedResources = assembler.toResource(new GeoTagPage(pages, query));
 
-        return new ResponseEntity<PagedResources<GeoTag>>(pagedResources, HttpStatus.OK);
+            return new ResponseEntity<PagedResources<GeoTag>>(pagedResources, HttpStatus.OK);
+        });
     }
 
+    @RequestMapping(value = "/clusters", method = RequestMethod.GET, produces = {MediaType.APPLICATION_JSON_VALUE})
+    public ResponseEntity<List<GeoCluster>> getClusters(@RequestParam(value = "bbox") double[] bbox,
+            @RequestParam(value = "zoom") int zoom)
+    {
+        if (bbox.length != 4) {
+            throw new InvalidRequestException("bbox must be minLon,minLat,maxLon,maxLat");
+        }
+        if (zoom < 0 || zoom > VectorTileService.MAX_ZOOM) {
+            throw new InvalidRequestException("zoom must be from 0 to " + VectorTileService.MAX_ZOOM);
+        }
+        for (double coordinate : bbox) {
+            if (Double.isNaN(coordinate)) {
+                throw new InvalidRequestException("bbox must be minLon,minLat,maxLon,maxLat");
+            }
+        }
+        // Clamped to the world, so the clusters are counted over what can hold tags
+        Box box = new Box(new Point(clamp(bbox[0], 180), clamp(bbox[1], 90)), new Point(clamp(bbox[2], 180), clamp(bbox[3], 90)));
+        List<GeoCluster> clusters = geotagService.clusters(box, zoom);
 
+        return new ResponseEntity<List<GeoCluster>>(clusters, HttpStatus.OK);
+    }
+
+    private ResponseEntity<GeoTag> update(String geoTagID, GeoTag geoTag, String ifMatch) {
+        GeoTag savedGeoTag;
+        try {
+            savedGeoTag = geotagService.update(geoTagID, geoTag, parseETag(ifMatch));
+        } catch (OptimisticLockingFailureException e) {
+            if (ifMatch == null) {
+                throw e;
+            }
+            return new ResponseEntity<GeoTag>(HttpStatus.PRECONDITION_FAILED);
+        }
+        return new ResponseEntity<GeoTag>(savedGeoTag, eTagHeaders(savedGeoTag), HttpStatus.OK);
+    }
+
+    private static double clamp(double coordinate, double max) {
+        return Math.max(-max, Math.min(max, coordinate));
+    }
+
+    private static void checkPage(int page, int size) {
+        if (page < 0) {
+            throw new InvalidRequestException("page must not be negative");
+        }
+        if (size < 1) {
+            throw new InvalidRequestException("size must be at least 1");
+        }
+    }
+
+    private static HttpHeaders eTagHeaders(GeoTag geoTag) {
+        HttpHeaders headers = new HttpHeaders();
+        if (geoTag.getVersion() != null) {
+            headers.setETag("\"" + geoTag.getVersion() + "\"");
+        }
+        return headers;
+    }
+
+    /**
+     * The version in an If-Match header. A wildcard matches any version and gives null. The ETag of a compressed
+     * body names the same version.
+     */
+    private static Long parseETag(String ifMatch) {
+        if (ifMatch == null || "*".equals(ifMatch.trim())) {
+            return null;
+        }
+        String value = CompressionFilter.withoutCoding(ifMatch.trim());
+        if (value.startsWith("\"") && value.endsWith("\"") && value.length() > 1) {
+            value = value.substring(1, value.length() - 1);
+        }
+        try {
+            return Long.valueOf(value);
+        } catch (NumberFormatException e) {
+            throw new InvalidRequestException("If-Match must be an ETag from this service", e);
+        }
+    }
+
+    /**
+     * Weak comparison of an If-None-Match header with the current ETag, whichever coding the client got it with.
+     */
+    private static boolean matchesETag(String ifNoneMatch, String eTag) {
+        if (eTag == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String value = candidate.trim();
+            if (value.startsWith("W/")) {
+                value = value.substring(2);
+            }
+            if ("*".equals(value) || eTag.equals(CompressionFilter.withoutCoding(value))) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
@@ -0,0 +1,48 @@
+package no.nb.microservices.geotag.rest.controller;
+
+import no.nb.microservices.geotag.config.ApplicationSettings;
+import no.nb.microservices.geotag.domain.InvalidRequestException;
+import no.nb.microservices.geotag.service.IGeoTagService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Moves position history out of the geotag documents once microservice.separatePositionHistory is turned on. Call
+ * repeatedly until nothing is migrated.
+ */
+@RestController
+@RequestMapping("/v1/admin")
+public class MigrationController {
+
+    private final IGeoTagService geotagService;
+    private final ApplicationSettings applicationSettings;
+
+    @Autowired
+    public MigrationController(IGeoTagService geotagService, ApplicationSettings applicationSettings) {
+        this.geotagService = geotagService;
+        this.applicationSettings = applicationSettings;
+    }
+
+    @PreAuthorize("hasRole('ROLE_TagsAdmin')")
+    @RequestMapping(value = "/position-history/migrate", method = RequestMethod.POST)
+    public ResponseEntity<Map<String, Integer>> migratePositionHistory(@RequestParam(value = "limit", defaultValue = "1000") int limit) {
+        if (!applicationSettings.isSeparatePositionHistory()) {
+            return new ResponseEntity<>(HttpStatus.CONFLICT);
+        }
+        if (limit <= 0) {
+            throw new InvalidRequestException("limit must be positive");
+        }
+
+        int migrated = geotagService.migratePositionHistory(limit);
+        return new ResponseEntity<>(Collections.singletonMap("migrated", migrated), HttpStatus.OK);
+    }
+}
@@ -2,6 +2,7 @@ package no.nb.microservices.geotag.rest.controller;
 
 import no.nb.microservices.geotag.model.GeoPosition;
 import no.nb.microservices.geotag.model.GeoTag;
+import no.nb.microservices.geotag.rest.json.MaskingModule;
 import no.nb.microservices.geotag.service.IGeoTagService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpHeaders;
@@ -13,6 +14,7 @@ import org.springframework.web.util.UriTemplate;
 
 import javax.validation.Valid;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 import static org.springframework.hateoas.mvc.ControllerLinkBuilder.linkTo;
 import static org.springframework.hateoas.mvc.ControllerLinkBuilder.methodOn;
@@ -47,6 +49,7 @@ public class PositionController {
         GeoPosition savedGeoPosition = geotagService.savePosition(geoTagID, geoPosition);
         HttpHeaders headers = new HttpHeaders();
         headers.setLocation(new UriTemplate("/geotags/{geotagid}/positions/{posId}").expand(geoTagID, geoPosition.getPosId()));
+        MaskingModule.unmaskResponse();
 
         return new ResponseEntity<GeoPosition>(savedGeoPosition, headers, HttpStatus.CREATED);
     }
@@ -56,6 +59,9 @@ public class PositionController {
                                                    @PathVariable String posId)
     {
         GeoPosition position = geotagService.findOnePosition(geoTagID, posId);
+        if (position == null) {
+            throw new NoSuchElementException("Position not found");
+        }
         return new ResponseEntity<GeoPosition>(position, HttpStatus.OK);
     }
 
@@ -0,0 +1,41 @@
+package no.nb.microservices.geotag.rest.controller;
+
+import no.nb.microservices.geotag.service.VectorTileService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * Geotag points as Mapbox Vector Tiles for map clients.
+ */
+@RestController
+@RequestMapping("/v1")
+public class TileController {
+
+    public static final String MVT_MEDIA_TYPE = "application/vnd.mapbox-vector-tile";
+
+    private final VectorTileService vectorTileService;
+
+    @Autowired
+    public TileController(VectorTileService vectorTileService) {
+        this.vectorTileService = vectorTileService;
+    }
+
+    @RequestMapping(value = "/tiles/{z}/{x}/{y}.mvt", method = RequestMethod.GET, produces = {MVT_MEDIA_TYPE})
+    public ResponseEntity<byte[]> getTile(@PathVariable int z,
+                                          @PathVariable int x,
+                                          @PathVariable int y)
+    {
+        byte[] tile = vectorTileService.tile(z, x, y);
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.parseMediaType(MVT_MEDIA_TYPE));
+
+        return new ResponseEntity<byte[]>(tile, headers, HttpStatus.OK);
+    }
+}
@@ -1,7 +1,10 @@
 package no.nb.microservices.geotag.rest.global;
 
+import no.nb.microservices.geotag.domain.InvalidRequestException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.core.task.TaskRejectedException;
 import org.springframework.http.HttpStatus;
 import org.springframework.security.access.AccessDeniedException;
 import org.springframework.web.bind.annotation.ControllerAdvice;
@@ -32,6 +35,24 @@ public class GlobalExceptionHandler {
         LOG.warn("The requested element is not found", e);
     }
 
+    @ExceptionHandler(InvalidRequestException.class)
+    @ResponseStatus(value = HttpStatus.BAD_REQUEST, reason = "Invalid request parameter")
+    public void illegalArgumentHandler(HttpServletRequest req, Exception e) {
+        LOG.warn("Invalid request parameter", e);
+    }
+
+    @ExceptionHandler(OptimisticLockingFailureException.class)
+    @ResponseStatus(value = HttpStatus.CONFLICT, reason = "The element was changed by someone else, try again")
+    public void conflictHandler(HttpServletRequest req, Exception e) {
+        LOG.warn("The element was changed by someone else", e);
+    }
+
+    @ExceptionHandler(TaskRejectedException.class)
+    @ResponseStatus(value = HttpStatus.SERVICE_UNAVAILABLE, reason = "Too many queries right now, try again later")
+    public void queryRejectedHandler(HttpServletRequest req, Exception e) {
+        LOG.warn("Query rejected", e);
+    }
+
     @ExceptionHandler(Exception.class)
     @ResponseStatus(value = HttpStatus.INTERNAL_SERVER_ERROR, reason = "It looks like we have a internal error in our application. The error have been logged and will be looked at by our development team.")
     public void defaultHandler(HttpServletRequest req, Exception e) {
@@ -0,0 +1,132 @@
+package no.nb.microservices.geotag.rest.json;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.BeanDescription;
+import com.fasterxml.jackson.databind.SerializationConfig;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.ser.BeanPropertyWriter;
+import com.fasterxml.jackson.databind.ser.BeanSerializerModifier;
+import no.nb.microservices.geotag.metrics.Timings;
+import no.nb.microservices.geotag.model.GeoPosition;
+import no.nb.microservices.geotag.model.GeoTag;
+import no.nb.microservices.geotag.service.AccessContext;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * Leaves out the emails, the position history and the dirty flag when writing geotags for users that are not
+ * admins, so the entities themselves are never changed for masking.
+ *
+ * Whether to mask is the {@link #MASKED} attribute of the writer when it is set, otherwise the access context of
+ * the current request. It is decided once per value written. Only the reads mask, the writes answer with what the
+ * caller sent and leave their response unmasked with {@link #unmaskResponse()}.
+ *
+ * Leaving a property out costs nothing, the masking time is the decision, timed as json.mask.
+ */
+public class MaskingModule extends SimpleModule {
+
+    public static final String MASKED = MaskingModule.class.getName() + ".masked";
+
+    private static final String UNMASKED_RESPONSE = MaskingModule.class.getName() + ".unmaskedResponse";
+
+    private static final Map<Class<?>, Set<String>> MASKED_PROPERTIES;
+
+    static {
+        Map<Class<?>, Set<String>> properties = new HashMap<>();
+        properties.put(GeoTag.class, new HashSet<>(Arrays.asList("userPositions", "dirty")));
+        properties.put(GeoPosition.class, Collections.singleton("userEmail"));
+        MASKED_PROPERTIES = Collections.unmodifiableMap(properties);
+    }
+
+    public MaskingModule(Supplier<AccessContext> accessContext) {
+        this(accessContext, new Timings());
+    }
+
+    public MaskingModule(Supplier<AccessContext> accessContext, Timings timings) {
+        super("MaskingModule");
+        setSerializerModifier(new BeanSerializerModifier() {
+            @Override
+            public List<BeanPropertyWriter> changeProperties(SerializationConfig config, BeanDescription beanDesc, List<BeanPropertyWriter> beanProperties) {
+                Set<String> masked = MASKED_PROPERTIES.get(beanDesc.getBeanClass());
+                if (masked == null) {
+                    return beanProperties;
+                }
+                List<BeanPropertyWriter> properties = new ArrayList<>(beanProperties.size());
+                for (BeanPropertyWriter property : beanProperties) {
+                    properties.add(masked.contains(property.getName()) ? new MaskedPropertyWriter(property, accessContext, timings) : property);
+                }
+                return properties;
+            }
+        });
+    }
+
+    /**
+     * Leaves the response to the current request unmasked.
+     */
+    public static void unmaskResponse() {
+        RequestAttributes attributes = RequestContextHolder.currentRequestAttributes();
+        attributes.setAttribute(UNMASKED_RESPONSE, Boolean.TRUE, RequestAttributes.SCOPE_REQUEST);
+    }
+
+    private static boolean isUnmaskedResponse() {
+        RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+        if (!(attributes instanceof ServletRequestAttributes)) {
+            return false;
+        }
+        // On the servlet request itself, the request attributes refuse access once the servlet thread has let go
+        return ((ServletRequestAttributes) attributes).getRequest().getAttribute(UNMASKED_RESPONSE) != null;
+    }
+
+    private static class MaskedPropertyWriter extends BeanPropertyWriter {
+
+        private final Supplier<AccessContext> accessContext;
+        private final Timings timings;
+
+        MaskedPropertyWriter(BeanPropertyWriter base, Supplier<AccessContext> accessContext, Timings timings) {
+            super(base);
+            this.accessContext = accessContext;
+            this.timings = timings;
+        }
+
+        @Override
+        public void serializeAsField(Object bean, JsonGenerator gen, SerializerProvider prov) throws Exception {
+            if (!isMasked(prov)) {
+                super.serializeAsField(bean, gen, prov);
+            }
+        }
+
+        @Override
+        public void serializeAsElement(Object bean, JsonGenerator gen, SerializerProvider prov) throws Exception {
+            if (isMasked(prov)) {
+                serializeAsPlaceholder(bean, gen, prov);
+            }
+            else {
+                super.serializeAsElement(bean, gen, prov);
+            }
+        }
+
+        private boolean isMasked(SerializerProvider prov) {
+            Object masked = prov.getAttribute(MASKED);
+            if (masked == null) {
+                // Kept for the rest of this value, a page of tags asks only once
+                long start = timings.start();
+                masked = !isUnmaskedResponse() && accessContext.get().isMasked();
+                prov.setAttribute(MASKED, masked);
+                timings.stop("json.mask", start);
+            }
+            return (Boolean) masked;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package no.nb.microservices.geotag.rest.stream;
+
+import org.springframework.http.HttpHeaders;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The response as {@link CompressionFilter} hands it on. The body is held back until it reaches the minimum size,
+ * then it is decided once whether to compress. A body that ends before that is sent as it is, with its length.
+ */
+class CompressingResponse extends HttpServletResponseWrapper {
+
+    private final String encoding;
+    private final int minSize;
+    private final List<String> mimeTypes;
+    private CompressingOutputStream outputStream;
+    private PrintWriter writer;
+
+    CompressingResponse(HttpServletResponse response, String encoding, int minSize, List<String> mimeTypes) {
+        super(response);
+        this.encoding = encoding;
+        this.minSize = minSize;
+        this.mimeTypes = mimeTypes;
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+        if (writer != null) {
+            throw new IllegalStateException("getWriter() has already been called on this response");
+        }
+        return stream();
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        if (writer == null) {
+            if (outputStream != null) {
+                throw new IllegalStateException("getOutputStream() has already been called on this response");
+            }
+            writer = new PrintWriter(new OutputStreamWriter(stream(), getCharacterEncoding()));
+        }
+        return writer;
+    }
+
+    /*
+     * The length is not known until it is decided whether to compress
+     */
+
+    @Override
+    public void setContentLength(int len) {
+    }
+
+    @Override
+    public void setContentLengthLong(long len) {
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+        if (!HttpHeaders.CONTENT_LENGTH.equalsIgnoreCase(name)) {
+            super.setHeader(name, value);
+        }
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+        if (!HttpHeaders.CONTENT_LENGTH.equalsIgnoreCase(name)) {
+            super.addHeader(name, value);
+        }
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+        if (writer != null) {
+            writer.flush();
+        }
+        if (outputStream != null) {
+            outputStream.flush();
+        }
+    }
+
+    @Override
+    public void resetBuffer() {
+        super.resetBuffer();
+        if (outputStream != null) {
+            outputStream.resetBuffer();
+        }
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        if (outputStream != null) {
+            outputStream.resetBuffer();
+        }
+    }
+
+    /**
+     * Sends what is held back and ends the compressed stream.
+     */
+    void finish() throws IOException {
+        if (writer != null) {
+            writer.flush();
+        }
+        if (outputStream != null) {
+            outputStream.finish();
+        }
+    }
+
+    private CompressingOutputStream stream() throws IOException {
+        if (outputStream == null) {
+            outputStream = new CompressingOutputStream(getResponse().getOutputStream());
+        }
+        return outputStream;
+    }
+
+    private boolean isCompressible() {
+        String contentType = getContentType();
+        if (contentType == null || containsHeader(HttpHeaders.CONTENT_ENCODING)) {
+            return false;
+        }
+        return mimeTypes.contains(contentType.split(";")[0].trim().toLowerCase(Locale.ROOT));
+    }
+
+    private class CompressingOutputStream extends ServletOutputStream {
+
+        private final ServletOutputStream raw;
+        private ByteArrayOutputStream held = new ByteArrayOutputStream();
+        private OutputStream out;
+
+        CompressingOutputStream(ServletOutputStream raw) {
+            this.raw = raw;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (out == null && held.size() + 1 < minSize) {
+                held.write(b);
+                return;
+            }
+            decide(true);
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (out == null && held.size() + len < minSize) {
+                held.write(b, off, len);
+                return;
+            }
+            decide(true);
+            out.write(b, off, len);
+        }
+
+        /**
+         * Held back bytes are not flushed, the decision waits for the minimum size.
+         */
+        @Override
+        public void flush() throws IOException {
+            if (out != null) {
+                out.flush();
+            }
+        }
+
+        @Override
+        public boolean isReady() {
+            return raw.isReady();
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            raw.setWriteListener(writeListener);
+        }
+
+        void resetBuffer() {
+            if (out == null) {
+                held.reset();
+            }
+        }
+
+        void finish() throws IOException {
+            decide(false);
+            if (out != raw) {
+                out.close();
+            }
+            else {
+                out.flush();
+            }
+        }
+
+        private void decide(boolean big) throws IOException {
+            if (out != null) {
+                return;
+            }
+
+            if (big && isCompressible()) {
+                CompressingResponse.super.setHeader(HttpHeaders.CONTENT_ENCODING, encoding);
+                String eTag = getHeader(HttpHeaders.ETAG);
+                if (eTag != null) {
+                    CompressingResponse.super.setHeader(HttpHeaders.ETAG, CompressionFilter.withCoding(eTag, encoding));
+                }
+                // Sync flush, so a flush sends what is compressed so far
+                out = CompressionFilter.GZIP.equals(encoding) ? new GZIPOutputStream(raw, true) : new DeflaterOutputStream(raw, true);
+            }
+            else {
+                if (!big) {
+                    getResponse().setContentLength(held.size());
+                }
+                out = raw;
+            }
+            held.writeTo(out);
+            held = null;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package no.nb.microservices.geotag.rest.stream;
+
+import no.nb.microservices.geotag.config.ApplicationSettings;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Compresses responses with gzip or deflate, whichever the client prefers in Accept-Encoding. Only the content types
+ * in microservice.compressionMimeTypes are compressed, and only when the body reaches
+ * microservice.compressionMinSize bytes. Up to that size the body is held back to decide, past it every write goes
+ * straight through the compressor to the client, so streamed responses stay streamed.
+ *
+ * A compressed body is a different representation from the plain one, so a strong ETag gets the coding appended,
+ * "3" becomes "3-gzip". {@link #withoutCoding(String)} gives back the ETag of the plain body.
+ */
+@Component
+public class CompressionFilter extends OncePerRequestFilter {
+
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+
+    private static final String ATTRIBUTE = CompressionFilter.class.getName() + ".response";
+
+    private final ApplicationSettings applicationSettings;
+
+    @Autowired
+    public CompressionFilter(ApplicationSettings applicationSettings) {
+        this.applicationSettings = applicationSettings;
+    }
+
+    /**
+     * The async dispatch of a DeferredResult writes the response, so it has to be compressed too.
+     */
+    @Override
+    protected boolean shouldNotFilterAsyncDispatch() {
+        return false;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain) throws ServletException, IOException {
+        // An async dispatch writes through the response of the first dispatch
+        CompressingResponse compressing = (CompressingResponse) request.getAttribute(ATTRIBUTE);
+        if (compressing == null) {
+            if (!applicationSettings.isCompressionEnabled()) {
+                filterChain.doFilter(request, response);
+                return;
+            }
+            response.addHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+            String encoding = negotiate(request.getHeader(HttpHeaders.ACCEPT_ENCODING));
+            if (encoding == null) {
+                filterChain.doFilter(request, response);
+                return;
+            }
+            compressing = new CompressingResponse(response, encoding, applicationSettings.getCompressionMinSize(), applicationSettings.getCompressionMimeTypes());
+            request.setAttribute(ATTRIBUTE, compressing);
+        }
+
+        filterChain.doFilter(request, compressing);
+        if (!isAsyncStarted(request)) {
+            compressing.finish();
+        }
+    }
+
+    /**
+     * The ETag for the body in the given coding. Weak ETags are left as they are.
+     */
+    static String withCoding(String eTag, String encoding) {
+        if (eTag == null || eTag.startsWith("W/") || !eTag.endsWith("\"") || eTag.length() < 2) {
+            return eTag;
+        }
+        return eTag.substring(0, eTag.length() - 1) + "-" + encoding + "\"";
+    }
+
+    /**
+     * The ETag of the plain body, for comparing an ETag the client got with a compressed body.
+     */
+    public static String withoutCoding(String eTag) {
+        if (eTag == null) {
+            return null;
+        }
+        for (String encoding : new String[] {GZIP, DEFLATE}) {
+            String suffix = "-" + encoding + "\"";
+            if (eTag.endsWith(suffix)) {
+                return eTag.substring(0, eTag.length() - suffix.length()) + "\"";
+            }
+        }
+        return eTag;
+    }
+
+    /**
+     * gzip or deflate by the q values of the header, gzip when they are equal. Null when the client takes neither.
+     */
+    static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+
+        double gzip = -1;
+        double deflate = -1;
+        double any = -1;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] params = coding.split(";");
+            String name = params[0].trim().toLowerCase(Locale.ROOT);
+            double q = 1;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Double.parseDouble(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+
+            if (GZIP.equals(name) || "x-gzip".equals(name)) {
+                gzip = q;
+            }
+            else if (DEFLATE.equals(name)) {
+                deflate = q;
+            }
+            else if ("*".equals(name)) {
+                any = q;
+            }
+        }
+
+        // A wildcard covers the codings that are not named
+        gzip = gzip < 0 ? any : gzip;
+        deflate = deflate < 0 ? any : deflate;
+        if (gzip <= 0 && deflate <= 0) {
+            return null;
+        }
+        return gzip >= deflate ? GZIP : DEFLATE;
+    }
+}
@@ -0,0 +1,56 @@
+package no.nb.microservices.geotag.rest.stream;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import no.nb.microservices.geotag.model.GeoTag;
+import no.nb.microservices.geotag.rest.json.MaskingModule;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Reads and writes newline delimited JSON with a copy of the application's ObjectMapper, so the documents look the
+ * same as in the other responses, masking by the {@link MaskingModule} included.
+ */
+@Component
+public class NdjsonMapper {
+
+    private final ObjectMapper mapper;
+
+    @Autowired
+    public NdjsonMapper(ObjectMapper objectMapper) {
+        this.mapper = objectMapper.copy();
+        mapper.disable(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+        mapper.disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+        mapper.addMixInAnnotations(GeoTag.class, NoLinksMixin.class);
+        // The lines are separated by the writer, not by the space Jackson puts between root values
+        mapper.getFactory().setRootValueSeparator(null);
+    }
+
+    /**
+     * Masked leaves out what only admins may see, see {@link MaskingModule}.
+     */
+    public NdjsonWriter writer(OutputStream outputStream, boolean masked) throws IOException {
+        return new NdjsonWriter(mapper, outputStream, masked);
+    }
+
+    /**
+     * Reads a JSON array or newline delimited JSON one document at a time, so the whole body is never held in memory.
+     */
+    public <T> MappingIterator<T> readValues(InputStream inputStream, Class<T> type) throws IOException {
+        return mapper.reader(type).readValues(inputStream);
+    }
+
+    /**
+     * Hypermedia links make no sense in an export or an import.
+     */
+    @JsonIgnoreProperties({"links"})
+    abstract static class NoLinksMixin {
+    }
+}
@@ -0,0 +1,42 @@
+package no.nb.microservices.geotag.rest.stream;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import no.nb.microservices.geotag.rest.json.MaskingModule;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+
+/**
+ * Writes one JSON document per line. Documents are written as they arrive, nothing is collected in memory. Made by
+ * {@link NdjsonMapper}.
+ */
+public class NdjsonWriter implements Closeable {
+
+    public static final String APPLICATION_NDJSON_VALUE = "application/x-ndjson";
+
+    private final JsonGenerator generator;
+    private final ObjectWriter writer;
+
+    NdjsonWriter(ObjectMapper mapper, OutputStream outputStream, boolean masked) throws IOException {
+        this.generator = mapper.getFactory().createGenerator(outputStream);
+        this.writer = mapper.writer().withAttribute(MaskingModule.MASKED, masked);
+    }
+
+    public void write(Object value) {
+        try {
+            writer.writeValue(generator, value);
+            generator.writeRaw('\n');
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        generator.close();
+    }
+}
@@ -0,0 +1,88 @@
+package no.nb.microservices.geotag.service;
+
+import no.nb.microservices.geotag.config.Constants;
+import no.nb.nbsecurity.NBUserDetails;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Who is asking: the user, if they are an admin and so if the tags they get are masked. Within a request it is
+ * resolved once and kept on the request, also for queries running on the query threads. Outside a request it is
+ * resolved on every call.
+ */
+public final class AccessContext {
+
+    public static final AccessContext ANONYMOUS = new AccessContext(null, false);
+
+    private static final GrantedAuthority ADMIN_AUTHORITY = new SimpleGrantedAuthority(Constants.ADMIN_ROLE);
+    private static final String ATTRIBUTE = AccessContext.class.getName();
+
+    private final NBUserDetails user;
+    private final boolean admin;
+
+    private AccessContext(NBUserDetails user, boolean admin) {
+        this.user = user;
+        this.admin = admin;
+    }
+
+    public static AccessContext of(NBUserDetails user) {
+        return user == null ? ANONYMOUS : new AccessContext(user, user.getAuthorities().contains(ADMIN_AUTHORITY));
+    }
+
+    /**
+     * The context of the current request. A request that changes its authentication gets a new one, but one with
+     * no authentication keeps what it had, async dispatches may run without the security context.
+     */
+    public static AccessContext current(NBUserService nbUserService) {
+        RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+        if (!(attributes instanceof ServletRequestAttributes)) {
+            return of(nbUserService.getNBUser());
+        }
+
+        // On the servlet request itself, the request attributes refuse access once the servlet thread has let go
+        HttpServletRequest request = ((ServletRequestAttributes) attributes).getRequest();
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        Object resolved = request.getAttribute(ATTRIBUTE);
+        if (resolved instanceof Resolved && (authentication == null || ((Resolved) resolved).authentication == authentication)) {
+            return ((Resolved) resolved).accessContext;
+        }
+        AccessContext accessContext = of(nbUserService.getNBUser());
+        request.setAttribute(ATTRIBUTE, new Resolved(authentication, accessContext));
+        return accessContext;
+    }
+
+    /**
+     * The user, or null when nobody is logged in.
+     */
+    public NBUserDetails getUser() {
+        return user;
+    }
+
+    public boolean isAdmin() {
+        return admin;
+    }
+
+    /**
+     * If emails, history and the dirty flag are hidden from this user.
+     */
+    public boolean isMasked() {
+        return !admin;
+    }
+
+    private static class Resolved {
+        private final Authentication authentication;
+        private final AccessContext accessContext;
+
+        Resolved(Authentication authentication, AccessContext accessContext) {
+            this.authentication = authentication;
+            this.accessContext = accessContext;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package no.nb.microservices.geotag.service;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import no.nb.microservices.geotag.model.GeoTagChange;
+import no.nb.microservices.geotag.repository.GeoTagChangeRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationListener;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Service;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Appends a {@link GeoTagChange} for every {@link GeoTagEvent} and serves them back in sequence order, so consumers
+ * can sync incrementally instead of rescanning the geotags.
+ *
+ * Sequence numbers are handed out before the entry is written, so entries can land out of order. Changes are only
+ * served up to the first missing sequence, unless the entries after it are older than {@link #GAP_TIMEOUT_MILLIS},
+ * in which case the missing entry is taken to be lost.
+ */
+@Service
+public class ChangeLogService implements ApplicationListener<GeoTagEvent> {
+
+    static final String SEQUENCE_COLLECTION = "GeoTagSequence";
+    static final int BATCH_SIZE = 500;
+    static final long GAP_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private static final Logger LOG = LoggerFactory.getLogger(ChangeLogService.class);
+
+    private final GeoTagChangeRepository changeRepository;
+    private final MongoTemplate mongoTemplate;
+
+    @Autowired
+    public ChangeLogService(GeoTagChangeRepository changeRepository, MongoTemplate mongoTemplate) {
+        this.changeRepository = changeRepository;
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    @Override
+    public void onApplicationEvent(GeoTagEvent event) {
+        if (event.isRemote()) {
+            return;
+        }
+        // The geotag is already written, a change log failure must not fail the request
+        try {
+            append(event.getOperation(), event.getGeoTagId(), event.getUrn());
+        } catch (RuntimeException e) {
+            LOG.error("Could not append " + event.getOperation() + " of geotag " + event.getGeoTagId() + " to the change log", e);
+        }
+    }
+
+    public GeoTagChange append(GeoTagChange.Operation operation, String geoTagId, String urn) {
+        GeoTagChange change = new GeoTagChange(nextSequence(), geoTagId, urn, operation, new Date());
+        return changeRepository.save(change);
+    }
+
+    /**
+     * Feeds every committed change with a sequence number above since to the consumer, oldest first. Stops before a
+     * sequence that is still being written, so the consumer never moves past it.
+     */
+    public void changesSince(long since, Consumer<GeoTagChange> consumer) {
+        long after = since;
+        long abandonedBefore = System.currentTimeMillis() - GAP_TIMEOUT_MILLIS;
+        List<GeoTagChange> batch;
+        do {
+            batch = changeRepository.findBySequenceGreaterThan(after, new PageRequest(0, BATCH_SIZE, new Sort(Sort.Direction.ASC, "sequence")));
+            for (GeoTagChange change : batch) {
+                if (change.getSequence() > after + 1 && !isBefore(change, abandonedBefore)) {
+                    return;
+                }
+                consumer.accept(change);
+                after = change.getSequence();
+            }
+        } while (batch.size() == BATCH_SIZE);
+    }
+
+    private static boolean isBefore(GeoTagChange change, long millis) {
+        return change.getDate() != null && change.getDate().getTime() < millis;
+    }
+
+    private long nextSequence() {
+        DBObject counter = mongoTemplate.getCollection(SEQUENCE_COLLECTION).findAndModify(
+                new BasicDBObject("_id", GeoTagChange.class.getSimpleName()),
+                null,
+                null,
+                false,
+                new BasicDBObject("$inc", new BasicDBObject("seq", 1L)),
+                true,
+                true);
+        return ((Number) counter.get("seq")).longValue();
+    }
+}
@@ -0,0 +1,72 @@
+package no.nb.microservices.geotag.service;
+
+import no.nb.microservices.geotag.model.GeoTag;
+import no.nb.microservices.geotag.model.GeoTagChange;
+import no.nb.microservices.geotag.repository.GeoTagRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.ApplicationListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.UUID;
+
+/**
+ * Connects the local {@link GeoTagEvent}s to the {@link InvalidationBus}. Local writes are sent to the other
+ * instances, and their writes come back as remote events, so the caches and indexes that listen for events stay
+ * fresh no matter which instance did the write.
+ */
+@Component
+public class ClusterInvalidation implements ApplicationListener<GeoTagEvent> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ClusterInvalidation.class);
+
+    private final InvalidationBus invalidationBus;
+    private final GeoTagRepository geoTagRepository;
+    private final ApplicationEventPublisher eventPublisher;
+    private final String instanceId = UUID.randomUUID().toString();
+
+    @Autowired
+    public ClusterInvalidation(InvalidationBus invalidationBus, GeoTagRepository geoTagRepository, ApplicationEventPublisher eventPublisher) {
+        this.invalidationBus = invalidationBus;
+        this.geoTagRepository = geoTagRepository;
+        this.eventPublisher = eventPublisher;
+    }
+
+    @PostConstruct
+    public void subscribe() {
+        invalidationBus.subscribe(this::onInvalidation);
+    }
+
+    @Override
+    public void onApplicationEvent(GeoTagEvent event) {
+        if (event.isRemote()) {
+            return;
+        }
+        // The geotag is already written, the other instances only catch up when their cache entries expire
+        try {
+            invalidationBus.publish(new Invalidation(instanceId, event.getOperation(), event.getGeoTagId(), event.getUrn()));
+        } catch (RuntimeException e) {
+            LOG.error("Could not send the " + event.getOperation() + " of geotag " + event.getGeoTagId() + " to the other instances", e);
+        }
+    }
+
+    void onInvalidation(Invalidation invalidation) {
+        if (instanceId.equals(invalidation.getOrigin())) {
+            return;
+        }
+
+        // Listeners like the spatial index need the tag as it is now, not just the id
+        GeoTagChange.Operation operation = invalidation.getOperation();
+        GeoTag geoTag = null;
+        if (operation != GeoTagChange.Operation.DELETE) {
+            geoTag = geoTagRepository.findOneWithoutHistory(invalidation.getGeoTagId());
+            if (geoTag == null) {
+                operation = GeoTagChange.Operation.DELETE;
+            }
+        }
+        eventPublisher.publishEvent(new GeoTagEvent(this, operation, invalidation.getGeoTagId(), invalidation.getUrn(), geoTag, true));
+    }
+}
@@ -0,0 +1,51 @@
+package no.nb.microservices.geotag.service;
+
+import no.nb.microservices.geotag.domain.InvalidRequestException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Date;
+
+/**
+ * Opaque continuation token for keyset pagination. Holds the (currentPosition.date, id) key of the last tag on the
+ * previous slice. The date is null when that tag has none.
+ */
+public class ContinuationToken {
+
+    private static final String SEPARATOR = ":";
+
+    private final Date date;
+    private final String id;
+
+    public ContinuationToken(Date date, String id) {
+        this.date = date;
+        this.id = id;
+    }
+
+    public Date getDate() {
+        return date;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String encode() {
+        String key = (date != null ? String.valueOf(date.getTime()) : "") + SEPARATOR + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @throws InvalidRequestException if the token was not produced by {@link #encode()}
+     */
+    public static ContinuationToken decode(String token) {
+        try {
+            String key = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+            int separator = key.indexOf(SEPARATOR);
+            String date = key.substring(0, separator);
+            return new ContinuationToken(date.isEmpty() ? null : new Date(Long.parseLong(date)), key.substring(separator + 1));
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            throw new InvalidRequestException("Invalid cursor: " + token, e);
+        }
+    }
+}
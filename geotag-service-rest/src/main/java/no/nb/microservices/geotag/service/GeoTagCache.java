@@ -0,0 +1,194 @@
+package no.nb.microservices.geotag.service;
+
+import no.nb.microservices.geotag.config.ApplicationSettings;
+import no.nb.microservices.geotag.model.GeoTag;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.context.ApplicationListener;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * Read-through cache of whole geotags, history included, by id. The cache is bounded by the number of positions it
+ * holds and evicts the least recently used tags first. Entries expire after microservice.tagCacheTtl seconds and are
+ * evicted as soon as this instance writes to the tag.
+ *
+ * Callers always get their own copy, so removing the history for one request does not leak into the
+ * cache or into other requests.
+ */
+@Component
+public class GeoTagCache implements ApplicationListener<GeoTagEvent>, PublicMetrics {
+
+    private final long maxWeight;
+    private final long ttlNanos;
+    private final LongSupplier ticker;
+    private final LinkedHashMap<String, CachedTag> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight = 0;
+    private long generation = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    @Autowired
+    public GeoTagCache(ApplicationSettings applicationSettings) {
+        this(applicationSettings, System::nanoTime);
+    }
+
+    GeoTagCache(ApplicationSettings applicationSettings, LongSupplier ticker) {
+        this.maxWeight = applicationSettings.getTagCacheMaxWeight();
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(applicationSettings.getTagCacheTtl());
+        this.ticker = ticker;
+    }
+
+    /**
+     * A copy of the cached tag, or of the tag from the loader when it is not cached. Returns null when the loader
+     * does, misses are not cached.
+     */
+    public GeoTag get(String id, Function<String, GeoTag> loader) {
+        long loadedAt;
+        synchronized (cache) {
+            CachedTag cached = cache.get(id);
+            if (cached != null && ticker.getAsLong() - cached.loadedAt < ttlNanos) {
+                hits++;
+                return new GeoTag(cached.geoTag);
+            }
+            if (cached != null) {
+                remove(id);
+            }
+            misses++;
+            loadedAt = generation;
+        }
+
+        GeoTag geoTag = loader.apply(id);
+        if (geoTag == null) {
+            return null;
+        }
+
+        CachedTag loaded = new CachedTag(new GeoTag(geoTag), ticker.getAsLong());
+        synchronized (cache) {
+            // A write during loading may have been missed, so only cache if there was none
+            if (loadedAt == generation && loaded.weight <= maxWeight) {
+                remove(id);
+                cache.put(id, loaded);
+                weight += loaded.weight;
+                evict();
+            }
+        }
+        return geoTag;
+    }
+
+    /**
+     * Copies of the cached tags by id, with the ones that are not cached loaded in one call to the loader. Ids the
+     * loader does not return are left out.
+     */
+    public Map<String, GeoTag> getAll(Collection<String> ids, Function<Collection<String>, Collection<GeoTag>> loader) {
+        Map<String, GeoTag> found = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+        long loadedAt;
+        synchronized (cache) {
+            long now = ticker.getAsLong();
+            for (String id : ids) {
+                CachedTag cached = cache.get(id);
+                if (cached != null && now - cached.loadedAt < ttlNanos) {
+                    hits++;
+                    found.put(id, new GeoTag(cached.geoTag));
+                    continue;
+                }
+                if (cached != null) {
+                    remove(id);
+                }
+                misses++;
+                missing.add(id);
+            }
+            loadedAt = generation;
+        }
+        if (missing.isEmpty()) {
+            return found;
+        }
+
+        List<CachedTag> loaded = new ArrayList<>();
+        for (GeoTag geoTag : loader.apply(missing)) {
+            found.put(geoTag.getGeoId(), geoTag);
+            loaded.add(new CachedTag(new GeoTag(geoTag), ticker.getAsLong()));
+        }
+        synchronized (cache) {
+            // As in get, a write during loading means any of the tags may be stale
+            if (loadedAt == generation) {
+                for (CachedTag cached : loaded) {
+                    if (cached.weight <= maxWeight) {
+                        remove(cached.geoTag.getGeoId());
+                        cache.put(cached.geoTag.getGeoId(), cached);
+                        weight += cached.weight;
+                    }
+                }
+                evict();
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public void onApplicationEvent(GeoTagEvent event) {
+        invalidate(event.getGeoTagId());
+    }
+
+    public void invalidate(String id) {
+        synchronized (cache) {
+            generation++;
+            remove(id);
+        }
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        List<Metric<?>> metrics = new ArrayList<>();
+        synchronized (cache) {
+            metrics.add(new Metric<Number>("cache.geotag.size", cache.size()));
+            metrics.add(new Metric<Number>("cache.geotag.weight", weight));
+            metrics.add(new Metric<Number>("cache.geotag.hits", hits));
+            metrics.add(new Metric<Number>("cache.geotag.misses", misses));
+            metrics.add(new Metric<Number>("cache.geotag.evictions", evictions));
+            metrics.add(new Metric<Number>("cache.geotag.hit.ratio", hits + misses > 0 ? (double) hits / (hits + misses) : 0.0));
+        }
+        return metrics;
+    }
+
+    private void remove(String id) {
+        CachedTag removed = cache.remove(id);
+        if (removed != null) {
+            weight -= removed.weight;
+        }
+    }
+
+    private void evict() {
+        for (Iterator<Map.Entry<String, CachedTag>> iterator = cache.entrySet().iterator(); weight > maxWeight && iterator.hasNext(); ) {
+            weight -= iterator.next().getValue().weight;
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    private static class CachedTag {
+        private final GeoTag geoTag;
+        private final long loadedAt;
+        private final int weight;
+
+        CachedTag(GeoTag geoTag, long loadedAt) {
+            this.geoTag = geoTag;
+            this.loadedAt = loadedAt;
+            // The positions are what makes a tag big
+            this.weight = 1 + geoTag.getUserPositions().size();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package no.nb.microservices.geotag.service;
+
+import no.nb.microservices.geotag.model.GeoTag;
+import no.nb.microservices.geotag.model.GeoTagChange;
+import org.springframework.context.ApplicationEvent;
+
+/**
+ * Published by {@link GeoTagService} after every successful write, and by {@link ClusterInvalidation} for writes on
+ * other instances.
+ */
+public class GeoTagEvent extends ApplicationEvent {
+
+    private final GeoTagChange.Operation operation;
+    private final String geoTagId;
+    private final String urn;
+    private final GeoTag geoTag;
+    private final boolean remote;
+
+    public GeoTagEvent(Object source, GeoTagChange.Operation operation, String geoTagId, String urn) {
+        this(source, operation, geoTagId, urn, null, false);
+    }
+
+    public GeoTagEvent(Object source, GeoTagChange.Operation operation, GeoTag geoTag) {
+        this(source, operation, geoTag.getGeoId(), geoTag.getUrn(), geoTag, false);
+    }
+
+    GeoTagEvent(Object source, GeoTagChange.Operation operation, String geoTagId, String urn, GeoTag geoTag, boolean remote) {
+        super(source);
+        this.operation = operation;
+        this.geoTagId = geoTagId;
+        this.urn = urn;
+        this.geoTag = geoTag;
+        this.remote = remote;
+    }
+
+    public GeoTagChange.Operation getOperation() {
+        return operation;
+    }
+
+    public String getGeoTagId() {
+        return geoTagId;
+    }
+
+    public String getUrn() {
+        return urn;
+    }
+
+    /**
+     * The tag as it was stored by the write, or as it was before a delete. Position writes only load the tag without
+     * userPositions, so listeners can not rely on the history. Listeners must not modify it.
+     */
+    public GeoTag getGeoTag() {
+        return geoTag;
+    }
+
+    /**
+     * True when the write was done by another instance. Such events are only for keeping local state fresh, the
+     * writing instance has already recorded the change.
+     */
+    public boolean isRemote() {
+        return remote;
+    }
+}
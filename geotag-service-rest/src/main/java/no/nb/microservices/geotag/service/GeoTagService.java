@@ -2,15 +2,26 @@ package no.nb.microservices.geotag.service;
 
 import com.mysema.query.types.expr.BooleanExpression;
 import no.nb.microservices.geotag.config.Constants;
+import no.nb.microservices.geotag.domain.InvalidRequestException;
+import no.nb.microservices.geotag.model.GeoCluster;
 import no.nb.microservices.geotag.model.GeoPosition;
 import no.nb.microservices.geotag.model.GeoQuery;
 import no.nb.microservices.geotag.model.GeoTag;
+import no.nb.microservices.geotag.model.GeoTagBatchResult;
+import no.nb.microservices.geotag.model.GeoTagChange;
+import no.nb.microservices.geotag.model.GeoTagLookup;
+import no.nb.microservices.geotag.model.GeoTagLookupResult;
 import no.nb.microservices.geotag.model.QGeoTag;
+import no.nb.microservices.geotag.repository.GeoTagProjection;
 import no.nb.microservices.geotag.repository.GeoTagRepository;
+import no.nb.microservices.geotag.repository.Totals;
 import no.nb.nbsecurity.NBUserDetails;
 import org.apache.commons.lang.StringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Sort;
 import org.springframework.data.geo.Box;
@@ -18,10 +29,13 @@ import org.springframework.data.geo.Distance;
 import org.springframework.data.geo.Metrics;
 import org.springframework.data.geo.Point;
 import org.springframework.security.access.AccessDeniedException;
-import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.stereotype.Service;
 
+import javax.validation.ConstraintViolation;
+import javax.validation.Validation;
+import javax.validation.Validator;
 import java.util.*;
+import java.util.function.Consumer;
 
 /**
  * Created by andreasb on 25.06.15.
@@ -29,13 +43,26 @@ import java.util.*;
 @Service
 public class GeoTagService implements IGeoTagService {
 
+    private static final int CLUSTER_CELLS_PER_TILE = 4;
+    static final int MAX_CLUSTER_CELLS = 20000;
+    private static final int BATCH_CHUNK_SIZE = 500;
+    private static final int STREAM_CHUNK_SIZE = 100;
+    private static final int MAX_UPDATE_ATTEMPTS = 5;
+    private static final Validator VALIDATOR = Validation.buildDefaultValidatorFactory().getValidator();
+
     private final GeoTagRepository geoTagRepository;
     private final NBUserService nbUserService;
+    private final ApplicationEventPublisher eventPublisher;
+    private final GeoTagSpatialIndex spatialIndex;
+    private final GeoTagCache geoTagCache;
 
     @Autowired
-    public GeoTagService(GeoTagRepository geoTagRepository, NBUserService nbUserService) {
+    public GeoTagService(GeoTagRepository geoTagRepository, NBUserService nbUserService, ApplicationEventPublisher eventPublisher, GeoTagSpatialIndex spatialIndex, GeoTagCache geoTagCache) {
         this.geoTagRepository = geoTagRepository;
         this.nbUserService = nbUserService;
+        this.eventPublisher = eventPublisher;
+        this.spatialIndex = spatialIndex;
+        this.geoTagCache = geoTagCache;
     }
 
     @Override
@@ -51,43 +78,92 @@ public class GeoTagService implements IGeoTagService {
             }
         }
 
-        QGeoTag t = QGeoTag.geoTag;
-        BooleanExpression expression = t.urn.isNotNull();
-
-        if (StringUtils.isNotBlank(query.getUrn())) {
-            expression = expression.and(t.urn.eq(query.getUrn()));
+        // Only admins see the history, so it is not loaded for anyone else
+        if (AccessContext.current(nbUserService).isMasked()) {
+            removeHistory = true;
         }
-        if (StringUtils.isNotBlank(query.getEmail())) {
-            expression = expression.and(t.currentPosition.userEmail.eq(query.getEmail())).or(t.userPositions.any().userEmail.eq(query.getEmail()));
-        }
-        if (StringUtils.isNotBlank(query.getUser())) {
-            expression = expression.and(t.currentPosition.userId.eq(query.getUser()));
-        }
-        if (query.getUpdatedSince() != null) {
-            expression = expression.and(t.currentPosition.date.after(query.getUpdatedSince()));
+
+        BooleanExpression expression = buildExpression(query);
+
+        PageRequest pageRequest = new PageRequest(page, size, new Sort(Sort.Direction.DESC, "currentPosition.date", "id"));
+        Page<GeoTag> pages = geoTagRepository.findAll(expression, pageRequest,
+                GeoTagProjection.of(query.getFields(), query.isMinify(), !removeHistory), Totals.parse(query.getTotals()));
+
+        if (removeHistory) {
+            for (GeoTag geoTag : pages.getContent()) {
+                geoTag.setUserPositions(null);
+            }
         }
-        if (query.getDirty() != null) {
-            expression = expression.and(t.dirty.eq(query.getDirty()));
+
+        return pages;
+    }
+
+    @Override
+    public GeoTagSlice scroll(GeoQuery query, String cursor, int size, String[] expand) {
+        //Expand
+        boolean removeHistory = true;
+        if (expand != null) {
+            for (String item : expand) {
+                //Expand games
+                if ("positionHistory".equals(item)) {
+                    removeHistory = false;
+                }
+            }
         }
-        if (query.getSticky() != null) {
-            expression = expression.and(t.sticky.eq(query.getSticky()));
+
+        // Only admins see the history, so it is not loaded for anyone else
+        if (AccessContext.current(nbUserService).isMasked()) {
+            removeHistory = true;
         }
 
-        PageRequest pageRequest = new PageRequest(page, size, new Sort(Sort.Direction.DESC, "date"));
-        Page<GeoTag> pages = geoTagRepository.findAll(expression, pageRequest);
+        ContinuationToken after = StringUtils.isNotBlank(cursor) ? ContinuationToken.decode(cursor) : null;
+        List<GeoTag> geoTags = geoTagRepository.findAfter(buildExpression(query),
+                after != null ? after.getDate() : null, after != null ? after.getId() : null, size + 1,
+                GeoTagProjection.of(query.getFields(), query.isMinify(), !removeHistory));
+
+        // The extra tag only tells us that there is a next slice
+        String nextCursor = null;
+        if (geoTags.size() > size) {
+            geoTags = geoTags.subList(0, size);
+            GeoTag last = geoTags.get(size - 1);
+            Date lastDate = last.getCurrentPosition() != null ? last.getCurrentPosition().getDate() : null;
+            nextCursor = new ContinuationToken(lastDate, last.getGeoId()).encode();
+        }
 
-        // If not admin then remove some fields.
-        boolean maskGeotag = pages != null && (nbUserService.getNBUser() == null || !nbUserService.getNBUser().getAuthorities().contains(new SimpleGrantedAuthority(Constants.ADMIN_ROLE)));
-        for (GeoTag geoTag : pages.getContent()) {
-            if (removeHistory) {
+        if (removeHistory) {
+            for (GeoTag geoTag : geoTags) {
                 geoTag.setUserPositions(null);
             }
-            if (maskGeotag) {
-                geoTag.mask();
+        }
+
+        return new GeoTagSlice(geoTags, size, nextCursor);
+    }
+
+    @Override
+    public void export(GeoQuery query, String[] expand, Consumer<GeoTag> consumer) {
+        //Expand
+        boolean removeHistory = true;
+        if (expand != null) {
+            for (String item : expand) {
+                //Expand games
+                if ("positionHistory".equals(item)) {
+                    removeHistory = false;
+                }
             }
         }
 
-        return pages;
+        // Only admins see the history, so it is not loaded for anyone else
+        if (AccessContext.current(nbUserService).isMasked()) {
+            removeHistory = true;
+        }
+        final boolean removeUserPositions = removeHistory;
+
+        geoTagRepository.stream(buildExpression(query), GeoTagProjection.of(query.getFields(), query.isMinify(), !removeUserPositions), geoTag -> {
+            if (removeUserPositions) {
+                geoTag.setUserPositions(null);
+            }
+            consumer.accept(geoTag);
+        });
     }
 
     @Override
@@ -103,16 +179,18 @@ public class GeoTagService implements IGeoTagService {
             }
         }
 
-        GeoTag geoTag = geoTagRepository.findOne(id);
+        // Only admins see the history
+        if (AccessContext.current(nbUserService).isMasked()) {
+            removeHistory = true;
+        }
+
+        // The cache keeps the whole tag and hands out copies that are safe to trim
+        GeoTag geoTag = geoTagCache.get(id, this::loadWithHistory);
 
         if (geoTag == null) {
             throw new NoSuchElementException(Constants.GEOTAG_NOT_FOUND);
         }
 
-        // If not admin then remove some fields
-        if (nbUserService.getNBUser() == null || !nbUserService.getNBUser().getAuthorities().contains(new SimpleGrantedAuthority(Constants.ADMIN_ROLE))) {
-            geoTag.mask();
-        }
         if (removeHistory) {
             geoTag.setUserPositions(null);
         }
@@ -120,9 +198,67 @@ public class GeoTagService implements IGeoTagService {
         return geoTag;
     }
 
+    @Override
+    public GeoTagLookupResult lookup(GeoTagLookup lookup, String[] expand) {
+        //Expand
+        boolean removeHistory = true;
+        if (expand != null) {
+            for (String item : expand) {
+                //Expand games
+                if ("userPositions".equals(item)) {
+                    removeHistory = false;
+                }
+            }
+        }
+
+        // Only admins see the history, so it is not loaded for anyone else
+        if (AccessContext.current(nbUserService).isMasked()) {
+            removeHistory = true;
+        }
+
+        GeoTagLookupResult result = new GeoTagLookupResult();
+
+        // Cached tags are copies, the rest come from one $in query that also fills the cache
+        if (lookup.getIds() != null && !lookup.getIds().isEmpty()) {
+            Map<String, GeoTag> byId = geoTagCache.getAll(new LinkedHashSet<>(lookup.getIds()), this::loadAllWithHistory);
+            for (String id : lookup.getIds()) {
+                result.getIds().put(id, byId.get(id));
+            }
+        }
+
+        // The cache is by id, so urns always go to Mongo
+        if (lookup.getUrns() != null && !lookup.getUrns().isEmpty()) {
+            List<GeoTag> found = geoTagRepository.findByUrnIn(new LinkedHashSet<>(lookup.getUrns()));
+            if (!removeHistory) {
+                geoTagRepository.loadHistory(found);
+            }
+            for (String urn : lookup.getUrns()) {
+                result.getUrns().put(urn, new ArrayList<>());
+            }
+            for (GeoTag geoTag : found) {
+                result.getUrns().get(geoTag.getUrn()).add(geoTag);
+            }
+        }
+
+        if (removeHistory) {
+            List<GeoTag> geoTags = new ArrayList<>(result.getIds().values());
+            for (List<GeoTag> urnTags : result.getUrns().values()) {
+                geoTags.addAll(urnTags);
+            }
+            for (GeoTag geoTag : geoTags) {
+                if (geoTag != null) {
+                    geoTag.setUserPositions(null);
+                }
+            }
+        }
+
+        return result;
+    }
+
     @Override
     public GeoPosition findOnePosition(String id, String posId) {
         List<GeoPosition> geoPositions = new ArrayList<>();
+        // findOne leaves out the history for everyone but admins, so only they find positions in it
         GeoTag geoTag = this.findOne(id, new String[] {"userPositions"});
         if (geoTag.getUserPositions() != null) {
             geoPositions.addAll(geoTag.getUserPositions());
@@ -139,113 +275,199 @@ public class GeoTagService implements IGeoTagService {
 
     @Override
     public void delete(String id) {
+        GeoTag geoTag = geoTagRepository.findOneWithoutHistory(id);
         geoTagRepository.delete(id);
+        geoTagRepository.deleteHistory(id);
+
+        if (geoTag != null) {
+            publish(GeoTagChange.Operation.DELETE, geoTag);
+        }
     }
 
 
     @Override
     public void deletePosition(String id, String positionId) {
-        GeoTag geoTag = geoTagRepository.findOne(id);
+        for (int attempt = 0; attempt < MAX_UPDATE_ATTEMPTS; attempt++) {
+            GeoTag geoTag = geoTagRepository.pullPosition(id, positionId);
 
-        if (geoTag == null) {
-            throw new NoSuchElementException(Constants.GEOTAG_NOT_FOUND);
-        }
+            if (geoTag == null) {
+                throw new NoSuchElementException(Constants.GEOTAG_NOT_FOUND);
+            }
 
-        for (Iterator<GeoPosition> iterator = geoTag.getUserPositions().iterator(); iterator.hasNext(); ) {
-            GeoPosition geoPosition = iterator.next();
-            if (geoPosition.getPosId() != null && geoPosition.getPosId().equals(positionId)) {
-                iterator.remove();
+            // Deleting the current position brings back the last one in the history, if there is one
+            if (geoTag.getCurrentPosition() == null || !positionId.equals(geoTag.getCurrentPosition().getPosId())) {
+                publish(GeoTagChange.Operation.POSITION_DELETED, geoTag);
+                return;
+            }
+            GeoTag withLast = geoTagRepository.findOneWithLastPosition(id);
+            if (withLast == null) {
+                throw new NoSuchElementException(Constants.GEOTAG_NOT_FOUND);
+            }
+            if (withLast.getUserPositions().isEmpty()) {
+                publish(GeoTagChange.Operation.POSITION_DELETED, geoTag);
+                return;
             }
-        }
 
-        if (geoTag.getCurrentPosition().getPosId().equals(positionId) && geoTag.getUserPositions().size() - 1 >= 0) {
-            geoTag.setCurrentPosition(geoTag.getUserPositions().get(geoTag.getUserPositions().size() - 1));
-            geoTag.getUserPositions().remove(geoTag.getUserPositions().size() - 1);
+            GeoTag savedGeoTag = geoTagRepository.promotePosition(id, positionId, withLast.getUserPositions().get(0));
+            if (savedGeoTag != null) {
+                publish(GeoTagChange.Operation.POSITION_DELETED, savedGeoTag);
+                return;
+            }
         }
 
-        geoTagRepository.save(geoTag);
+        throw new OptimisticLockingFailureException("GeoTag " + id + " was changed by someone else while deleting a position");
     }
 
     @Override
     public GeoTag save(GeoTag geoTag) {
-        Page<GeoTag> geoTags = geoTagRepository.findByUrn(geoTag.getUrn(), new PageRequest(0, 1));
-        GeoTag oldGeoTag = (geoTags.hasContent()) ? geoTags.getContent().get(0) : null;
+        return save(geoTag, null);
+    }
 
-        NBUserDetails user = nbUserService.getNBUser();
-        String currentUser = user.getUserId().toString();
-        geoTag.getCurrentPosition().setPosId(UUID.randomUUID().toString());
-        geoTag.getCurrentPosition().setUserId(currentUser);
-        geoTag.getCurrentPosition().setUserDisplayName(user.getDisplayName());
-        geoTag.getCurrentPosition().setUserEmail(user.getEmail());
-        geoTag.getCurrentPosition().setDate(Calendar.getInstance().getTime());
+    @Override
+    public GeoTag save(GeoTag geoTag, Long expectedVersion) {
+        NBUserDetails user = AccessContext.current(nbUserService).getUser();
+        GeoPosition position = geoTag.getCurrentPosition();
+        stamp(position, user);
+
+        for (int attempt = 0; attempt < MAX_UPDATE_ATTEMPTS; attempt++) {
+            GeoTag oldGeoTag = geoTagRepository.findOneByUrnWithoutHistory(geoTag.getUrn());
+
+            if (oldGeoTag == null) {
+                if (expectedVersion != null) {
+                    throw new OptimisticLockingFailureException("GeoTag " + geoTag.getUrn() + " does not exist");
+                }
+                prepareNew(geoTag);
+                geoTagRepository.save(geoTag);
+                publish(GeoTagChange.Operation.CREATE, geoTag);
+
+                return geoTag;
+            }
 
-        if (oldGeoTag != null) {
             if (oldGeoTag.isSticky() != null && oldGeoTag.isSticky()) {
                 throw new AccessDeniedException("User do not have access to update this object");
             }
+            if (expectedVersion != null && !expectedVersion.equals(oldGeoTag.getVersion())) {
+                throw new OptimisticLockingFailureException("GeoTag " + geoTag.getUrn() + " is not at version " + expectedVersion);
+            }
 
-            oldGeoTag.setDirty(true);
-            oldGeoTag.addUserPosition(oldGeoTag.getCurrentPosition());
-            oldGeoTag.setCurrentPosition(geoTag.getCurrentPosition());
+            // The user's own earlier position is dropped below anyway, so it is not archived
+            GeoPosition previous = oldGeoTag.getCurrentPosition();
+            GeoPosition archived = (previous != null && !position.getUserId().equals(previous.getUserId())) ? previous : null;
+            GeoTag savedGeoTag = geoTagRepository.replaceCurrentPosition(oldGeoTag.getGeoId(), oldGeoTag.getVersion(), position, archived);
 
-            // Sletter tidligere tagger brukeren har på denne taggen slik at det blir kun 1 tag per bruker og urn.
-            for (Iterator<GeoPosition> iterator = oldGeoTag.getUserPositions().iterator(); iterator.hasNext(); ) {
-                GeoPosition geoPosition = iterator.next();
-                if (geoPosition.getUserId().equals(currentUser)) {
-                    iterator.remove();
+            if (savedGeoTag != null) {
+                // Sletter tidligere tagger brukeren har på denne taggen slik at det blir kun 1 tag per bruker og urn.
+                GeoTag cleanedGeoTag = geoTagRepository.pullUserPositions(savedGeoTag.getGeoId(), position.getUserId());
+                if (cleanedGeoTag != null) {
+                    savedGeoTag = cleanedGeoTag;
                 }
-            }
-
-            geoTagRepository.save(oldGeoTag);
+                publish(GeoTagChange.Operation.UPDATE, savedGeoTag);
 
-            return oldGeoTag;
+                return savedGeoTag;
+            }
+            if (expectedVersion != null) {
+                throw new OptimisticLockingFailureException("GeoTag " + geoTag.getUrn() + " is not at version " + expectedVersion);
+            }
         }
-        else {
-            geoTag.setSticky(false);
-            geoTag.setDirty(true);
-            geoTag.setUserPositions(null);
-            geoTag.getLinks().clear();
-            geoTag.setGeoId(UUID.randomUUID().toString());
-            geoTagRepository.save(geoTag);
 
-            return geoTag;
+        throw new OptimisticLockingFailureException("GeoTag " + geoTag.getUrn() + " was changed by someone else while saving");
+    }
+
+    @Override
+    public void saveAll(Iterator<GeoTag> geoTags, Consumer<GeoTagBatchResult> results) {
+        NBUserDetails user = AccessContext.current(nbUserService).getUser();
+        List<GeoTag> chunk = new ArrayList<>(BATCH_CHUNK_SIZE);
+        int offset = 0;
+        while (geoTags.hasNext()) {
+            chunk.add(geoTags.next());
+            if (chunk.size() == BATCH_CHUNK_SIZE || !geoTags.hasNext()) {
+                saveChunk(chunk, offset, user, results);
+                offset += chunk.size();
+                chunk.clear();
+            }
         }
     }
 
     @Override
     public GeoPosition savePosition(String id, GeoPosition geoPosition) {
-        GeoTag geoTag = geoTagRepository.findOne(id);
+        // Positions need an id to be deleted later
+        if (geoPosition.getPosId() == null) {
+            geoPosition.setPosId(UUID.randomUUID().toString());
+        }
 
-        if (geoTag == null) {
+        GeoTag savedGeoTag = geoTagRepository.pushPosition(id, geoPosition);
+
+        if (savedGeoTag == null) {
             throw new NoSuchElementException(Constants.GEOTAG_NOT_FOUND);
         }
 
-        geoTag.addUserPosition(geoPosition);
-        GeoTag savedGeoTag = geoTagRepository.save(geoTag);
+        publish(GeoTagChange.Operation.POSITION_ADDED, savedGeoTag);
 
-        return savedGeoTag.getUserPositions().get(savedGeoTag.getUserPositions().size() -1);
+        return geoPosition;
     }
 
     @Override
     public GeoTag update(String id, GeoTag geoTag) {
+        return update(id, geoTag, null);
+    }
+
+    @Override
+    public GeoTag update(String id, GeoTag geoTag, Long expectedVersion) {
         geoTag.getLinks().clear();
         geoTag.setGeoId(id);
-        geoTagRepository.save(geoTag);
-        return geoTag;
+
+        if (expectedVersion != null) {
+            if (!geoTagRepository.replace(geoTag, expectedVersion)) {
+                throw new OptimisticLockingFailureException("GeoTag " + id + " is not at version " + expectedVersion);
+            }
+            publish(GeoTagChange.Operation.UPDATE, geoTag);
+            return geoTag;
+        }
+
+        // Without a version from the client the replace is unconditional, only a concurrent write makes us try again
+        for (int attempt = 0; attempt < MAX_UPDATE_ATTEMPTS; attempt++) {
+            GeoTag oldGeoTag = geoTagRepository.findOneWithoutHistory(id);
+
+            if (oldGeoTag == null) {
+                geoTag.setVersion(null);
+                geoTagRepository.save(geoTag);
+                publish(GeoTagChange.Operation.UPDATE, geoTag);
+                return geoTag;
+            }
+            if (geoTagRepository.replace(geoTag, oldGeoTag.getVersion())) {
+                publish(GeoTagChange.Operation.UPDATE, geoTag);
+                return geoTag;
+            }
+        }
+
+        throw new OptimisticLockingFailureException("GeoTag " + id + " was changed by someone else while updating");
+    }
+
+    @Override
+    public int migratePositionHistory(int limit) {
+        return geoTagRepository.migrateHistory(limit);
     }
 
     @Override
     public Page<GeoTag> nearby(GeoQuery query, int page, int size) {
         Point position = new Point(query.getLon(), query.getLat());
         Distance distance = new Distance(query.getMaxDistance(), Metrics.KILOMETERS);
-        Page<GeoTag> pages = geoTagRepository.findByCurrentPositionPositionNear(position, distance, new PageRequest(page, size));
-
-        // If not admin then remove some fields
-        if (nbUserService.getNBUser() == null || !nbUserService.getNBUser().getAuthorities().contains(new SimpleGrantedAuthority(Constants.ADMIN_ROLE))) {
-            for (GeoTag geoTag : pages.getContent()) {
-                geoTag.mask();
+        boolean admin = AccessContext.current(nbUserService).isAdmin();
+        Page<GeoTag> pages;
+        if (spatialIndex.isReady()) {
+            pages = spatialIndex.nearby(position, distance, new PageRequest(page, size));
+            if (admin) {
+                pages = withUserPositions(pages, new PageRequest(page, size));
             }
         }
+        else {
+            pages = geoTagRepository.findNear(position, distance, new PageRequest(page, size), Totals.parse(query.getTotals()));
+        }
+
+        // Only admins see the history, the rest is masked when the tags are written
+        if (admin) {
+            geoTagRepository.loadHistory(pages.getContent());
+        }
 
         return pages;
     }
@@ -253,15 +475,338 @@ public class GeoTagService implements IGeoTagService {
     @Override
     public Page<GeoTag> within(GeoQuery query, int page, int size) {
         Box box = new Box(new Point(query.getLon(), query.getLat()), new Point(query.getSecondLon(), query.getSecondLat()));
-        Page<GeoTag> pages = geoTagRepository.findByCurrentPositionPositionWithin(box, new PageRequest(page, size));
-
-        // If not admin then remove some fields
-        if (nbUserService.getNBUser() == null || !nbUserService.getNBUser().getAuthorities().contains(new SimpleGrantedAuthority(Constants.ADMIN_ROLE))) {
-            for (GeoTag geoTag : pages.getContent()) {
-                geoTag.mask();
+        boolean admin = AccessContext.current(nbUserService).isAdmin();
+        Page<GeoTag> pages;
+        if (spatialIndex.isReady()) {
+            pages = spatialIndex.within(box, new PageRequest(page, size));
+            if (admin) {
+                pages = withUserPositions(pages, new PageRequest(page, size));
             }
         }
+        else {
+            pages = geoTagRepository.findWithin(box, new PageRequest(page, size), Totals.parse(query.getTotals()));
+        }
+
+        // Only admins see the history, the rest is masked when the tags are written
+        if (admin) {
+            geoTagRepository.loadHistory(pages.getContent());
+        }
 
         return pages;
     }
+
+    @Override
+    public Page<GeoTag> within(GeoQuery query, int page, int size, Consumer<GeoTag> consumer) {
+        Box box = new Box(new Point(query.getLon(), query.getLat()), new Point(query.getSecondLon(), query.getSecondLat()));
+        boolean admin = AccessContext.current(nbUserService).isAdmin();
+        PageRequest pageRequest = new PageRequest(page, size);
+
+        if (spatialIndex.isReady()) {
+            long total;
+            if (admin) {
+                // The index only keeps the current position, admins get the full documents a chunk at a time
+                List<GeoTag> chunk = new ArrayList<>();
+                total = spatialIndex.forEachWithin(box, pageRequest.getOffset(), size, geoTag -> {
+                    chunk.add(geoTag);
+                    if (chunk.size() == STREAM_CHUNK_SIZE) {
+                        writeWithHistory(chunk, consumer);
+                    }
+                });
+                writeWithHistory(chunk, consumer);
+            }
+            else {
+                total = spatialIndex.forEachWithin(box, pageRequest.getOffset(), size, consumer);
+            }
+            return new PageImpl<GeoTag>(Collections.<GeoTag>emptyList(), pageRequest, total);
+        }
+
+        // Only admins see the history, it is loaded one tag at a time so no more than one is held
+        Consumer<GeoTag> writer = !admin ? consumer : geoTag -> {
+            geoTagRepository.loadHistory(Arrays.asList(geoTag));
+            consumer.accept(geoTag);
+        };
+        return geoTagRepository.streamWithin(box, pageRequest, Totals.parse(query.getTotals()), writer);
+    }
+
+    @Override
+    public List<GeoCluster> clusters(Box box, int zoom) {
+        // Four cells across each web map tile at this zoom level
+        double cellSize = 360.0 / (Math.pow(2, zoom) * CLUSTER_CELLS_PER_TILE);
+        double width = Math.abs(box.getSecond().getX() - box.getFirst().getX());
+        double height = Math.abs(box.getSecond().getY() - box.getFirst().getY());
+        if ((Math.floor(width / cellSize) + 2) * (Math.floor(height / cellSize) + 2) > MAX_CLUSTER_CELLS) {
+            throw new InvalidRequestException("The bbox spans more than " + MAX_CLUSTER_CELLS + " clusters at zoom " + zoom + ", zoom out or make it smaller");
+        }
+
+        long columns = (long) Math.ceil(360 / cellSize) + 1;
+        Map<Long, ClusterCell> cells = new HashMap<>();
+        Consumer<GeoTag> collector = geoTag -> {
+            double lon = geoTag.getCurrentPosition().getLongitude();
+            double lat = geoTag.getCurrentPosition().getLatitude();
+            long column = (long) Math.floor((lon + 180) / cellSize);
+            long row = (long) Math.floor((lat + 90) / cellSize);
+            cells.computeIfAbsent(row * columns + column, key -> new ClusterCell(column, row, geoTag.getGeoId())).add(lon, lat);
+        };
+
+        if (spatialIndex.isReady()) {
+            spatialIndex.forEachWithin(box, collector);
+        }
+        else {
+            geoTagRepository.streamPositions(box, collector);
+        }
+
+        List<GeoCluster> clusters = new ArrayList<>();
+        for (ClusterCell cell : cells.values()) {
+            clusters.add(cell.toCluster(cellSize));
+        }
+        return clusters;
+    }
+
+    private GeoTag loadWithHistory(String id) {
+        GeoTag geoTag = geoTagRepository.findOne(id);
+        if (geoTag != null) {
+            geoTagRepository.loadHistory(Arrays.asList(geoTag));
+        }
+        return geoTag;
+    }
+
+    private Collection<GeoTag> loadAllWithHistory(Collection<String> ids) {
+        List<GeoTag> geoTags = new ArrayList<>();
+        for (GeoTag geoTag : geoTagRepository.findAll(ids)) {
+            geoTags.add(geoTag);
+        }
+        geoTagRepository.loadHistory(geoTags);
+        return geoTags;
+    }
+
+    /**
+     * The spatial index only keeps the current position, so admins get the full documents loaded by id.
+     */
+    private Page<GeoTag> withUserPositions(Page<GeoTag> pages, PageRequest pageRequest) {
+        return new PageImpl<GeoTag>(withUserPositions(pages.getContent()), pageRequest, pages.getTotalElements());
+    }
+
+    private List<GeoTag> withUserPositions(List<GeoTag> geoTags) {
+        List<String> ids = new ArrayList<>();
+        for (GeoTag geoTag : geoTags) {
+            ids.add(geoTag.getGeoId());
+        }
+
+        Map<String, GeoTag> loaded = new HashMap<>();
+        for (GeoTag geoTag : geoTagRepository.findAll(ids)) {
+            loaded.put(geoTag.getGeoId(), geoTag);
+        }
+
+        List<GeoTag> content = new ArrayList<>();
+        for (GeoTag geoTag : geoTags) {
+            content.add(loaded.containsKey(geoTag.getGeoId()) ? loaded.get(geoTag.getGeoId()) : geoTag);
+        }
+        return content;
+    }
+
+    /**
+     * Writes a chunk of tags from the spatial index as full documents with their history, and empties it.
+     */
+    private void writeWithHistory(List<GeoTag> chunk, Consumer<GeoTag> consumer) {
+        if (chunk.isEmpty()) {
+            return;
+        }
+        List<GeoTag> full = withUserPositions(chunk);
+        geoTagRepository.loadHistory(full);
+        full.forEach(consumer);
+        chunk.clear();
+    }
+
+    /**
+     * Saves one chunk of a batch with a single urn lookup and a single bulk write. Items for the same urn are applied
+     * in order on top of each other, so the chunk ends up as if the items had been saved one at a time.
+     */
+    private void saveChunk(List<GeoTag> chunk, int offset, NBUserDetails user, Consumer<GeoTagBatchResult> results) {
+        Set<String> urns = new HashSet<>();
+        for (GeoTag geoTag : chunk) {
+            if (geoTag != null && geoTag.getUrn() != null) {
+                urns.add(geoTag.getUrn());
+            }
+        }
+        // A urn can have more than one tag, and like a single save the chunk writes to the one with the lowest id
+        Map<String, GeoTag> stored = new HashMap<>();
+        for (GeoTag geoTag : geoTagRepository.findByUrnIn(urns)) {
+            stored.merge(geoTag.getUrn(), geoTag, (first, other) -> first.getGeoId().compareTo(other.getGeoId()) <= 0 ? first : other);
+        }
+
+        Map<String, GeoTag> writes = new LinkedHashMap<>();
+        Set<String> created = new HashSet<>();
+        List<GeoTagBatchResult> chunkResults = new ArrayList<>(chunk.size());
+        for (int i = 0; i < chunk.size(); i++) {
+            GeoTag geoTag = chunk.get(i);
+            String urn = geoTag != null ? geoTag.getUrn() : null;
+
+            String violation = validate(geoTag);
+            if (violation != null) {
+                chunkResults.add(new GeoTagBatchResult(offset + i, urn, null, GeoTagBatchResult.Status.REJECTED, violation));
+                continue;
+            }
+
+            GeoTag oldGeoTag = writes.containsKey(urn) ? writes.get(urn) : stored.get(urn);
+            try {
+                GeoTag savedGeoTag = merge(oldGeoTag, geoTag, user);
+                if (oldGeoTag == null) {
+                    created.add(urn);
+                }
+                writes.put(urn, savedGeoTag);
+                chunkResults.add(new GeoTagBatchResult(offset + i, urn, savedGeoTag.getGeoId(),
+                        oldGeoTag == null ? GeoTagBatchResult.Status.CREATED : GeoTagBatchResult.Status.UPDATED, null));
+            } catch (AccessDeniedException e) {
+                chunkResults.add(new GeoTagBatchResult(offset + i, urn, null, GeoTagBatchResult.Status.REJECTED, e.getMessage()));
+            }
+        }
+
+        List<GeoTag> documents = new ArrayList<>(writes.values());
+        Map<Integer, String> errors = geoTagRepository.bulkSave(documents);
+        Map<String, String> failedUrns = new HashMap<>();
+        for (Map.Entry<Integer, String> error : errors.entrySet()) {
+            failedUrns.put(documents.get(error.getKey()).getUrn(), error.getValue());
+        }
+
+        for (GeoTagBatchResult result : chunkResults) {
+            if (result.getStatus() != GeoTagBatchResult.Status.REJECTED && failedUrns.containsKey(result.getUrn())) {
+                result.setStatus(GeoTagBatchResult.Status.FAILED);
+                result.setMessage(failedUrns.get(result.getUrn()));
+            }
+            results.accept(result);
+        }
+        for (GeoTag geoTag : documents) {
+            if (!failedUrns.containsKey(geoTag.getUrn())) {
+                publish(created.contains(geoTag.getUrn()) ? GeoTagChange.Operation.CREATE : GeoTagChange.Operation.UPDATE, geoTag);
+            }
+        }
+    }
+
+    /**
+     * Applies a new position from the user to the stored tag, or prepares a new tag when there is none. Sticky tags
+     * can not be changed, and every user keeps at most one position per tag.
+     */
+    private GeoTag merge(GeoTag oldGeoTag, GeoTag geoTag, NBUserDetails user) {
+        String currentUser = user.getUserId().toString();
+        stamp(geoTag.getCurrentPosition(), user);
+
+        if (oldGeoTag != null) {
+            if (oldGeoTag.isSticky() != null && oldGeoTag.isSticky()) {
+                throw new AccessDeniedException("User do not have access to update this object");
+            }
+
+            oldGeoTag.setDirty(true);
+            oldGeoTag.addUserPosition(oldGeoTag.getCurrentPosition());
+            oldGeoTag.setCurrentPosition(geoTag.getCurrentPosition());
+
+            // Sletter tidligere tagger brukeren har på denne taggen slik at det blir kun 1 tag per bruker og urn.
+            for (Iterator<GeoPosition> iterator = oldGeoTag.getUserPositions().iterator(); iterator.hasNext(); ) {
+                GeoPosition geoPosition = iterator.next();
+                if (geoPosition.getUserId().equals(currentUser)) {
+                    iterator.remove();
+                }
+            }
+
+            return oldGeoTag;
+        }
+        else {
+            return prepareNew(geoTag);
+        }
+    }
+
+    /**
+     * Marks the position as a new one from the user.
+     */
+    private static void stamp(GeoPosition position, NBUserDetails user) {
+        position.setPosId(UUID.randomUUID().toString());
+        position.setUserId(user.getUserId().toString());
+        position.setUserDisplayName(user.getDisplayName());
+        position.setUserEmail(user.getEmail());
+        position.setDate(Calendar.getInstance().getTime());
+    }
+
+    private static GeoTag prepareNew(GeoTag geoTag) {
+        geoTag.setSticky(false);
+        geoTag.setDirty(true);
+        geoTag.setUserPositions(null);
+        geoTag.getLinks().clear();
+        geoTag.setGeoId(UUID.randomUUID().toString());
+        // A version from the client would make the insert an update of a tag that is not there
+        geoTag.setVersion(null);
+
+        return geoTag;
+    }
+
+    /**
+     * The same checks as @Valid on a single save, returns null when the tag is valid.
+     */
+    private static String validate(GeoTag geoTag) {
+        if (geoTag == null) {
+            return "Empty item";
+        }
+        Set<ConstraintViolation<GeoTag>> violations = VALIDATOR.validate(geoTag);
+        if (violations.isEmpty()) {
+            return null;
+        }
+        ConstraintViolation<GeoTag> violation = violations.iterator().next();
+        return violation.getPropertyPath() + " " + violation.getMessage();
+    }
+
+    private void publish(GeoTagChange.Operation operation, GeoTag geoTag) {
+        eventPublisher.publishEvent(new GeoTagEvent(this, operation, geoTag));
+    }
+
+    private BooleanExpression buildExpression(GeoQuery query) {
+        QGeoTag t = QGeoTag.geoTag;
+        BooleanExpression expression = t.urn.isNotNull();
+
+        if (StringUtils.isNotBlank(query.getUrn())) {
+            expression = expression.and(t.urn.eq(query.getUrn()));
+        }
+        if (StringUtils.isNotBlank(query.getEmail())) {
+            expression = expression.and(t.currentPosition.userEmail.eq(query.getEmail())).or(t.userPositions.any().userEmail.eq(query.getEmail()));
+        }
+        if (StringUtils.isNotBlank(query.getUser())) {
+            expression = expression.and(t.currentPosition.userId.eq(query.getUser()));
+        }
+        if (query.getUpdatedSince() != null) {
+            expression = expression.and(t.currentPosition.date.after(query.getUpdatedSince()));
+        }
+        if (query.getDirty() != null) {
+            expression = expression.and(t.dirty.eq(query.getDirty()));
+        }
+        if (query.getSticky() != null) {
+            expression = expression.and(t.sticky.eq(query.getSticky()));
+        }
+
+        return expression;
+    }
+
+    private static class ClusterCell {
+        private final long column;
+        private final long row;
+        private final String sampleId;
+        private double sumLon;
+        private double sumLat;
+        private long count;
+
+        ClusterCell(long column, long row, String sampleId) {
+            this.column = column;
+            this.row = row;
+            this.sampleId = sampleId;
+        }
+
+        void add(double lon, double lat) {
+            sumLon += lon;
+            sumLat += lat;
+            count++;
+        }
+
+        GeoCluster toCluster(double cellSize) {
+            double minLon = column * cellSize - 180;
+            double minLat = row * cellSize - 90;
+            return new GeoCluster(new double[] {sumLon / count, sumLat / count},
+                    new double[] {minLon, minLat, minLon + cellSize, minLat + cellSize}, count, sampleId);
+        }
+    }
 }
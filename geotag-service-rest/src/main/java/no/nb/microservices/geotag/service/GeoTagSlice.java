@@ -0,0 +1,37 @@
+package no.nb.microservices.geotag.service;
+
+import no.nb.microservices.geotag.model.GeoTag;
+
+import java.util.List;
+
+/**
+ * One slice of a keyset walk over the geotags. There is no total count, only the cursor for the next slice.
+ */
+public class GeoTagSlice {
+
+    private final List<GeoTag> content;
+    private final int size;
+    private final String nextCursor;
+
+    public GeoTagSlice(List<GeoTag> content, int size, String nextCursor) {
+        this.content = content;
+        this.size = size;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<GeoTag> getContent() {
+        return content;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public boolean hasNext() {
+        return nextCursor != null;
+    }
+}
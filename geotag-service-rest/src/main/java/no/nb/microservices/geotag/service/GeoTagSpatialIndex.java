@@ -0,0 +1,313 @@
+package no.nb.microservices.geotag.service;
+
+import no.nb.microservices.geotag.config.ApplicationSettings;
+import no.nb.microservices.geotag.model.GeoPosition;
+import no.nb.microservices.geotag.model.GeoTag;
+import no.nb.microservices.geotag.model.GeoTagChange;
+import no.nb.microservices.geotag.repository.GeoTagProjection;
+import no.nb.microservices.geotag.repository.GeoTagRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationListener;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.geo.Box;
+import org.springframework.data.geo.Distance;
+import org.springframework.data.geo.Point;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * In-memory grid over currentPosition.position that answers nearby and within queries without going to Mongo.
+ * It is filled from Mongo in the background at startup and kept current through {@link GeoTagEvent}s. Until the
+ * warm-up is done {@link #isReady()} is false and callers should use Mongo.
+ */
+@Component
+public class GeoTagSpatialIndex implements ApplicationListener<GeoTagEvent> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(GeoTagSpatialIndex.class);
+
+    private final GeoTagRepository geoTagRepository;
+    private final boolean enabled;
+    private final double cellSize;
+    private final long columns;
+
+    private final Map<String, GeoTag> entries = new ConcurrentHashMap<>();
+    private final Map<Long, Set<String>> cells = new ConcurrentHashMap<>();
+    private final Set<String> touchedDuringWarmUp = new HashSet<>();
+    private volatile boolean ready = false;
+
+    @Autowired
+    public GeoTagSpatialIndex(GeoTagRepository geoTagRepository, ApplicationSettings applicationSettings) {
+        this.geoTagRepository = geoTagRepository;
+        this.enabled = applicationSettings.isSpatialIndexEnabled();
+        this.cellSize = applicationSettings.getSpatialIndexCellSize();
+        this.columns = (long) Math.ceil(360 / cellSize) + 1;
+    }
+
+    @PostConstruct
+    public void start() {
+        if (enabled) {
+            Thread warmUp = new Thread(this::warmUp, "geotag-spatial-index");
+            warmUp.setDaemon(true);
+            warmUp.start();
+        }
+    }
+
+    void warmUp() {
+        try {
+            geoTagRepository.stream(null, GeoTagProjection.WITHOUT_HISTORY, geoTag -> {
+                synchronized (this) {
+                    if (!touchedDuringWarmUp.contains(geoTag.getGeoId())) {
+                        put(geoTag);
+                    }
+                }
+            });
+            synchronized (this) {
+                ready = true;
+                touchedDuringWarmUp.clear();
+            }
+            LOG.info("Spatial index ready with " + entries.size() + " geotags");
+        } catch (RuntimeException e) {
+            LOG.error("Spatial index warm-up failed, nearby and within will use Mongo", e);
+        }
+    }
+
+    public boolean isReady() {
+        return enabled && ready;
+    }
+
+    @Override
+    public synchronized void onApplicationEvent(GeoTagEvent event) {
+        if (!enabled || event.getGeoTagId() == null) {
+            return;
+        }
+        if (!ready) {
+            touchedDuringWarmUp.add(event.getGeoTagId());
+        }
+
+        if (event.getOperation() == GeoTagChange.Operation.DELETE) {
+            remove(event.getGeoTagId());
+        }
+        else if (event.getGeoTag() != null) {
+            put(event.getGeoTag());
+        }
+    }
+
+    /**
+     * Tags inside the box, ordered by id so that paging is stable.
+     */
+    public Page<GeoTag> within(Box box, Pageable pageable) {
+        List<GeoTag> matches = new ArrayList<>();
+        forEachWithin(box, matches::add);
+        matches.sort(Comparator.comparing(GeoTag::getGeoId));
+
+        return toPage(matches, pageable);
+    }
+
+    /**
+     * Feeds every tag inside the box to the consumer. The tags are the index's own copies and must not be modified.
+     */
+    public void forEachWithin(Box box, Consumer<GeoTag> consumer) {
+        double minLon = Math.min(box.getFirst().getX(), box.getSecond().getX());
+        double maxLon = Math.max(box.getFirst().getX(), box.getSecond().getX());
+        double minLat = Math.min(box.getFirst().getY(), box.getSecond().getY());
+        double maxLat = Math.max(box.getFirst().getY(), box.getSecond().getY());
+
+        forEachCandidate(minLon, minLat, maxLon, maxLat, geoTag -> {
+            double lon = geoTag.getCurrentPosition().getLongitude();
+            double lat = geoTag.getCurrentPosition().getLatitude();
+            if (lon >= minLon && lon <= maxLon && lat >= minLat && lat <= maxLat) {
+                consumer.accept(geoTag);
+            }
+        });
+    }
+
+    /**
+     * Feeds the tags inside the box to the consumer in the order of the index, skipping the first offset and stopping
+     * after limit, and returns how many are inside the box. Unlike {@link #within(Box, Pageable)} nothing is sorted
+     * or collected, so it takes no more memory for a big page than for a small one. The consumer gets copies.
+     */
+    public long forEachWithin(Box box, long offset, int limit, Consumer<GeoTag> consumer) {
+        long[] seen = new long[1];
+        forEachWithin(box, geoTag -> {
+            long index = seen[0]++;
+            if (index >= offset && index - offset < limit) {
+                consumer.accept(copy(geoTag));
+            }
+        });
+        return seen[0];
+    }
+
+    /**
+     * Tags within the distance of the point, nearest first.
+     */
+    public Page<GeoTag> nearby(Point point, Distance distance, Pageable pageable) {
+        double maxAngle = distance.getNormalizedValue();
+        double latDelta = Math.toDegrees(maxAngle);
+        double cosLat = Math.cos(Math.toRadians(point.getY()));
+        double lonDelta = cosLat > 1e-9 ? Math.min(180, latDelta / cosLat) : 180;
+
+        // GeoTag equality comes from ResourceSupport links, so key the distances by id
+        List<GeoTag> matches = new ArrayList<>();
+        Map<String, Double> angles = new HashMap<>();
+        forEachCandidate(point.getX() - lonDelta, point.getY() - latDelta, point.getX() + lonDelta, point.getY() + latDelta, geoTag -> {
+            double angle = angularDistance(point.getX(), point.getY(), geoTag.getCurrentPosition().getLongitude(), geoTag.getCurrentPosition().getLatitude());
+            if (angle <= maxAngle) {
+                matches.add(geoTag);
+                angles.put(geoTag.getGeoId(), angle);
+            }
+        });
+        matches.sort(Comparator.comparing(geoTag -> angles.get(geoTag.getGeoId())));
+
+        return toPage(matches, pageable);
+    }
+
+    private void forEachCandidate(double minLon, double minLat, double maxLon, double maxLat, Consumer<GeoTag> consumer) {
+        // A window over the antimeridian goes on from the other side
+        List<long[]> columnRanges = new ArrayList<>(2);
+        if (maxLon - minLon >= 360) {
+            columnRanges.add(new long[] {column(-180), column(180)});
+        }
+        else if (minLon < -180) {
+            columnRanges.add(new long[] {column(-180), column(Math.min(180, maxLon))});
+            columnRanges.add(new long[] {column(minLon + 360), column(180)});
+        }
+        else if (maxLon > 180) {
+            columnRanges.add(new long[] {column(minLon), column(180)});
+            columnRanges.add(new long[] {column(-180), column(maxLon - 360)});
+        }
+        else {
+            columnRanges.add(new long[] {column(minLon), column(maxLon)});
+        }
+        // Two ranges that share a column would give its tags twice
+        if (columnRanges.size() == 2 && columnRanges.get(0)[0] <= columnRanges.get(1)[1] && columnRanges.get(1)[0] <= columnRanges.get(0)[1]) {
+            columnRanges = Collections.singletonList(new long[] {column(-180), column(180)});
+        }
+        long y0 = row(Math.max(-90, minLat));
+        long y1 = row(Math.min(90, maxLat));
+
+        long touched = 0;
+        for (long[] range : columnRanges) {
+            touched += Math.max(0, range[1] - range[0] + 1) * (y1 - y0 + 1);
+        }
+
+        // A big box touches more cells than there are occupied ones, so walk the occupied ones instead
+        Collection<Set<String>> candidates;
+        if (touched > cells.size()) {
+            candidates = cells.values();
+        }
+        else {
+            candidates = new ArrayList<>();
+            for (long[] range : columnRanges) {
+                for (long y = y0; y <= y1; y++) {
+                    for (long x = range[0]; x <= range[1]; x++) {
+                        Set<String> cell = cells.get(y * columns + x);
+                        if (cell != null) {
+                            candidates.add(cell);
+                        }
+                    }
+                }
+            }
+        }
+
+        for (Set<String> cell : candidates) {
+            for (String id : cell) {
+                GeoTag geoTag = entries.get(id);
+                if (geoTag != null) {
+                    consumer.accept(geoTag);
+                }
+            }
+        }
+    }
+
+    private Page<GeoTag> toPage(List<GeoTag> matches, Pageable pageable) {
+        int from = Math.min(pageable.getOffset(), matches.size());
+        int to = Math.min(from + pageable.getPageSize(), matches.size());
+
+        List<GeoTag> content = new ArrayList<>(to - from);
+        for (GeoTag geoTag : matches.subList(from, to)) {
+            content.add(copy(geoTag));
+        }
+        return new PageImpl<GeoTag>(content, pageable, matches.size());
+    }
+
+    private void put(GeoTag geoTag) {
+        remove(geoTag.getGeoId());
+
+        GeoPosition position = geoTag.getCurrentPosition();
+        if (position == null || position.getPosition() == null || position.getPosition().length != 2) {
+            return;
+        }
+
+        GeoTag snapshot = copy(geoTag);
+        entries.put(snapshot.getGeoId(), snapshot);
+        cells.computeIfAbsent(cellKey(position.getLongitude(), position.getLatitude()), key -> ConcurrentHashMap.newKeySet())
+                .add(snapshot.getGeoId());
+    }
+
+    private void remove(String id) {
+        GeoTag previous = entries.remove(id);
+        if (previous != null) {
+            long key = cellKey(previous.getCurrentPosition().getLongitude(), previous.getCurrentPosition().getLatitude());
+            Set<String> cell = cells.get(key);
+            if (cell != null) {
+                cell.remove(id);
+                if (cell.isEmpty()) {
+                    cells.remove(key);
+                }
+            }
+        }
+    }
+
+    private long cellKey(double lon, double lat) {
+        return row(lat) * columns + column(lon);
+    }
+
+    private long column(double lon) {
+        return (long) Math.floor((lon + 180) / cellSize);
+    }
+
+    private long row(double lat) {
+        return (long) Math.floor((lat + 90) / cellSize);
+    }
+
+    /**
+     * Central angle in radians between two points, by the haversine formula.
+     */
+    static double angularDistance(double lon1, double lat1, double lon2, double lat2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double a = Math.pow(Math.sin(dLat / 2), 2)
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.pow(Math.sin(dLon / 2), 2);
+        return 2 * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    /**
+     * The index keeps its own history-free copies, so callers are free to mask what they get back. The version is
+     * kept for the ETag.
+     */
+    private static GeoTag copy(GeoTag geoTag) {
+        GeoPosition source = geoTag.getCurrentPosition();
+        GeoPosition position = new GeoPosition(source.getPosId(), source.getUserId(), source.getUserEmail(),
+                source.getLongitude(), source.getLatitude(), source.getDate());
+        position.setUserDisplayName(source.getUserDisplayName());
+        position.setUserComment(source.getUserComment());
+
+        GeoTag copy = new GeoTag();
+        copy.setGeoId(geoTag.getGeoId());
+        copy.setUrn(geoTag.getUrn());
+        copy.setSticky(geoTag.isSticky());
+        copy.setDirty(geoTag.isDirty());
+        copy.setVersion(geoTag.getVersion());
+        copy.setCurrentPosition(position);
+        copy.setUserPositions(null);
+        return copy;
+    }
+}
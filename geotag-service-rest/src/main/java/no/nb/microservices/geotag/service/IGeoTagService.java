@@ -1,9 +1,18 @@
 package no.nb.microservices.geotag.service;
 
+import no.nb.microservices.geotag.model.GeoCluster;
 import no.nb.microservices.geotag.model.GeoPosition;
 import no.nb.microservices.geotag.model.GeoQuery;
 import no.nb.microservices.geotag.model.GeoTag;
+import no.nb.microservices.geotag.model.GeoTagBatchResult;
+import no.nb.microservices.geotag.model.GeoTagLookup;
+import no.nb.microservices.geotag.model.GeoTagLookupResult;
 import org.springframework.data.domain.Page;
+import org.springframework.data.geo.Box;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
 
 /**
  * Created by andreasb on 25.06.15.
@@ -11,8 +20,14 @@ import org.springframework.data.domain.Page;
 public interface IGeoTagService {
     Page<GeoTag> query(GeoQuery geoQuery, int page, int size, String[] expand);
 
+    GeoTagSlice scroll(GeoQuery geoQuery, String cursor, int size, String[] expand);
+
+    void export(GeoQuery geoQuery, String[] expand, Consumer<GeoTag> consumer);
+
     GeoTag findOne(String id, String[] expand);
 
+    GeoTagLookupResult lookup(GeoTagLookup lookup, String[] expand);
+
     GeoPosition findOnePosition(String id, String posId);
 
     void delete(String id);
@@ -21,11 +36,28 @@ public interface IGeoTagService {
 
     GeoTag save(GeoTag geoTag);
 
+    GeoTag save(GeoTag geoTag, Long expectedVersion);
+
+    void saveAll(Iterator<GeoTag> geoTags, Consumer<GeoTagBatchResult> results);
+
     GeoPosition savePosition(String id, GeoPosition geoPosition);
 
     GeoTag update(String id, GeoTag geoTag);
 
+    GeoTag update(String id, GeoTag geoTag, Long expectedVersion);
+
     Page<GeoTag> nearby(GeoQuery geoQuery, int page, int size);
 
     Page<GeoTag> within(GeoQuery geoQuery, int page, int size);
+
+    /**
+     * Like within, but the tags are fed to the consumer as they are read. The page that is returned has no content,
+     * only the totals. From the spatial index the tags come in the order of the index rather than by id, so that
+     * they need not be collected and sorted first.
+     */
+    Page<GeoTag> within(GeoQuery geoQuery, int page, int size, Consumer<GeoTag> consumer);
+
+    List<GeoCluster> clusters(Box box, int zoom);
+
+    int migratePositionHistory(int limit);
 }
@@ -0,0 +1,40 @@
+package no.nb.microservices.geotag.service;
+
+import no.nb.microservices.geotag.model.GeoTagChange;
+
+/**
+ * Message on the {@link InvalidationBus} telling that an instance wrote to a geotag.
+ */
+public class Invalidation {
+
+    private final String origin;
+    private final GeoTagChange.Operation operation;
+    private final String geoTagId;
+    private final String urn;
+
+    public Invalidation(String origin, GeoTagChange.Operation operation, String geoTagId, String urn) {
+        this.origin = origin;
+        this.operation = operation;
+        this.geoTagId = geoTagId;
+        this.urn = urn;
+    }
+
+    /**
+     * Id of the instance that did the write
+     */
+    public String getOrigin() {
+        return origin;
+    }
+
+    public GeoTagChange.Operation getOperation() {
+        return operation;
+    }
+
+    public String getGeoTagId() {
+        return geoTagId;
+    }
+
+    public String getUrn() {
+        return urn;
+    }
+}
@@ -0,0 +1,17 @@
+package no.nb.microservices.geotag.service;
+
+import java.util.function.Consumer;
+
+/**
+ * Carries {@link Invalidation}s between the instances of the service, so each can evict what it has cached about a
+ * geotag another instance wrote to.
+ */
+public interface InvalidationBus {
+
+    /**
+     * Sends the invalidation to every subscriber, on every instance, including the sender's own.
+     */
+    void publish(Invalidation invalidation);
+
+    void subscribe(Consumer<Invalidation> subscriber);
+}
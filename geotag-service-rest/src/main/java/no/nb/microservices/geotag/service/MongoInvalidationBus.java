@@ -0,0 +1,149 @@
+package no.nb.microservices.geotag.service;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.Bytes;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import no.nb.microservices.geotag.model.GeoTagChange;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.mongodb.core.CollectionOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Invalidation bus on a capped Mongo collection that every instance follows with a tailable cursor, so no broker is
+ * needed beyond the database the instances already share. Messages written while an instance is down are not
+ * replayed, its caches start out empty anyway.
+ */
+public class MongoInvalidationBus implements InvalidationBus {
+
+    static final String COLLECTION = "GeoTagInvalidation";
+
+    private static final Logger LOG = LoggerFactory.getLogger(MongoInvalidationBus.class);
+    private static final long RETRY_MILLIS = 1000;
+
+    private final MongoTemplate mongoTemplate;
+    private final long collectionSize;
+    private final List<Consumer<Invalidation>> subscribers = new CopyOnWriteArrayList<>();
+    private volatile boolean running;
+    private Thread tailer;
+
+    public MongoInvalidationBus(MongoTemplate mongoTemplate, long collectionSize) {
+        this.mongoTemplate = mongoTemplate;
+        this.collectionSize = collectionSize;
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!mongoTemplate.collectionExists(COLLECTION)) {
+            try {
+                mongoTemplate.createCollection(COLLECTION, new CollectionOptions(collectionSize, null, true));
+            } catch (MongoException e) {
+                // Another instance created it first
+                LOG.debug("Could not create " + COLLECTION, e);
+            }
+        }
+
+        running = true;
+        tailer = new Thread(this::tail, "geotag-invalidation");
+        tailer.setDaemon(true);
+        tailer.start();
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        if (tailer != null) {
+            tailer.interrupt();
+        }
+    }
+
+    @Override
+    public void publish(Invalidation invalidation) {
+        mongoTemplate.getCollection(COLLECTION).insert(BasicDBObjectBuilder.start()
+                .add("origin", invalidation.getOrigin())
+                .add("operation", invalidation.getOperation().name())
+                .add("geoTagId", invalidation.getGeoTagId())
+                .add("urn", invalidation.getUrn())
+                .get());
+    }
+
+    @Override
+    public void subscribe(Consumer<Invalidation> subscriber) {
+        subscribers.add(subscriber);
+    }
+
+    private void tail() {
+        DBCollection collection = mongoTemplate.getCollection(COLLECTION);
+        Object lastId = newestId(collection);
+
+        while (running) {
+            // The ids come from the clients, so their order says nothing across instances. Only the insertion order
+            // of the capped collection does, and a new cursor goes through it again up to the last message seen.
+            // When that one has been overwritten meanwhile everything is delivered, as evicting twice does no harm.
+            boolean skipping = lastId != null && collection.findOne(new BasicDBObject("_id", lastId)) != null;
+            DBCursor cursor = collection.find()
+                    .sort(new BasicDBObject("$natural", 1))
+                    .addOption(Bytes.QUERYOPTION_TAILABLE)
+                    .addOption(Bytes.QUERYOPTION_AWAITDATA);
+            try {
+                while (running && cursor.hasNext()) {
+                    DBObject message = cursor.next();
+                    Object id = message.get("_id");
+                    if (skipping) {
+                        skipping = !id.equals(lastId);
+                        continue;
+                    }
+                    lastId = id;
+                    deliver(message);
+                }
+            } catch (MongoException | IllegalStateException e) {
+                if (running) {
+                    LOG.warn("Lost the invalidation cursor, reconnecting", e);
+                }
+            } finally {
+                cursor.close();
+            }
+
+            // The cursor dies at once on an empty collection, and after connection errors
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private Object newestId(DBCollection collection) {
+        DBCursor cursor = collection.find().sort(new BasicDBObject("$natural", -1)).limit(1);
+        try {
+            return cursor.hasNext() ? cursor.next().get("_id") : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void deliver(DBObject message) {
+        Invalidation invalidation = new Invalidation((String) message.get("origin"),
+                GeoTagChange.Operation.valueOf((String) message.get("operation")),
+                (String) message.get("geoTagId"),
+                (String) message.get("urn"));
+        for (Consumer<Invalidation> subscriber : subscribers) {
+            try {
+                subscriber.accept(invalidation);
+            } catch (RuntimeException e) {
+                LOG.warn("Failed to apply invalidation of " + invalidation.getGeoTagId(), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package no.nb.microservices.geotag.service;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal Mapbox Vector Tile (spec 2.1) writer for a single layer of points with string properties. Writes the
+ * protobuf wire format directly, so no generated classes are needed.
+ */
+public class VectorTileEncoder {
+
+    public static final int EXTENT = 4096;
+
+    private static final int VERSION = 2;
+    private static final int POINT = 1;
+    private static final int MOVE_TO = 1;
+
+    private final String layerName;
+    private final Map<String, Integer> keys = new LinkedHashMap<>();
+    private final Map<String, Integer> values = new LinkedHashMap<>();
+    private final List<byte[]> features = new ArrayList<>();
+
+    public VectorTileEncoder(String layerName) {
+        this.layerName = layerName;
+    }
+
+    /**
+     * Adds a point given in tile coordinates, 0 to {@link #EXTENT} from the top left corner.
+     */
+    public void addPoint(int x, int y, Map<String, String> properties) {
+        ProtobufWriter tags = new ProtobufWriter();
+        for (Map.Entry<String, String> property : properties.entrySet()) {
+            if (property.getValue() != null) {
+                tags.writeVarint(index(keys, property.getKey()));
+                tags.writeVarint(index(values, property.getValue()));
+            }
+        }
+
+        ProtobufWriter geometry = new ProtobufWriter();
+        geometry.writeVarint((MOVE_TO & 0x7) | (1 << 3));
+        geometry.writeVarint(zigZag(x));
+        geometry.writeVarint(zigZag(y));
+
+        ProtobufWriter feature = new ProtobufWriter();
+        feature.writeBytes(2, tags.toByteArray());
+        feature.writeVarint(3, POINT);
+        feature.writeBytes(4, geometry.toByteArray());
+        features.add(feature.toByteArray());
+    }
+
+    public int size() {
+        return features.size();
+    }
+
+    public byte[] encode() {
+        ProtobufWriter layer = new ProtobufWriter();
+        layer.writeVarint(15, VERSION);
+        layer.writeBytes(1, layerName.getBytes(StandardCharsets.UTF_8));
+        for (byte[] feature : features) {
+            layer.writeBytes(2, feature);
+        }
+        for (String key : keys.keySet()) {
+            layer.writeBytes(3, key.getBytes(StandardCharsets.UTF_8));
+        }
+        for (String value : values.keySet()) {
+            ProtobufWriter stringValue = new ProtobufWriter();
+            stringValue.writeBytes(1, value.getBytes(StandardCharsets.UTF_8));
+            layer.writeBytes(4, stringValue.toByteArray());
+        }
+        layer.writeVarint(5, EXTENT);
+
+        ProtobufWriter tile = new ProtobufWriter();
+        tile.writeBytes(3, layer.toByteArray());
+        return tile.toByteArray();
+    }
+
+    private static int index(Map<String, Integer> table, String entry) {
+        Integer index = table.get(entry);
+        if (index == null) {
+            index = table.size();
+            table.put(entry, index);
+        }
+        return index;
+    }
+
+    private static int zigZag(int n) {
+        return (n << 1) ^ (n >> 31);
+    }
+
+    private static class ProtobufWriter {
+        private static final int VARINT = 0;
+        private static final int LENGTH_DELIMITED = 2;
+
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        void writeVarint(int field, long value) {
+            writeVarint((field << 3) | VARINT);
+            writeVarint(value);
+        }
+
+        void writeBytes(int field, byte[] bytes) {
+            writeVarint((field << 3) | LENGTH_DELIMITED);
+            writeVarint(bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+
+        void writeVarint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                out.write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            out.write((int) value);
+        }
+
+        byte[] toByteArray() {
+            return out.toByteArray();
+        }
+    }
+}
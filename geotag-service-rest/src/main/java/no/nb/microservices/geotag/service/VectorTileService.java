@@ -0,0 +1,190 @@
+package no.nb.microservices.geotag.service;
+
+import no.nb.microservices.geotag.config.ApplicationSettings;
+import no.nb.microservices.geotag.domain.InvalidRequestException;
+import no.nb.microservices.geotag.model.GeoPosition;
+import no.nb.microservices.geotag.model.GeoTag;
+import no.nb.microservices.geotag.repository.GeoTagRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationListener;
+import org.springframework.data.geo.Box;
+import org.springframework.data.geo.Point;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Renders geotag points as Mapbox Vector Tiles. Rendered tiles are kept in a bounded LRU cache, and a tile is
+ * evicted when a write moves, adds or removes a point inside it.
+ */
+@Service
+public class VectorTileService implements ApplicationListener<GeoTagEvent> {
+
+    public static final String LAYER_NAME = "geotags";
+
+    public static final int MAX_ZOOM = 22;
+
+    private final GeoTagRepository geoTagRepository;
+    private final GeoTagSpatialIndex spatialIndex;
+    private final Map<TileKey, CachedTile> cache;
+    private long generation = 0;
+
+    @Autowired
+    public VectorTileService(GeoTagRepository geoTagRepository, GeoTagSpatialIndex spatialIndex, ApplicationSettings applicationSettings) {
+        this.geoTagRepository = geoTagRepository;
+        this.spatialIndex = spatialIndex;
+
+        int cacheSize = applicationSettings.getTileCacheSize();
+        this.cache = new LinkedHashMap<TileKey, CachedTile>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<TileKey, CachedTile> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    public byte[] tile(int z, int x, int y) {
+        if (z < 0 || z > MAX_ZOOM || x < 0 || y < 0 || x >= (1 << z) || y >= (1 << z)) {
+            throw new InvalidRequestException("No such tile " + z + "/" + x + "/" + y);
+        }
+
+        TileKey key = new TileKey(z, x, y);
+        long renderedAt;
+        synchronized (cache) {
+            CachedTile cached = cache.get(key);
+            if (cached != null) {
+                return cached.bytes;
+            }
+            renderedAt = generation;
+        }
+
+        CachedTile rendered = render(key);
+        synchronized (cache) {
+            // A write during rendering may have been missed, so only cache if there was none
+            if (renderedAt == generation) {
+                cache.put(key, rendered);
+            }
+        }
+        return rendered.bytes;
+    }
+
+    @Override
+    public void onApplicationEvent(GeoTagEvent event) {
+        GeoPosition position = event.getGeoTag() != null ? event.getGeoTag().getCurrentPosition() : null;
+        boolean hasPosition = position != null && position.getPosition() != null && position.getPosition().length == 2;
+
+        synchronized (cache) {
+            generation++;
+            for (Iterator<Map.Entry<TileKey, CachedTile>> iterator = cache.entrySet().iterator(); iterator.hasNext(); ) {
+                Map.Entry<TileKey, CachedTile> entry = iterator.next();
+                if (entry.getValue().ids.contains(event.getGeoTagId())
+                        || (hasPosition && entry.getKey().contains(position.getLongitude(), position.getLatitude()))) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    private CachedTile render(TileKey key) {
+        VectorTileEncoder encoder = new VectorTileEncoder(LAYER_NAME);
+        Set<String> ids = new HashSet<>();
+        double scale = 1 << key.z;
+
+        Consumer<GeoTag> collector = geoTag -> {
+            double lon = geoTag.getCurrentPosition().getLongitude();
+            double lat = geoTag.getCurrentPosition().getLatitude();
+            int px = (int) Math.round((lonToX(lon) * scale - key.x) * VectorTileEncoder.EXTENT);
+            int py = (int) Math.round((latToY(lat) * scale - key.y) * VectorTileEncoder.EXTENT);
+
+            Map<String, String> properties = new LinkedHashMap<>();
+            properties.put("id", geoTag.getGeoId());
+            properties.put("urn", geoTag.getUrn());
+            encoder.addPoint(px, py, properties);
+            ids.add(geoTag.getGeoId());
+        };
+
+        Box box = key.toBox();
+        if (spatialIndex.isReady()) {
+            spatialIndex.forEachWithin(box, collector);
+        }
+        else {
+            geoTagRepository.streamPositions(box, collector);
+        }
+
+        return new CachedTile(encoder.encode(), ids);
+    }
+
+    /**
+     * Web mercator x in [0, 1] from west to east
+     */
+    static double lonToX(double lon) {
+        return (lon + 180) / 360;
+    }
+
+    /**
+     * Web mercator y in [0, 1] from north to south
+     */
+    static double latToY(double lat) {
+        double radians = Math.toRadians(lat);
+        return (1 - Math.log(Math.tan(radians) + 1 / Math.cos(radians)) / Math.PI) / 2;
+    }
+
+    static double xToLon(double x) {
+        return x * 360 - 180;
+    }
+
+    static double yToLat(double y) {
+        return Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1 - 2 * y))));
+    }
+
+    private static class CachedTile {
+        private final byte[] bytes;
+        private final Set<String> ids;
+
+        CachedTile(byte[] bytes, Set<String> ids) {
+            this.bytes = bytes;
+            this.ids = ids;
+        }
+    }
+
+    private static class TileKey {
+        private final int z;
+        private final int x;
+        private final int y;
+
+        TileKey(int z, int x, int y) {
+            this.z = z;
+            this.x = x;
+            this.y = y;
+        }
+
+        Box toBox() {
+            double scale = 1 << z;
+            return new Box(new Point(xToLon(x / scale), yToLat((y + 1) / scale)),
+                    new Point(xToLon((x + 1) / scale), yToLat(y / scale)));
+        }
+
+        boolean contains(double lon, double lat) {
+            double scale = 1 << z;
+            return (int) Math.floor(lonToX(lon) * scale) == x && (int) Math.floor(latToY(lat) * scale) == y;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof TileKey)) {
+                return false;
+            }
+            TileKey other = (TileKey) o;
+            return z == other.z && x == other.x && y == other.y;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(z, x, y);
+        }
+    }
+}
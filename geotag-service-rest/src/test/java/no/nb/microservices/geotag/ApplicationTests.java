@@ -2,6 +2,9 @@ package no.nb.microservices.geotag;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mongodb.BasicDBObject;
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.DBObject;
 import com.mongodb.Mongo;
 import com.mongodb.MongoClient;
 import de.flapdoodle.embed.mongo.MongodExecutable;
@@ -12,12 +15,23 @@ import de.flapdoodle.embed.mongo.config.Net;
 import de.flapdoodle.embed.mongo.distribution.Version;
 import de.flapdoodle.embed.process.runtime.Network;
 import no.nb.microservices.geotag.config.ApplicationSettings;
+import no.nb.microservices.geotag.metrics.Timings;
 import no.nb.microservices.geotag.model.GeoPosition;
+import no.nb.microservices.geotag.model.GeoQuery;
 import no.nb.microservices.geotag.model.GeoTag;
+import no.nb.microservices.geotag.repository.GeoTagChangeRepository;
+import no.nb.microservices.geotag.repository.GeoTagIndexes;
 import no.nb.microservices.geotag.repository.GeoTagRepository;
+import no.nb.microservices.geotag.repository.GeoTagRepositoryImpl;
 import no.nb.microservices.geotag.rest.assembler.GeoTagResourceAssembler;
+import no.nb.microservices.geotag.rest.async.QueryExecutor;
 import no.nb.microservices.geotag.rest.controller.GeoTagController;
+import no.nb.microservices.geotag.service.GeoTagCache;
 import no.nb.microservices.geotag.service.GeoTagService;
+import no.nb.microservices.geotag.service.GeoTagSlice;
+import no.nb.microservices.geotag.service.GeoTagSpatialIndex;
+import no.nb.microservices.geotag.service.InvalidationBus;
+import no.nb.microservices.geotag.service.LoopbackInvalidationBus;
 import no.nb.microservices.geotag.service.NBUserService;
 import no.nb.nbsecurity.NBUserDetails;
 import org.junit.After;
@@ -28,10 +42,12 @@ import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.mongodb.config.AbstractMongoConfiguration;
+import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.repository.config.EnableMongoRepositories;
 import org.springframework.http.MediaType;
 import org.springframework.security.core.GrantedAuthority;
@@ -41,6 +57,8 @@ import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import org.springframework.test.context.web.WebAppConfiguration;
 import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.ResultActions;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
 import org.springframework.test.web.servlet.setup.MockMvcBuilders;
 
 import java.net.UnknownHostException;
@@ -49,9 +67,14 @@ import java.util.*;
 import static org.hamcrest.Matchers.hasSize;
 import static org.hamcrest.Matchers.notNullValue;
 import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.when;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 @RunWith(SpringJUnit4ClassRunner.class)
@@ -73,6 +96,27 @@ public class ApplicationTests {
     @Mock
     private NBUserService nbUserService;
 
+    @Autowired
+    private ApplicationEventPublisher eventPublisher;
+
+    @Autowired
+    private GeoTagChangeRepository geoTagChangeRepository;
+
+    @Autowired
+    private GeoTagSpatialIndex spatialIndex;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private GeoTagCache geoTagCache;
+
+    @Autowired
+    private Timings timings;
+
+    @Autowired
+    private GeoTagIndexes geoTagIndexes;
+
     private ObjectMapper mapper;
     private GeoTagController geoTagController;
     private MockMvc mockMvc;
@@ -106,14 +150,15 @@ public class ApplicationTests {
     public void setupTest() throws Exception {
         MockitoAnnotations.initMocks(this);
         mapper = new ObjectMapper();
-        geoTagService = new GeoTagService(geoTagRepository, nbUserService);
-        geoTagController = new GeoTagController(nbUserService, new GeoTagResourceAssembler(applicationSettings), applicationSettings, geoTagService);
+        geoTagService = new GeoTagService(geoTagRepository, nbUserService, eventPublisher, spatialIndex, geoTagCache);
+        geoTagController = new GeoTagController(nbUserService, new GeoTagResourceAssembler(applicationSettings, timings), applicationSettings, geoTagService, new QueryExecutor(applicationSettings));
         mockMvc = MockMvcBuilders.standaloneSetup(geoTagController).build();
     }
 
     @After
     public void teardown() throws Exception {
         geoTagRepository.deleteAll();
+        geoTagChangeRepository.deleteAll();
     }
 
     @Test
@@ -139,11 +184,11 @@ public class ApplicationTests {
             tag.setGeoId(id);
         }
 
-        mockMvc.perform(get("/v1/geotags"))
+        performAsync(get("/v1/geotags"))
                 .andExpect(status().isOk())
                 .andExpect(jsonPath("$.content", hasSize(2)));
 
-        mockMvc.perform(get("/v1/geotags")
+        performAsync(get("/v1/geotags")
                 .param("urn", tag1.getUrn()))
                 .andExpect(status().isOk())
                 .andExpect(jsonPath("$.content", hasSize(1)))
@@ -152,25 +197,51 @@ public class ApplicationTests {
                 .andExpect(jsonPath("$.content[0].currentPosition.userId", is(USER_ID)))
                 .andExpect(jsonPath("$.content[0].currentPosition.date", notNullValue()));
 
-        mockMvc.perform(get("/v1/geotags")
+        performAsync(get("/v1/geotags")
+                .param("urn", tag1.getUrn())
+                .param("fields", "urn,currentPosition.position"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.content[0].urn", is(tag1.getUrn())))
+                .andExpect(jsonPath("$.content[0].currentPosition.position", hasSize(2)))
+                .andExpect(jsonPath("$.content[0].currentPosition.userId").doesNotExist());
+
+        performAsync(get("/v1/geotags")
+                .param("size", "1")
+                .param("totals", "none"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.content", hasSize(1)))
+                .andExpect(jsonPath("$.page").doesNotExist());
+
+        performAsync(get("/v1/within")
+                .param("lon", "9.000")
+                .param("lat", "61.000")
+                .param("secondLon", "13.000")
+                .param("secondLat", "67.000")
+                .param("size", "1")
+                .param("totals", "estimate"))
+                .andExpect(jsonPath("$.content", hasSize(1)))
+                .andExpect(jsonPath("$.page.totalElements", is(2)))
+                .andExpect(status().isOk());
+
+        performAsync(get("/v1/geotags")
                 .param("user", USER_ID))
                 .andExpect(status().isOk());
 
-        mockMvc.perform(get("/v1/nearby")
+        performAsync(get("/v1/nearby")
                 .param("lon", "9.1487565")
                 .param("lat", "65.9954774")
                 .param("maxDistance", "10"))
                 .andExpect(jsonPath("$.content", hasSize(1)))
                 .andExpect(status().isOk());
 
-        mockMvc.perform(get("/v1/nearby")
+        performAsync(get("/v1/nearby")
                 .param("lon", "9.1487565")
                 .param("lat", "68.9954774")
                 .param("maxDistance", "1"))
                 .andExpect(jsonPath("$.content", hasSize(0)))
                 .andExpect(status().isOk());
 
-        mockMvc.perform(get("/v1/within")
+        performAsync(get("/v1/within")
                 .param("lon", "12.000")
                 .param("lat", "61.000")
                 .param("secondLon", "16.000")
@@ -178,7 +249,7 @@ public class ApplicationTests {
                 .andExpect(jsonPath("$.content", hasSize(1)))
                 .andExpect(status().isOk());
 
-        mockMvc.perform(get("/v1/within")
+        performAsync(get("/v1/within")
                 .param("lon", "9.000")
                 .param("lat", "61.500")
                 .param("secondLon", "16.000")
@@ -186,7 +257,7 @@ public class ApplicationTests {
                 .andExpect(jsonPath("$.content", hasSize(0)))
                 .andExpect(status().isOk());
 
-        mockMvc.perform(get("/v1/within")
+        performAsync(get("/v1/within")
                 .param("lon", "9.000")
                 .param("lat", "61.000")
                 .param("secondLon", "13.000")
@@ -194,6 +265,18 @@ public class ApplicationTests {
                 .andExpect(jsonPath("$.content", hasSize(2)))
                 .andExpect(status().isOk());
 
+        // Big pages are written while they are read, in the same shape
+        performAsync(get("/v1/within")
+                .param("lon", "9.000")
+                .param("lat", "61.000")
+                .param("secondLon", "13.000")
+                .param("secondLat", "67.000")
+                .param("size", String.valueOf(applicationSettings.getStreamPageSize())))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.content", hasSize(2)))
+                .andExpect(jsonPath("$.page.totalElements", is(2)))
+                .andExpect(jsonPath("$.links[0].rel", is("self")));
+
         GeoTag geotag1 = new GeoTag("", "URN:NBN:no-nb_digifoto_20131218_00056_NB_WF_LUR_041262", new GeoPosition(USER_ID, 12.835818529129028, 66.40039201638066, new Date()));
 
         mockMvc.perform(put("/v1/geotags/{tagid}", tag1.getGeoId())
@@ -201,7 +284,7 @@ public class ApplicationTests {
                 .content(mapper.convertValue(geotag1, JsonNode.class).toString()))
                 .andExpect(status().isOk());
 
-        mockMvc.perform(get("/v1/geotags/{tagid}", tag1.getGeoId()))
+        performAsync(get("/v1/geotags/{tagid}", tag1.getGeoId()))
                 .andExpect(status().isOk())
                 .andExpect(jsonPath("$.urn", is(geotag1.getUrn())))
                 .andExpect(jsonPath("$.id", is(tag1.getGeoId())))
@@ -209,6 +292,9 @@ public class ApplicationTests {
                 .andExpect(jsonPath("$.currentPosition.date", notNullValue()))
                 .andExpect(jsonPath("$.currentPosition.position[0]", is(12.835818529129028)))
                 .andExpect(jsonPath("$.currentPosition.position[1]", is(66.40039201638066)));
+
+        // Two creates and one update
+        assertEquals(3, geoTagChangeRepository.count());
     }
 
     @Test
@@ -234,12 +320,12 @@ public class ApplicationTests {
             tag.setGeoId(id);
         }
 
-        mockMvc.perform(get("/v1/geotags")
+        performAsync(get("/v1/geotags")
                 .param("urn", "dummyurn"))
                 .andExpect(status().isOk())
                 .andExpect(jsonPath("$.content", hasSize(0)));
 
-        mockMvc.perform(get("/v1/geotags")
+        performAsync(get("/v1/geotags")
                 .param("user", "dummyuser"))
                 .andExpect(status().isOk())
                 .andExpect(jsonPath("$.content", hasSize(0)));
@@ -248,7 +334,7 @@ public class ApplicationTests {
         NBUserDetails nbUserDetails2 = new NBUserDetails("sessionID1234", UUID.fromString(USER_ID_2), "myusername", "mypassword", true, true, true, true, true, permissions);
         when(nbUserService.getNBUser()).thenReturn(nbUserDetails2);
 
-        mockMvc.perform(get("/v1/geotags")
+        performAsync(get("/v1/geotags")
                 .param("urn", tag1.getUrn()))
                 .andExpect(status().isOk())
                 .andExpect(jsonPath("$.content", hasSize(1)))
@@ -271,9 +357,186 @@ public class ApplicationTests {
                 .andExpect(status().isNotFound());
     }
 
+    @Test
+    public void integrationTest3() throws Exception {
+        List<GrantedAuthority> permissions = new ArrayList<GrantedAuthority>();
+        permissions.add(new SimpleGrantedAuthority("ROLE_USER"));
+        NBUserDetails nbUserDetails1 = new NBUserDetails("sessionID1234", UUID.fromString(USER_ID), "myusername", "mypassword", true, true, true, true, true, permissions);
+        NBUserDetails nbUserDetails2 = new NBUserDetails("sessionID1234", UUID.fromString(USER_ID_2), "myusername", "mypassword", true, true, true, true, true, permissions);
+        String urn = "URN:NBN:no-nb_foto_NF.W_50121";
+
+        // User 1 tags twice, user 2 once, user 1 again
+        when(nbUserService.getNBUser()).thenReturn(nbUserDetails1);
+        GeoTag created = geoTagService.save(new GeoTag(null, urn, new GeoPosition(null, 9.0, 66.0, null)));
+        geoTagService.save(new GeoTag(null, urn, new GeoPosition(null, 9.5, 66.5, null)));
+        when(nbUserService.getNBUser()).thenReturn(nbUserDetails2);
+        GeoTag secondUser = geoTagService.save(new GeoTag(null, urn, new GeoPosition(null, 10.0, 67.0, null)));
+        when(nbUserService.getNBUser()).thenReturn(nbUserDetails1);
+        geoTagService.save(new GeoTag(null, urn, new GeoPosition(null, 11.0, 68.0, null)));
+
+        GeoTag stored = geoTagRepository.findOne(created.getGeoId());
+        assertEquals(USER_ID, stored.getCurrentPosition().getUserId());
+        assertEquals(11.0, stored.getCurrentPosition().getLongitude(), 1e-9);
+        assertEquals(1, stored.getUserPositions().size());
+        assertEquals(USER_ID_2, stored.getUserPositions().get(0).getUserId());
+
+        // Deleting the current position brings back the one from user 2
+        geoTagService.deletePosition(created.getGeoId(), stored.getCurrentPosition().getPosId());
+
+        stored = geoTagRepository.findOne(created.getGeoId());
+        assertEquals(secondUser.getCurrentPosition().getPosId(), stored.getCurrentPosition().getPosId());
+        assertEquals(0, stored.getUserPositions().size());
+
+        // Positions added by admins can be deleted again
+        GeoPosition added = geoTagService.savePosition(created.getGeoId(), new GeoPosition(USER_ID, 12.0, 69.0, new Date()));
+        assertEquals(1, geoTagRepository.findOne(created.getGeoId()).getUserPositions().size());
+        geoTagService.deletePosition(created.getGeoId(), added.getPosId());
+        assertEquals(0, geoTagRepository.findOne(created.getGeoId()).getUserPositions().size());
+    }
+
+    @Test
+    public void integrationTest4() throws Exception {
+        ApplicationSettings settings = new ApplicationSettings();
+        settings.setSeparatePositionHistory(true);
+        GeoTagRepositoryImpl separateHistory = new GeoTagRepositoryImpl(mongoTemplate, settings, timings);
+        separateHistory.createHistoryIndex();
+
+        // A tag written before the history was moved out
+        GeoTag legacy = new GeoTag(null, "URN:NBN:no-nb_foto_NF.W_50121", new GeoPosition("pos3", USER_ID, null, 11.0, 68.0, new Date(3000)));
+        legacy.addUserPosition(new GeoPosition("pos1", USER_ID_2, null, 9.0, 66.0, new Date(1000)));
+        legacy.addUserPosition(new GeoPosition(null, USER_ID_2, null, 10.0, 67.0, new Date(2000)));
+        legacy = geoTagRepository.save(legacy);
+        String id = legacy.getGeoId();
+
+        assertEquals(1, separateHistory.migrateHistory(100));
+        assertEquals(0, separateHistory.migrateHistory(100));
+        assertEquals(0, geoTagRepository.findOne(id).getUserPositions().size());
+
+        GeoTag loaded = geoTagRepository.findOne(id);
+        separateHistory.loadHistory(Arrays.asList(loaded));
+        assertEquals(2, loaded.getUserPositions().size());
+        assertEquals("pos1", loaded.getUserPositions().get(0).getPosId());
+        assertEquals(10.0, loaded.getUserPositions().get(1).getLongitude(), 1e-9);
+
+        // New positions go to the history collection and are the last ones
+        assertNotNull(separateHistory.pushPosition(id, new GeoPosition("pos4", USER_ID, null, 12.0, 69.0, new Date(4000))));
+        assertEquals(0, geoTagRepository.findOne(id).getUserPositions().size());
+        assertEquals("pos4", separateHistory.findOneWithLastPosition(id).getUserPositions().get(0).getPosId());
+
+        separateHistory.pullPosition(id, "pos1");
+        separateHistory.pullUserPositions(id, USER_ID);
+        loaded = geoTagRepository.findOne(id);
+        separateHistory.loadHistory(Arrays.asList(loaded));
+        assertEquals(1, loaded.getUserPositions().size());
+        assertEquals(USER_ID_2, loaded.getUserPositions().get(0).getUserId());
+
+        separateHistory.deleteHistory(id);
+        loaded = geoTagRepository.findOne(id);
+        separateHistory.loadHistory(Arrays.asList(loaded));
+        assertEquals(0, loaded.getUserPositions().size());
+    }
+
+    @Test
+    public void scrollTest() throws Exception {
+        List<GrantedAuthority> permissions = new ArrayList<GrantedAuthority>();
+        permissions.add(new SimpleGrantedAuthority("ROLE_USER"));
+        NBUserDetails nbUserDetails = new NBUserDetails("sessionID1234", UUID.fromString(USER_ID), "myusername", "mypassword", true, true, true, true, true, permissions);
+        when(nbUserService.getNBUser()).thenReturn(nbUserDetails);
+
+        // Dated tags, two on the same date, and tags without a date, which sort last
+        Set<String> saved = new HashSet<>();
+        for (Date date : Arrays.asList(new Date(3000), new Date(2000), new Date(2000), null, null)) {
+            GeoTag tag = geoTagRepository.save(new GeoTag(null, "URN:NBN:no-nb_foto_NF.W_50121", new GeoPosition(USER_ID, 9.0, 66.0, date)));
+            saved.add(tag.getGeoId());
+        }
+
+        List<String> scrolled = new ArrayList<>();
+        String cursor = null;
+        do {
+            GeoTagSlice slice = geoTagService.scroll(new GeoQuery(), cursor, 2, null);
+            for (GeoTag tag : slice.getContent()) {
+                scrolled.add(tag.getGeoId());
+            }
+            cursor = slice.getNextCursor();
+        } while (cursor != null);
+
+        // Every tag comes back, and only once
+        assertEquals(saved.size(), scrolled.size());
+        assertEquals(saved, new HashSet<>(scrolled));
+    }
+
+    @Test
+    public void createWithVersionTest() throws Exception {
+        List<GrantedAuthority> permissions = new ArrayList<GrantedAuthority>();
+        permissions.add(new SimpleGrantedAuthority("ROLE_USER"));
+        NBUserDetails nbUserDetails = new NBUserDetails("sessionID1234", UUID.fromString(USER_ID), "myusername", "mypassword", true, true, true, true, true, permissions);
+        when(nbUserService.getNBUser()).thenReturn(nbUserDetails);
+
+        // A version left over in the body does not stop a new tag
+        GeoTag tag = new GeoTag("", "URN:NBN:no-nb_foto_NF.W_50121", new GeoPosition(USER_ID, 9.052734375, 66.04758417711061, new Date()));
+        tag.setVersion(3L);
+
+        mockMvc.perform(post("/v1/geotags")
+                .content(mapper.convertValue(tag, JsonNode.class).toString())
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isCreated());
+
+        assertEquals(1, geoTagRepository.count());
+    }
+
+    @Test
+    public void replaceSeparateHistoryTest() throws Exception {
+        ApplicationSettings settings = new ApplicationSettings();
+        settings.setSeparatePositionHistory(true);
+        GeoTagRepositoryImpl separateHistory = new GeoTagRepositoryImpl(mongoTemplate, settings, timings);
+        separateHistory.createHistoryIndex();
+
+        GeoTag tag = new GeoTag(null, "URN:NBN:no-nb_foto_NF.W_50121", new GeoPosition("pos2", USER_ID, null, 10.0, 67.0, new Date(2000)));
+        tag = geoTagRepository.save(tag);
+        String id = tag.getGeoId();
+        assertNotNull(separateHistory.pushPosition(id, new GeoPosition("pos1", USER_ID_2, null, 9.0, 66.0, new Date(1000))));
+
+        // A PUT sends the whole tag, its history included
+        GeoTag put = new GeoTag(id, tag.getUrn(), new GeoPosition("pos4", USER_ID, null, 12.0, 69.0, new Date(4000)));
+        put.addUserPosition(new GeoPosition("pos3", USER_ID_2, null, 11.0, 68.0, new Date(3000)));
+        assertTrue(separateHistory.replace(put, geoTagRepository.findOne(id).getVersion()));
+        assertEquals(1, put.getUserPositions().size());
+
+        // The history stays out of the document, and the one from the client replaces the one there was
+        GeoTag stored = geoTagRepository.findOne(id);
+        assertTrue(stored.getUserPositions() == null || stored.getUserPositions().isEmpty());
+        separateHistory.loadHistory(Arrays.asList(stored));
+        assertEquals("pos4", stored.getCurrentPosition().getPosId());
+        assertEquals(1, stored.getUserPositions().size());
+        assertEquals("pos3", stored.getUserPositions().get(0).getPosId());
+
+        // A stale version changes nothing
+        assertFalse(separateHistory.replace(new GeoTag(id, tag.getUrn(), new GeoPosition("pos5", USER_ID, null, 13.0, 70.0, new Date(5000))), tag.getVersion()));
+        stored = geoTagRepository.findOne(id);
+        separateHistory.loadHistory(Arrays.asList(stored));
+        assertEquals(1, stored.getUserPositions().size());
+
+        separateHistory.deleteHistory(id);
+    }
+
+    @Test
+    public void indexesTest() throws Exception {
+        assertEquals(0, geoTagIndexes.missing().size());
+
+        // Each filter is answered from its index, in the order of the page
+        for (String field : Arrays.asList("urn", "currentPosition.userId", "dirty", "sticky")) {
+            DBObject explain = mongoTemplate.getCollection("GeoTag")
+                    .find(new BasicDBObject(field, "x"))
+                    .sort(BasicDBObjectBuilder.start().add("currentPosition.date", -1).add("_id", -1).get())
+                    .explain();
+            assertFalse(field, explain.toString().contains("COLLSCAN") || explain.toString().contains("BasicCursor"));
+            assertFalse(field, explain.toString().contains("\"SORT\"") || explain.toString().contains("\"scanAndOrder\" : true"));
+        }
+    }
+
     @Configuration
     @EnableMongoRepositories
-    @ComponentScan(basePackageClasses = { GeoTagRepository.class, GeoTagService.class })
+    @ComponentScan(basePackageClasses = { GeoTagRepository.class, GeoTagService.class, Timings.class })
     static class MongoConfiguration extends AbstractMongoConfiguration {
 
         @Override
@@ -301,6 +564,20 @@ public class ApplicationTests {
             settings.setFotoContentUrl("http://www.nb.no/foto/nb/{sesamid}");
             return settings;
         }
+
+        @Bean
+        public InvalidationBus invalidationBus() {
+            return new LoopbackInvalidationBus();
+        }
     }
 
+    /**
+     * The geo queries answer through a DeferredResult, so the response comes in the async dispatch.
+     */
+    private ResultActions performAsync(MockHttpServletRequestBuilder requestBuilder) throws Exception {
+        MvcResult result = mockMvc.perform(requestBuilder)
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        return mockMvc.perform(asyncDispatch(result));
+    }
 }
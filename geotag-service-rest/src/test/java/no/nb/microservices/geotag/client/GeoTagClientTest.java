@@ -0,0 +1,141 @@
+package no.nb.microservices.geotag.client;
+
+import no.nb.microservices.geotag.config.ApplicationSettings;
+import no.nb.microservices.geotag.config.TestContext;
+import no.nb.microservices.geotag.metrics.Timings;
+import no.nb.microservices.geotag.model.GeoPosition;
+import no.nb.microservices.geotag.model.GeoQuery;
+import no.nb.microservices.geotag.model.GeoTag;
+import no.nb.microservices.geotag.rest.assembler.GeoTagResourceAssembler;
+import no.nb.microservices.geotag.rest.async.QueryExecutor;
+import no.nb.microservices.geotag.rest.controller.GeoTagController;
+import no.nb.microservices.geotag.service.GeoTagService;
+import no.nb.microservices.geotag.service.NBUserService;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.hateoas.PagedResources;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.mock.http.client.MockClientHttpRequest;
+import org.springframework.mock.http.client.MockClientHttpResponse;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.request;
+
+/**
+ * GeoTagClient against GeoTagController, with the Smile bodies going through MockMvc instead of a server.
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class GeoTagClientTest {
+
+    @Mock
+    private GeoTagService geoTagService;
+
+    @Mock
+    private NBUserService nbUserService;
+
+    private MockMvc mockMvc;
+
+    private GeoTagClient client;
+
+    private List<GeoTag> geoTagList = new ArrayList<GeoTag>();
+
+    @Before
+    public void setupTest() throws Exception {
+        MockitoAnnotations.initMocks(this);
+
+        ApplicationSettings applicationSettings = new ApplicationSettings();
+        GeoTagController geoTagController = new GeoTagController(nbUserService, new GeoTagResourceAssembler(applicationSettings, new Timings()),
+                applicationSettings, geoTagService, new QueryExecutor(applicationSettings));
+        mockMvc = MockMvcBuilders.standaloneSetup(geoTagController)
+                .setMessageConverters(new MappingJackson2HttpMessageConverter(), new SmileHttpMessageConverter())
+                .setHandlerExceptionResolvers(TestContext.createExceptionResolver())
+                .build();
+
+        RestTemplate restTemplate = new RestTemplate(Collections.singletonList(new SmileHttpMessageConverter()));
+        restTemplate.setRequestFactory(mockMvcRequestFactory());
+        client = new GeoTagClient(restTemplate, "http://geotag-service");
+
+        GeoTag tag1 = new GeoTag("13aa8f23e4b0666a514604fa", "URN:NBN:no-nb_foto_NF.W_50121", new GeoPosition("a62eb09d-dbf2-495a-8872-7d16e6911296", 9.052734375, 66.04758417711061, new Date()));
+        GeoTag tag2 = new GeoTag("539fedvf3786e7e7fa64f47c", "URN:NBN:no-nb_digifoto_20140228_00094_NB_WF_EDK_129136", new GeoPosition("a62eb09d-dbf2-495a-8872-7d16e6911296", 2.052734375, 61.04758417711061, new Date()));
+
+        geoTagList.addAll(Arrays.asList(tag1, tag2));
+    }
+
+    @Test
+    public void queryRoundTrip() throws Exception {
+        when(geoTagService.query(any(GeoQuery.class), eq(1), eq(2), any(String[].class)))
+                .thenReturn(new PageImpl<GeoTag>(geoTagList, new PageRequest(1, 2), 5));
+
+        GeoQuery query = new GeoQuery();
+        query.setUrn(geoTagList.get(0).getUrn());
+        PagedResources<GeoTag> page = client.query(query, 1, 2);
+
+        assertEquals(2, page.getContent().size());
+        GeoTag first = page.getContent().iterator().next();
+        assertEquals(geoTagList.get(0).getGeoId(), first.getGeoId());
+        assertEquals(geoTagList.get(0).getUrn(), first.getUrn());
+        assertEquals(9.052734375, first.getCurrentPosition().getLongitude(), 1e-9);
+        assertTrue(first.getLinks().isEmpty());
+        assertEquals(5, page.getMetadata().getTotalElements());
+        assertEquals(1, page.getMetadata().getNumber());
+
+        ArgumentCaptor<GeoQuery> sent = ArgumentCaptor.forClass(GeoQuery.class);
+        verify(geoTagService).query(sent.capture(), eq(1), eq(2), any(String[].class));
+        assertEquals(geoTagList.get(0).getUrn(), sent.getValue().getUrn());
+    }
+
+    /**
+     * Sends the RestTemplate's requests to MockMvc, and waits out the DeferredResult the queries answer with.
+     */
+    private ClientHttpRequestFactory mockMvcRequestFactory() {
+        return (uri, httpMethod) -> new MockClientHttpRequest(httpMethod, uri) {
+            @Override
+            protected ClientHttpResponse executeInternal() throws IOException {
+                try {
+                    MvcResult result = mockMvc.perform(request(httpMethod, uri).headers(getHeaders())).andReturn();
+                    if (result.getRequest().isAsyncStarted()) {
+                        result = mockMvc.perform(asyncDispatch(result)).andReturn();
+                    }
+                    MockHttpServletResponse servletResponse = result.getResponse();
+                    MockClientHttpResponse response = new MockClientHttpResponse(servletResponse.getContentAsByteArray(),
+                            HttpStatus.valueOf(servletResponse.getStatus()));
+                    if (servletResponse.getContentType() != null) {
+                        response.getHeaders().setContentType(MediaType.parseMediaType(servletResponse.getContentType()));
+                    }
+                    return response;
+                } catch (Exception e) {
+                    throw new IOException(e);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,62 @@
+package no.nb.microservices.geotag.metrics;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.*;
+
+public class TimingsTests {
+
+    private Timings timings;
+
+    @Before
+    public void setup() {
+        timings = new Timings();
+    }
+
+    @Test
+    public void snapshotTest() {
+        timings.stop("mongo.find", timings.start());
+        timings.stop("mongo.find", timings.start());
+        timings.stop("mongo.count", timings.start());
+
+        Map<String, Map<String, Object>> snapshot = timings.snapshot();
+
+        assertEquals(2L, snapshot.get("mongo.find").get("count"));
+        assertEquals(1L, snapshot.get("mongo.count").get("count"));
+        assertTrue(snapshot.get("mongo.find").containsKey("p999"));
+    }
+
+    @Test
+    public void timedProxyTest() {
+        // Test data
+        Supplier<String> target = () -> "URN:NBN:no-nb_foto_NF.W_50121";
+
+        // Tests
+        @SuppressWarnings("unchecked")
+        Supplier<String> timed = timings.timed(Supplier.class, target, "service");
+
+        // Asserts
+        assertEquals("URN:NBN:no-nb_foto_NF.W_50121", timed.get());
+        assertEquals(1L, timings.snapshot().get("service.get").get("count"));
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void timedProxyThrowsOriginalExceptionTest() {
+        Supplier<String> target = () -> {
+            throw new NoSuchElementException("GeoTag not found");
+        };
+        @SuppressWarnings("unchecked")
+        Supplier<String> timed = timings.timed(Supplier.class, target, "service");
+
+        try {
+            timed.get();
+        } finally {
+            assertEquals(1L, timings.snapshot().get("service.get").get("count"));
+        }
+    }
+}
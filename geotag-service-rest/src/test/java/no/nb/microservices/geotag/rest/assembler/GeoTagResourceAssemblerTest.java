@@ -0,0 +1,87 @@
+package no.nb.microservices.geotag.rest.assembler;
+
+import no.nb.microservices.geotag.config.ApplicationSettings;
+import no.nb.microservices.geotag.metrics.Timings;
+import no.nb.microservices.geotag.model.GeoPosition;
+import no.nb.microservices.geotag.model.GeoQuery;
+import no.nb.microservices.geotag.model.GeoTag;
+import no.nb.microservices.geotag.rest.controller.GeoTagController;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.hateoas.Link;
+import org.springframework.hateoas.PagedResources;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.springframework.hateoas.mvc.ControllerLinkBuilder.linkTo;
+import static org.springframework.hateoas.mvc.ControllerLinkBuilder.methodOn;
+
+public class GeoTagResourceAssemblerTest {
+
+    private GeoTagResourceAssembler assembler;
+
+    @Before
+    public void setup() {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/v1/geotags");
+        request.setServerName("geotag.example.com");
+        request.setServerPort(8080);
+        RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(request));
+        assembler = new GeoTagResourceAssembler(new ApplicationSettings(), new Timings());
+    }
+
+    @After
+    public void cleanup() {
+        RequestContextHolder.resetRequestAttributes();
+    }
+
+    @Test
+    public void linksSameAsLinkBuilderTest() {
+        // Test data
+        GeoQuery query = new GeoQuery();
+        query.setUrn("URN:NBN:no-nb_foto_NF.W_50121");
+        query.setUser("b62eb09d-dbf2-495a-8872-7d16e6911296");
+        String[] expand = new String[] {"userPositions"};
+        List<GeoTag> geoTags = Arrays.asList(geoTag("13aa8f23e4b0666a514604fa"), geoTag("539fedvf3786e7e7fa64f47c"));
+
+        // Tests
+        PagedResources<GeoTag> resources = assembler.toResource(new GeoTagPage(new PageImpl<>(geoTags, new PageRequest(3, 2), 20), query, expand));
+
+        // Asserts
+        assertEquals(linkTo(GeoTagController.class).slash("13aa8f23e4b0666a514604fa").withSelfRel(), geoTags.get(0).getId());
+        assertEquals(linkTo(GeoTagController.class).slash("539fedvf3786e7e7fa64f47c").withSelfRel(), geoTags.get(1).getId());
+        assertEquals(Arrays.asList(
+                linkTo(methodOn(GeoTagController.class).getTags(query, 3, 2, expand)).withSelfRel(),
+                linkTo(methodOn(GeoTagController.class).getTags(query, 2, 2, expand)).withRel("prev"),
+                linkTo(methodOn(GeoTagController.class).getTags(query, 4, 2, expand)).withRel("next"),
+                linkTo(methodOn(GeoTagController.class).getTags(query, 0, 2, expand)).withRel("first"),
+                linkTo(methodOn(GeoTagController.class).getTags(query, 9, 2, expand)).withRel("last")), resources.getLinks());
+    }
+
+    @Test
+    public void nearbyLinksSameAsLinkBuilderTest() {
+        // Test data
+        GeoQuery query = new GeoQuery();
+        query.setLat(59.91);
+        query.setLon(10.75);
+        query.setMaxDistance(1000.0);
+
+        // Tests
+        PagedResources<GeoTag> resources = assembler.toResource(new GeoTagPage(new PageImpl<>(Arrays.asList(geoTag("13aa8f23e4b0666a514604fa")), new PageRequest(0, 10), 1), query));
+
+        // Asserts
+        assertEquals(Arrays.asList(linkTo(methodOn(GeoTagController.class).getNearbyTags(query, 0, 10)).withSelfRel()), resources.getLinks());
+    }
+
+    private GeoTag geoTag(String id) {
+        return new GeoTag(id, "URN:NBN:no-nb_foto_NF.W_50121", new GeoPosition("b62eb09d-dbf2-495a-8872-7d16e6911296", "example@example.com", 9.052734375, 66.04758417711061, new Date()));
+    }
+}
@@ -0,0 +1,130 @@
+package no.nb.microservices.geotag.rest.async;
+
+import no.nb.microservices.geotag.config.ApplicationSettings;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.security.authentication.TestingAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class QueryExecutorTests {
+
+    @After
+    public void cleanup() {
+        SecurityContextHolder.clearContext();
+        RequestContextHolder.resetRequestAttributes();
+    }
+
+    @Test
+    public void runsWithCallersContextTest() throws Exception {
+        // Test data
+        SecurityContextHolder.getContext().setAuthentication(new TestingAuthenticationToken("b62eb09d-dbf2-495a-8872-7d16e6911296", null));
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/v1/nearby");
+        RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(request));
+        QueryExecutor queryExecutor = new QueryExecutor(settings(2, 10));
+
+        // Tests
+        DeferredResult<String> result = queryExecutor.submit(() -> Thread.currentThread().getName() + " "
+                + SecurityContextHolder.getContext().getAuthentication().getPrincipal() + " "
+                + ((ServletRequestAttributes) RequestContextHolder.getRequestAttributes()).getRequest().getRequestURI());
+
+        // Asserts
+        assertEquals("geotag-query-1 b62eb09d-dbf2-495a-8872-7d16e6911296 /v1/nearby", await(result));
+    }
+
+    @Test
+    public void runsOnCallerWithoutThreadsTest() {
+        QueryExecutor queryExecutor = new QueryExecutor(settings(0, 0));
+
+        DeferredResult<String> result = queryExecutor.submit(() -> Thread.currentThread().getName());
+
+        assertEquals(Thread.currentThread().getName(), result.getResult());
+    }
+
+    @Test
+    public void exceptionIsErrorResultTest() {
+        QueryExecutor queryExecutor = new QueryExecutor(settings(0, 0));
+
+        DeferredResult<String> result = queryExecutor.submit(() -> {
+            throw new NoSuchElementException("Geotag not found");
+        });
+
+        assertTrue(result.getResult() instanceof NoSuchElementException);
+    }
+
+    @Test
+    public void rejectsWhenFullTest() throws Exception {
+        QueryExecutor queryExecutor = new QueryExecutor(settings(1, 1));
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        try {
+            queryExecutor.submit(() -> {
+                started.countDown();
+                awaitQuietly(release);
+                return "running";
+            });
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            queryExecutor.submit(() -> "waiting");
+
+            try {
+                queryExecutor.submit(() -> "refused");
+                fail("Expected the third query to be refused");
+            } catch (TaskRejectedException e) {
+                assertTrue(e.getMessage().contains("1 query threads"));
+            }
+        } finally {
+            release.countDown();
+            queryExecutor.shutdown();
+        }
+    }
+
+    @Test
+    public void limitsStreamedQueriesTest() {
+        ApplicationSettings settings = settings(0, 0);
+        settings.setStreamedQueries(1);
+        QueryExecutor queryExecutor = new QueryExecutor(settings);
+
+        // Streamed results take no query thread, they are set at once
+        assertEquals("first", queryExecutor.submitStreamed("first").getResult());
+
+        try {
+            queryExecutor.submitStreamed("second");
+            fail("Expected the second streamed query to be refused while the first is written");
+        } catch (TaskRejectedException e) {
+            assertTrue(e.getMessage().contains("1 streamed queries"));
+        }
+    }
+
+    private static ApplicationSettings settings(int threads, int queueSize) {
+        ApplicationSettings settings = new ApplicationSettings();
+        settings.setQueryThreads(threads);
+        settings.setQueryQueueSize(queueSize);
+        return settings;
+    }
+
+    private static Object await(DeferredResult<?> result) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        result.setResultHandler(value -> done.countDown());
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        return result.getResult();
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
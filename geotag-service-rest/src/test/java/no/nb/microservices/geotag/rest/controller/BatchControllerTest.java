@@ -0,0 +1,110 @@
+package no.nb.microservices.geotag.rest.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import no.nb.microservices.geotag.model.GeoTag;
+import no.nb.microservices.geotag.model.GeoTagBatchResult;
+import no.nb.microservices.geotag.rest.stream.NdjsonMapper;
+import no.nb.microservices.geotag.service.GeoTagService;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@RunWith(MockitoJUnitRunner.class)
+public class BatchControllerTest {
+
+    @Mock
+    private GeoTagService geoTagService;
+
+    private MockMvc mockMvc;
+
+    private List<GeoTag> received = new ArrayList<>();
+
+    @Before
+    public void setupTest() throws Exception {
+        MockitoAnnotations.initMocks(this);
+
+        mockMvc = MockMvcBuilders.standaloneSetup(new BatchController(geoTagService, new NdjsonMapper(new ObjectMapper()))).build();
+
+        // Mock response
+        doAnswer(invocation -> {
+            Iterator<GeoTag> geoTags = (Iterator<GeoTag>) invocation.getArguments()[0];
+            Consumer<GeoTagBatchResult> results = (Consumer<GeoTagBatchResult>) invocation.getArguments()[1];
+            int index = 0;
+            while (geoTags.hasNext()) {
+                GeoTag geoTag = geoTags.next();
+                received.add(geoTag);
+                results.accept(new GeoTagBatchResult(index++, geoTag.getUrn(), "id" + index, GeoTagBatchResult.Status.CREATED, null));
+            }
+            return null;
+        }).when(geoTagService).saveAll(any(Iterator.class), any(Consumer.class));
+    }
+
+    @Test
+    public void saveTagsFromArray() throws Exception {
+        String body = "[{\"urn\":\"URN:NBN:no-nb_foto_NF.W_50121\",\"currentPosition\":{\"position\":[9.05,66.04]}},"
+                + "{\"urn\":\"URN:NBN:no-nb_digifoto_20140228_00094_NB_WF_EDK_129136\",\"currentPosition\":{\"position\":[2.05,61.04]},\"links\":[]}]";
+
+        MvcResult result = mockMvc.perform(post("/v1/geotags/batch").contentType(MediaType.APPLICATION_JSON).content(body))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType("application/x-ndjson"))
+                .andReturn();
+
+        String[] lines = result.getResponse().getContentAsString().split("\n");
+        assertEquals(2, lines.length);
+        assertTrue(lines[1].startsWith("{"));
+        assertTrue(lines[1].contains("\"index\":1"));
+        assertTrue(lines[1].contains("CREATED"));
+        assertEquals("URN:NBN:no-nb_digifoto_20140228_00094_NB_WF_EDK_129136", received.get(1).getUrn());
+    }
+
+    @Test
+    public void saveTagsFromNdjson() throws Exception {
+        String body = "{\"urn\":\"URN:NBN:no-nb_foto_NF.W_50121\",\"currentPosition\":{\"position\":[9.05,66.04]}}\n"
+                + "{\"urn\":\"URN:NBN:no-nb_digifoto_20140228_00094_NB_WF_EDK_129136\",\"currentPosition\":{\"position\":[2.05,61.04]}}\n";
+
+        MvcResult result = mockMvc.perform(post("/v1/geotags/batch").contentType(MediaType.valueOf("application/x-ndjson")).content(body))
+                .andExpect(status().isOk())
+                .andReturn();
+
+        assertEquals(2, result.getResponse().getContentAsString().split("\n").length);
+        assertEquals(9.05, received.get(0).getCurrentPosition().getLongitude(), 1e-9);
+    }
+
+    @Test
+    public void saveTagsWithMalformedItem() throws Exception {
+        String body = "{\"urn\":\"URN:NBN:no-nb_foto_NF.W_50121\",\"currentPosition\":{\"position\":[9.05,66.04]}}\n"
+                + "{\"urn\":\"URN:NBN:no-nb_foto_NF.W_50122\",\"currentPosition\":{\"position\":[9.05,}}\n"
+                + "{\"urn\":\"URN:NBN:no-nb_digifoto_20140228_00094_NB_WF_EDK_129136\",\"currentPosition\":{\"position\":[2.05,61.04]}}\n";
+
+        MvcResult result = mockMvc.perform(post("/v1/geotags/batch").contentType(MediaType.valueOf("application/x-ndjson")).content(body))
+                .andExpect(status().isOk())
+                .andReturn();
+
+        String[] lines = result.getResponse().getContentAsString().split("\n");
+        assertEquals(2, lines.length);
+        assertTrue(lines[0].contains("CREATED"));
+        assertTrue(lines[1].contains("\"index\":1"));
+        assertTrue(lines[1].contains("FAILED"));
+        assertEquals(1, received.size());
+    }
+}
@@ -0,0 +1,82 @@
+package no.nb.microservices.geotag.rest.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import no.nb.microservices.geotag.model.GeoPosition;
+import no.nb.microservices.geotag.model.GeoQuery;
+import no.nb.microservices.geotag.model.GeoTag;
+import no.nb.microservices.geotag.rest.json.MaskingModule;
+import no.nb.microservices.geotag.rest.stream.NdjsonMapper;
+import no.nb.microservices.geotag.service.AccessContext;
+import no.nb.microservices.geotag.service.GeoTagService;
+import no.nb.microservices.geotag.service.NBUserService;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ExportControllerTest {
+
+    @Mock
+    private GeoTagService geoTagService;
+
+    @Mock
+    private NBUserService nbUserService;
+
+    private MockMvc mockMvc;
+
+    private List<GeoTag> geoTagList = new ArrayList<GeoTag>();
+
+    @Before
+    public void setupTest() throws Exception {
+        MockitoAnnotations.initMocks(this);
+
+        mockMvc = MockMvcBuilders.standaloneSetup(new ExportController(geoTagService, nbUserService,
+                new NdjsonMapper(new ObjectMapper().registerModule(new MaskingModule(() -> AccessContext.ANONYMOUS))))).build();
+
+        GeoTag tag1 = new GeoTag("13aa8f23e4b0666a514604fa", "URN:NBN:no-nb_foto_NF.W_50121", new GeoPosition("a62eb09d-dbf2-495a-8872-7d16e6911296", "example@example.com", 9.052734375, 66.04758417711061, new Date()));
+        GeoTag tag2 = new GeoTag("539fedvf3786e7e7fa64f47c", "URN:NBN:no-nb_digifoto_20140228_00094_NB_WF_EDK_129136", new GeoPosition("a62eb09d-dbf2-495a-8872-7d16e6911296", 2.052734375, 61.04758417711061, new Date()));
+
+        geoTagList.addAll(Arrays.asList(tag1, tag2));
+    }
+
+    @Test
+    public void exportTags() throws Exception {
+        doAnswer(invocation -> {
+            Consumer<GeoTag> consumer = (Consumer<GeoTag>) invocation.getArguments()[2];
+            geoTagList.forEach(consumer);
+            return null;
+        }).when(geoTagService).export(any(GeoQuery.class), any(String[].class), any(Consumer.class));
+
+        MvcResult result = mockMvc.perform(get("/v1/geotags/export"))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType("application/x-ndjson"))
+                .andReturn();
+
+        String[] lines = result.getResponse().getContentAsString().split("\n");
+        assertEquals(2, lines.length);
+        assertTrue(lines[0].contains(geoTagList.get(0).getUrn()));
+        assertTrue(lines[1].contains(geoTagList.get(1).getUrn()));
+        assertTrue(lines[1].startsWith("{"));
+        assertTrue(!lines[0].contains("links"));
+        // Nobody is logged in
+        assertTrue(!lines[0].contains("example@example.com"));
+        assertTrue(!lines[0].contains("userPositions"));
+    }
+}
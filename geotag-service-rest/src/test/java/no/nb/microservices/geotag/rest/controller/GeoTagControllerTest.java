@@ -1,13 +1,26 @@
 package no.nb.microservices.geotag.rest.controller;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import no.nb.microservices.geotag.client.SmileHttpMessageConverter;
 import no.nb.microservices.geotag.config.ApplicationSettings;
 import no.nb.microservices.geotag.config.TestContext;
+import no.nb.microservices.geotag.metrics.Timings;
+import no.nb.microservices.geotag.model.GeoCluster;
 import no.nb.microservices.geotag.model.GeoPosition;
 import no.nb.microservices.geotag.model.GeoQuery;
 import no.nb.microservices.geotag.model.GeoTag;
+import no.nb.microservices.geotag.model.GeoTagLookup;
+import no.nb.microservices.geotag.model.GeoTagLookupResult;
+import no.nb.microservices.geotag.repository.EstimatedPage;
 import no.nb.microservices.geotag.repository.GeoTagRepository;
+import no.nb.microservices.geotag.repository.Totals;
 import no.nb.microservices.geotag.rest.assembler.GeoTagResourceAssembler;
+import no.nb.microservices.geotag.rest.async.QueryExecutor;
+import no.nb.microservices.geotag.rest.json.MaskingModule;
+import no.nb.microservices.geotag.service.AccessContext;
 import no.nb.microservices.geotag.service.GeoTagService;
+import no.nb.microservices.geotag.service.GeoTagSlice;
 import no.nb.microservices.geotag.service.NBUserService;
 import no.nb.nbsecurity.NBUserDetails;
 import org.junit.Before;
@@ -17,21 +30,39 @@ import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 import org.mockito.runners.MockitoJUnitRunner;
-import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.geo.Box;
+import org.springframework.data.geo.Point;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.ResultActions;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
 import org.springframework.test.web.servlet.setup.MockMvcBuilders;
 
 import java.util.*;
+import java.util.function.Consumer;
 
+import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.hasSize;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 /**
@@ -52,8 +83,7 @@ public class GeoTagControllerTest {
     @Mock
     private NBUserService nbUserService;
 
-    @Autowired
-    private ApplicationSettings applicationSettings;
+    private ApplicationSettings applicationSettings = new ApplicationSettings();
 
     private GeoTagController geoTagController;
 
@@ -70,7 +100,7 @@ public class GeoTagControllerTest {
         NBUserDetails nbUserDetails = new NBUserDetails("sessionID1234", UUID.fromString(USER_ID), "myusername", "mypassword", true, true, true, true, true, permissions);
         when(nbUserService.getNBUser()).thenReturn(nbUserDetails);
 
-        geoTagController = new GeoTagController(nbUserService, new GeoTagResourceAssembler(applicationSettings), applicationSettings, geoTagService);
+        geoTagController = new GeoTagController(nbUserService, new GeoTagResourceAssembler(applicationSettings, new Timings()), applicationSettings, geoTagService, new QueryExecutor(applicationSettings));
 
         mockMvc = MockMvcBuilders.standaloneSetup(geoTagController).setHandlerExceptionResolvers(TestContext.createExceptionResolver()).build();
 
@@ -85,7 +115,7 @@ public class GeoTagControllerTest {
     public void getAllTags() throws Exception {
         when(geoTagService.query(any(GeoQuery.class), anyInt(), anyInt(), any(String[].class))).thenReturn(new PageImpl<GeoTag>(geoTagList));
 
-        mockMvc.perform(get("/v1/geotags"))
+        performAsync(get("/v1/geotags"))
                 .andExpect(status().isOk())
                 .andExpect(jsonPath("$.content", hasSize(3)))
                 .andExpect(jsonPath("$.content[1].id").value(geoTagList.get(1).getGeoId()));
@@ -100,12 +130,29 @@ public class GeoTagControllerTest {
 
         when(geoTagService.query(any(GeoQuery.class), anyInt(), anyInt(), any(String[].class))).thenReturn(new PageImpl<GeoTag>(Arrays.asList(tag1)));
 
-        mockMvc.perform(get("/v1/geotags")
+        performAsync(get("/v1/geotags")
                 .param("urn", tag1.getUrn()))
                 .andExpect(jsonPath("$.content", hasSize(1)))
                 .andExpect(status().isOk());
     }
 
+    @Test
+    public void getTags_WithoutTotals() throws Exception {
+        // A full first page, and the extra tag that was fetched told there is more
+        EstimatedPage<GeoTag> page = new EstimatedPage<GeoTag>(geoTagList.subList(0, 2), new PageRequest(0, 2), 3, Totals.NONE);
+
+        when(geoTagService.query(any(GeoQuery.class), anyInt(), anyInt(), any(String[].class))).thenReturn(page);
+
+        performAsync(get("/v1/geotags")
+                .param("size", "2")
+                .param("totals", "none"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.content", hasSize(2)))
+                .andExpect(jsonPath("$.page").doesNotExist())
+                .andExpect(jsonPath("$.links[?(@.rel == 'next')]", hasSize(1)))
+                .andExpect(jsonPath("$.links[?(@.rel == 'last')]", hasSize(0)));
+    }
+
     @Test
     public void getTagByUrn_NotFound() throws Exception {
         GeoTag tag1 = geoTagList.get(0);
@@ -115,7 +162,7 @@ public class GeoTagControllerTest {
 
         when(geoTagService.query(eq(query), anyInt(), anyInt(), any(String[].class))).thenReturn(new PageImpl<GeoTag>(Arrays.asList(tag1)));
 
-        mockMvc.perform(get("/v1/geotags")
+        performAsync(get("/v1/geotags")
                 .param("urn", "URN:NBN:no-nb_film123tull"))
                 .andExpect(status().isOk())
                 .andExpect(jsonPath("$.content", hasSize(0)));
@@ -127,7 +174,7 @@ public class GeoTagControllerTest {
 
         when(geoTagService.findOne(eq(tag1.getGeoId()), any(String[].class))).thenReturn(tag1);
 
-        mockMvc.perform(get("/v1/geotags/{id}", tag1.getGeoId()))
+        performAsync(get("/v1/geotags/{id}", tag1.getGeoId()))
                 .andExpect(status().isOk())
                 .andExpect(jsonPath("$.id").value(tag1.getGeoId()));
     }
@@ -138,7 +185,268 @@ public class GeoTagControllerTest {
 
         when(geoTagService.findOne(anyString(), any(String[].class))).thenThrow(new NoSuchElementException("Geotag not found"));
 
-        mockMvc.perform(get("/v1/geotags/{id}", "dummyID"))
+        performAsync(get("/v1/geotags/{id}", "dummyID"))
                 .andExpect(status().isNotFound());
     }
+
+    @Test
+    public void getTagByID_ETag() throws Exception {
+        GeoTag tag1 = geoTagList.get(0);
+        tag1.setVersion(7L);
+
+        when(geoTagService.findOne(eq(tag1.getGeoId()), any(String[].class))).thenReturn(tag1);
+
+        performAsync(get("/v1/geotags/{id}", tag1.getGeoId()))
+                .andExpect(status().isOk())
+                .andExpect(header().string("ETag", "\"7\""));
+
+        performAsync(get("/v1/geotags/{id}", tag1.getGeoId()).header("If-None-Match", "\"7\""))
+                .andExpect(status().isNotModified())
+                .andExpect(content().string(""));
+
+        performAsync(get("/v1/geotags/{id}", tag1.getGeoId()).header("If-None-Match", "\"6\""))
+                .andExpect(status().isOk());
+
+        // The ETag the client got with a gzip body
+        performAsync(get("/v1/geotags/{id}", tag1.getGeoId()).header("If-None-Match", "\"7-gzip\""))
+                .andExpect(status().isNotModified());
+    }
+
+    @Test
+    public void lookupTags() throws Exception {
+        GeoTag tag1 = geoTagList.get(0);
+        GeoTag tag2 = geoTagList.get(1);
+        GeoTagLookupResult lookupResult = new GeoTagLookupResult();
+        lookupResult.getIds().put(tag1.getGeoId(), tag1);
+        lookupResult.getIds().put("333fedvf3796e7e7fa64f50v", null);
+        lookupResult.getUrns().put(tag2.getUrn(), Arrays.asList(tag2));
+        String body = "{\"ids\":[\"" + tag1.getGeoId() + "\",\"333fedvf3796e7e7fa64f50v\"],\"urns\":[\"" + tag2.getUrn() + "\"]}";
+
+        when(geoTagService.lookup(any(GeoTagLookup.class), any(String[].class))).thenReturn(lookupResult);
+
+        performAsync(post("/v1/geotags/lookup").contentType(MediaType.APPLICATION_JSON).content(body))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.ids." + tag1.getGeoId() + ".id").value(tag1.getGeoId()))
+                .andExpect(jsonPath("$.ids." + tag1.getGeoId() + ".links[0].href").value(containsString("/v1/" + tag1.getGeoId())))
+                .andExpect(jsonPath("$.urns['" + tag2.getUrn() + "'][0].id").value(tag2.getGeoId()));
+    }
+
+    @Test
+    public void lookupTags_TooMany() throws Exception {
+        applicationSettings.setLookupMaxSize(1);
+        String body = "{\"ids\":[\"13aa8f23e4b0666a514604fa\",\"539fedvf3786e7e7fa64f47c\"]}";
+
+        mockMvc.perform(post("/v1/geotags/lookup").contentType(MediaType.APPLICATION_JSON).content(body))
+                .andExpect(status().isBadRequest());
+        verify(geoTagService, never()).lookup(any(GeoTagLookup.class), any(String[].class));
+    }
+
+    @Test
+    public void updateTag_IfMatch() throws Exception {
+        GeoTag tag1 = geoTagList.get(0);
+        String body = "{\"urn\":\"" + tag1.getUrn() + "\",\"currentPosition\":{\"position\":[9.05,66.04]}}";
+
+        when(geoTagService.update(eq(tag1.getGeoId()), any(GeoTag.class), eq(3L))).thenAnswer(invocation -> {
+            GeoTag geoTag = (GeoTag) invocation.getArguments()[1];
+            geoTag.setVersion(4L);
+            return geoTag;
+        });
+        when(geoTagService.update(eq(tag1.getGeoId()), any(GeoTag.class), eq(2L))).thenThrow(new OptimisticLockingFailureException("Changed"));
+
+        mockMvc.perform(put("/v1/geotags/{id}", tag1.getGeoId()).header("If-Match", "\"3\"").contentType(MediaType.APPLICATION_JSON).content(body))
+                .andExpect(status().isOk())
+                .andExpect(header().string("ETag", "\"4\""));
+
+        mockMvc.perform(put("/v1/geotags/{id}", tag1.getGeoId()).header("If-Match", "\"2\"").contentType(MediaType.APPLICATION_JSON).content(body))
+                .andExpect(status().isPreconditionFailed());
+
+        mockMvc.perform(put("/v1/geotags/{id}", tag1.getGeoId()).header("If-Match", "not-an-etag").contentType(MediaType.APPLICATION_JSON).content(body))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void saveTag_ReturnsSavedTag() throws Exception {
+        String body = "{\"urn\":\"URN:NBN:no-nb_foto_NF.W_50121\",\"currentPosition\":{\"position\":[9.05,66.04]}}";
+
+        when(geoTagService.save(any(GeoTag.class), (Long) isNull())).thenAnswer(invocation -> {
+            GeoTag saved = new GeoTag((GeoTag) invocation.getArguments()[0]);
+            saved.setGeoId("13aa8f23e4b0666a514604fa");
+            saved.setVersion(0L);
+            return saved;
+        });
+
+        mockMvc.perform(post("/v1/geotags").contentType(MediaType.APPLICATION_JSON).content(body))
+                .andExpect(status().isCreated())
+                .andExpect(header().string("ETag", "\"0\""))
+                .andExpect(header().string("Location", "/geotags/13aa8f23e4b0666a514604fa"))
+                .andExpect(jsonPath("$.id").value("13aa8f23e4b0666a514604fa"))
+                .andExpect(jsonPath("$.version").value(0));
+    }
+
+    @Test
+    public void saveTag_NotMasked() throws Exception {
+        MockMvc maskingMockMvc = MockMvcBuilders.standaloneSetup(geoTagController)
+                .setMessageConverters(new MappingJackson2HttpMessageConverter(new ObjectMapper()
+                        .registerModule(new MaskingModule(() -> AccessContext.current(nbUserService)))))
+                .build();
+        String body = "{\"urn\":\"URN:NBN:no-nb_foto_NF.W_50121\",\"currentPosition\":{\"position\":[9.05,66.04]}}";
+        GeoTag saved = new GeoTag("13aa8f23e4b0666a514604fa", "URN:NBN:no-nb_foto_NF.W_50121", new GeoPosition(USER_ID, "example@example.com", 9.05, 66.04, new Date()));
+
+        when(geoTagService.save(any(GeoTag.class), (Long) isNull())).thenReturn(saved);
+        when(geoTagService.findOne(eq(saved.getGeoId()), any(String[].class))).thenReturn(saved);
+
+        // The user who saved sees the email the tag was stamped with, but not when reading it
+        maskingMockMvc.perform(post("/v1/geotags").contentType(MediaType.APPLICATION_JSON).content(body))
+                .andExpect(status().isCreated())
+                .andExpect(jsonPath("$.currentPosition.userEmail").value("example@example.com"));
+
+        MvcResult result = maskingMockMvc.perform(get("/v1/geotags/{id}", saved.getGeoId()))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        maskingMockMvc.perform(asyncDispatch(result))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.currentPosition.userEmail").doesNotExist());
+    }
+
+    @Test
+    public void saveTag_Conflict() throws Exception {
+        String body = "{\"urn\":\"URN:NBN:no-nb_foto_NF.W_50121\",\"currentPosition\":{\"position\":[9.05,66.04]}}";
+
+        when(geoTagService.save(any(GeoTag.class), (Long) isNull())).thenThrow(new OptimisticLockingFailureException("Changed"));
+
+        mockMvc.perform(post("/v1/geotags").contentType(MediaType.APPLICATION_JSON).content(body))
+                .andExpect(status().isConflict());
+    }
+
+    @Test
+    public void scrollTags() throws Exception {
+        when(geoTagService.scroll(any(GeoQuery.class), eq(""), eq(2), any(String[].class))).thenReturn(new GeoTagSlice(geoTagList.subList(0, 2), 2, "next-cursor"));
+        when(geoTagService.scroll(any(GeoQuery.class), eq("next-cursor"), eq(2), any(String[].class))).thenReturn(new GeoTagSlice(geoTagList.subList(2, 3), 2, null));
+
+        performAsync(get("/v1/geotags").param("cursor", "").param("size", "2"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.content", hasSize(2)))
+                .andExpect(jsonPath("$.page").doesNotExist())
+                .andExpect(jsonPath("$.links[0].rel").value("next"))
+                .andExpect(jsonPath("$.links[0].href").value(containsString("cursor=next-cursor")));
+
+        performAsync(get("/v1/geotags").param("cursor", "next-cursor").param("size", "2"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.content", hasSize(1)))
+                .andExpect(jsonPath("$.links", hasSize(0)));
+
+        verify(geoTagService, never()).query(any(GeoQuery.class), anyInt(), anyInt(), any(String[].class));
+    }
+
+    @Test
+    public void scrollTags_InvalidSize() throws Exception {
+        mockMvc.perform(get("/v1/geotags").param("cursor", "").param("size", "0"))
+                .andExpect(status().isBadRequest());
+
+        verify(geoTagService, never()).scroll(any(GeoQuery.class), anyString(), anyInt(), any(String[].class));
+    }
+
+    @Test
+    public void getNearbyTags_Smile() throws Exception {
+        MockMvc smileMockMvc = MockMvcBuilders.standaloneSetup(geoTagController)
+                .setMessageConverters(new MappingJackson2HttpMessageConverter(), new SmileHttpMessageConverter())
+                .build();
+
+        when(geoTagService.nearby(any(GeoQuery.class), anyInt(), anyInt())).thenReturn(new PageImpl<GeoTag>(geoTagList));
+
+        MvcResult result = smileMockMvc.perform(get("/v1/nearby").param("lon", "9.05").param("lat", "66.04").accept(SmileHttpMessageConverter.APPLICATION_SMILE))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        MvcResult response = smileMockMvc.perform(asyncDispatch(result))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(SmileHttpMessageConverter.APPLICATION_SMILE))
+                .andReturn();
+
+        JsonNode page = SmileHttpMessageConverter.objectMapper().readTree(response.getResponse().getContentAsByteArray());
+        assertEquals(3, page.get("content").size());
+        assertEquals(geoTagList.get(1).getGeoId(), page.get("content").get(1).get("id").asText());
+        assertEquals(3, page.get("page").get("totalElements").asInt());
+        assertFalse(page.has("links"));
+        assertFalse(page.has("_links"));
+        assertFalse(page.get("content").get(0).has("links"));
+    }
+
+    @Test
+    public void getTagsWithin_Streamed() throws Exception {
+        applicationSettings.setStreamPageSize(2);
+
+        when(geoTagService.within(any(GeoQuery.class), eq(0), eq(2), any(Consumer.class))).thenAnswer(invocation -> {
+            Consumer<GeoTag> consumer = (Consumer<GeoTag>) invocation.getArguments()[3];
+            geoTagList.subList(0, 2).forEach(consumer);
+            return new PageImpl<GeoTag>(Collections.<GeoTag>emptyList(), new PageRequest(0, 2), 3);
+        });
+
+        performAsync(get("/v1/within").param("lon", "1").param("lat", "60").param("secondLon", "14").param("secondLat", "67").param("size", "2"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.content", hasSize(2)))
+                .andExpect(jsonPath("$.content[1].id").value(geoTagList.get(1).getGeoId()))
+                .andExpect(jsonPath("$.content[1].links[0].rel").value("self"))
+                .andExpect(jsonPath("$.page.totalElements").value(3))
+                .andExpect(jsonPath("$.links[?(@.rel == 'next')]", hasSize(1)));
+
+        verify(geoTagService, never()).within(any(GeoQuery.class), anyInt(), anyInt());
+    }
+
+    @Test
+    public void getTagsWithin_TooBig() throws Exception {
+        applicationSettings.setStreamMaxPageSize(5);
+
+        mockMvc.perform(get("/v1/within").param("lon", "1").param("lat", "60").param("secondLon", "14").param("secondLat", "67").param("size", "6"))
+                .andExpect(status().isBadRequest());
+
+        verify(geoTagService, never()).within(any(GeoQuery.class), anyInt(), anyInt(), any(Consumer.class));
+    }
+
+    @Test
+    public void getClusters() throws Exception {
+        GeoCluster cluster = new GeoCluster(new double[] {10.2, 60.2}, new double[] {5.625, 56.25, 11.25, 61.875}, 2, geoTagList.get(0).getGeoId());
+        when(geoTagService.clusters(any(Box.class), eq(4))).thenReturn(Arrays.asList(cluster));
+
+        mockMvc.perform(get("/v1/clusters").param("bbox", "0,50,40,80").param("zoom", "4"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(1)))
+                .andExpect(jsonPath("$[0].count").value(2))
+                .andExpect(jsonPath("$[0].sampleId").value(geoTagList.get(0).getGeoId()));
+    }
+
+    @Test
+    public void getClusters_InvalidZoom() throws Exception {
+        mockMvc.perform(get("/v1/clusters").param("bbox", "0,50,40,80").param("zoom", "-1"))
+                .andExpect(status().isBadRequest());
+        mockMvc.perform(get("/v1/clusters").param("bbox", "0,50,40,80").param("zoom", "23"))
+                .andExpect(status().isBadRequest());
+
+        verify(geoTagService, never()).clusters(any(Box.class), anyInt());
+    }
+
+    @Test
+    public void getClusters_ClampsBbox() throws Exception {
+        when(geoTagService.clusters(any(Box.class), eq(2))).thenReturn(Collections.<GeoCluster>emptyList());
+
+        mockMvc.perform(get("/v1/clusters").param("bbox", "-500,-100,500,100").param("zoom", "2"))
+                .andExpect(status().isOk());
+
+        verify(geoTagService).clusters(eq(new Box(new Point(-180, -90), new Point(180, 90))), eq(2));
+    }
+
+    @Test
+    public void getClusters_InvalidBbox() throws Exception {
+        mockMvc.perform(get("/v1/clusters").param("bbox", "0,50,40").param("zoom", "4"))
+                .andExpect(status().isBadRequest());
+    }
+
+    /**
+     * The geo queries answer through a DeferredResult, so the response comes in the async dispatch.
+     */
+    private ResultActions performAsync(MockHttpServletRequestBuilder requestBuilder) throws Exception {
+        MvcResult result = mockMvc.perform(requestBuilder)
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        return mockMvc.perform(asyncDispatch(result));
+    }
 }
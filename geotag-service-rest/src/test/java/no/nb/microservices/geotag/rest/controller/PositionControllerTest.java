@@ -1,9 +1,15 @@
 package no.nb.microservices.geotag.rest.controller;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import no.nb.microservices.geotag.config.ApplicationSettings;
+import no.nb.microservices.geotag.config.TestContext;
 import no.nb.microservices.geotag.model.GeoPosition;
 import no.nb.microservices.geotag.model.GeoTag;
 import no.nb.microservices.geotag.repository.GeoTagRepository;
+import no.nb.microservices.geotag.rest.json.MaskingModule;
+import no.nb.microservices.geotag.service.AccessContext;
+import no.nb.microservices.geotag.service.GeoTagCache;
+import no.nb.microservices.geotag.service.GeoTagSpatialIndex;
 import no.nb.microservices.geotag.service.GeoTagService;
 import no.nb.microservices.geotag.service.NBUserService;
 import no.nb.nbsecurity.NBUserDetails;
@@ -14,6 +20,9 @@ import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.test.web.servlet.MockMvc;
@@ -22,8 +31,12 @@ import org.springframework.test.web.servlet.setup.MockMvcBuilders;
 import java.util.*;
 
 import static org.hamcrest.Matchers.hasSize;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
@@ -83,4 +96,41 @@ public class PositionControllerTest {
                 .andExpect(status().isOk())
                 .andExpect(jsonPath("$", hasSize(1)));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void createPosition_NotMasked() throws Exception {
+        MockMvc maskingMockMvc = MockMvcBuilders.standaloneSetup(positionController)
+                .setMessageConverters(new MappingJackson2HttpMessageConverter(new ObjectMapper()
+                        .registerModule(new MaskingModule(() -> AccessContext.current(nbUserService)))))
+                .build();
+        String body = "{\"userEmail\":\"example@example.com\",\"position\":[9.05,66.04]}";
+
+        when(geoTagService.savePosition(eq(geoTagList.get(0).getGeoId()), any(GeoPosition.class))).thenAnswer(invocation -> invocation.getArguments()[1]);
+
+        // Masking is for the reads, the caller gets back what it sent
+        maskingMockMvc.perform(post("/v1/geotags/{id}/positions", geoTagList.get(0).getGeoId()).contentType(MediaType.APPLICATION_JSON).content(body))
+                .andExpect(status().isCreated())
+                .andExpect(jsonPath("$.userEmail").value("example@example.com"));
+    }
+
+    @Test
+    public void getPosition_HistoryHiddenFromUser() throws Exception {
+        // The real service, so the history is trimmed as it would be for this user
+        GeoTagService service = new GeoTagService(geoTagRepository, nbUserService, mock(ApplicationEventPublisher.class),
+                mock(GeoTagSpatialIndex.class), new GeoTagCache(new ApplicationSettings()));
+        MockMvc serviceMockMvc = MockMvcBuilders.standaloneSetup(new PositionController(service))
+                .setHandlerExceptionResolvers(TestContext.createExceptionResolver())
+                .build();
+        GeoTag tag = new GeoTag(geoTagList.get(0));
+        tag.getCurrentPosition().setPosId("pos10");
+        tag.setUserPositions(new ArrayList<>(Arrays.asList(new GeoPosition("pos11", USER_ID_2, "other@example.com", 13.05, 62.04, new Date()))));
+
+        when(geoTagRepository.findOne(tag.getGeoId())).thenReturn(tag);
+
+        serviceMockMvc.perform(get("/v1/geotags/{id}/positions/{posId}", tag.getGeoId(), "pos10"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.posId").value("pos10"));
+        serviceMockMvc.perform(get("/v1/geotags/{id}/positions/{posId}", tag.getGeoId(), "pos11"))
+                .andExpect(status().isNotFound());
+    }
+}
@@ -0,0 +1,103 @@
+package no.nb.microservices.geotag.rest.json;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import no.nb.microservices.geotag.config.Constants;
+import no.nb.microservices.geotag.model.GeoPosition;
+import no.nb.microservices.geotag.model.GeoTag;
+import no.nb.microservices.geotag.service.AccessContext;
+import no.nb.nbsecurity.NBUserDetails;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class MaskingModuleTests {
+
+    private AtomicReference<AccessContext> accessContext;
+    private AtomicInteger lookups;
+    private ObjectMapper mapper;
+    private GeoTag geoTag;
+
+    @Before
+    public void setup() {
+        accessContext = new AtomicReference<>(AccessContext.ANONYMOUS);
+        lookups = new AtomicInteger();
+        mapper = new ObjectMapper();
+        mapper.registerModule(new MaskingModule(() -> {
+            lookups.incrementAndGet();
+            return accessContext.get();
+        }));
+
+        geoTag = new GeoTag("13aa8f23e4b0666a514604fa", "URN:NBN:no-nb_foto_NF.W_50121", new GeoPosition("a62eb09d-dbf2-495a-8872-7d16e6911296", "example@example.com", 9.052734375, 66.04758417711061, new Date()));
+    }
+
+    @Test
+    public void maskedForAnonymousTest() throws Exception {
+        String json = mapper.writeValueAsString(geoTag);
+
+        assertFalse(json.contains("example@example.com"));
+        assertFalse(json.contains("userPositions"));
+        assertTrue(json.contains("URN:NBN:no-nb_foto_NF.W_50121"));
+        // The entity is left as it was
+        assertEquals("example@example.com", geoTag.getCurrentPosition().getUserEmail());
+        assertEquals(1, geoTag.getUserPositions().size());
+    }
+
+    @Test
+    public void notMaskedForAdminTest() throws Exception {
+        List<GrantedAuthority> permissions = new ArrayList<GrantedAuthority>();
+        permissions.add(new SimpleGrantedAuthority(Constants.ADMIN_ROLE));
+        accessContext.set(AccessContext.of(new NBUserDetails("sessionID1234", UUID.fromString("b62eb09d-dbf2-495a-8872-7d16e6911296"), "myusername", "mypassword", true, true, true, true, true, permissions)));
+
+        String json = mapper.writeValueAsString(geoTag);
+
+        assertTrue(json.contains("example@example.com"));
+        assertTrue(json.contains("userPositions"));
+    }
+
+    @Test
+    public void decidedOncePerValueTest() throws Exception {
+        GeoTag other = new GeoTag(geoTag);
+        other.setGeoId("539fedvf3786e7e7fa64f47c");
+
+        mapper.writeValueAsString(Arrays.asList(geoTag, other));
+
+        assertEquals(1, lookups.get());
+    }
+
+    @Test
+    public void writerAttributeWinsTest() throws Exception {
+        String json = mapper.writer().withAttribute(MaskingModule.MASKED, false).writeValueAsString(geoTag);
+
+        assertTrue(json.contains("example@example.com"));
+        assertEquals(0, lookups.get());
+    }
+
+    @Test
+    public void unmaskedResponseTest() throws Exception {
+        RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(new MockHttpServletRequest()));
+        try {
+            MaskingModule.unmaskResponse();
+
+            String json = mapper.writeValueAsString(geoTag);
+
+            assertTrue(json.contains("example@example.com"));
+            assertEquals(0, lookups.get());
+        } finally {
+            RequestContextHolder.resetRequestAttributes();
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package no.nb.microservices.geotag.rest.stream;
+
+import no.nb.microservices.geotag.config.ApplicationSettings;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.Assert.*;
+
+public class CompressionFilterTests {
+
+    private static final String PAGE = "{\"content\":[{\"urn\":\"URN:NBN:no-nb_foto_NF.W_50121\"},{\"urn\":\"URN:NBN:no-nb_digifoto_20140228_00094_NB_WF_EDK_129136\"}]}";
+
+    @Test
+    public void negotiateTest() {
+        assertEquals("gzip", CompressionFilter.negotiate("gzip, deflate"));
+        assertEquals("deflate", CompressionFilter.negotiate("gzip;q=0.5, deflate"));
+        assertEquals("gzip", CompressionFilter.negotiate("*"));
+        assertEquals("deflate", CompressionFilter.negotiate("gzip;q=0, *;q=0.3"));
+        assertNull(CompressionFilter.negotiate("identity"));
+        assertNull(CompressionFilter.negotiate("gzip;q=0, deflate;q=0"));
+        assertNull(CompressionFilter.negotiate(null));
+    }
+
+    @Test
+    public void compressesLargeResponsesTest() throws Exception {
+        // Test data
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/v1/within");
+        request.addHeader("Accept-Encoding", "gzip, deflate");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        // Tests
+        new CompressionFilter(settings(64)).doFilter(request, response, chain("application/hal+json", 20));
+
+        // Asserts
+        assertEquals("gzip", response.getHeader("Content-Encoding"));
+        assertEquals("Accept-Encoding", response.getHeader("Vary"));
+        assertEquals(0, response.getContentLength());
+        assertEquals(body(20), IOUtils.toString(new GZIPInputStream(new ByteArrayInputStream(response.getContentAsByteArray())), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void eTagNamesTheCodingTest() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/v1/geotags/13aa8f23e4b0666a514604fa");
+        request.addHeader("Accept-Encoding", "gzip");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        MockHttpServletResponse small = new MockHttpServletResponse();
+
+        new CompressionFilter(settings(64)).doFilter(request, response, chain("application/json", 20, "\"7\""));
+        new CompressionFilter(settings(PAGE.length() + 1)).doFilter(request, small, chain("application/json", 1, "\"7\""));
+
+        assertEquals("\"7-gzip\"", response.getHeader("ETag"));
+        assertEquals("\"7\"", small.getHeader("ETag"));
+        assertEquals("\"7\"", CompressionFilter.withoutCoding("\"7-gzip\""));
+        assertEquals("W/\"7\"", CompressionFilter.withCoding("W/\"7\"", "gzip"));
+    }
+
+    @Test
+    public void deflateTest() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/v1/geotags/export");
+        request.addHeader("Accept-Encoding", "deflate");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        new CompressionFilter(settings(64)).doFilter(request, response, chain("application/x-ndjson", 20));
+
+        assertEquals("deflate", response.getHeader("Content-Encoding"));
+        assertEquals(body(20), IOUtils.toString(new InflaterInputStream(new ByteArrayInputStream(response.getContentAsByteArray())), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void smallResponsesAreNotCompressedTest() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/v1/within");
+        request.addHeader("Accept-Encoding", "gzip");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        new CompressionFilter(settings(PAGE.length() + 1)).doFilter(request, response, chain("application/json", 1));
+
+        assertNull(response.getHeader("Content-Encoding"));
+        assertEquals(PAGE.length(), response.getContentLength());
+        assertEquals(PAGE, response.getContentAsString());
+    }
+
+    @Test
+    public void otherTypesAreNotCompressedTest() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/v1/within");
+        request.addHeader("Accept-Encoding", "gzip");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        new CompressionFilter(settings(0)).doFilter(request, response, chain("image/png", 20));
+
+        assertNull(response.getHeader("Content-Encoding"));
+        assertEquals(body(20), response.getContentAsString());
+    }
+
+    @Test
+    public void disabledTest() throws Exception {
+        ApplicationSettings settings = settings(0);
+        settings.setCompressionEnabled(false);
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/v1/within");
+        request.addHeader("Accept-Encoding", "gzip");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        new CompressionFilter(settings).doFilter(request, response, chain("application/json", 20));
+
+        assertNull(response.getHeader("Content-Encoding"));
+        assertEquals(body(20), response.getContentAsString());
+    }
+
+    private static ApplicationSettings settings(int minSize) {
+        ApplicationSettings settings = new ApplicationSettings();
+        settings.setCompressionMinSize(minSize);
+        return settings;
+    }
+
+    private static String body(int pages) {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < pages; i++) {
+            body.append(PAGE);
+        }
+        return body.toString();
+    }
+
+    /**
+     * Writes the page the given number of times, one write each, as a streamed response does.
+     */
+    private static MockFilterChain chain(String contentType, int pages) {
+        return chain(contentType, pages, null);
+    }
+
+    private static MockFilterChain chain(String contentType, int pages, String eTag) {
+        return new MockFilterChain(new HttpServlet() {
+            @Override
+            protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+                if (eTag != null) {
+                    resp.setHeader("ETag", eTag);
+                }
+                resp.setContentType(contentType);
+                resp.setContentLength(PAGE.length() * pages);
+                for (int i = 0; i < pages; i++) {
+                    resp.getOutputStream().write(PAGE.getBytes(StandardCharsets.UTF_8));
+                    resp.getOutputStream().flush();
+                }
+            }
+        });
+    }
+}
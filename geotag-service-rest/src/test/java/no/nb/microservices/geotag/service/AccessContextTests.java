@@ -0,0 +1,88 @@
+package no.nb.microservices.geotag.service;
+
+import no.nb.microservices.geotag.config.Constants;
+import no.nb.nbsecurity.NBUserDetails;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.security.authentication.TestingAuthenticationToken;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class AccessContextTests {
+
+    @Mock
+    private NBUserService nbUserService;
+
+    @Before
+    public void setup() {
+        List<GrantedAuthority> permissions = new ArrayList<GrantedAuthority>();
+        permissions.add(new SimpleGrantedAuthority(Constants.ADMIN_ROLE));
+        NBUserDetails nbUserDetails = new NBUserDetails("sessionID1234", UUID.fromString("b62eb09d-dbf2-495a-8872-7d16e6911296"), "myusername", "mypassword", true, true, true, true, true, permissions);
+        when(nbUserService.getNBUser()).thenReturn(nbUserDetails);
+    }
+
+    @After
+    public void cleanup() {
+        SecurityContextHolder.clearContext();
+        RequestContextHolder.resetRequestAttributes();
+    }
+
+    @Test
+    public void resolvedOncePerRequestTest() {
+        RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(new MockHttpServletRequest()));
+
+        AccessContext first = AccessContext.current(nbUserService);
+        AccessContext second = AccessContext.current(nbUserService);
+
+        verify(nbUserService, times(1)).getNBUser();
+        assertSame(first, second);
+        assertTrue(first.isAdmin());
+        assertFalse(first.isMasked());
+    }
+
+    @Test
+    public void resolvedAgainOutsideRequestTest() {
+        AccessContext.current(nbUserService);
+        AccessContext.current(nbUserService);
+
+        verify(nbUserService, times(2)).getNBUser();
+    }
+
+    @Test
+    public void resolvedAgainAfterLoginTest() {
+        RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(new MockHttpServletRequest()));
+
+        AccessContext.current(nbUserService);
+        SecurityContextHolder.getContext().setAuthentication(new TestingAuthenticationToken("myusername", null));
+        AccessContext.current(nbUserService);
+
+        verify(nbUserService, times(2)).getNBUser();
+    }
+
+    @Test
+    public void anonymousIsMaskedTest() {
+        when(nbUserService.getNBUser()).thenReturn(null);
+
+        AccessContext accessContext = AccessContext.current(nbUserService);
+
+        assertSame(AccessContext.ANONYMOUS, accessContext);
+        assertNull(accessContext.getUser());
+        assertTrue(accessContext.isMasked());
+    }
+}
@@ -0,0 +1,125 @@
+package no.nb.microservices.geotag.service;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import no.nb.microservices.geotag.model.GeoTagChange;
+import no.nb.microservices.geotag.repository.GeoTagChangeRepository;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentMatcher;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ChangeLogServiceTests {
+
+    private ChangeLogService changeLogService;
+
+    @Mock
+    private GeoTagChangeRepository changeRepository;
+
+    @Mock
+    private MongoTemplate mongoTemplate;
+
+    @Mock
+    private DBCollection sequenceCollection;
+
+    @Before
+    public void setup() {
+        MockitoAnnotations.initMocks(this);
+        changeLogService = new ChangeLogService(changeRepository, mongoTemplate);
+        when(mongoTemplate.getCollection(ChangeLogService.SEQUENCE_COLLECTION)).thenReturn(sequenceCollection);
+    }
+
+    @Test
+    public void appendOnEventTest() {
+        when(sequenceCollection.findAndModify(any(DBObject.class), any(DBObject.class), any(DBObject.class), anyBoolean(), any(DBObject.class), anyBoolean(), anyBoolean()))
+                .thenReturn(new BasicDBObject("seq", 42L));
+
+        changeLogService.onApplicationEvent(new GeoTagEvent(this, GeoTagChange.Operation.DELETE, "13aa8f23e4b0666a514604fa", "URN:NBN:no-nb_foto_NF.W_50121"));
+
+        verify(changeRepository, times(1)).save(argThat(new ArgumentMatcher<GeoTagChange>() {
+            @Override
+            public boolean matches(Object argument) {
+                GeoTagChange change = (GeoTagChange) argument;
+                return change.getSequence() == 42L
+                        && change.getOperation() == GeoTagChange.Operation.DELETE
+                        && "13aa8f23e4b0666a514604fa".equals(change.getGeoTagId());
+            }
+        }));
+    }
+
+    @Test
+    public void ignoreRemoteEventTest() {
+        changeLogService.onApplicationEvent(new GeoTagEvent(this, GeoTagChange.Operation.DELETE, "13aa8f23e4b0666a514604fa", "URN:NBN:no-nb_foto_NF.W_50121", null, true));
+
+        verify(changeRepository, never()).save(any(GeoTagChange.class));
+    }
+
+    @Test
+    public void changesSinceReadsInBatchesTest() {
+        List<GeoTagChange> fullBatch = new ArrayList<>();
+        for (long i = 1; i <= ChangeLogService.BATCH_SIZE; i++) {
+            fullBatch.add(new GeoTagChange(i, "id" + i, "URN:NBN:" + i, GeoTagChange.Operation.CREATE, new Date()));
+        }
+        List<GeoTagChange> lastBatch = Arrays.asList(new GeoTagChange(ChangeLogService.BATCH_SIZE + 1L, "idx", "URN:NBN:x", GeoTagChange.Operation.UPDATE, new Date()));
+
+        when(changeRepository.findBySequenceGreaterThan(eq(0L), any(Pageable.class))).thenReturn(fullBatch);
+        when(changeRepository.findBySequenceGreaterThan(eq((long) ChangeLogService.BATCH_SIZE), any(Pageable.class))).thenReturn(lastBatch);
+
+        List<GeoTagChange> changes = new ArrayList<>();
+        changeLogService.changesSince(0, changes::add);
+
+        assertEquals(ChangeLogService.BATCH_SIZE + 1, changes.size());
+        verify(changeRepository, times(2)).findBySequenceGreaterThan(anyLong(), any(Pageable.class));
+    }
+
+    @Test
+    public void changesSinceStopsAtGapTest() {
+        when(changeRepository.findBySequenceGreaterThan(eq(0L), any(Pageable.class))).thenReturn(Arrays.asList(
+                new GeoTagChange(1L, "id1", "URN:NBN:1", GeoTagChange.Operation.CREATE, new Date()),
+                new GeoTagChange(2L, "id2", "URN:NBN:2", GeoTagChange.Operation.CREATE, new Date()),
+                new GeoTagChange(4L, "id4", "URN:NBN:4", GeoTagChange.Operation.CREATE, new Date())));
+
+        List<GeoTagChange> changes = new ArrayList<>();
+        changeLogService.changesSince(0, changes::add);
+
+        // 3 is still being written
+        assertEquals(2, changes.size());
+        assertEquals(2L, (long) changes.get(1).getSequence());
+    }
+
+    @Test
+    public void changesSinceSkipsAbandonedGapTest() {
+        Date old = new Date(System.currentTimeMillis() - ChangeLogService.GAP_TIMEOUT_MILLIS - 1000);
+        when(changeRepository.findBySequenceGreaterThan(eq(2L), any(Pageable.class))).thenReturn(Arrays.asList(
+                new GeoTagChange(4L, "id4", "URN:NBN:4", GeoTagChange.Operation.CREATE, old),
+                new GeoTagChange(5L, "id5", "URN:NBN:5", GeoTagChange.Operation.UPDATE, new Date())));
+
+        List<GeoTagChange> changes = new ArrayList<>();
+        changeLogService.changesSince(2, changes::add);
+
+        assertEquals(2, changes.size());
+    }
+
+    @Test
+    public void appendFailureIsNotThrownTest() {
+        when(sequenceCollection.findAndModify(any(DBObject.class), any(DBObject.class), any(DBObject.class), anyBoolean(), any(DBObject.class), anyBoolean(), anyBoolean()))
+                .thenThrow(new MongoException("down"));
+
+        changeLogService.onApplicationEvent(new GeoTagEvent(this, GeoTagChange.Operation.DELETE, "13aa8f23e4b0666a514604fa", "URN:NBN:no-nb_foto_NF.W_50121"));
+
+        verify(changeRepository, never()).save(any(GeoTagChange.class));
+    }
+}
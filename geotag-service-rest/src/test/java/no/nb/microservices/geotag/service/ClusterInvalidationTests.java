@@ -0,0 +1,105 @@
+package no.nb.microservices.geotag.service;
+
+import com.mongodb.MongoException;
+import no.nb.microservices.geotag.model.GeoPosition;
+import no.nb.microservices.geotag.model.GeoTag;
+import no.nb.microservices.geotag.model.GeoTagChange;
+import no.nb.microservices.geotag.repository.GeoTagRepository;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.context.ApplicationEventPublisher;
+
+import java.util.Date;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ClusterInvalidationTests {
+
+    private ClusterInvalidation instance1;
+    private ClusterInvalidation instance2;
+
+    @Mock
+    private GeoTagRepository geoTagRepository;
+
+    @Mock
+    private ApplicationEventPublisher eventPublisher1;
+
+    @Mock
+    private ApplicationEventPublisher eventPublisher2;
+
+    private GeoTag tag1;
+
+    @Before
+    public void setup() {
+        MockitoAnnotations.initMocks(this);
+
+        // Two instances on one bus
+        InvalidationBus bus = new LoopbackInvalidationBus();
+        instance1 = new ClusterInvalidation(bus, geoTagRepository, eventPublisher1);
+        instance1.subscribe();
+        instance2 = new ClusterInvalidation(bus, geoTagRepository, eventPublisher2);
+        instance2.subscribe();
+
+        tag1 = new GeoTag("13aa8f23e4b0666a514604fa", "URN:NBN:no-nb_foto_NF.W_50121", new GeoPosition("a62eb09d-dbf2-495a-8872-7d16e6911296", 9.052734375, 66.04758417711061, new Date()));
+    }
+
+    @Test
+    public void writeReachesOtherInstanceTest() {
+        // Mock response
+        when(geoTagRepository.findOneWithoutHistory(tag1.getGeoId())).thenReturn(tag1);
+
+        // Tests
+        instance1.onApplicationEvent(new GeoTagEvent(this, GeoTagChange.Operation.UPDATE, tag1));
+
+        // Asserts
+        ArgumentCaptor<GeoTagEvent> event = ArgumentCaptor.forClass(GeoTagEvent.class);
+        verify(eventPublisher2, times(1)).publishEvent(event.capture());
+        assertTrue(event.getValue().isRemote());
+        assertEquals(GeoTagChange.Operation.UPDATE, event.getValue().getOperation());
+        assertSame(tag1, event.getValue().getGeoTag());
+        verifyZeroInteractions(eventPublisher1);
+    }
+
+    @Test
+    public void remoteEventIsNotSentAgainTest() {
+        instance2.onApplicationEvent(new GeoTagEvent(this, GeoTagChange.Operation.DELETE, tag1.getGeoId(), tag1.getUrn(), null, true));
+
+        verifyZeroInteractions(eventPublisher1, eventPublisher2, geoTagRepository);
+    }
+
+    @Test
+    public void deletedMeanwhileTest() {
+        // Mock response
+        when(geoTagRepository.findOneWithoutHistory(tag1.getGeoId())).thenReturn(null);
+
+        // Tests
+        instance1.onApplicationEvent(new GeoTagEvent(this, GeoTagChange.Operation.POSITION_ADDED, tag1));
+
+        // Asserts
+        ArgumentCaptor<GeoTagEvent> event = ArgumentCaptor.forClass(GeoTagEvent.class);
+        verify(eventPublisher2, times(1)).publishEvent(event.capture());
+        assertEquals(GeoTagChange.Operation.DELETE, event.getValue().getOperation());
+        assertNull(event.getValue().getGeoTag());
+    }
+
+    @Test
+    public void publishFailureIsNotThrownTest() {
+        // Mock response
+        InvalidationBus bus = mock(InvalidationBus.class);
+        doThrow(new MongoException("not master")).when(bus).publish(any(Invalidation.class));
+        ClusterInvalidation instance = new ClusterInvalidation(bus, geoTagRepository, eventPublisher1);
+
+        // Tests
+        instance.onApplicationEvent(new GeoTagEvent(this, GeoTagChange.Operation.UPDATE, tag1));
+
+        // Asserts
+        verify(bus, times(1)).publish(any(Invalidation.class));
+    }
+}
@@ -0,0 +1,142 @@
+package no.nb.microservices.geotag.service;
+
+import no.nb.microservices.geotag.config.ApplicationSettings;
+import no.nb.microservices.geotag.model.GeoPosition;
+import no.nb.microservices.geotag.model.GeoTag;
+import no.nb.microservices.geotag.model.GeoTagChange;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import static org.junit.Assert.*;
+
+public class GeoTagCacheTests {
+
+    private GeoTagCache geoTagCache;
+    private AtomicLong now;
+    private AtomicInteger loads;
+    private Function<String, GeoTag> loader;
+
+    @Before
+    public void setup() {
+        ApplicationSettings settings = new ApplicationSettings();
+        settings.setTagCacheMaxWeight(4);
+        settings.setTagCacheTtl(60);
+        now = new AtomicLong();
+        geoTagCache = new GeoTagCache(settings, now::get);
+
+        loads = new AtomicInteger();
+        loader = id -> {
+            loads.incrementAndGet();
+            return new GeoTag(id, "URN:NBN:no-nb_foto_NF.W_50121", new GeoPosition("a62eb09d-dbf2-495a-8872-7d16e6911296", "example@example.com", 9.052734375, 66.04758417711061, new Date()));
+        };
+    }
+
+    @Test
+    public void hitReturnsCopyTest() {
+        GeoTag first = geoTagCache.get("13aa8f23e4b0666a514604fa", loader);
+        first.getCurrentPosition().setUserEmail(null);
+        first.setUserPositions(null);
+        GeoTag second = geoTagCache.get("13aa8f23e4b0666a514604fa", loader);
+
+        assertEquals(1, loads.get());
+        assertEquals("example@example.com", second.getCurrentPosition().getUserEmail());
+        assertEquals(1, second.getUserPositions().size());
+    }
+
+    @Test
+    public void getAllLoadsOnlyMissesTest() {
+        List<Collection<String>> batches = new ArrayList<>();
+        Function<Collection<String>, Collection<GeoTag>> batchLoader = ids -> {
+            batches.add(new ArrayList<>(ids));
+            List<GeoTag> geoTags = new ArrayList<>();
+            for (String id : ids) {
+                if (!id.startsWith("333")) {
+                    geoTags.add(loader.apply(id));
+                }
+            }
+            return geoTags;
+        };
+
+        geoTagCache.get("13aa8f23e4b0666a514604fa", loader);
+        Map<String, GeoTag> found = geoTagCache.getAll(Arrays.asList("13aa8f23e4b0666a514604fa", "539fedvf3786e7e7fa64f47c", "333fedvf3796e7e7fa64f50v"), batchLoader);
+        geoTagCache.getAll(Arrays.asList("13aa8f23e4b0666a514604fa", "539fedvf3786e7e7fa64f47c"), batchLoader);
+
+        assertEquals(1, batches.size());
+        assertEquals(Arrays.asList("539fedvf3786e7e7fa64f47c", "333fedvf3796e7e7fa64f50v"), batches.get(0));
+        assertEquals(2, found.size());
+        assertFalse(found.containsKey("333fedvf3796e7e7fa64f50v"));
+        assertEquals(3L, metric("cache.geotag.hits").longValue());
+    }
+
+    @Test
+    public void expiresTest() {
+        geoTagCache.get("13aa8f23e4b0666a514604fa", loader);
+        now.addAndGet(TimeUnit.SECONDS.toNanos(61));
+        geoTagCache.get("13aa8f23e4b0666a514604fa", loader);
+
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedByWeightTest() {
+        // Every tag weighs 2, the current position and one in the history
+        geoTagCache.get("13aa8f23e4b0666a514604fa", loader);
+        geoTagCache.get("539fedvf3786e7e7fa64f47c", loader);
+        geoTagCache.get("13aa8f23e4b0666a514604fa", loader);
+        geoTagCache.get("408fedvf3786e7e7fa64f47c", loader);
+        geoTagCache.get("13aa8f23e4b0666a514604fa", loader);
+        geoTagCache.get("539fedvf3786e7e7fa64f47c", loader);
+
+        assertEquals(4, loads.get());
+        assertEquals(2L, metric("cache.geotag.evictions").longValue());
+    }
+
+    @Test
+    public void invalidatedByEventTest() {
+        geoTagCache.get("13aa8f23e4b0666a514604fa", loader);
+        geoTagCache.onApplicationEvent(new GeoTagEvent(this, GeoTagChange.Operation.UPDATE, "13aa8f23e4b0666a514604fa", "URN:NBN:no-nb_foto_NF.W_50121"));
+        geoTagCache.get("13aa8f23e4b0666a514604fa", loader);
+
+        assertEquals(2, loads.get());
+        assertEquals(0L, metric("cache.geotag.hits").longValue());
+        assertEquals(2L, metric("cache.geotag.misses").longValue());
+    }
+
+    @Test
+    public void writeDuringLoadIsNotCachedTest() {
+        geoTagCache.get("13aa8f23e4b0666a514604fa", id -> {
+            geoTagCache.invalidate(id);
+            return loader.apply(id);
+        });
+        geoTagCache.get("13aa8f23e4b0666a514604fa", loader);
+
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void missingIsNotCachedTest() {
+        assertNull(geoTagCache.get("333fedvf3796e7e7fa64f50v", id -> null));
+        assertEquals(0L, metric("cache.geotag.size").longValue());
+    }
+
+    private Number metric(String name) {
+        for (Metric<?> metric : geoTagCache.metrics()) {
+            if (metric.getName().equals(name)) {
+                return metric.getValue();
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,167 @@
+package no.nb.microservices.geotag.service;
+
+import no.nb.microservices.geotag.config.ApplicationSettings;
+import no.nb.microservices.geotag.model.GeoPosition;
+import no.nb.microservices.geotag.model.GeoTag;
+import no.nb.microservices.geotag.model.GeoTagChange;
+import no.nb.microservices.geotag.repository.GeoTagProjection;
+import no.nb.microservices.geotag.repository.GeoTagRepository;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.geo.Box;
+import org.springframework.data.geo.Distance;
+import org.springframework.data.geo.Metrics;
+import org.springframework.data.geo.Point;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class GeoTagSpatialIndexTests {
+
+    private GeoTagSpatialIndex spatialIndex;
+
+    @Mock
+    private GeoTagRepository geoTagRepository;
+
+    private GeoTag tag1;
+    private GeoTag tag2;
+
+    @Before
+    public void setup() {
+        MockitoAnnotations.initMocks(this);
+
+        ApplicationSettings settings = new ApplicationSettings();
+        settings.setSpatialIndexEnabled(true);
+        spatialIndex = new GeoTagSpatialIndex(geoTagRepository, settings);
+
+        tag1 = new GeoTag("13aa8f23e4b0666a514604fa", "URN:NBN:no-nb_foto_NF.W_50121", new GeoPosition("a62eb09d-dbf2-495a-8872-7d16e6911296", "example@example.com", 9.052734375, 66.04758417711061, new Date()));
+        tag2 = new GeoTag("539fedvf3786e7e7fa64f47c", "URN:NBN:nb_digifoto_20140228_00094_NB_WF_EDK_129136", new GeoPosition("a62eb09d-dbf2-495a-8872-7d16e6911296", 12.052734375, 61.04758417711061, new Date()));
+
+        doAnswer(invocation -> {
+            Consumer<GeoTag> consumer = (Consumer<GeoTag>) invocation.getArguments()[2];
+            consumer.accept(tag1);
+            consumer.accept(tag2);
+            return null;
+        }).when(geoTagRepository).stream(any(), eq(GeoTagProjection.WITHOUT_HISTORY), any(Consumer.class));
+    }
+
+    @Test
+    public void coldUntilWarmedUpTest() {
+        assertFalse(spatialIndex.isReady());
+
+        spatialIndex.warmUp();
+
+        assertTrue(spatialIndex.isReady());
+    }
+
+    @Test
+    public void forEachWithinTest() {
+        spatialIndex.warmUp();
+        Box box = new Box(new Point(9.0, 61.0), new Point(13.0, 67.0));
+
+        List<GeoTag> all = new ArrayList<>();
+        assertEquals(2, spatialIndex.forEachWithin(box, 0, 10, all::add));
+        assertEquals(2, all.size());
+
+        List<GeoTag> second = new ArrayList<>();
+        assertEquals(2, spatialIndex.forEachWithin(box, 1, 1, second::add));
+        assertEquals(1, second.size());
+        assertEquals(all.get(1).getGeoId(), second.get(0).getGeoId());
+
+        // Copies, so masking them does not touch the index
+        all.forEach(geoTag -> geoTag.getCurrentPosition().setUserEmail(null));
+        List<String> emails = new ArrayList<>();
+        spatialIndex.forEachWithin(box, 0, 10, geoTag -> emails.add(geoTag.getCurrentPosition().getUserEmail()));
+        assertTrue(emails.contains("example@example.com"));
+    }
+
+    @Test
+    public void withinTest() {
+        spatialIndex.warmUp();
+
+        Page<GeoTag> pages = spatialIndex.within(new Box(new Point(12.0, 61.0), new Point(16.0, 62.0)), new PageRequest(0, 10));
+        assertEquals(1, pages.getTotalElements());
+        assertEquals(tag2.getGeoId(), pages.getContent().get(0).getGeoId());
+
+        pages = spatialIndex.within(new Box(new Point(9.0, 61.0), new Point(13.0, 67.0)), new PageRequest(0, 10));
+        assertEquals(2, pages.getTotalElements());
+
+        pages = spatialIndex.within(new Box(new Point(9.0, 61.5), new Point(16.0, 62.0)), new PageRequest(0, 10));
+        assertEquals(0, pages.getTotalElements());
+    }
+
+    @Test
+    public void nearbyTest() {
+        spatialIndex.warmUp();
+
+        Page<GeoTag> pages = spatialIndex.nearby(new Point(9.1487565, 65.9954774), new Distance(10, Metrics.KILOMETERS), new PageRequest(0, 10));
+        assertEquals(1, pages.getTotalElements());
+        assertEquals(tag1.getGeoId(), pages.getContent().get(0).getGeoId());
+
+        pages = spatialIndex.nearby(new Point(9.1487565, 68.9954774), new Distance(1, Metrics.KILOMETERS), new PageRequest(0, 10));
+        assertEquals(0, pages.getTotalElements());
+
+        pages = spatialIndex.nearby(new Point(12.0, 61.0), new Distance(1000, Metrics.KILOMETERS), new PageRequest(0, 10));
+        assertEquals(2, pages.getTotalElements());
+        assertEquals(tag2.getGeoId(), pages.getContent().get(0).getGeoId());
+    }
+
+    @Test
+    public void nearbyOverAntimeridianTest() {
+        tag1.setCurrentPosition(new GeoPosition("a62eb09d-dbf2-495a-8872-7d16e6911296", 179.9, -16.5, new Date()));
+        tag2.setCurrentPosition(new GeoPosition("a62eb09d-dbf2-495a-8872-7d16e6911296", -179.9, -16.5, new Date()));
+        spatialIndex.warmUp();
+        // Enough occupied cells that the index looks up the cells around the point instead of walking them all
+        for (int i = 0; i < 10; i++) {
+            GeoTag other = new GeoTag("other" + i, "URN:NBN:no-nb_foto_NF.W_5012" + i, new GeoPosition("a62eb09d-dbf2-495a-8872-7d16e6911296", 10.0 * i, 60.0, new Date()));
+            spatialIndex.onApplicationEvent(new GeoTagEvent(this, GeoTagChange.Operation.CREATE, other));
+        }
+
+        // The two are some 20 km apart, on each side of the antimeridian
+        Page<GeoTag> pages = spatialIndex.nearby(new Point(179.9, -16.5), new Distance(50, Metrics.KILOMETERS), new PageRequest(0, 10));
+        assertEquals(2, pages.getTotalElements());
+        assertEquals(tag1.getGeoId(), pages.getContent().get(0).getGeoId());
+
+        pages = spatialIndex.nearby(new Point(-179.9, -16.5), new Distance(50, Metrics.KILOMETERS), new PageRequest(0, 10));
+        assertEquals(2, pages.getTotalElements());
+        assertEquals(tag2.getGeoId(), pages.getContent().get(0).getGeoId());
+    }
+
+    @Test
+    public void followsWritesTest() {
+        spatialIndex.warmUp();
+
+        tag1.setCurrentPosition(new GeoPosition("a62eb09d-dbf2-495a-8872-7d16e6911296", 14.0, 61.5, new Date()));
+        spatialIndex.onApplicationEvent(new GeoTagEvent(this, GeoTagChange.Operation.UPDATE, tag1));
+        spatialIndex.onApplicationEvent(new GeoTagEvent(this, GeoTagChange.Operation.DELETE, tag2));
+
+        Page<GeoTag> pages = spatialIndex.within(new Box(new Point(12.0, 61.0), new Point(16.0, 62.0)), new PageRequest(0, 10));
+        assertEquals(1, pages.getTotalElements());
+        assertEquals(tag1.getGeoId(), pages.getContent().get(0).getGeoId());
+    }
+
+    @Test
+    public void resultsAreCopiesTest() {
+        tag1.setVersion(4L);
+        spatialIndex.warmUp();
+
+        Page<GeoTag> pages = spatialIndex.within(new Box(new Point(9.0, 66.0), new Point(10.0, 67.0)), new PageRequest(0, 10));
+        assertEquals(Long.valueOf(4), pages.getContent().get(0).getVersion());
+        pages.getContent().get(0).getCurrentPosition().setUserEmail(null);
+
+        pages = spatialIndex.within(new Box(new Point(9.0, 66.0), new Point(10.0, 67.0)), new PageRequest(0, 10));
+        assertEquals("example@example.com", pages.getContent().get(0).getCurrentPosition().getUserEmail());
+    }
+}
@@ -1,12 +1,21 @@
 package no.nb.microservices.geotag.service;
 
+import com.mysema.query.types.Predicate;
 import com.mysema.query.types.expr.BooleanExpression;
+import no.nb.microservices.geotag.config.ApplicationSettings;
 import no.nb.microservices.geotag.config.Constants;
+import no.nb.microservices.geotag.domain.InvalidRequestException;
+import no.nb.microservices.geotag.model.GeoCluster;
 import no.nb.microservices.geotag.model.GeoPosition;
 import no.nb.microservices.geotag.model.GeoQuery;
 import no.nb.microservices.geotag.model.GeoTag;
+import no.nb.microservices.geotag.model.GeoTagBatchResult;
+import no.nb.microservices.geotag.model.GeoTagLookup;
+import no.nb.microservices.geotag.model.GeoTagLookupResult;
 import no.nb.microservices.geotag.model.QGeoTag;
+import no.nb.microservices.geotag.repository.GeoTagProjection;
 import no.nb.microservices.geotag.repository.GeoTagRepository;
+import no.nb.microservices.geotag.repository.Totals;
 import no.nb.nbsecurity.NBUserDetails;
 import org.junit.Before;
 import org.junit.Rule;
@@ -16,11 +25,17 @@ import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.data.domain.*;
+import org.springframework.data.geo.Box;
+import org.springframework.data.geo.Point;
+import org.springframework.security.access.AccessDeniedException;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
 
 import java.util.*;
+import java.util.function.Consumer;
 
 import static org.junit.Assert.*;
 import static org.mockito.Matchers.anyString;
@@ -40,6 +55,12 @@ public class GeotagServiceTests {
     @Mock
     private NBUserService nbUserService;
 
+    @Mock
+    private ApplicationEventPublisher eventPublisher;
+
+    @Mock
+    private GeoTagSpatialIndex spatialIndex;
+
     @Rule
     public ExpectedException thrown = ExpectedException.none();
 
@@ -48,7 +69,7 @@ public class GeotagServiceTests {
     @Before
     public void setup() {
         MockitoAnnotations.initMocks(this);
-        geoTagService = new GeoTagService(geoTagRepository, nbUserService);
+        geoTagService = new GeoTagService(geoTagRepository, nbUserService, eventPublisher, spatialIndex, new GeoTagCache(new ApplicationSettings()));
     }
 
     public void loginAsUser(String userId, String role) {
@@ -68,7 +89,7 @@ public class GeotagServiceTests {
         // Mock request data
         QGeoTag t = QGeoTag.geoTag;
         BooleanExpression expression = t.urn.isNotNull();
-        PageRequest pageRequest = new PageRequest(page, size, new Sort(Sort.Direction.DESC, "date"));
+        PageRequest pageRequest = new PageRequest(page, size, new Sort(Sort.Direction.DESC, "currentPosition.date", "id"));
 
         // Mock response data
         List geotags = new ArrayList<>();
@@ -81,7 +102,7 @@ public class GeotagServiceTests {
         Page<GeoTag> mockPages = new PageImpl<GeoTag>(geotags);
 
         // Mock response
-        when(geoTagRepository.findAll(expression, pageRequest)).thenReturn(mockPages);
+        when(geoTagRepository.findAll(eq(expression), eq(pageRequest), eq(GeoTagProjection.WITHOUT_HISTORY), eq(Totals.EXACT))).thenReturn(mockPages);
 
         // Tests
         Page<GeoTag> pages = geoTagService.query(query, page, size, null);
@@ -93,6 +114,87 @@ public class GeotagServiceTests {
         assertEquals(tag3.getGeoId(), pages.getContent().get(2).getGeoId());
     }
 
+    @Test(expected = InvalidRequestException.class)
+    public void queryUnknownFieldTest() {
+        GeoQuery query = new GeoQuery();
+        query.setFields(new String[] {"urn", "userPositions"});
+
+        geoTagService.query(query, 0, 10, null);
+    }
+
+    @Test
+    public void scrollTest() {
+        // Mock response data
+        GeoTag tag1 = new GeoTag("13aa8f23e4b0666a514604fa", "URN:NBN:no-nb_foto_NF.W_50121",  new GeoPosition("a62eb09d-dbf2-495a-8872-7d16e6911296", 9.052734375, 66.04758417711061, new Date(3000)));
+        GeoTag tag2 = new GeoTag("539fedvf3786e7e7fa64f47c", "URN:NBN:no-nb_digifoto_20140228_00094_NB_WF_EDK_129136", new GeoPosition("a62eb09d-dbf2-495a-8872-7d16e6911296", 2.052734375, 61.04758417711061, new Date(2000)));
+        GeoTag tag3 = new GeoTag("408fedvf3786e7e7fa64f47c", "URN:NBN:no-nb_digifoto_20140228_00094_NB_WF_EDK_129138", new GeoPosition("a62eb09d-dbf2-495a-8872-7d16e6911296", 13.052734375, 62.04758417711061, new Date(1000)));
+
+        // Mock response
+        when(geoTagRepository.findAfter(any(Predicate.class), (Date) isNull(), (String) isNull(), eq(3), any(GeoTagProjection.class))).thenReturn(new ArrayList<>(Arrays.asList(tag1, tag2, tag3)));
+        when(geoTagRepository.findAfter(any(Predicate.class), eq(new Date(2000)), eq(tag2.getGeoId()), eq(3), any(GeoTagProjection.class))).thenReturn(new ArrayList<>(Arrays.asList(tag3)));
+
+        // Tests
+        GeoTagSlice first = geoTagService.scroll(new GeoQuery(), "", 2, null);
+        GeoTagSlice second = geoTagService.scroll(new GeoQuery(), first.getNextCursor(), 2, null);
+
+        // Asserts
+        assertEquals(2, first.getContent().size());
+        assertTrue(first.hasNext());
+        assertEquals(1, second.getContent().size());
+        assertEquals(tag3.getGeoId(), second.getContent().get(0).getGeoId());
+        assertFalse(second.hasNext());
+        verify(geoTagRepository, never()).count(any(Predicate.class));
+    }
+
+    @Test(expected = InvalidRequestException.class)
+    public void scrollInvalidCursorTest() {
+        geoTagService.scroll(new GeoQuery(), "not-a-cursor", 10, null);
+    }
+
+    @Test
+    public void scrollWithoutDateTest() {
+        // Mock response data
+        GeoTag tag1 = new GeoTag("13aa8f23e4b0666a514604fa", "URN:NBN:no-nb_foto_NF.W_50121",  new GeoPosition("a62eb09d-dbf2-495a-8872-7d16e6911296", 9.052734375, 66.04758417711061, null));
+        GeoTag tag2 = new GeoTag("539fedvf3786e7e7fa64f47c", "URN:NBN:no-nb_digifoto_20140228_00094_NB_WF_EDK_129136", new GeoPosition("a62eb09d-dbf2-495a-8872-7d16e6911296", 2.052734375, 61.04758417711061, null));
+
+        // Mock response
+        when(geoTagRepository.findAfter(any(Predicate.class), (Date) isNull(), (String) isNull(), eq(2), any(GeoTagProjection.class))).thenReturn(new ArrayList<>(Arrays.asList(tag1, tag2)));
+        when(geoTagRepository.findAfter(any(Predicate.class), (Date) isNull(), eq(tag1.getGeoId()), eq(2), any(GeoTagProjection.class))).thenReturn(new ArrayList<>(Arrays.asList(tag2)));
+
+        // Tests
+        GeoTagSlice first = geoTagService.scroll(new GeoQuery(), "", 1, null);
+        GeoTagSlice second = geoTagService.scroll(new GeoQuery(), first.getNextCursor(), 1, null);
+
+        // Asserts
+        assertTrue(first.hasNext());
+        assertEquals(tag2.getGeoId(), second.getContent().get(0).getGeoId());
+        assertFalse(second.hasNext());
+    }
+
+    @Test
+    public void exportTest() {
+        // Mock response data
+        GeoTag tag1 = new GeoTag("13aa8f23e4b0666a514604fa", "URN:NBN:no-nb_foto_NF.W_50121",  new GeoPosition("a62eb09d-dbf2-495a-8872-7d16e6911296", "example@example.com", 9.052734375, 66.04758417711061, new Date()));
+
+        // Mock response
+        doAnswer(invocation -> {
+            ((Consumer<GeoTag>) invocation.getArguments()[2]).accept(tag1);
+            return null;
+        }).when(geoTagRepository).stream(any(Predicate.class), eq(GeoTagProjection.MINIFIED), any(Consumer.class));
+
+        // Tests
+        GeoQuery query = new GeoQuery();
+        query.setMinify(true);
+        List<GeoTag> exported = new ArrayList<>();
+        geoTagService.export(query, null, exported::add);
+
+        // Asserts
+        assertEquals(1, exported.size());
+        // Masking is left to the writer
+        assertEquals("example@example.com", exported.get(0).getCurrentPosition().getUserEmail());
+        assertTrue(exported.get(0).getUserPositions().isEmpty());
+    }
+
     @Test(expected = NoSuchElementException.class)
     public void findOneTest() {
         // Mock response data
@@ -122,7 +224,7 @@ public class GeotagServiceTests {
 
         // Asserts
         assertNotNull(tag1);
-        assertNull(tag1.getCurrentPosition().getUserEmail());
+        assertEquals("example@example.com", tag1.getCurrentPosition().getUserEmail());
         assertNull(tag1.getUserPositions());
         assertNotNull(tag2.getUserPositions());
         assertNotNull(tag3);
@@ -130,6 +232,78 @@ public class GeotagServiceTests {
         assertNull(tag4);
     }
 
+    @Test
+    public void findOneCachedTest() {
+        // Mock response data
+        GeoTag mockTag = new GeoTag("13aa8f23e4b0666a514604fa", "URN:NBN:no-nb_foto_NF.W_50121", new GeoPosition("a62eb09d-dbf2-495a-8872-7d16e6911296", "example@example.com", 9.052734375, 66.04758417711061, new Date()));
+
+        // Mock response
+        when(geoTagRepository.findOne(mockTag.getGeoId())).thenReturn(mockTag);
+
+        // Tests
+        loginAsUser("a62eb09d-dbf2-495a-8872-7d16e6911296", Constants.USER_ROLE);
+        GeoTag withoutHistory = geoTagService.findOne(mockTag.getGeoId(), null);
+        withoutHistory.getCurrentPosition().setUserEmail(null);
+        loginAsUser("a62eb09d-dbf2-495a-8872-7d16e6911296", Constants.ADMIN_ROLE);
+        GeoTag withHistory = geoTagService.findOne(mockTag.getGeoId(), new String[] {"userPositions"});
+
+        // Asserts
+        verify(geoTagRepository, times(1)).findOne(mockTag.getGeoId());
+        assertNull(withoutHistory.getUserPositions());
+        assertEquals("example@example.com", withHistory.getCurrentPosition().getUserEmail());
+        assertEquals(1, withHistory.getUserPositions().size());
+    }
+
+    @Test
+    public void lookupTest() {
+        // Mock response data
+        GeoTag mockTag1 = new GeoTag("13aa8f23e4b0666a514604fa", "URN:NBN:no-nb_foto_NF.W_50121", new GeoPosition("a62eb09d-dbf2-495a-8872-7d16e6911296", "example@example.com", 9.052734375, 66.04758417711061, new Date()));
+        GeoTag mockTag2 = new GeoTag("539fedvf3786e7e7fa64f47c", "URN:NBN:no-nb_digifoto_20140228_00094_NB_WF_EDK_129136", new GeoPosition("a62eb09d-dbf2-495a-8872-7d16e6911296", "example@example.com", 2.052734375, 61.04758417711061, new Date()));
+
+        // Mock response
+        when(geoTagRepository.findAll(Arrays.asList(mockTag1.getGeoId(), "333fedvf3796e7e7fa64f50v"))).thenReturn(Arrays.asList(mockTag1));
+        when(geoTagRepository.findByUrnIn(new LinkedHashSet<>(Arrays.asList(mockTag2.getUrn(), "URN:NBN:no-nb_foto_NF.W_00000")))).thenReturn(Arrays.asList(mockTag2));
+
+        // Tests
+        loginAsUser("a62eb09d-dbf2-495a-8872-7d16e6911296", Constants.USER_ROLE);
+        GeoTagLookupResult result = geoTagService.lookup(new GeoTagLookup(
+                Arrays.asList(mockTag1.getGeoId(), "333fedvf3796e7e7fa64f50v", mockTag1.getGeoId()),
+                Arrays.asList(mockTag2.getUrn(), "URN:NBN:no-nb_foto_NF.W_00000")), null);
+        loginAsUser("a62eb09d-dbf2-495a-8872-7d16e6911296", Constants.ADMIN_ROLE);
+        GeoTagLookupResult cached = geoTagService.lookup(new GeoTagLookup(Arrays.asList(mockTag1.getGeoId()), null), new String[] {"userPositions"});
+
+        // Asserts
+        verify(geoTagRepository, times(1)).findAll(anyCollectionOf(String.class));
+        assertEquals(Arrays.asList(mockTag1.getGeoId(), "333fedvf3796e7e7fa64f50v"), new ArrayList<>(result.getIds().keySet()));
+        assertNull(result.getIds().get(mockTag1.getGeoId()).getUserPositions());
+        assertNull(result.getIds().get("333fedvf3796e7e7fa64f50v"));
+        assertEquals(1, result.getUrns().get(mockTag2.getUrn()).size());
+        assertEquals(mockTag2.getGeoId(), result.getUrns().get(mockTag2.getUrn()).get(0).getGeoId());
+        assertNull(result.getUrns().get(mockTag2.getUrn()).get(0).getUserPositions());
+        assertTrue(result.getUrns().get("URN:NBN:no-nb_foto_NF.W_00000").isEmpty());
+        assertEquals("example@example.com", cached.getIds().get(mockTag1.getGeoId()).getCurrentPosition().getUserEmail());
+        assertEquals(1, cached.getIds().get(mockTag1.getGeoId()).getUserPositions().size());
+        assertTrue(cached.getUrns().isEmpty());
+    }
+
+    @Test
+    public void lookupUrnWithTwoTagsTest() {
+        // Mock response data
+        GeoTag mockTag1 = new GeoTag("13aa8f23e4b0666a514604fa", "URN:NBN:no-nb_foto_NF.W_50121", new GeoPosition("a62eb09d-dbf2-495a-8872-7d16e6911296", "example@example.com", 9.052734375, 66.04758417711061, new Date()));
+        GeoTag mockTag2 = new GeoTag("539fedvf3786e7e7fa64f47c", "URN:NBN:no-nb_foto_NF.W_50121", new GeoPosition("b62eb09d-dbf2-495a-8872-7d16e6911296", "other@example.com", 2.052734375, 61.04758417711061, new Date()));
+
+        // Mock response
+        when(geoTagRepository.findByUrnIn(new LinkedHashSet<>(Arrays.asList(mockTag1.getUrn())))).thenReturn(Arrays.asList(mockTag1, mockTag2));
+
+        // Tests
+        loginAsUser("a62eb09d-dbf2-495a-8872-7d16e6911296", Constants.ADMIN_ROLE);
+        GeoTagLookupResult result = geoTagService.lookup(new GeoTagLookup(null, Arrays.asList(mockTag1.getUrn())), new String[] {"userPositions"});
+
+        // Asserts
+        assertEquals(Arrays.asList(mockTag1, mockTag2), result.getUrns().get(mockTag1.getUrn()));
+        verify(geoTagRepository, times(1)).loadHistory(Arrays.asList(mockTag1, mockTag2));
+    }
+
     @Test(expected = NoSuchElementException.class)
     public void findOnePositionTest() {
         // Mock response data
@@ -181,23 +355,51 @@ public class GeotagServiceTests {
         geoTagService.delete(mockTag1.getGeoId());
 
         verify(geoTagRepository, times(1)).delete(anyString());
+        verify(geoTagRepository, times(1)).deleteHistory(mockTag1.getGeoId());
     }
 
     @Test
     public void deletePositionTest() {
         // Mock response data
         GeoTag mockTag1 = new GeoTag("539fedvf3786e7e7fa64f47c", "URN:NBN:no-nb_digifoto_20140228_00094_NB_WF_EDK_129136", new GeoPosition("posid1", "a62eb09d-dbf2-495a-8872-7d16e6911296", "example@example.com", 2.052734375, 61.04758417711061, new Date()));
-        List<GeoPosition> geoPositions = new ArrayList<>();
-        geoPositions.add(new GeoPosition("posid1", "a62eb09d-dbf2-495a-8872-7d16e6911296", "example@example.com", 13.052734375, 62.04758417711061, new Date()));
-        mockTag1.setUserPositions(geoPositions);
+        mockTag1.setUserPositions(null);
+        GeoPosition lastPosition = new GeoPosition("posid0", "b62eb09d-dbf2-495a-8872-7d16e6911296", "example@example.com", 13.052734375, 62.04758417711061, new Date());
+        GeoTag mockTag1WithLast = new GeoTag("539fedvf3786e7e7fa64f47c", "URN:NBN:no-nb_digifoto_20140228_00094_NB_WF_EDK_129136", mockTag1.getCurrentPosition());
+        mockTag1WithLast.setUserPositions(new ArrayList<>(Collections.singletonList(lastPosition)));
+        GeoTag mockTag1Promoted = new GeoTag("539fedvf3786e7e7fa64f47c", "URN:NBN:no-nb_digifoto_20140228_00094_NB_WF_EDK_129136", lastPosition);
+
         // Mock response
-        when(geoTagRepository.findOne(mockTag1.getGeoId())).thenReturn(mockTag1);
+        when(geoTagRepository.pullPosition(mockTag1.getGeoId(), "posid1")).thenReturn(mockTag1);
+        when(geoTagRepository.findOneWithLastPosition(mockTag1.getGeoId())).thenReturn(mockTag1WithLast);
+        when(geoTagRepository.promotePosition(mockTag1.getGeoId(), "posid1", lastPosition)).thenReturn(mockTag1Promoted);
 
         // Tests
         geoTagService.deletePosition(mockTag1.getGeoId(), mockTag1.getCurrentPosition().getPosId());
 
-        verify(geoTagRepository, times(1)).findOne(mockTag1.getGeoId());
-        verify(geoTagRepository, times(1)).save(any(GeoTag.class));
+        verify(geoTagRepository, times(1)).pullPosition(mockTag1.getGeoId(), "posid1");
+        verify(geoTagRepository, times(1)).promotePosition(mockTag1.getGeoId(), "posid1", lastPosition);
+        verify(geoTagRepository, never()).save(any(GeoTag.class));
+        verify(eventPublisher, times(1)).publishEvent(any(GeoTagEvent.class));
+    }
+
+    @Test
+    public void deleteHistoryPositionTest() {
+        // Mock response data
+        GeoTag mockTag1 = new GeoTag("539fedvf3786e7e7fa64f47c", "URN:NBN:no-nb_digifoto_20140228_00094_NB_WF_EDK_129136", new GeoPosition("posid1", "a62eb09d-dbf2-495a-8872-7d16e6911296", "example@example.com", 2.052734375, 61.04758417711061, new Date()));
+
+        // Mock response
+        when(geoTagRepository.pullPosition(mockTag1.getGeoId(), "posid0")).thenReturn(mockTag1);
+
+        // Tests
+        geoTagService.deletePosition(mockTag1.getGeoId(), "posid0");
+
+        verify(geoTagRepository, times(1)).pullPosition(mockTag1.getGeoId(), "posid0");
+        verify(geoTagRepository, never()).promotePosition(anyString(), anyString(), any(GeoPosition.class));
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void deletePositionNotFoundTest() {
+        geoTagService.deletePosition("333fedvf3796e7e7fa64f50v", "posid0");
     }
 
     @Test
@@ -205,11 +407,8 @@ public class GeotagServiceTests {
         // Test data
         GeoTag tag1 = new GeoTag("13aa8f23e4b0666a514604fa", "URN:NBN:no-nb_foto_NF.W_50121", new GeoPosition("a62eb09d-dbf2-495a-8872-7d16e6911296", 9.052734375, 66.04758417711061, new Date()));
 
-        // Mock response data
-        Page<GeoTag> mockPages = new PageImpl<GeoTag>(new ArrayList<>());
-
         // Mock response
-        when(geoTagRepository.findByUrn(anyString(), any(Pageable.class))).thenReturn(mockPages);
+        when(geoTagRepository.findOneByUrnWithoutHistory(anyString())).thenReturn(null);
         loginAsUser("a62eb09d-dbf2-495a-8872-7d16e6911296", Constants.USER_ROLE);
 
         // Tests
@@ -221,8 +420,10 @@ public class GeotagServiceTests {
         assertNotNull(savedTag.getCurrentPosition().getPosId());
         assertTrue(savedTag.isDirty());
         assertFalse(savedTag.isSticky());
+        verify(eventPublisher, times(1)).publishEvent(any(GeoTagEvent.class));
         verify(nbUserService, times(1)).getNBUser();
-        verify(geoTagRepository, times(1)).findByUrn(tag1.getUrn(), new PageRequest(0, 1));
+        verify(geoTagRepository, times(1)).findOneByUrnWithoutHistory(tag1.getUrn());
+        verify(geoTagRepository, times(1)).save(tag1);
     }
 
     @Test
@@ -230,14 +431,18 @@ public class GeotagServiceTests {
         // Test data
         GeoTag tag1 = new GeoTag("13aa8f23e4b0666a514604fa", "URN:NBN:no-nb_foto_NF.W_50121", new GeoPosition("a62eb09d-dbf2-495a-8872-7d16e6911296", 9.052734375, 66.04758417711061, new Date()));
         GeoTag tag2 = new GeoTag("13aa8f23e4b0666a514604fa", "URN:NBN:no-nb_foto_NF.W_50121", new GeoPosition("b62eb09d-dbf2-495a-8872-7d16e6911296", 10.13245458, 67.54454568811200, new Date()));
-
-        // Mock response data
-        List geotags = new ArrayList<>();
-        geotags.add(tag2);
-        Page<GeoTag> mockPages = new PageImpl<GeoTag>(geotags);
+        GeoPosition oldPosition = tag2.getCurrentPosition();
+        oldPosition.setPosId("posid2");
+        tag2.setVersion(4L);
 
         // Mock response
-        when(geoTagRepository.findByUrn(anyString(), any(Pageable.class))).thenReturn(mockPages);
+        when(geoTagRepository.findOneByUrnWithoutHistory(anyString())).thenReturn(tag2);
+        when(geoTagRepository.replaceCurrentPosition(anyString(), anyLong(), any(GeoPosition.class), any(GeoPosition.class))).thenAnswer(invocation -> {
+            GeoTag saved = new GeoTag(tag2.getGeoId(), tag2.getUrn(), (GeoPosition) invocation.getArguments()[2]);
+            saved.setUserPositions(null);
+            saved.setDirty(true);
+            return saved;
+        });
         loginAsUser("a62eb09d-dbf2-495a-8872-7d16e6911296", Constants.USER_ROLE);
 
         // Tests
@@ -248,14 +453,146 @@ public class GeotagServiceTests {
         assertEquals(tag1.getCurrentPosition().getLatitude(), savedTag.getCurrentPosition().getLatitude(), DELTA);
         assertEquals(tag1.getCurrentPosition().getLongitude(), savedTag.getCurrentPosition().getLongitude(), DELTA);
         assertEquals(tag1.getCurrentPosition().getUserId(), savedTag.getCurrentPosition().getUserId());
-        assertEquals(10.13245458, savedTag.getUserPositions().get(0).getLongitude(), DELTA);
-        assertEquals(67.54454568811200, savedTag.getUserPositions().get(0).getLatitude(), DELTA);
-        assertEquals("b62eb09d-dbf2-495a-8872-7d16e6911296", savedTag.getUserPositions().get(0).getUserId());
         assertTrue(savedTag.getUrn().equals(tag1.getUrn()));
         assertTrue(savedTag.getCurrentPosition().getPosId() != null);
         assertTrue(savedTag.isDirty());
         verify(nbUserService, times(1)).getNBUser();
-        verify(geoTagRepository, times(1)).findByUrn(tag1.getUrn(), new PageRequest(0, 1));
+        verify(geoTagRepository, times(1)).findOneByUrnWithoutHistory(tag1.getUrn());
+
+        // The position from the other user is archived, and this user's earlier positions are removed
+        verify(geoTagRepository, times(1)).replaceCurrentPosition(tag2.getGeoId(), 4L, tag1.getCurrentPosition(), oldPosition);
+        verify(geoTagRepository, times(1)).pullUserPositions(tag2.getGeoId(), "a62eb09d-dbf2-495a-8872-7d16e6911296");
+        verify(geoTagRepository, never()).save(any(GeoTag.class));
+    }
+
+    @Test
+    public void saveOldRetriesOnConcurrentChangeTest() {
+        // Test data
+        GeoTag tag1 = new GeoTag("13aa8f23e4b0666a514604fa", "URN:NBN:no-nb_foto_NF.W_50121", new GeoPosition("a62eb09d-dbf2-495a-8872-7d16e6911296", 9.052734375, 66.04758417711061, new Date()));
+        GeoTag tag2 = new GeoTag("13aa8f23e4b0666a514604fa", "URN:NBN:no-nb_foto_NF.W_50121", new GeoPosition("posid2", "b62eb09d-dbf2-495a-8872-7d16e6911296", "example@example.com", 10.13245458, 67.54454568811200, new Date()));
+        GeoTag tag2Changed = new GeoTag("13aa8f23e4b0666a514604fa", "URN:NBN:no-nb_foto_NF.W_50121", new GeoPosition("posid3", "c62eb09d-dbf2-495a-8872-7d16e6911296", "example@example.com", 11.13245458, 68.54454568811200, new Date()));
+        tag2.setVersion(1L);
+        tag2Changed.setVersion(2L);
+
+        // Mock response
+        when(geoTagRepository.findOneByUrnWithoutHistory(anyString())).thenReturn(tag2, tag2Changed);
+        when(geoTagRepository.replaceCurrentPosition(anyString(), eq(2L), any(GeoPosition.class), any(GeoPosition.class))).thenReturn(tag1);
+        loginAsUser("a62eb09d-dbf2-495a-8872-7d16e6911296", Constants.USER_ROLE);
+
+        // Tests
+        geoTagService.save(tag1);
+
+        // Asserts
+        verify(geoTagRepository, times(2)).findOneByUrnWithoutHistory(tag1.getUrn());
+        verify(geoTagRepository, times(1)).replaceCurrentPosition(tag2.getGeoId(), 2L, tag1.getCurrentPosition(), tag2Changed.getCurrentPosition());
+        verify(eventPublisher, times(1)).publishEvent(any(GeoTagEvent.class));
+    }
+
+    @Test(expected = AccessDeniedException.class)
+    public void saveStickyTest() {
+        // Test data
+        GeoTag tag1 = new GeoTag("13aa8f23e4b0666a514604fa", "URN:NBN:no-nb_foto_NF.W_50121", new GeoPosition("a62eb09d-dbf2-495a-8872-7d16e6911296", 9.052734375, 66.04758417711061, new Date()));
+        GeoTag tag2 = new GeoTag("13aa8f23e4b0666a514604fa", "URN:NBN:no-nb_foto_NF.W_50121", new GeoPosition("posid2", "b62eb09d-dbf2-495a-8872-7d16e6911296", "example@example.com", 10.13245458, 67.54454568811200, new Date()));
+        tag2.setSticky(true);
+
+        // Mock response
+        when(geoTagRepository.findOneByUrnWithoutHistory(anyString())).thenReturn(tag2);
+        loginAsUser("a62eb09d-dbf2-495a-8872-7d16e6911296", Constants.USER_ROLE);
+
+        // Tests
+        geoTagService.save(tag1);
+    }
+
+    @Test
+    public void saveAllTest() {
+        // Test data
+        GeoTag newTag = new GeoTag(null, "URN:NBN:no-nb_foto_NF.W_50121", new GeoPosition(null, 9.052734375, 66.04758417711061, null));
+        GeoTag sameNewTag = new GeoTag(null, "URN:NBN:no-nb_foto_NF.W_50121", new GeoPosition(null, 9.5, 66.5, null));
+        GeoTag oldTag = new GeoTag(null, "URN:NBN:no-nb_digifoto_20140228_00094_NB_WF_EDK_129136", new GeoPosition(null, 2.052734375, 61.04758417711061, null));
+        GeoTag stickyTag = new GeoTag(null, "URN:NBN:no-nb_digifoto_20140228_00094_NB_WF_EDK_129138", new GeoPosition(null, 13.052734375, 62.04758417711061, null));
+        GeoTag invalidTag = new GeoTag(null, "no-urn", new GeoPosition(null, 13.052734375, 62.04758417711061, null));
+
+        // Mock response data
+        GeoTag storedOldTag = new GeoTag("539fedvf3786e7e7fa64f47c", oldTag.getUrn(), new GeoPosition("b62eb09d-dbf2-495a-8872-7d16e6911296", 3.0, 60.0, new Date()));
+        GeoTag storedStickyTag = new GeoTag("408fedvf3786e7e7fa64f47c", stickyTag.getUrn(), new GeoPosition("b62eb09d-dbf2-495a-8872-7d16e6911296", 14.0, 63.0, new Date()));
+        storedStickyTag.setSticky(true);
+
+        // Mock response
+        when(geoTagRepository.findByUrnIn(any(Collection.class))).thenReturn(Arrays.asList(storedOldTag, storedStickyTag));
+        when(geoTagRepository.bulkSave(any(List.class))).thenReturn(new HashMap<>());
+        loginAsUser("a62eb09d-dbf2-495a-8872-7d16e6911296", Constants.USER_ROLE);
+
+        // Tests
+        List<GeoTagBatchResult> results = new ArrayList<>();
+        geoTagService.saveAll(Arrays.asList(newTag, oldTag, stickyTag, invalidTag, sameNewTag).iterator(), results::add);
+
+        // Asserts
+        assertEquals(5, results.size());
+        assertEquals(GeoTagBatchResult.Status.CREATED, results.get(0).getStatus());
+        assertEquals(GeoTagBatchResult.Status.UPDATED, results.get(1).getStatus());
+        assertEquals(storedOldTag.getGeoId(), results.get(1).getId());
+        assertEquals(GeoTagBatchResult.Status.REJECTED, results.get(2).getStatus());
+        assertEquals(GeoTagBatchResult.Status.REJECTED, results.get(3).getStatus());
+        assertEquals(GeoTagBatchResult.Status.UPDATED, results.get(4).getStatus());
+        assertEquals(results.get(0).getId(), results.get(4).getId());
+        assertEquals(4, results.get(4).getIndex());
+
+        // The user keeps only the latest of the two positions on the new tag
+        assertEquals(9.5, newTag.getCurrentPosition().getLongitude(), DELTA);
+        assertTrue(newTag.getUserPositions().isEmpty());
+
+        verify(geoTagRepository, times(1)).findByUrnIn(any(Collection.class));
+        verify(geoTagRepository, times(1)).bulkSave(Arrays.asList(newTag, storedOldTag));
+        verify(geoTagRepository, never()).save(any(GeoTag.class));
+        verify(eventPublisher, times(2)).publishEvent(any(GeoTagEvent.class));
+    }
+
+    @Test
+    public void saveAllUrnWithTwoTagsTest() {
+        // Test data
+        GeoTag tag = new GeoTag(null, "URN:NBN:no-nb_foto_NF.W_50121", new GeoPosition(null, 9.052734375, 66.04758417711061, null));
+
+        // Mock response data
+        GeoTag storedLater = new GeoTag("539fedvf3786e7e7fa64f47c", tag.getUrn(), new GeoPosition("b62eb09d-dbf2-495a-8872-7d16e6911296", 3.0, 60.0, new Date()));
+        GeoTag storedFirst = new GeoTag("13aa8f23e4b0666a514604fa", tag.getUrn(), new GeoPosition("b62eb09d-dbf2-495a-8872-7d16e6911296", 14.0, 63.0, new Date()));
+
+        // Mock response
+        when(geoTagRepository.findByUrnIn(any(Collection.class))).thenReturn(Arrays.asList(storedLater, storedFirst));
+        when(geoTagRepository.bulkSave(any(List.class))).thenReturn(new HashMap<>());
+        loginAsUser("a62eb09d-dbf2-495a-8872-7d16e6911296", Constants.USER_ROLE);
+
+        // Tests
+        List<GeoTagBatchResult> results = new ArrayList<>();
+        geoTagService.saveAll(Collections.singletonList(tag).iterator(), results::add);
+
+        // Asserts, the tag with the lowest id gets the position, as with a single save
+        assertEquals(GeoTagBatchResult.Status.UPDATED, results.get(0).getStatus());
+        assertEquals(storedFirst.getGeoId(), results.get(0).getId());
+        verify(geoTagRepository, times(1)).bulkSave(Arrays.asList(storedFirst));
+    }
+
+    @Test
+    public void saveAllWriteErrorTest() {
+        // Test data
+        GeoTag newTag = new GeoTag(null, "URN:NBN:no-nb_foto_NF.W_50121", new GeoPosition(null, 9.052734375, 66.04758417711061, null));
+
+        // Mock response data
+        Map<Integer, String> errors = new HashMap<>();
+        errors.put(0, "E11000 duplicate key error");
+
+        // Mock response
+        when(geoTagRepository.findByUrnIn(any(Collection.class))).thenReturn(new ArrayList<>());
+        when(geoTagRepository.bulkSave(any(List.class))).thenReturn(errors);
+        loginAsUser("a62eb09d-dbf2-495a-8872-7d16e6911296", Constants.USER_ROLE);
+
+        // Tests
+        List<GeoTagBatchResult> results = new ArrayList<>();
+        geoTagService.saveAll(Collections.singletonList(newTag).iterator(), results::add);
+
+        // Asserts
+        assertEquals(GeoTagBatchResult.Status.FAILED, results.get(0).getStatus());
+        assertEquals("E11000 duplicate key error", results.get(0).getMessage());
+        verify(eventPublisher, never()).publishEvent(any(GeoTagEvent.class));
     }
 
     @Test(expected = NoSuchElementException.class)
@@ -263,19 +600,14 @@ public class GeotagServiceTests {
         GeoTag tag1 = new GeoTag("13aa8f23e4b0666a514604fa", "URN:NBN:no-nb_foto_NF.W_50121", new GeoPosition("b62eb09d-dbf2-495a-8872-7d16e6911296", "example@example.com", 10.13245458, 67.54454568811200, new Date()));
         GeoPosition pos1 = new GeoPosition("a62eb09d-dbf2-495a-8872-7d16e6911296", 9.052734375, 66.04758417711061, new Date());
 
-        // Mock data
-        GeoTag tag1Saved = new GeoTag("13aa8f23e4b0666a514604fa", "URN:NBN:no-nb_foto_NF.W_50121", new GeoPosition("b62eb09d-dbf2-495a-8872-7d16e6911296", "example@example.com", 10.13245458, 67.54454568811200, new Date()));
-        GeoPosition pos1Saved = new GeoPosition("pos1", "a62eb09d-dbf2-495a-8872-7d16e6911296", "exmaple@example.com", 9.052734375, 66.04758417711061, new Date());
-        tag1Saved.getUserPositions().add(pos1Saved);
-
-        when(geoTagRepository.findOne(tag1.getGeoId())).thenReturn(tag1);
-        when(geoTagRepository.save(any(GeoTag.class))).thenReturn(tag1Saved);
+        when(geoTagRepository.pushPosition(tag1.getGeoId(), pos1)).thenReturn(tag1);
         GeoPosition savedPos1 = geoTagService.savePosition(tag1.getGeoId(), pos1);
 
         assertNotNull(savedPos1.getPosId());
         assertEquals(pos1.getLongitude(), savedPos1.getLongitude(), DELTA);
+        verify(geoTagRepository, never()).save(any(GeoTag.class));
 
-        when(geoTagRepository.findOne(tag1.getGeoId())).thenReturn(null);
+        when(geoTagRepository.pushPosition(tag1.getGeoId(), pos1)).thenReturn(null);
         GeoPosition savedPos2 = geoTagService.savePosition(tag1.getGeoId(), pos1);
         assertNull(savedPos2);
         thrown.expect(NoSuchElementException.class);
@@ -292,4 +624,174 @@ public class GeotagServiceTests {
         // Asserts
         verify(geoTagRepository, times(1)).save(any(GeoTag.class));
     }
+
+    @Test
+    public void updateExistingTest() {
+        // Test data
+        GeoTag tag1 = new GeoTag("13aa8f23e4b0666a514604fa", "URN:NBN:no-nb_foto_NF.W_50121", new GeoPosition("a62eb09d-dbf2-495a-8872-7d16e6911296", 9.052734375, 66.04758417711061, new Date()));
+
+        // Mock response data
+        GeoTag stored = new GeoTag("13aa8f23e4b0666a514604fa", "URN:NBN:no-nb_foto_NF.W_50121", new GeoPosition("a62eb09d-dbf2-495a-8872-7d16e6911296", 9.052734375, 66.04758417711061, new Date()));
+        stored.setVersion(3L);
+
+        // Mock response
+        when(geoTagRepository.findOneWithoutHistory(tag1.getGeoId())).thenReturn(stored);
+        when(geoTagRepository.replace(tag1, 3L)).thenReturn(true);
+
+        // Tests
+        geoTagService.update(tag1.getGeoId(), tag1);
+
+        // Asserts
+        verify(geoTagRepository, times(1)).replace(tag1, 3L);
+        verify(geoTagRepository, never()).save(any(GeoTag.class));
+    }
+
+    @Test(expected = OptimisticLockingFailureException.class)
+    public void updateWrongVersionTest() {
+        // Test data
+        GeoTag tag1 = new GeoTag("13aa8f23e4b0666a514604fa", "URN:NBN:no-nb_foto_NF.W_50121", new GeoPosition("a62eb09d-dbf2-495a-8872-7d16e6911296", 9.052734375, 66.04758417711061, new Date()));
+
+        // Mock response
+        when(geoTagRepository.replace(tag1, 2L)).thenReturn(false);
+
+        // Tests
+        geoTagService.update(tag1.getGeoId(), tag1, 2L);
+    }
+
+    @Test(expected = OptimisticLockingFailureException.class)
+    public void saveWrongVersionTest() {
+        // Test data
+        GeoTag tag1 = new GeoTag("13aa8f23e4b0666a514604fa", "URN:NBN:no-nb_foto_NF.W_50121", new GeoPosition("a62eb09d-dbf2-495a-8872-7d16e6911296", 9.052734375, 66.04758417711061, new Date()));
+        GeoTag tag2 = new GeoTag("13aa8f23e4b0666a514604fa", "URN:NBN:no-nb_foto_NF.W_50121", new GeoPosition("posid2", "b62eb09d-dbf2-495a-8872-7d16e6911296", "example@example.com", 10.13245458, 67.54454568811200, new Date()));
+        tag2.setVersion(5L);
+
+        // Mock response
+        when(geoTagRepository.findOneByUrnWithoutHistory(anyString())).thenReturn(tag2);
+        loginAsUser("a62eb09d-dbf2-495a-8872-7d16e6911296", Constants.USER_ROLE);
+
+        // Tests
+        geoTagService.save(tag1, 4L);
+    }
+
+    @Test
+    public void withinUsesSpatialIndexWhenReadyTest() {
+        GeoTag tag1 = new GeoTag("13aa8f23e4b0666a514604fa", "URN:NBN:no-nb_foto_NF.W_50121", new GeoPosition("a62eb09d-dbf2-495a-8872-7d16e6911296", "example@example.com", 9.052734375, 66.04758417711061, new Date()));
+        GeoQuery query = new GeoQuery();
+        query.setLon(9.0);
+        query.setLat(66.0);
+        query.setSecondLon(10.0);
+        query.setSecondLat(67.0);
+
+        when(spatialIndex.isReady()).thenReturn(true);
+        when(spatialIndex.within(any(), any(Pageable.class))).thenReturn(new PageImpl<GeoTag>(Arrays.asList(tag1)));
+        loginAsUser("a62eb09d-dbf2-495a-8872-7d16e6911296", Constants.USER_ROLE);
+
+        Page<GeoTag> pages = geoTagService.within(query, 0, 10);
+
+        assertEquals(1, pages.getTotalElements());
+        assertEquals("example@example.com", pages.getContent().get(0).getCurrentPosition().getUserEmail());
+        verify(geoTagRepository, never()).findWithin(any(), any(Pageable.class), any(Totals.class));
+        verify(geoTagRepository, never()).loadHistory(anyListOf(GeoTag.class));
+    }
+
+    @Test
+    public void withinStreamedTest() {
+        GeoTag tag1 = new GeoTag("13aa8f23e4b0666a514604fa", "URN:NBN:no-nb_foto_NF.W_50121", new GeoPosition("a62eb09d-dbf2-495a-8872-7d16e6911296", 9.052734375, 66.04758417711061, new Date()));
+        GeoTag tag2 = new GeoTag("539fedvf3786e7e7fa64f47c", "URN:NBN:no-nb_digifoto_20140228_00094_NB_WF_EDK_129136", new GeoPosition("a62eb09d-dbf2-495a-8872-7d16e6911296", 9.552734375, 66.54758417711061, new Date()));
+        GeoQuery query = new GeoQuery();
+        query.setLon(9.0);
+        query.setLat(66.0);
+        query.setSecondLon(10.0);
+        query.setSecondLat(67.0);
+
+        when(geoTagRepository.streamWithin(any(), any(Pageable.class), eq(Totals.EXACT), any(Consumer.class))).thenAnswer(invocation -> {
+            Consumer<GeoTag> consumer = (Consumer<GeoTag>) invocation.getArguments()[3];
+            consumer.accept(tag1);
+            consumer.accept(tag2);
+            return new PageImpl<GeoTag>(Collections.<GeoTag>emptyList(), (Pageable) invocation.getArguments()[1], 2);
+        });
+        loginAsUser("a62eb09d-dbf2-495a-8872-7d16e6911296", Constants.ADMIN_ROLE);
+
+        List<GeoTag> streamed = new ArrayList<>();
+        Page<GeoTag> pages = geoTagService.within(query, 0, 10, streamed::add);
+
+        assertEquals(Arrays.asList(tag1, tag2), streamed);
+        assertEquals(2, pages.getTotalElements());
+        // The history of each tag is loaded as it goes by
+        verify(geoTagRepository, times(2)).loadHistory(anyListOf(GeoTag.class));
+        verify(geoTagRepository, never()).findWithin(any(), any(Pageable.class), any(Totals.class));
+    }
+
+    @Test
+    public void withinStreamedFromSpatialIndexTest() {
+        GeoTag tag1 = new GeoTag("13aa8f23e4b0666a514604fa", "URN:NBN:no-nb_foto_NF.W_50121", new GeoPosition("a62eb09d-dbf2-495a-8872-7d16e6911296", 9.052734375, 66.04758417711061, new Date()));
+        GeoQuery query = new GeoQuery();
+        query.setLon(9.0);
+        query.setLat(66.0);
+        query.setSecondLon(10.0);
+        query.setSecondLat(67.0);
+
+        when(spatialIndex.isReady()).thenReturn(true);
+        when(spatialIndex.forEachWithin(any(), eq(20L), eq(10), any(Consumer.class))).thenAnswer(invocation -> {
+            ((Consumer<GeoTag>) invocation.getArguments()[3]).accept(tag1);
+            return 21L;
+        });
+        loginAsUser("a62eb09d-dbf2-495a-8872-7d16e6911296", Constants.USER_ROLE);
+
+        List<GeoTag> streamed = new ArrayList<>();
+        Page<GeoTag> pages = geoTagService.within(query, 2, 10, streamed::add);
+
+        assertEquals(Arrays.asList(tag1), streamed);
+        assertEquals(21, pages.getTotalElements());
+        // Nothing is collected into a page first
+        verify(spatialIndex, never()).within(any(), any(Pageable.class));
+        verify(geoTagRepository, never()).streamWithin(any(), any(Pageable.class), any(Totals.class), any(Consumer.class));
+    }
+
+    @Test
+    public void clustersTest() {
+        GeoTag tag1 = new GeoTag("13aa8f23e4b0666a514604fa", "URN:NBN:no-nb_foto_NF.W_50121", new GeoPosition("a62eb09d-dbf2-495a-8872-7d16e6911296", 10.1, 60.1, new Date()));
+        GeoTag tag2 = new GeoTag("539fedvf3786e7e7fa64f47c", "URN:NBN:no-nb_digifoto_20140228_00094_NB_WF_EDK_129136", new GeoPosition("a62eb09d-dbf2-495a-8872-7d16e6911296", 10.3, 60.3, new Date()));
+        GeoTag tag3 = new GeoTag("408fedvf3786e7e7fa64f47c", "URN:NBN:no-nb_digifoto_20140228_00094_NB_WF_EDK_129138", new GeoPosition("a62eb09d-dbf2-495a-8872-7d16e6911296", 25.5, 70.5, new Date()));
+
+        doAnswer(invocation -> {
+            Consumer<GeoTag> consumer = (Consumer<GeoTag>) invocation.getArguments()[1];
+            consumer.accept(tag1);
+            consumer.accept(tag2);
+            consumer.accept(tag3);
+            return null;
+        }).when(geoTagRepository).streamPositions(any(), any(Consumer.class));
+
+        // Zoom 4 gives cells of 5.625 degrees
+        List<GeoCluster> clusters = geoTagService.clusters(new Box(new Point(0, 50), new Point(40, 80)), 4);
+
+        assertEquals(2, clusters.size());
+        GeoCluster south = clusters.get(0).getCount() == 2 ? clusters.get(0) : clusters.get(1);
+        assertEquals(2, south.getCount());
+        assertEquals(10.2, south.getCentroid()[0], 1e-9);
+        assertEquals(60.2, south.getCentroid()[1], 1e-9);
+        assertEquals(tag1.getGeoId(), south.getSampleId());
+    }
+
+    @Test
+    public void clustersAtMaxZoomTest() {
+        GeoTag tag1 = new GeoTag("13aa8f23e4b0666a514604fa", "URN:NBN:no-nb_foto_NF.W_50121", new GeoPosition("a62eb09d-dbf2-495a-8872-7d16e6911296", 10.1, 60.1, new Date()));
+        GeoTag tag2 = new GeoTag("539fedvf3786e7e7fa64f47c", "URN:NBN:no-nb_digifoto_20140228_00094_NB_WF_EDK_129136", new GeoPosition("a62eb09d-dbf2-495a-8872-7d16e6911296", 10.1001, 60.1001, new Date()));
+
+        doAnswer(invocation -> {
+            Consumer<GeoTag> consumer = (Consumer<GeoTag>) invocation.getArguments()[1];
+            consumer.accept(tag1);
+            consumer.accept(tag2);
+            return null;
+        }).when(geoTagRepository).streamPositions(any(), any(Consumer.class));
+
+        List<GeoCluster> clusters = geoTagService.clusters(new Box(new Point(10.099, 60.099), new Point(10.101, 60.101)), VectorTileService.MAX_ZOOM);
+
+        assertEquals(2, clusters.size());
+    }
+
+    @Test(expected = InvalidRequestException.class)
+    public void clustersTooManyCellsTest() {
+        geoTagService.clusters(new Box(new Point(-180, -90), new Point(180, 90)), 10);
+    }
 }
@@ -0,0 +1,90 @@
+package no.nb.microservices.geotag.service;
+
+import no.nb.microservices.geotag.config.ApplicationSettings;
+import no.nb.microservices.geotag.model.GeoPosition;
+import no.nb.microservices.geotag.model.GeoTag;
+import no.nb.microservices.geotag.model.GeoTagChange;
+import no.nb.microservices.geotag.repository.GeoTagRepository;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.data.geo.Box;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class VectorTileServiceTests {
+
+    private VectorTileService vectorTileService;
+
+    @Mock
+    private GeoTagRepository geoTagRepository;
+
+    @Mock
+    private GeoTagSpatialIndex spatialIndex;
+
+    private GeoTag tag1;
+
+    @Before
+    public void setup() {
+        MockitoAnnotations.initMocks(this);
+        vectorTileService = new VectorTileService(geoTagRepository, spatialIndex, new ApplicationSettings());
+
+        // Oslo, inside tile 4/8/4
+        tag1 = new GeoTag("13aa8f23e4b0666a514604fa", "URN:NBN:no-nb_foto_NF.W_50121", new GeoPosition("a62eb09d-dbf2-495a-8872-7d16e6911296", 10.75, 59.91, new Date()));
+
+        doAnswer(invocation -> {
+            Box box = (Box) invocation.getArguments()[0];
+            if (box.getFirst().getX() <= 10.75 && box.getSecond().getX() >= 10.75) {
+                ((Consumer<GeoTag>) invocation.getArguments()[1]).accept(tag1);
+            }
+            return null;
+        }).when(geoTagRepository).streamPositions(any(Box.class), any(Consumer.class));
+    }
+
+    @Test
+    public void tileContainsPointTest() {
+        byte[] tile = vectorTileService.tile(4, 8, 4);
+
+        // Field 3 (layers), length delimited
+        assertEquals(0x1A, tile[0]);
+        String content = new String(tile, StandardCharsets.ISO_8859_1);
+        assertTrue(content.contains(VectorTileService.LAYER_NAME));
+        assertTrue(content.contains(tag1.getUrn()));
+        assertTrue(content.contains(tag1.getGeoId()));
+    }
+
+    @Test
+    public void tileIsCachedTest() {
+        vectorTileService.tile(4, 8, 4);
+        vectorTileService.tile(4, 8, 4);
+
+        verify(geoTagRepository, times(1)).streamPositions(any(Box.class), any(Consumer.class));
+    }
+
+    @Test
+    public void writeInsideTileInvalidatesTest() {
+        vectorTileService.tile(4, 8, 4);
+        vectorTileService.tile(4, 0, 0);
+
+        vectorTileService.onApplicationEvent(new GeoTagEvent(this, GeoTagChange.Operation.UPDATE, tag1));
+        vectorTileService.tile(4, 8, 4);
+        vectorTileService.tile(4, 0, 0);
+
+        // Only the tile with the point is rendered again
+        verify(geoTagRepository, times(3)).streamPositions(any(Box.class), any(Consumer.class));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tileOutsideZoomLevelTest() {
+        vectorTileService.tile(2, 4, 0);
+    }
+}